@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An authorization decision taken by the Hook, along with an optional hint on how long the decision
+ * stays valid.
+ *
+ * <p>A decision returned by {@link MQTTCoolHook#authorizePublish(String, String, String,
+ * MqttMessage)} or {@link MQTTCoolHook#authorizeSubscribe(String, String, String,
+ * MqttSubscription)} which carries a validity hint may be reused, without calling the Hook again,
+ * for any further request made by the same session to the same MQTT broker, with the same client
+ * identifier and the same topic name (or topic filter), until:
+ * <ul>
+ * <li>the time specified through {@link #validFor(long, TimeUnit)} elapses, if any;</li>
+ * <li>the client unsubscribes from a topic filter matching the topic name (or from the very same
+ * topic filter), if {@link #untilUnsubscribe()} has been specified;</li>
+ * <li>the client disconnects from the MQTT broker, or the session is closed.</li>
+ * </ul>
+ *
+ * <p>A hint must therefore be attached only if the decision does not depend on anything else, like
+ * the Application Message or the QoS level. Decisions without hints are never reused.
+ *
+ * <p>Instances are immutable.
+ */
+public final class Decision {
+
+  private static final Decision ALLOWED = new Decision(true, 0, false);
+
+  private static final Decision DENIED = new Decision(false, 0, false);
+
+  private final boolean allowed;
+
+  private final long validityNanos;
+
+  private final boolean untilUnsubscribe;
+
+  private Decision(boolean allowed, long validityNanos, boolean untilUnsubscribe) {
+    this.allowed = allowed;
+    this.validityNanos = validityNanos;
+    this.untilUnsubscribe = untilUnsubscribe;
+  }
+
+  /**
+   * Returns a decision which grants the request, without any validity hint.
+   *
+   * @return the granting decision
+   */
+  public static Decision allow() {
+    return ALLOWED;
+  }
+
+  /**
+   * Returns a decision which refuses the request, without any validity hint.
+   *
+   * @return the refusing decision
+   */
+  public static Decision deny() {
+    return DENIED;
+  }
+
+  /**
+   * Returns a decision which grants or refuses the request, without any validity hint.
+   *
+   * @param allowed whether the request is granted
+   * @return either {@link #allow()} or {@link #deny()}
+   */
+  public static Decision of(boolean allowed) {
+    return allowed ? ALLOWED : DENIED;
+  }
+
+  /**
+   * Returns a copy of this decision which stays valid for the specified time at most.
+   *
+   * @param duration the time after which the decision must no longer be reused
+   * @param unit the time unit of {@code duration}
+   * @return the new decision
+   * @throws IllegalArgumentException if {@code duration} is not positive
+   */
+  public Decision validFor(long duration, TimeUnit unit) {
+    if (duration <= 0) {
+      throw new IllegalArgumentException("Invalid duration");
+    }
+    return new Decision(allowed, unit.toNanos(duration), untilUnsubscribe);
+  }
+
+  /**
+   * Returns a copy of this decision which stays valid until the client unsubscribes from a topic
+   * filter matching the topic name of the request (or from the very same topic filter, in case of a
+   * subscription). If no time limit has been specified through {@link #validFor(long, TimeUnit)},
+   * this is the only limit, apart from disconnections.
+   *
+   * @return the new decision
+   */
+  public Decision untilUnsubscribe() {
+    return new Decision(allowed, validityNanos == 0 ? Long.MAX_VALUE : validityNanos, true);
+  }
+
+  /**
+   * Gets whether the request is granted.
+   *
+   * @return {@code true} if the request is granted
+   */
+  public boolean isAllowed() {
+    return allowed;
+  }
+
+  /**
+   * Gets whether this decision carries a validity hint, and may therefore be reused.
+   *
+   * @return {@code true} if the decision may be reused
+   */
+  public boolean isCacheable() {
+    return validityNanos != 0;
+  }
+
+  /**
+   * Gets the time for which this decision stays valid.
+   *
+   * @param unit the time unit of the returned value
+   * @return the validity time, {@code 0} if the decision must not be reused, or
+   *         {@code Long.MAX_VALUE} if it is not limited in time
+   */
+  public long getValidity(TimeUnit unit) {
+    if (validityNanos == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return unit.convert(validityNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets whether this decision stops being valid when the client unsubscribes.
+   *
+   * @return {@code true} if the decision is valid until a matching unsubscription
+   * @see #untilUnsubscribe()
+   */
+  public boolean isValidUntilUnsubscribe() {
+    return untilUnsubscribe;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Decision)) {
+      return false;
+    }
+    Decision other = (Decision) obj;
+    return allowed == other.allowed && validityNanos == other.validityNanos
+        && untilUnsubscribe == other.untilUnsubscribe;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Boolean.hashCode(allowed);
+    result = 31 * result + Long.hashCode(validityNanos);
+    return 31 * result + Boolean.hashCode(untilUnsubscribe);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder(allowed ? "allow" : "deny");
+    if (validityNanos != 0 && validityNanos != Long.MAX_VALUE) {
+      builder.append(" for ").append(TimeUnit.NANOSECONDS.toMillis(validityNanos)).append("ms");
+    }
+    if (untilUnsubscribe) {
+      builder.append(" until unsubscribe");
+    }
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks;
+
+import java.util.Objects;
+
+/**
+ * An immutable description of a client disconnected from an MQTT broker, as delivered in batches
+ * through {@link MQTTCoolHook#onDisconnections(java.util.Collection)}.
+ */
+public final class Disconnection {
+
+  private final String sessionId;
+
+  private final String clientId;
+
+  private final String brokerAddress;
+
+  /**
+   * Creates a {@code Disconnection} with the same arguments as
+   * {@link MQTTCoolHook#onDisconnection(String, String, String)}.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier as sent by the client
+   * @param brokerAddress the address of the MQTT broker disconnected from
+   */
+  public Disconnection(String sessionId, String clientId, String brokerAddress) {
+    this.sessionId = sessionId;
+    this.clientId = clientId;
+    this.brokerAddress = brokerAddress;
+  }
+
+  /**
+   * Gets the unique identifier of the client session.
+   *
+   * @return the session identifier
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Gets the client identifier as sent by the client.
+   *
+   * @return the client identifier
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * Gets the address of the MQTT broker disconnected from.
+   *
+   * @return the address of the MQTT broker
+   */
+  public String getBrokerAddress() {
+    return brokerAddress;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Disconnection)) {
+      return false;
+    }
+    Disconnection other = (Disconnection) obj;
+    return Objects.equals(sessionId, other.sessionId) && Objects.equals(clientId, other.clientId)
+        && Objects.equals(brokerAddress, other.brokerAddress);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(sessionId, clientId, brokerAddress);
+  }
+
+  @Override
+  public String toString() {
+    return "Disconnection [sessionId=" + sessionId + ", clientId=" + clientId + ", brokerAddress="
+        + brokerAddress + "]";
+  }
+
+}
@@ -16,6 +16,9 @@
 package cool.mqtt.hooks;
 
 import java.io.File;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -111,7 +114,8 @@ public interface MQTTCoolHook {
    * @return {@code true} if this Hook authorizes the client to open the session
    * @throws HookException if this Hook runs against a specific issue while performing authorization
    *         checks (for example, while validating the provided credentials with an external
-   *         service)
+   *         service); a {@link ThrottleException} asks the client to retry after a while, when
+   *         the request can not be served only because of a temporary overload
    */
   boolean canOpenSession(String sessionId, String user, String password, Map clientContext,
       String clientPrincipal) throws HookException;
@@ -123,6 +127,24 @@ public interface MQTTCoolHook {
    */
   void onSessionClose(String sessionId);
 
+  /**
+   * Called to notify the Hook that a batch of sessions opened against MQTT&#46;Cool have been
+   * closed, typically when many clients drop at the same time.
+   *
+   * <p>Overriding this method allows the Hook to perform the cleanup of the whole batch at once,
+   * for example through a single request to an external service.
+   *
+   * <p>The default implementation invokes {@link #onSessionClose(String)} for each session, in
+   * iteration order.
+   *
+   * @param sessionIds the unique identifiers of the client sessions, in notification order
+   */
+  default void onSessionsClosed(Collection<String> sessionIds) {
+    for (String sessionId : sessionIds) {
+      onSessionClose(sessionId);
+    }
+  }
+
   /**
    * Checks whether the client is authorized to connect to the MQTT broker hosted at the specified
    * address.
@@ -145,7 +167,8 @@ public interface MQTTCoolHook {
    * @param connectOptions the set of options being used to connect to the target MQTT broker
    * @return {@code true} if this Hook authorizes the client to connect to the target MQTT broker
    * @throws HookException if this Hook runs against a specific issue while performing authorization
-   *         checks
+   *         checks; a {@link ThrottleException} asks the client to retry after a while, when
+   *         the request can not be served only because of a temporary overload
    */
   boolean canConnect(String sessionId, String clientId, String brokerAddress,
       MqttConnectOptions connectOptions) throws HookException;
@@ -164,6 +187,25 @@ public interface MQTTCoolHook {
    */
   void onDisconnection(String sessionId, String clientId, String brokerAddress);
 
+  /**
+   * Called to notify the Hook that a batch of clients have been disconnected from their MQTT
+   * brokers, typically when an MQTT broker restarts.
+   *
+   * <p>Overriding this method allows the Hook to perform the cleanup of the whole batch at once,
+   * for example through a single request to an external service.
+   *
+   * <p>The default implementation invokes {@link #onDisconnection(String, String, String)} for each
+   * disconnection, in iteration order.
+   *
+   * @param disconnections the disconnections, in notification order
+   */
+  default void onDisconnections(Collection<Disconnection> disconnections) {
+    for (Disconnection disconnection : disconnections) {
+      onDisconnection(disconnection.getSessionId(), disconnection.getClientId(),
+          disconnection.getBrokerAddress());
+    }
+  }
+
   /**
    * Checks whether the client is authorized to publish the given message to the specified MQTT
    * broker.
@@ -175,11 +217,81 @@ public interface MQTTCoolHook {
    * @param message the message being requested to be published to the specified MQTT broker
    * @return {@code true} if this Hook authorizes the client to publish the given message
    * @throws HookException if this Hook runs against a specific issue while performing authorization
-   *         checks
+   *         checks; a {@link ThrottleException} asks the client to retry after a while, when
+   *         the request can not be served only because of a temporary overload
    */
   boolean canPublish(String sessionId, String clientId, String brokerAddress, MqttMessage message)
       throws HookException;
 
+  /**
+   * Checks whether the client is authorized to publish the given message to the specified MQTT
+   * broker, possibly attaching to the decision a hint on how long it stays valid.
+   *
+   * <p>A decision which carries a validity hint allows MQTT&#46;Cool to skip the calls for the
+   * further messages published by the same session to the same topic, as detailed in
+   * {@link Decision}; the hint must therefore be attached only if the decision depends on the
+   * topic name alone.
+   *
+   * <p>The default implementation invokes
+   * {@link #canPublish(String, String, String, MqttMessage)} and attaches no hint.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier as sent by the client (and detailed in
+   *        {@link #canConnect})
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param message the message being requested to be published to the specified MQTT broker
+   * @return the decision, never {@code null}
+   * @throws HookException if this Hook runs against a specific issue while performing authorization
+   *         checks
+   */
+  default Decision authorizePublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    return Decision.of(canPublish(sessionId, clientId, brokerAddress, message));
+  }
+
+  /**
+   * Checks whether the client is authorized to publish each of the given messages to the specified
+   * MQTT broker, as in the case of a client flushing its buffered messages after reconnecting.
+   *
+   * <p>Overriding this method allows the Hook to authorize the whole batch at once, for example
+   * through a single request to an external service.
+   *
+   * <p>The default implementation invokes
+   * {@link #canPublish(String, String, String, MqttMessage)} for each message, in list order. As
+   * each check may have side effects (for example, a quota charged for each authorized message),
+   * the checks already performed can not be undone: if a check other than the first one throws an
+   * exception, the outcome of the messages checked before is returned, and the remaining messages
+   * are not authorized; the exception is only propagated if thrown by the first check.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier as sent by the client (and detailed in
+   *        {@link #canConnect})
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param messages the messages being requested to be published to the specified MQTT broker
+   * @return the set of the indexes, within {@code messages}, of the authorized messages
+   * @throws HookException if this Hook runs against a specific issue while performing authorization
+   *         checks; in this case, none of the messages is authorized
+   */
+  default BitSet canPublishBatch(String sessionId, String clientId, String brokerAddress,
+      List<MqttMessage> messages) throws HookException {
+
+    BitSet authorized = new BitSet(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      try {
+        if (canPublish(sessionId, clientId, brokerAddress, messages.get(i))) {
+          authorized.set(i);
+        }
+      } catch (HookException | RuntimeException e) {
+        if (i == 0) {
+          throw e;
+        }
+        break;
+      }
+    }
+    return authorized;
+  }
+
   /**
    * Checks whether the client is authorized to send the given subscription to the specified MQTT
    * broker.
@@ -196,6 +308,76 @@ public interface MQTTCoolHook {
   boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
       MqttSubscription subscription) throws HookException;
 
+  /**
+   * Checks whether the client is authorized to send the given subscription to the specified MQTT
+   * broker, possibly attaching to the decision a hint on how long it stays valid.
+   *
+   * <p>A decision which carries a validity hint allows MQTT&#46;Cool to skip the calls for the
+   * further subscriptions sent by the same session with the same topic filter, as detailed in
+   * {@link Decision}; the hint must therefore be attached only if the decision depends on the topic
+   * filter alone.
+   *
+   * <p>The default implementation invokes
+   * {@link #canSubscribe(String, String, String, MqttSubscription)} and attaches no hint.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier as sent by the client (and detailed in
+   *        {@link #canConnect})
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param subscription the subscription being requested to be sent to the specified MQTT broker
+   * @return the decision, never {@code null}
+   * @throws HookException if this Hook runs against a specific issue while performing authorization
+   *         checks
+   */
+  default Decision authorizeSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    return Decision.of(canSubscribe(sessionId, clientId, brokerAddress, subscription));
+  }
+
+  /**
+   * Checks whether the client is authorized to send each of the given subscriptions to the
+   * specified MQTT broker, as in the case of a client subscribing to many topic filters at once.
+   *
+   * <p>Overriding this method allows the Hook to authorize the whole batch at once, for example
+   * through a single request to an external service.
+   *
+   * <p>The default implementation invokes
+   * {@link #canSubscribe(String, String, String, MqttSubscription)} for each subscription, in list
+   * order. As each check may have side effects (for example, a budget charged for each authorized
+   * subscription, released only upon {@link #onUnsubscribe}), the checks already performed can not
+   * be undone: if a check other than the first one throws an exception, the outcome of the
+   * subscriptions checked before is returned, and the remaining subscriptions are not authorized;
+   * the exception is only propagated if thrown by the first check.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier as sent by the client (and detailed in
+   *        {@link #canConnect})
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param subscriptions the subscriptions being requested to be sent to the specified MQTT broker
+   * @return the set of the indexes, within {@code subscriptions}, of the authorized subscriptions
+   * @throws HookException if this Hook runs against a specific issue while performing authorization
+   *         checks; in this case, none of the subscriptions is authorized
+   */
+  default BitSet canSubscribeBatch(String sessionId, String clientId, String brokerAddress,
+      List<MqttSubscription> subscriptions) throws HookException {
+
+    BitSet authorized = new BitSet(subscriptions.size());
+    for (int i = 0; i < subscriptions.size(); i++) {
+      try {
+        if (canSubscribe(sessionId, clientId, brokerAddress, subscriptions.get(i))) {
+          authorized.set(i);
+        }
+      } catch (HookException | RuntimeException e) {
+        if (i == 0) {
+          throw e;
+        }
+        break;
+      }
+    }
+    return authorized;
+  }
+
   /**
    * Called to notify the Hook that a client, connected to the specified MQTT broker, has been
    * unsubscribed from the given topic filter.
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exception class used by the Hook to signal that a request is refused only because of a temporary
+ * overload, and that the client should retry it after the specified time rather than at once.
+ *
+ * <p>It can be thrown by {@link MQTTCoolHook#canOpenSession canOpenSession},
+ * {@link MQTTCoolHook#canConnect canConnect} and {@link MQTTCoolHook#canPublish canPublish}, as
+ * well as by any other method declaring a {@code HookException}; where the retry-after hint is not
+ * supported, it is handled as any other {@code HookException}.
+ */
+public class ThrottleException extends HookException {
+
+  private static final long serialVersionUID = -2967184326451052275L;
+
+  private final long retryAfterMillis;
+
+  /**
+   * Constructs a {@code ThrottleException} with the specified error code, detail message and
+   * retry-after hint.
+   *
+   * @param code the error code that can be used to distinguish the kind of problem. It must be a
+   *        non negative integer, otherwise it will be replaced by {@code 0}
+   * @param message the detail message to be forwarded to the Client, with the same constraints as
+   *        in {@link HookException#HookException(int, String)}
+   * @param retryAfter the time after which the client may retry the request. It must be a non
+   *        negative value, otherwise it will be replaced by {@code 0}
+   * @param unit the time unit of {@code retryAfter}
+   */
+  public ThrottleException(int code, String message, long retryAfter, TimeUnit unit) {
+    super(code, message);
+    this.retryAfterMillis = Math.max(unit.toMillis(retryAfter), 0);
+  }
+
+  /**
+   * Gets the time after which the client may retry the request.
+   *
+   * @param unit the time unit of the returned value
+   * @return the retry-after hint
+   */
+  public long getRetryAfter(TimeUnit unit) {
+    return unit.convert(retryAfterMillis, TimeUnit.MILLISECONDS);
+  }
+
+}
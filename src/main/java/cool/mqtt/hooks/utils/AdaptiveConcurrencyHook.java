@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.ThrottleException;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A Hook decorator which bounds the number of concurrent calls to the delegate Hook, and therefore
+ * to the backends it relies on, with a limit inferred from the observed latency rather than fixed
+ * upfront.
+ *
+ * <p>Each authorization callback ({@code resolveAlias}, {@code canOpenSession},
+ * {@code canConnect}, {@code canPublish} and {@code canSubscribe}) has its own
+ * {@link AdaptiveLimiter}, as the backends involved usually differ. Calls beyond the current limit
+ * are rejected at once by throwing a {@link ThrottleException}, whose retry-after hint is provided
+ * by a {@link ThrottlePolicy} (by default, with the {@link #LIMIT_EXCEEDED_ERROR_CODE} code).
+ * Calls failed with a {@code RuntimeException} are taken as a sign of overload and shrink the
+ * limit, whereas a {@code HookException} is usually a legitimate refusal, and is taken as such
+ * unless the configured predicate tells otherwise (for example, for the error code the delegate
+ * uses for the timeouts of its backend). A {@link ThrottleException}, thrown by an inner
+ * throttling Hook, never shrinks the limit, or a burst of rejected calls would collapse it.
+ * Lifecycle notifications, which can not be rejected, are never limited.
+ */
+public class AdaptiveConcurrencyHook extends ForwardingCoolHook {
+
+  /**
+   * The error code of the {@code ThrottleException} thrown by default when a call is rejected
+   * because the concurrency limit has been reached.
+   */
+  public static final int LIMIT_EXCEEDED_ERROR_CODE = 429;
+
+  private final AdaptiveLimiter resolveAliasLimiter;
+
+  private final AdaptiveLimiter canOpenSessionLimiter;
+
+  private final AdaptiveLimiter canConnectLimiter;
+
+  private final AdaptiveLimiter canPublishLimiter;
+
+  private final AdaptiveLimiter canSubscribeLimiter;
+
+  private final Map<String, AdaptiveLimiter> limiters;
+
+  private final ThrottlePolicy throttlePolicy;
+
+  private final Predicate<? super HookException> overload;
+
+  /**
+   * Creates an {@code AdaptiveConcurrencyHook} which limits the calls to the specified Hook, and
+   * asks the rejected clients to retry after 100 milliseconds to 10 seconds.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param algorithm the supplier of a new {@code LimitAlgorithm} instance for each callback type,
+   *        for example {@code () -> LimitAlgorithm.vegas(20, 1000)}
+   */
+  public AdaptiveConcurrencyHook(MQTTCoolHook delegate, Supplier<LimitAlgorithm> algorithm) {
+    this(delegate, algorithm,
+        new ThrottlePolicy(LIMIT_EXCEEDED_ERROR_CODE, 100, 10_000, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Creates an {@code AdaptiveConcurrencyHook} which limits the calls to the specified Hook, and
+   * rejects calls according to the specified policy.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param algorithm the supplier of a new {@code LimitAlgorithm} instance for each callback type,
+   *        for example {@code () -> LimitAlgorithm.vegas(20, 1000)}
+   * @param throttlePolicy the policy providing the exceptions thrown for the rejected calls
+   */
+  public AdaptiveConcurrencyHook(MQTTCoolHook delegate, Supplier<LimitAlgorithm> algorithm,
+      ThrottlePolicy throttlePolicy) {
+
+    this(delegate, algorithm, throttlePolicy, e -> false);
+  }
+
+  /**
+   * Creates an {@code AdaptiveConcurrencyHook} which limits the calls to the specified Hook,
+   * rejects calls according to the specified policy, and also takes the {@code HookException}s
+   * matching the specified predicate as a sign of overload.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param algorithm the supplier of a new {@code LimitAlgorithm} instance for each callback type,
+   *        for example {@code () -> LimitAlgorithm.vegas(20, 1000)}
+   * @param throttlePolicy the policy providing the exceptions thrown for the rejected calls
+   * @param overload the predicate telling whether a {@code HookException} thrown by the delegate
+   *        signals an overload, for example {@code e -> e.getCode() == 503}; it is never evaluated
+   *        for a {@code ThrottleException}
+   */
+  public AdaptiveConcurrencyHook(MQTTCoolHook delegate, Supplier<LimitAlgorithm> algorithm,
+      ThrottlePolicy throttlePolicy, Predicate<? super HookException> overload) {
+
+    super(delegate);
+    this.throttlePolicy = throttlePolicy;
+    this.overload = overload;
+    this.resolveAliasLimiter = new AdaptiveLimiter("resolveAlias", algorithm.get());
+    this.canOpenSessionLimiter = new AdaptiveLimiter("canOpenSession", algorithm.get());
+    this.canConnectLimiter = new AdaptiveLimiter("canConnect", algorithm.get());
+    this.canPublishLimiter = new AdaptiveLimiter("canPublish", algorithm.get());
+    this.canSubscribeLimiter = new AdaptiveLimiter("canSubscribe", algorithm.get());
+
+    Map<String, AdaptiveLimiter> map = new LinkedHashMap<>();
+    for (AdaptiveLimiter limiter : new AdaptiveLimiter[] {resolveAliasLimiter,
+        canOpenSessionLimiter, canConnectLimiter, canPublishLimiter, canSubscribeLimiter}) {
+      map.put(limiter.getName(), limiter);
+    }
+    this.limiters = Collections.unmodifiableMap(map);
+  }
+
+  /**
+   * Gets the limiter of the specified callback.
+   *
+   * @param callback the name of the callback, as declared by {@code MQTTCoolHook} (for example,
+   *        {@code "canPublish"})
+   * @return the {@code AdaptiveLimiter} instance, or {@code null} if the callback is not limited
+   */
+  public AdaptiveLimiter getLimiter(String callback) {
+    return limiters.get(callback);
+  }
+
+  /**
+   * This implementation forwards to the delegate, if the limit has not been reached.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    int inFlight = acquire(resolveAliasLimiter);
+    long start = System.nanoTime();
+    boolean dropped = false;
+    try {
+      MqttBrokerConfig config = delegate().resolveAlias(connectionAlias);
+      return config;
+    } catch (HookException e) {
+      dropped = isOverload(e);
+      throw e;
+    } catch (RuntimeException e) {
+      dropped = true;
+      throw e;
+    } finally {
+      resolveAliasLimiter.release(inFlight, System.nanoTime() - start, dropped);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate, if the limit has not been reached.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    int inFlight = acquire(canOpenSessionLimiter);
+    long start = System.nanoTime();
+    boolean dropped = false;
+    try {
+      boolean authorized =
+          delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+      return authorized;
+    } catch (HookException e) {
+      dropped = isOverload(e);
+      throw e;
+    } catch (RuntimeException e) {
+      dropped = true;
+      throw e;
+    } finally {
+      canOpenSessionLimiter.release(inFlight, System.nanoTime() - start, dropped);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate, if the limit has not been reached.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    int inFlight = acquire(canConnectLimiter);
+    long start = System.nanoTime();
+    boolean dropped = false;
+    try {
+      boolean authorized =
+          delegate().canConnect(sessionId, clientId, brokerAddress, connectOptions);
+      return authorized;
+    } catch (HookException e) {
+      dropped = isOverload(e);
+      throw e;
+    } catch (RuntimeException e) {
+      dropped = true;
+      throw e;
+    } finally {
+      canConnectLimiter.release(inFlight, System.nanoTime() - start, dropped);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate, if the limit has not been reached.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    int inFlight = acquire(canPublishLimiter);
+    long start = System.nanoTime();
+    boolean dropped = false;
+    try {
+      boolean authorized = delegate().canPublish(sessionId, clientId, brokerAddress, message);
+      return authorized;
+    } catch (HookException e) {
+      dropped = isOverload(e);
+      throw e;
+    } catch (RuntimeException e) {
+      dropped = true;
+      throw e;
+    } finally {
+      canPublishLimiter.release(inFlight, System.nanoTime() - start, dropped);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate, if the limit has not been reached.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    int inFlight = acquire(canSubscribeLimiter);
+    long start = System.nanoTime();
+    boolean dropped = false;
+    try {
+      boolean authorized =
+          delegate().canSubscribe(sessionId, clientId, brokerAddress, subscription);
+      return authorized;
+    } catch (HookException e) {
+      dropped = isOverload(e);
+      throw e;
+    } catch (RuntimeException e) {
+      dropped = true;
+      throw e;
+    } finally {
+      canSubscribeLimiter.release(inFlight, System.nanoTime() - start, dropped);
+    }
+  }
+
+  private boolean isOverload(HookException e) {
+    return !(e instanceof ThrottleException) && overload.test(e);
+  }
+
+  private int acquire(AdaptiveLimiter limiter) throws HookException {
+    int inFlight = limiter.tryAcquire();
+    if (inFlight == 0) {
+      throw throttlePolicy.forLimiter(limiter, "Too many concurrent requests");
+    }
+    return inFlight;
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrency limiter whose limit is inferred from the observed latency through a
+ * {@link LimitAlgorithm}, as used by an {@link AdaptiveConcurrencyHook} for each callback type.
+ *
+ * <p>Calls beyond the limit are rejected at once, rather than queued, so that an overloaded
+ * backend sheds load instead of piling up MQTT&#46;Cool server threads.
+ */
+public final class AdaptiveLimiter {
+
+  /**
+   * The weight given to each new latency sample in the moving average.
+   */
+  private static final double RTT_ALPHA = 0.1;
+
+  private final String name;
+
+  private final LimitAlgorithm algorithm;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final LongAdder accepted = new LongAdder();
+
+  private final LongAdder rejected = new LongAdder();
+
+  private volatile int limit;
+
+  private volatile long minRttNanos;
+
+  private volatile long rttNanos;
+
+  AdaptiveLimiter(String name, LimitAlgorithm algorithm) {
+    this.name = name;
+    this.algorithm = algorithm;
+    this.limit = algorithm.getLimit();
+  }
+
+  /**
+   * Gets the name of the limited callback.
+   *
+   * @return the name of the callback, as declared by {@link cool.mqtt.hooks.MQTTCoolHook}
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets the current concurrency limit.
+   *
+   * @return the current limit
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Gets the number of calls currently in flight.
+   *
+   * @return the number of calls in flight
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Gets the estimated number of calls queued in the backend, that is the number of in-flight
+   * calls which exceed what the backend can serve at its minimum latency.
+   *
+   * @return the estimated queue size
+   */
+  public double getEstimatedQueue() {
+    long min = minRttNanos;
+    long current = rttNanos;
+    if (min == 0 || current <= min) {
+      return 0;
+    }
+    return inFlight.get() * (1 - (double) min / current);
+  }
+
+  /**
+   * Gets the moving average of the latency of the completed calls.
+   *
+   * @return the average latency expressed in nanoseconds, or {@code 0} if no call has completed
+   *         yet
+   */
+  public long getLatencyNanos() {
+    return rttNanos;
+  }
+
+  /**
+   * Gets the number of calls accepted so far.
+   *
+   * @return the number of accepted calls
+   */
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  /**
+   * Gets the number of calls rejected so far because the limit was reached.
+   *
+   * @return the number of rejected calls
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveLimiter [name=" + name + ", limit=" + limit + ", inFlight=" + getInFlight()
+        + ", rejected=" + getRejected() + "]";
+  }
+
+  /**
+   * Tries to acquire a slot for a new call.
+   *
+   * @return the number of calls in flight including the new one, or {@code 0} if the limit has
+   *         been reached
+   */
+  int tryAcquire() {
+    while (true) {
+      int current = inFlight.get();
+      if (current >= limit) {
+        rejected.increment();
+        return 0;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        accepted.increment();
+        return current + 1;
+      }
+    }
+  }
+
+  /**
+   * Releases the slot acquired by a completed call and updates the limit.
+   *
+   * @param startInFlight the value returned by {@link #tryAcquire()}
+   * @param rtt the duration of the call in nanoseconds
+   * @param dropped whether the call failed
+   */
+  void release(int startInFlight, long rtt, boolean dropped) {
+    inFlight.decrementAndGet();
+    synchronized (algorithm) {
+      limit = algorithm.onSample(rtt, startInFlight, dropped);
+      long min = minRttNanos;
+      if (min == 0 || rtt < min) {
+        minRttNanos = rtt;
+      }
+      long current = rttNanos;
+      rttNanos = current == 0 ? rtt : (long) (current + RTT_ALPHA * (rtt - current));
+    }
+  }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A Hook decorator which caches the configurations resolved by
+ * {@link MQTTCoolHook#resolveAlias(String)} and persists them to a snapshot file, so that a
+ * restarted MQTT&#46;Cool node starts with a warm cache rather than sending all the reconnecting
+ * clients to the configuration backend at once.
+ *
+ * <p>The snapshot is written under the configuration directory supplied to {@link #init(File)},
+ * through an {@link MqttBrokerConfigCodec}, and is reloaded by {@code init} itself. Configurations
+ * which the codec can not encode (because they carry passwords and the codec has no key) are only
+ * cached in memory.
+ *
+ * <p>Only non {@code null} configurations are cached, each one for the configured time to live,
+ * which also applies to the configurations restored from the snapshot, as the time of their
+ * resolution is persisted along with them. An expired configuration is revalidated by the first
+ * call which finds it, whereas the concurrent calls keep being served the expired one, so that
+ * dynamic resolvers (for example, a {@link BrokerPoolResolver}) are consulted again without
+ * stampeding the configuration backend. If the revalidation fails, the expired configuration is
+ * served as well, and revalidated again by the next call. Use {@link #invalidate(String)} and
+ * {@link #invalidateAll()} to discard configurations at once when the backend changes.
+ */
+public class AliasCacheHook extends ForwardingCoolHook {
+
+  private static final int MAGIC = 0x4D514144;
+
+  private final MqttBrokerConfigCodec codec;
+
+  private final String snapshotFileName;
+
+  private final long ttlMillis;
+
+  private final LongSupplier clock;
+
+  private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+  private final AtomicLong modifications = new AtomicLong();
+
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  private volatile File snapshotFile;
+
+  private volatile int restoredAliases;
+
+  private long savedModifications;
+
+  /**
+   * Creates an {@code AliasCacheHook} which caches the configurations resolved by the specified
+   * Hook.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param codec the codec used to write and read the snapshot
+   * @param snapshotFileName the name of the snapshot file, relative to the configuration directory
+   * @param ttl the time after which a cached configuration must be revalidated
+   * @param unit the time unit of {@code ttl}
+   * @throws IllegalArgumentException if {@code ttl} is not positive
+   */
+  public AliasCacheHook(MQTTCoolHook delegate, MqttBrokerConfigCodec codec,
+      String snapshotFileName, long ttl, TimeUnit unit) {
+
+    this(delegate, codec, snapshotFileName, ttl, unit, System::currentTimeMillis);
+  }
+
+  AliasCacheHook(MQTTCoolHook delegate, MqttBrokerConfigCodec codec, String snapshotFileName,
+      long ttl, TimeUnit unit, LongSupplier clock) {
+
+    super(delegate);
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("Invalid ttl");
+    }
+    this.codec = codec;
+    this.snapshotFileName = snapshotFileName;
+    this.ttlMillis = unit.toMillis(ttl);
+    this.clock = clock;
+  }
+
+  /**
+   * This implementation forwards to the delegate and then reloads the snapshot, if any.
+   *
+   * <p>An unreadable snapshot (for example, written with a different key) is ignored.
+   */
+  @Override
+  public void init(File configDir) throws HookException {
+    delegate().init(configDir);
+
+    File file = new File(configDir, snapshotFileName);
+    snapshotFile = file;
+    if (file.isFile()) {
+      try {
+        Map<String, Entry> restored = readSnapshot(file.toPath());
+        cache.putAll(restored);
+        restoredAliases = restored.size();
+      } catch (IOException e) {
+        // Start cold.
+      }
+    }
+  }
+
+  /**
+   * This implementation returns the cached configuration, if any and not expired, otherwise
+   * forwards to the delegate and caches its result.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    long now = clock.getAsLong();
+    Entry entry = cache.get(connectionAlias);
+    if (entry != null) {
+      if (now - entry.resolvedAt < ttlMillis || !entry.revalidating.compareAndSet(false, true)) {
+        cacheHits.incrementAndGet();
+        return entry.config;
+      }
+      return revalidate(connectionAlias, entry, now);
+    }
+
+    MqttBrokerConfig config = delegate().resolveAlias(connectionAlias);
+    if (config != null) {
+      Entry previous = cache.putIfAbsent(connectionAlias, new Entry(config, now));
+      if (previous != null) {
+        return previous.config;
+      }
+      modifications.incrementAndGet();
+    }
+    return config;
+  }
+
+  private MqttBrokerConfig revalidate(String connectionAlias, Entry expired, long now) {
+    MqttBrokerConfig config;
+    try {
+      config = delegate().resolveAlias(connectionAlias);
+    } catch (HookException | RuntimeException e) {
+      // Better a stale configuration than none: try again upon the next call.
+      expired.revalidating.set(false);
+      cacheHits.incrementAndGet();
+      return expired.config;
+    }
+
+    if (config == null) {
+      cache.remove(connectionAlias, expired);
+    } else {
+      cache.replace(connectionAlias, expired, new Entry(config, now));
+    }
+    modifications.incrementAndGet();
+    return config;
+  }
+
+  /**
+   * Discards the cached configuration of the specified alias.
+   *
+   * @param connectionAlias the connection alias
+   */
+  public void invalidate(String connectionAlias) {
+    if (cache.remove(connectionAlias) != null) {
+      modifications.incrementAndGet();
+    }
+  }
+
+  /**
+   * Discards all the cached configurations.
+   */
+  public void invalidateAll() {
+    cache.clear();
+    modifications.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of cached configurations.
+   *
+   * @return the number of cached configurations
+   */
+  public int getCachedAliases() {
+    return cache.size();
+  }
+
+  /**
+   * Gets the number of configurations reloaded from the snapshot during {@link #init(File)}.
+   *
+   * @return the number of restored configurations
+   */
+  public int getRestoredAliases() {
+    return restoredAliases;
+  }
+
+  /**
+   * Gets the number of aliases resolved from the cache so far.
+   *
+   * @return the number of cache hits
+   */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /**
+   * Writes the snapshot, if the cache has changed since the last time.
+   *
+   * <p>The snapshot is written to a temporary file which then replaces the previous one, so that a
+   * crash never leaves a partial snapshot behind.
+   *
+   * @throws IOException if the snapshot can not be written
+   * @throws IllegalStateException if this Hook has not been initialized yet
+   */
+  public synchronized void saveSnapshot() throws IOException {
+    File file = snapshotFile;
+    if (file == null) {
+      throw new IllegalStateException("Not initialized");
+    }
+    long current = modifications.get();
+    if (current == savedModifications) {
+      return;
+    }
+
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    writeSnapshot(temp, new HashMap<>(cache));
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    savedModifications = current;
+  }
+
+  /**
+   * Schedules a periodic {@link #saveSnapshot()} on the specified executor.
+   *
+   * <p>Failed snapshots are silently retried upon the next period.
+   *
+   * @param executor the executor which will write the snapshots
+   * @param period the period between successive snapshots
+   * @param unit the time unit of {@code period}
+   * @return the {@code ScheduledFuture} which can be used to cancel the periodic snapshots
+   */
+  public ScheduledFuture<?> scheduleSnapshots(ScheduledExecutorService executor, long period,
+      TimeUnit unit) {
+
+    return executor.scheduleWithFixedDelay(() -> {
+      try {
+        saveSnapshot();
+      } catch (IOException | RuntimeException e) {
+        // Try again upon the next period.
+      }
+    }, period, period, unit);
+  }
+
+  private void writeSnapshot(Path path, Map<String, Entry> entries) throws IOException {
+    entries.values().removeIf(entry -> !codec.canEncode(entry.config));
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue().resolvedAt);
+        codec.write(entry.getValue().config, out);
+      }
+    }
+  }
+
+  private Map<String, Entry> readSnapshot(Path path) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Invalid snapshot " + path);
+      }
+      int size = in.readInt();
+      Map<String, Entry> entries = new HashMap<>();
+      long now = clock.getAsLong();
+      for (int i = 0; i < size; i++) {
+        String alias = in.readUTF();
+        // Never trust a time in the future, for example because of a clock adjustment.
+        long resolvedAt = Math.min(in.readLong(), now);
+        entries.put(alias, new Entry(codec.read(in), resolvedAt));
+      }
+      return entries;
+    }
+  }
+
+  private static final class Entry {
+
+    final MqttBrokerConfig config;
+
+    final long resolvedAt;
+
+    final AtomicBoolean revalidating = new AtomicBoolean();
+
+    Entry(MqttBrokerConfig config, long resolvedAt) {
+      this.config = config;
+      this.resolvedAt = resolvedAt;
+    }
+  }
+
+}
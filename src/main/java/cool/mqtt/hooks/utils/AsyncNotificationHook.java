@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MQTTCoolHook;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * A Hook decorator which takes the lifecycle notifications ({@code onSessionClose},
+ * {@code onDisconnection} and {@code onUnsubscribe}) off the MQTT&#46;Cool server threads.
+ *
+ * <p>Each notification is turned into an immutable {@link LifecycleEvent} and enqueued, so that the
+ * notification method returns immediately; events are then consumed by a pool of dedicated
+ * threads, which by default deliver them to the delegate Hook. All other calls are forwarded
+ * synchronously to the delegate Hook.
+ *
+ * <p>Events are partitioned into stripes by session identifier, each one with its own bounded
+ * queue and consumer thread: events related to the same session are therefore consumed in the same
+ * order as they have been notified, whereas events related to different sessions are consumed in
+ * parallel.
+ *
+ * <p>When the queue of a stripe is full, the notifying thread waits until the queue has room: this
+ * is the backpressure mechanism, as notifications can not be refused to the MQTT&#46;Cool server,
+ * and neither consuming them out of order nor discarding them (which would leak the per-session
+ * state kept by the delegate Hook) is acceptable. The only exception is a consumer thread
+ * notifying an event to its own full queue, which consumes the event at once rather than waiting
+ * for itself.
+ */
+public class AsyncNotificationHook extends ForwardingCoolHook implements Closeable {
+
+  private static final LifecycleEvent POISON = LifecycleEvent.sessionClose("");
+
+  private final Stripe[] stripes;
+
+  private final Consumer<LifecycleEvent> consumer;
+
+  private final LongAdder processedEvents = new LongAdder();
+
+  private final LongAdder blockedEvents = new LongAdder();
+
+  private final LongAdder failedEvents = new LongAdder();
+
+  /**
+   * Guards {@link #closed}, so that no event can be enqueued once it is set; the read lock is only
+   * held while offering an event, and never while waiting.
+   */
+  private final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates an {@code AsyncNotificationHook} which delivers the lifecycle notifications to the
+   * specified Hook.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param threads the number of consumer threads, and therefore of stripes
+   * @param queueCapacity the capacity of the queue of each stripe
+   * @throws IllegalArgumentException if {@code threads} or {@code queueCapacity} are not positive
+   *         integers
+   */
+  public AsyncNotificationHook(MQTTCoolHook delegate, int threads, int queueCapacity) {
+    this(delegate, event -> event.dispatchTo(delegate), threads, queueCapacity);
+  }
+
+  /**
+   * Creates an {@code AsyncNotificationHook} which delivers the lifecycle events to the specified
+   * consumer, rather than to the delegate Hook.
+   *
+   * @param delegate the Hook to forward the other calls to
+   * @param consumer the consumer of the lifecycle events, invoked by the consumer threads
+   * @param threads the number of consumer threads, and therefore of stripes
+   * @param queueCapacity the capacity of the queue of each stripe
+   * @throws IllegalArgumentException if {@code threads} or {@code queueCapacity} are not positive
+   *         integers
+   */
+  public AsyncNotificationHook(MQTTCoolHook delegate, Consumer<LifecycleEvent> consumer,
+      int threads, int queueCapacity) {
+
+    super(delegate);
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Invalid threads");
+    }
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid queue capacity");
+    }
+
+    this.consumer = consumer;
+    this.stripes = new Stripe[threads];
+    for (int i = 0; i < threads; i++) {
+      stripes[i] = new Stripe(queueCapacity, "mqtt-cool-hook-notifier-" + i);
+    }
+  }
+
+  /**
+   * Enqueues the notification for asynchronous consumption.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    publish(LifecycleEvent.sessionClose(sessionId));
+  }
+
+  /**
+   * Enqueues the notification for asynchronous consumption.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    publish(LifecycleEvent.disconnection(sessionId, clientId, brokerAddress));
+  }
+
+  /**
+   * Enqueues the notification for asynchronous consumption.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    publish(LifecycleEvent.unsubscribe(sessionId, clientId, brokerAddress, topicFilter));
+  }
+
+  /**
+   * Gets the number of events waiting to be consumed.
+   *
+   * @return the number of queued events
+   */
+  public int getQueuedEvents() {
+    int queued = 0;
+    for (Stripe stripe : stripes) {
+      queued += stripe.queue.size();
+    }
+    return queued;
+  }
+
+  /**
+   * Gets the number of events consumed so far, including the failed ones.
+   *
+   * @return the number of consumed events
+   */
+  public long getProcessedEvents() {
+    return processedEvents.sum();
+  }
+
+  /**
+   * Gets the number of notifications which found the queue full so far, and therefore had to wait
+   * for the consumer thread to catch up.
+   *
+   * @return the number of blocked notifications
+   */
+  public long getBlockedEvents() {
+    return blockedEvents.sum();
+  }
+
+  /**
+   * Gets the number of events whose consumption has thrown an exception so far.
+   *
+   * @return the number of failed events
+   */
+  public long getFailedEvents() {
+    return failedEvents.sum();
+  }
+
+  /**
+   * Stops the consumer threads, after all the queued events have been consumed.
+   *
+   * <p>Notifications received afterwards are consumed on the notifying thread, once the queued
+   * events have been consumed. This method may also be invoked by a consumer, in which case its
+   * own thread stops as soon as it has consumed the rest of its queue.
+   */
+  @Override
+  public void close() {
+    Lock lock = lifecycleLock.writeLock();
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    } finally {
+      lock.unlock();
+    }
+
+    for (Stripe stripe : stripes) {
+      // Wakes up an idle consumer; a full queue needs no wake up, as the consumer stops once it is
+      // empty.
+      stripe.queue.offer(POISON);
+    }
+    boolean interrupted = false;
+    for (Stripe stripe : stripes) {
+      interrupted |= awaitTermination(stripe);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void publish(LifecycleEvent event) {
+    Stripe stripe = stripes[(event.getSessionId().hashCode() & 0x7FFFFFFF) % stripes.length];
+    boolean blocked = false;
+    boolean interrupted = false;
+    try {
+      for (;;) {
+        Lock lock = lifecycleLock.readLock();
+        lock.lock();
+        try {
+          if (closed) {
+            break;
+          }
+          if (stripe.queue.offer(event)) {
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        if (stripe.thread == Thread.currentThread()) {
+          // Notified by the consumer of the full queue, which can not wait for itself.
+          consume(event);
+          return;
+        }
+        if (!blocked) {
+          blocked = true;
+          blockedEvents.increment();
+        }
+        // Notifications can not be lost: keep waiting and restore the status afterwards.
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        interrupted |= Thread.interrupted();
+      }
+
+      // Consume the event only after the ones already queued for the same session.
+      interrupted |= awaitTermination(stripe);
+      consume(event);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Waits for the consumer thread of the specified stripe to stop, unless it is the current thread.
+   *
+   * @return whether the current thread has been interrupted while waiting
+   */
+  private static boolean awaitTermination(Stripe stripe) {
+    if (stripe.thread == Thread.currentThread()) {
+      return false;
+    }
+    try {
+      stripe.thread.join(TimeUnit.SECONDS.toMillis(10));
+      return false;
+    } catch (InterruptedException e) {
+      return true;
+    }
+  }
+
+  private void consume(LifecycleEvent event) {
+    try {
+      consumer.accept(event);
+    } catch (Throwable e) {
+      // Never let the consumer thread die, or the events of the stripe would be stranded.
+      failedEvents.increment();
+    } finally {
+      processedEvents.increment();
+    }
+  }
+
+  private final class Stripe implements Runnable {
+
+    final BlockingQueue<LifecycleEvent> queue;
+
+    final Thread thread;
+
+    Stripe(int queueCapacity, String name) {
+      this.queue = new ArrayBlockingQueue<>(queueCapacity);
+      this.thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          LifecycleEvent event = queue.take();
+          if (event == POISON) {
+            return;
+          }
+          consume(event);
+          // No event can be queued once closed, so an empty queue stays empty.
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // Abruptly stopped.
+      }
+    }
+  }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.Disconnection;
+import cool.mqtt.hooks.MQTTCoolHook;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Hook decorator which coalesces the {@code onDisconnection} and {@code onSessionClose}
+ * notifications into batches, delivered to the delegate Hook through
+ * {@link MQTTCoolHook#onDisconnections(Collection)} and
+ * {@link MQTTCoolHook#onSessionsClosed(Collection)}, so that a burst of notifications (for example,
+ * when an MQTT broker restarts) costs the delegate one cleanup per batch rather than one per
+ * client.
+ *
+ * <p>A batch is delivered as soon as it holds {@code maxBatchSize} notifications, on the notifying
+ * thread, which is therefore slowed down as long as the delegate does not keep up; otherwise, the
+ * pending notifications are delivered by a dedicated thread at least every {@code maxDelay}. The
+ * pending disconnections are always delivered before the pending session closings, and batches are
+ * delivered one at a time, in notification order. All other calls are forwarded synchronously to
+ * the delegate Hook.
+ *
+ * <p>Note that a deferred notification may reach the delegate after a later call related to the
+ * same session, as in the case of a client reconnecting before its disconnection is delivered:
+ * Hooks which can not tolerate this should not be wrapped by this class.
+ *
+ * <p>Since the batch notification methods are not forwarded by {@link ForwardingCoolHook}, this
+ * decorator should wrap the Hook directly.
+ */
+public class BatchingNotificationHook extends ForwardingCoolHook implements Closeable {
+
+  private final int maxBatchSize;
+
+  private final ScheduledExecutorService flusher;
+
+  private final Object deliveryLock = new Object();
+
+  private final LongAdder deliveredBatches = new LongAdder();
+
+  private final LongAdder failedBatches = new LongAdder();
+
+  private List<Disconnection> pendingDisconnections = new ArrayList<>();
+
+  private List<String> pendingSessionCloses = new ArrayList<>();
+
+  private boolean closed;
+
+  /**
+   * Creates a {@code BatchingNotificationHook} which delivers the notifications to the specified
+   * Hook in size or time bounded batches.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param maxBatchSize the number of pending notifications which triggers the delivery
+   * @param maxDelay the maximum time a notification is kept pending
+   * @param unit the time unit of {@code maxDelay}
+   * @throws IllegalArgumentException if {@code maxBatchSize} or {@code maxDelay} are not positive
+   */
+  public BatchingNotificationHook(MQTTCoolHook delegate, int maxBatchSize, long maxDelay,
+      TimeUnit unit) {
+
+    super(delegate);
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("Invalid maximum batch size");
+    }
+    if (maxDelay <= 0) {
+      throw new IllegalArgumentException("Invalid maximum delay");
+    }
+
+    this.maxBatchSize = maxBatchSize;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "mqtt-cool-hook-batcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleAtFixedRate(this::flush, maxDelay, maxDelay, unit);
+  }
+
+  /**
+   * Adds the notification to the pending batch.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    onSessionsClosed(Collections.singletonList(sessionId));
+  }
+
+  /**
+   * Adds the notifications to the pending batch.
+   */
+  @Override
+  public void onSessionsClosed(Collection<String> sessionIds) {
+    boolean full;
+    synchronized (this) {
+      pendingSessionCloses.addAll(sessionIds);
+      full = closed || isFull();
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Adds the notification to the pending batch.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    onDisconnections(
+        Collections.singletonList(new Disconnection(sessionId, clientId, brokerAddress)));
+  }
+
+  /**
+   * Adds the notifications to the pending batch.
+   */
+  @Override
+  public void onDisconnections(Collection<Disconnection> disconnections) {
+    boolean full;
+    synchronized (this) {
+      pendingDisconnections.addAll(disconnections);
+      full = closed || isFull();
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Delivers the pending notifications to the delegate Hook right away.
+   */
+  public void flush() {
+    synchronized (deliveryLock) {
+      List<Disconnection> disconnections;
+      List<String> sessionIds;
+      synchronized (this) {
+        disconnections = pendingDisconnections;
+        sessionIds = pendingSessionCloses;
+        if (!disconnections.isEmpty()) {
+          pendingDisconnections = new ArrayList<>();
+        }
+        if (!sessionIds.isEmpty()) {
+          pendingSessionCloses = new ArrayList<>();
+        }
+      }
+
+      if (!disconnections.isEmpty()) {
+        deliver(() -> delegate().onDisconnections(Collections.unmodifiableList(disconnections)));
+      }
+      if (!sessionIds.isEmpty()) {
+        deliver(() -> delegate().onSessionsClosed(Collections.unmodifiableList(sessionIds)));
+      }
+    }
+  }
+
+  /**
+   * Gets the number of notifications waiting to be delivered.
+   *
+   * @return the number of pending notifications
+   */
+  public synchronized int getPendingNotifications() {
+    return pendingDisconnections.size() + pendingSessionCloses.size();
+  }
+
+  /**
+   * Gets the number of batches delivered so far, including the failed ones.
+   *
+   * @return the number of delivered batches
+   */
+  public long getDeliveredBatches() {
+    return deliveredBatches.sum();
+  }
+
+  /**
+   * Gets the number of batches whose delivery has thrown an exception so far.
+   *
+   * @return the number of failed batches
+   */
+  public long getFailedBatches() {
+    return failedBatches.sum();
+  }
+
+  /**
+   * Stops the delivery thread, after delivering the pending notifications.
+   *
+   * <p>Notifications received afterwards are delivered immediately, in batches of one.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    flusher.shutdown();
+    flush();
+  }
+
+  private boolean isFull() {
+    return pendingDisconnections.size() + pendingSessionCloses.size() >= maxBatchSize;
+  }
+
+  private void deliver(Runnable delivery) {
+    try {
+      delivery.run();
+    } catch (RuntimeException e) {
+      failedBatches.increment();
+    } finally {
+      deliveredBatches.increment();
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttBrokerConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Helper class to resolve a connection alias to one MQTT broker out of a pool of equivalent ones,
+ * according to the live load of each MQTT broker.
+ *
+ * <p>MQTT brokers have first to be registered through {@link #addBroker(MqttBrokerConfig, int)},
+ * and then grouped into pools bound to connection aliases through
+ * {@link #addPool(String, BrokerSelectionStrategy, String...)}. The Hook is then expected to:
+ * <ul>
+ * <li>delegate {@link cool.mqtt.hooks.MQTTCoolHook#resolveAlias(String)} to
+ * {@link #resolve(String)};</li>
+ * <li>invoke {@link #connected(String)} from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canConnect(String, String, String,
+ * cool.mqtt.hooks.MqttConnectOptions)}, only when authorizing the connection;</li>
+ * <li>invoke {@link #disconnected(String)} from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#onDisconnection(String, String, String)}.</li>
+ * </ul>
+ *
+ * <p>Note that, as {@code canConnect} is invoked for every client joining a <i>shared
+ * connection</i>, the connections tracked by this class count the clients served by each MQTT
+ * broker, rather than the physical connections opened to it.
+ *
+ * <p>Resolution returns the {@code MqttBrokerConfig} instance supplied upon registration, without
+ * any further allocation; such instances are therefore expected to be immutable, as the ones made
+ * by {@link MqttBrokerConfigBuilder#build()}.
+ *
+ * <p>This class is thread safe.
+ */
+public class BrokerPoolResolver {
+
+  private final ConcurrentMap<String, BrokerStats> brokers = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+  /**
+   * Registers an MQTT broker with a weight of {@code 1}.
+   *
+   * @param config the configuration of the MQTT broker
+   * @return a reference to this object
+   * @see #addBroker(MqttBrokerConfig, int)
+   */
+  public BrokerPoolResolver addBroker(MqttBrokerConfig config) {
+    return addBroker(config, 1);
+  }
+
+  /**
+   * Registers an MQTT broker, identified by the address returned by
+   * {@link MqttBrokerConfig#getAddress()}.
+   *
+   * <p>Registering again the same address replaces the previous configuration and resets the
+   * tracked statistics.
+   *
+   * @param config the configuration of the MQTT broker
+   * @param weight the relative capacity of the MQTT broker
+   * @return a reference to this object
+   * @throws IllegalArgumentException if {@code config} or its address is {@code null}, or if
+   *         {@code weight} is not a positive integer
+   */
+  public BrokerPoolResolver addBroker(MqttBrokerConfig config, int weight) {
+    if (config == null || config.getAddress() == null) {
+      throw new IllegalArgumentException("Invalid config");
+    }
+
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Invalid weight");
+    }
+
+    BrokerStats stats = new BrokerStats(config, weight);
+    brokers.put(config.getAddress(), stats);
+    // Rebind the existing pools to the new instance.
+    pools.replaceAll((alias, pool) -> pool.replace(stats));
+    return this;
+  }
+
+  /**
+   * Binds a pool of registered MQTT brokers to the specified connection alias.
+   *
+   * @param alias the connection alias
+   * @param strategy the strategy used to select an MQTT broker out of the pool
+   * @param addresses the addresses of the MQTT brokers making up the pool
+   * @return a reference to this object
+   * @throws IllegalArgumentException if no address is specified, or if any of them has not been
+   *         registered through {@link #addBroker(MqttBrokerConfig, int)}
+   */
+  public BrokerPoolResolver addPool(String alias, BrokerSelectionStrategy strategy,
+      String... addresses) {
+
+    Objects.requireNonNull(alias, "alias");
+    Objects.requireNonNull(strategy, "strategy");
+    if (addresses.length == 0) {
+      throw new IllegalArgumentException("Empty pool");
+    }
+
+    List<BrokerStats> members = new ArrayList<>(addresses.length);
+    for (String address : addresses) {
+      BrokerStats stats = brokers.get(address);
+      if (stats == null) {
+        throw new IllegalArgumentException("Unknown broker address: " + address);
+      }
+      members.add(stats);
+    }
+    pools.put(alias, new Pool(strategy, members));
+    return this;
+  }
+
+  /**
+   * Removes the pool bound to the specified connection alias.
+   *
+   * @param alias the connection alias
+   */
+  public void removePool(String alias) {
+    pools.remove(alias);
+  }
+
+  /**
+   * Resolves the specified connection alias to the configuration of the MQTT broker picked out of
+   * the bound pool.
+   *
+   * @param alias the connection alias
+   * @return the {@code MqttBrokerConfig} instance of the selected MQTT broker, or {@code null} if no
+   *         pool is bound to {@code alias}
+   */
+  public MqttBrokerConfig resolve(String alias) {
+    return resolve(alias, null);
+  }
+
+  /**
+   * Resolves the specified connection alias to the configuration of the MQTT broker picked out of
+   * the bound pool, providing an affinity key to strategies which support it.
+   *
+   * <p>As {@link cool.mqtt.hooks.MQTTCoolHook#resolveAlias(String)} does not carry any client
+   * information, the affinity key can be derived only from information made available to the Hook
+   * by other means (for example, a connection alias built as {@code <pool>/<client_id>}).
+   *
+   * @param alias the connection alias
+   * @param affinityKey the key which should be consistently mapped to the same MQTT broker; it can
+   *        be {@code null}
+   * @return the {@code MqttBrokerConfig} instance of the selected MQTT broker, or {@code null} if no
+   *         pool is bound to {@code alias}
+   * @see BrokerSelectionStrategy#consistentHashing()
+   */
+  public MqttBrokerConfig resolve(String alias, String affinityKey) {
+    Pool pool = pools.get(alias);
+    if (pool == null) {
+      return null;
+    }
+    return pool.strategy.select(pool.members, affinityKey).getConfig();
+  }
+
+  /**
+   * Tracks a new connection to the specified MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker; unregistered addresses are ignored
+   */
+  public void connected(String brokerAddress) {
+    BrokerStats stats = brokers.get(brokerAddress);
+    if (stats != null) {
+      stats.incrementConnections();
+    }
+  }
+
+  /**
+   * Tracks the release of a connection to the specified MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker; unregistered addresses are ignored
+   */
+  public void disconnected(String brokerAddress) {
+    BrokerStats stats = brokers.get(brokerAddress);
+    if (stats != null) {
+      stats.decrementConnections();
+    }
+  }
+
+  /**
+   * Records a latency sample for the specified MQTT broker, as measured by the Hook through its own
+   * means (for example, a periodic probe).
+   *
+   * @param brokerAddress the address of the MQTT broker; unregistered addresses are ignored
+   * @param nanos the measured latency expressed in nanoseconds
+   * @see BrokerSelectionStrategy#lowestLatency()
+   */
+  public void recordLatency(String brokerAddress, long nanos) {
+    BrokerStats stats = brokers.get(brokerAddress);
+    if (stats != null && nanos > 0) {
+      stats.recordLatency(nanos);
+    }
+  }
+
+  /**
+   * Gets the live statistics of the specified MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   * @return the statistics of the MQTT broker, or {@code null} if the address is not registered
+   */
+  public BrokerStats getStats(String brokerAddress) {
+    return brokers.get(brokerAddress);
+  }
+
+  private static final class Pool {
+
+    final BrokerSelectionStrategy strategy;
+
+    final List<BrokerStats> members;
+
+    Pool(BrokerSelectionStrategy strategy, List<BrokerStats> members) {
+      this.strategy = strategy;
+      this.members = Collections.unmodifiableList(members);
+    }
+
+    Pool replace(BrokerStats stats) {
+      List<BrokerStats> replaced = new ArrayList<>(members);
+      boolean changed = false;
+      for (int i = 0; i < replaced.size(); i++) {
+        if (replaced.get(i).getAddress().equals(stats.getAddress())) {
+          replaced.set(i, stats);
+          changed = true;
+        }
+      }
+      return changed ? new Pool(strategy, replaced) : this;
+    }
+  }
+
+}
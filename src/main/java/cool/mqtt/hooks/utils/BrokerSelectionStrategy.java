@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Strategy used by a {@link BrokerPoolResolver} to pick an MQTT broker out of the pool bound to a
+ * connection alias.
+ *
+ * <p>Implementations must be thread safe, as they are invoked concurrently from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#resolveAlias(String)}.
+ */
+@FunctionalInterface
+public interface BrokerSelectionStrategy {
+
+  /**
+   * Selects an MQTT broker among the provided candidates.
+   *
+   * @param candidates the non empty list of the MQTT brokers belonging to the pool
+   * @param affinityKey the key which should be consistently mapped to the same MQTT broker, if the
+   *        strategy supports it; it can be {@code null}
+   * @return the selected MQTT broker
+   */
+  BrokerStats select(List<BrokerStats> candidates, String affinityKey);
+
+  /**
+   * Returns a strategy which selects the MQTT broker with the fewest live connections.
+   *
+   * @return the <i>least connections</i> strategy
+   */
+  static BrokerSelectionStrategy leastConnections() {
+    return (candidates, affinityKey) -> {
+      BrokerStats selected = candidates.get(0);
+      for (int i = 1; i < candidates.size(); i++) {
+        BrokerStats candidate = candidates.get(i);
+        if (candidate.getConnections() < selected.getConnections()) {
+          selected = candidate;
+        }
+      }
+      return selected;
+    };
+  }
+
+  /**
+   * Returns a strategy which selects the MQTT broker with the fewest live connections relatively to
+   * its weight.
+   *
+   * @return the <i>weighted least connections</i> strategy
+   */
+  static BrokerSelectionStrategy weighted() {
+    return (candidates, affinityKey) -> {
+      BrokerStats selected = candidates.get(0);
+      for (int i = 1; i < candidates.size(); i++) {
+        BrokerStats candidate = candidates.get(i);
+        if (candidate.isLessLoadedThan(selected)) {
+          selected = candidate;
+        }
+      }
+      return selected;
+    };
+  }
+
+  /**
+   * Returns a strategy which selects the MQTT broker with the lowest average latency.
+   *
+   * <p>MQTT brokers for which no latency sample has been recorded yet are preferred, so that they
+   * get probed.
+   *
+   * @return the <i>lowest latency</i> strategy
+   */
+  static BrokerSelectionStrategy lowestLatency() {
+    return (candidates, affinityKey) -> {
+      BrokerStats selected = candidates.get(0);
+      for (int i = 1; i < candidates.size(); i++) {
+        BrokerStats candidate = candidates.get(i);
+        if (candidate.getLatencyNanos() < selected.getLatencyNanos()) {
+          selected = candidate;
+        }
+      }
+      return selected;
+    };
+  }
+
+  /**
+   * Returns a strategy which picks two MQTT brokers at random and selects the one with the fewest
+   * live connections relatively to its weight.
+   *
+   * <p>This avoids the herd behavior of a pure least connections strategy when many clients connect
+   * at the same time, while still staying close to the optimal balance.
+   *
+   * @return the <i>power of two choices</i> strategy
+   */
+  static BrokerSelectionStrategy powerOfTwoChoices() {
+    return (candidates, affinityKey) -> {
+      int size = candidates.size();
+      if (size == 1) {
+        return candidates.get(0);
+      }
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      BrokerStats a = candidates.get(first);
+      BrokerStats b = candidates.get(second);
+      return b.isLessLoadedThan(a) ? b : a;
+    };
+  }
+
+  /**
+   * Returns a strategy which consistently maps the same affinity key (typically, the client
+   * identifier) to the same MQTT broker, as long as the pool does not change.
+   *
+   * <p>The mapping is based on the weighted <i>rendezvous hashing</i> algorithm, which only remaps
+   * the keys owned by an MQTT broker when the latter is removed from the pool. If no affinity key is
+   * provided, the strategy falls back to the {@link #weighted()} one.
+   *
+   * @return the <i>consistent hashing</i> strategy
+   */
+  static BrokerSelectionStrategy consistentHashing() {
+    BrokerSelectionStrategy fallback = weighted();
+    return (candidates, affinityKey) -> {
+      if (affinityKey == null) {
+        return fallback.select(candidates, null);
+      }
+
+      long keyHash = Hashing.hash(affinityKey, 0x9E3779B97F4A7C15L);
+      BrokerStats selected = null;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (BrokerStats candidate : candidates) {
+        long mixed = Hashing.hash(candidate.getAddress(), keyHash);
+        // Map the hash to a uniform value in (0, 1).
+        double uniform = ((mixed >>> 11) + 1) / (double) ((1L << 53) + 1);
+        double score = -candidate.getWeight() / Math.log(uniform);
+        if (score > bestScore) {
+          bestScore = score;
+          selected = candidate;
+        }
+      }
+      return selected;
+    };
+  }
+
+}
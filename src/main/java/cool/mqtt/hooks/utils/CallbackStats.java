@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The live statistics of a single Hook callback, collected by a {@link MonitoredCoolHook}.
+ */
+public final class CallbackStats implements CallbackStatsMBean {
+
+  private static final int RATE_WINDOW_SECONDS = 60;
+
+  /**
+   * One slot more than the window, so that the current second never recycles the slot of the
+   * oldest second of the window.
+   */
+  private static final int RATE_SLOTS = RATE_WINDOW_SECONDS + 1;
+
+  private final String name;
+
+  private final LongAdder calls = new LongAdder();
+
+  private final LongAdder denials = new LongAdder();
+
+  private final LongAdder errors = new LongAdder();
+
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Per-second invocation counts of the last minute, along with the second each slot refers to.
+   */
+  private final AtomicLongArray rateCounts = new AtomicLongArray(RATE_SLOTS);
+
+  private final AtomicLongArray rateSeconds = new AtomicLongArray(RATE_SLOTS);
+
+  private final LongSupplier nanoClock;
+
+  CallbackStats(String name) {
+    this(name, System::nanoTime);
+  }
+
+  CallbackStats(String name, LongSupplier nanoClock) {
+    this.name = name;
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Gets the name of the callback.
+   *
+   * @return the name of the callback, as declared by {@link cool.mqtt.hooks.MQTTCoolHook}
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  @Override
+  public long getDenials() {
+    return denials.sum();
+  }
+
+  @Override
+  public long getErrors() {
+    return errors.sum();
+  }
+
+  @Override
+  public double getDenyRatio() {
+    long count = calls.sum();
+    return count != 0 ? (double) denials.sum() / count : 0;
+  }
+
+  @Override
+  public double getCallsPerSecond() {
+    long now = currentSecond();
+    long total = 0;
+    for (int i = 0; i < RATE_SLOTS; i++) {
+      long second = rateSeconds.get(i);
+      // Skip the current, still incomplete, second.
+      if (second < now && now - second <= RATE_WINDOW_SECONDS) {
+        total += rateCounts.get(i);
+      }
+    }
+    return (double) total / RATE_WINDOW_SECONDS;
+  }
+
+  @Override
+  public double getLatencyP50Micros() {
+    return latencies.percentile(0.5) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP90Micros() {
+    return latencies.percentile(0.9) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP99Micros() {
+    return latencies.percentile(0.99) / 1000.0;
+  }
+
+  @Override
+  public double getLatencyP999Micros() {
+    return latencies.percentile(0.999) / 1000.0;
+  }
+
+  @Override
+  public void reset() {
+    calls.reset();
+    denials.reset();
+    errors.reset();
+    latencies.reset();
+    for (int i = 0; i < RATE_SLOTS; i++) {
+      rateCounts.set(i, 0);
+      rateSeconds.set(i, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CallbackStats [name=" + name + ", calls=" + getCalls() + ", denials=" + getDenials()
+        + ", errors=" + getErrors() + "]";
+  }
+
+  /**
+   * Records a completed invocation.
+   *
+   * @param latencyNanos the duration of the invocation
+   * @param denied whether the invocation returned a denial
+   * @param failed whether the invocation threw an exception
+   */
+  void record(long latencyNanos, boolean denied, boolean failed) {
+    calls.increment();
+    if (denied) {
+      denials.increment();
+    }
+    if (failed) {
+      errors.increment();
+    }
+    latencies.record(latencyNanos);
+
+    long second = currentSecond();
+    int slot = (int) Math.floorMod(second, (long) RATE_SLOTS);
+    long slotSecond = rateSeconds.get(slot);
+    if (slotSecond != second && rateSeconds.compareAndSet(slot, slotSecond, second)) {
+      // First invocation in this second: recycle the slot (a few concurrent counts may be lost).
+      rateCounts.set(slot, 0);
+    }
+    rateCounts.incrementAndGet(slot);
+  }
+
+  private long currentSecond() {
+    return TimeUnit.NANOSECONDS.toSeconds(nanoClock.getAsLong());
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * Management interface of the statistics of a single Hook callback, as exposed through JMX by a
+ * {@link MonitoredCoolHook}.
+ */
+public interface CallbackStatsMBean {
+
+  /**
+   * Gets the number of completed invocations, including the failed ones.
+   *
+   * @return the number of invocations
+   */
+  long getCalls();
+
+  /**
+   * Gets the number of invocations which returned a denial.
+   *
+   * @return the number of denials
+   */
+  long getDenials();
+
+  /**
+   * Gets the number of invocations which threw an exception.
+   *
+   * @return the number of failures
+   */
+  long getErrors();
+
+  /**
+   * Gets the fraction of invocations which returned a denial.
+   *
+   * @return the deny ratio, between {@code 0} and {@code 1}
+   */
+  double getDenyRatio();
+
+  /**
+   * Gets the average number of invocations per second over the last minute.
+   *
+   * @return the invocation rate
+   */
+  double getCallsPerSecond();
+
+  /**
+   * Gets the median latency.
+   *
+   * @return the 50th percentile of the latency, expressed in microseconds
+   */
+  double getLatencyP50Micros();
+
+  /**
+   * Gets the 90th percentile of the latency.
+   *
+   * @return the 90th percentile of the latency, expressed in microseconds
+   */
+  double getLatencyP90Micros();
+
+  /**
+   * Gets the 99th percentile of the latency.
+   *
+   * @return the 99th percentile of the latency, expressed in microseconds
+   */
+  double getLatencyP99Micros();
+
+  /**
+   * Gets the 99.9th percentile of the latency.
+   *
+   * @return the 99.9th percentile of the latency, expressed in microseconds
+   */
+  double getLatencyP999Micros();
+
+  /**
+   * Resets all the statistics.
+   */
+  void reset();
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Service provider interface of a store of named counters, meant to share quota usages (for
+ * example, the number of sessions concurrently opened by each user) among several MQTT&#46;Cool
+ * nodes.
+ *
+ * <p>Implementations backed by a remote service should be wrapped into a
+ * {@link NearCacheCounterStore}, so that Hook callbacks do not pay a round trip each.
+ *
+ * <p>Implementations must be thread safe.
+ *
+ * @see LocalCounterStore
+ * @see NearCacheCounterStore
+ */
+public interface CounterStore {
+
+  /**
+   * Gets the current value of the specified counter.
+   *
+   * @param key the name of the counter
+   * @return the current value, or {@code 0} if the counter does not exist
+   * @throws IOException if the store can not be reached
+   */
+  long get(String key) throws IOException;
+
+  /**
+   * Atomically adds the given delta to the specified counter.
+   *
+   * @param key the name of the counter
+   * @param delta the value to add, which may be negative
+   * @return the updated value
+   * @throws IOException if the store can not be reached
+   */
+  long addAndGet(String key, long delta) throws IOException;
+
+  /**
+   * Gets the current values of the specified counters.
+   *
+   * <p>The default implementation invokes {@link #get(String)} for each key; implementations backed
+   * by a remote service should override it in order to perform a single round trip.
+   *
+   * @param keys the names of the counters
+   * @return the map of the current values, keyed by counter name
+   * @throws IOException if the store can not be reached
+   */
+  default Map<String, Long> getAll(Collection<String> keys) throws IOException {
+    Map<String, Long> values = new HashMap<>();
+    for (String key : keys) {
+      values.put(key, get(key));
+    }
+    return values;
+  }
+
+  /**
+   * Adds the given deltas to the specified counters.
+   *
+   * <p>Each counter is updated atomically, whereas the batch as a whole is not required to be. The
+   * default implementation invokes {@link #addAndGet(String, long)} for each entry;
+   * implementations backed by a remote service should override it in order to perform a single
+   * round trip.
+   *
+   * @param deltas the values to add, keyed by counter name
+   * @return the map of the updated values, keyed by counter name
+   * @throws IOException if the store can not be reached
+   */
+  default Map<String, Long> addAll(Map<String, Long> deltas) throws IOException {
+    Map<String, Long> values = new HashMap<>();
+    for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+      values.put(delta.getKey(), addAndGet(delta.getKey(), delta.getValue()));
+    }
+    return values;
+  }
+
+  /**
+   * Increments the specified counter, unless the increment would make it exceed the given limit.
+   *
+   * <p>The default implementation optimistically increments the counter and rolls the increment
+   * back if the limit turns out to be exceeded.
+   *
+   * @param key the name of the counter
+   * @param limit the maximum allowed value
+   * @return {@code true} if the counter has been incremented
+   * @throws IOException if the store can not be reached
+   */
+  default boolean tryAcquire(String key, long limit) throws IOException {
+    if (addAndGet(key, 1) > limit) {
+      addAndGet(key, -1);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Decrements the specified counter, previously incremented through
+   * {@link #tryAcquire(String, long)}.
+   *
+   * @param key the name of the counter
+   * @throws IOException if the store can not be reached
+   */
+  default void release(String key) throws IOException {
+    addAndGet(key, -1);
+  }
+
+}
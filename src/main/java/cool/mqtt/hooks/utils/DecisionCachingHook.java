@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.Decision;
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A Hook decorator which reuses the decisions returned by
+ * {@link MQTTCoolHook#authorizePublish(String, String, String, MqttMessage)} and
+ * {@link MQTTCoolHook#authorizeSubscribe(String, String, String, MqttSubscription)} as long as
+ * their validity hints allow it, with the semantics detailed in {@link Decision}.
+ *
+ * <p>This is the reference implementation of the caching which the hints are meant for: it can be
+ * used to verify locally the hints returned by a Hook, as well as to save the calls to the Hook
+ * when the server does not honor the hints by itself.
+ *
+ * <p>Decisions are kept per session, from a successful
+ * {@link #canOpenSession(String, String, String, Map, String) canOpenSession} up to the
+ * {@link #onSessionClose(String) onSessionClose} notification, and at most
+ * {@code maxEntriesPerSession} decisions are kept for each session: once the limit is reached,
+ * expired decisions are purged and, if none is found, new decisions are simply not cached.
+ *
+ * <p>This decorator should wrap the Hook directly, or be the outermost one, as the decorators
+ * extending {@link ForwardingCoolHook} drop the hints of their delegate.
+ */
+public class DecisionCachingHook extends ForwardingCoolHook {
+
+  private final ConcurrentMap<String, SessionDecisions> sessions = new ConcurrentHashMap<>();
+
+  private final int maxEntriesPerSession;
+
+  private final LongSupplier clock;
+
+  private final LongAdder cacheHits = new LongAdder();
+
+  private final LongAdder cacheMisses = new LongAdder();
+
+  /**
+   * Creates a {@code DecisionCachingHook} which caches the decisions of the specified Hook.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param maxEntriesPerSession the maximum number of decisions kept for each session
+   * @throws IllegalArgumentException if {@code maxEntriesPerSession} is not a positive integer
+   */
+  public DecisionCachingHook(MQTTCoolHook delegate, int maxEntriesPerSession) {
+    this(delegate, maxEntriesPerSession, System::nanoTime);
+  }
+
+  DecisionCachingHook(MQTTCoolHook delegate, int maxEntriesPerSession, LongSupplier clock) {
+    super(delegate);
+    if (maxEntriesPerSession <= 0) {
+      throw new IllegalArgumentException("Invalid maximum number of entries");
+    }
+    this.maxEntriesPerSession = maxEntriesPerSession;
+    this.clock = clock;
+  }
+
+  /**
+   * This implementation forwards to the delegate and, if the session is authorized, starts caching
+   * its decisions.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    boolean authorized =
+        delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+    if (authorized) {
+      sessions.put(sessionId, new SessionDecisions());
+    }
+    return authorized;
+  }
+
+  /**
+   * This implementation drops the decisions of the session and forwards to the delegate.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    sessions.remove(sessionId);
+    delegate().onSessionClose(sessionId);
+  }
+
+  /**
+   * This implementation drops the decisions taken for the connection and forwards to the delegate.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    SessionDecisions decisions = sessions.get(sessionId);
+    if (decisions != null) {
+      decisions.entries.keySet().removeIf(key -> key.isFor(clientId, brokerAddress));
+    }
+    delegate().onDisconnection(sessionId, clientId, brokerAddress);
+  }
+
+  /**
+   * This implementation returns the outcome of
+   * {@link #authorizePublish(String, String, String, MqttMessage)}.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    return authorizePublish(sessionId, clientId, brokerAddress, message).isAllowed();
+  }
+
+  /**
+   * This implementation returns a still valid decision taken for the same topic name, if any, or
+   * otherwise forwards to the delegate and caches the returned decision if it carries a hint.
+   */
+  @Override
+  public Decision authorizePublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    Key key = new Key(false, clientId, brokerAddress, message.getTopicName());
+    return authorize(sessionId, key,
+        hook -> hook.authorizePublish(sessionId, clientId, brokerAddress, message));
+  }
+
+  /**
+   * This implementation returns the outcome of
+   * {@link #authorizeSubscribe(String, String, String, MqttSubscription)}.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    return authorizeSubscribe(sessionId, clientId, brokerAddress, subscription).isAllowed();
+  }
+
+  /**
+   * This implementation returns a still valid decision taken for the same topic filter, if any, or
+   * otherwise forwards to the delegate and caches the returned decision if it carries a hint.
+   */
+  @Override
+  public Decision authorizeSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    Key key = new Key(true, clientId, brokerAddress, subscription.getTopicFilter());
+    return authorize(sessionId, key,
+        hook -> hook.authorizeSubscribe(sessionId, clientId, brokerAddress, subscription));
+  }
+
+  /**
+   * This implementation drops the decisions valid until an unsubscription which is matched by the
+   * topic filter, and forwards to the delegate.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    SessionDecisions decisions = sessions.get(sessionId);
+    if (decisions != null) {
+      decisions.entries.entrySet().removeIf(e -> e.getValue().decision.isValidUntilUnsubscribe()
+          && e.getKey().isFor(clientId, brokerAddress)
+          && e.getKey().isRevokedBy(topicFilter));
+    }
+    delegate().onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+  }
+
+  /**
+   * Drops all the decisions cached for the specified session, for example because the permissions
+   * of its user have changed.
+   *
+   * @param sessionId the unique identifier of the client session
+   */
+  public void invalidate(String sessionId) {
+    SessionDecisions decisions = sessions.get(sessionId);
+    if (decisions != null) {
+      decisions.entries.clear();
+    }
+  }
+
+  /**
+   * Drops all the cached decisions.
+   */
+  public void invalidateAll() {
+    for (SessionDecisions decisions : sessions.values()) {
+      decisions.entries.clear();
+    }
+  }
+
+  /**
+   * Gets the number of decisions currently cached, including the expired ones not purged yet.
+   *
+   * @return the number of cached decisions
+   */
+  public int getCachedDecisions() {
+    int total = 0;
+    for (SessionDecisions decisions : sessions.values()) {
+      total += decisions.entries.size();
+    }
+    return total;
+  }
+
+  /**
+   * Gets the number of requests answered with a cached decision so far.
+   *
+   * @return the number of cache hits
+   */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Gets the number of requests forwarded to the delegate so far.
+   *
+   * @return the number of cache misses
+   */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  private Decision authorize(String sessionId, Key key, Authorization authorization)
+      throws HookException {
+
+    SessionDecisions decisions = sessions.get(sessionId);
+    if (decisions == null) {
+      cacheMisses.increment();
+      return authorization.authorize(delegate());
+    }
+
+    long now = clock.getAsLong();
+    Entry entry = decisions.entries.get(key);
+    if (entry != null) {
+      if (entry.isValid(now)) {
+        cacheHits.increment();
+        return entry.decision;
+      }
+      decisions.entries.remove(key, entry);
+    }
+
+    cacheMisses.increment();
+    Decision decision = authorization.authorize(delegate());
+    if (decision.isCacheable()) {
+      decisions.put(key, new Entry(decision, now), now, maxEntriesPerSession);
+    }
+    return decision;
+  }
+
+  /**
+   * Checks whether the topic name is matched by the topic filter, according to the MQTT rules.
+   */
+  static boolean matches(String topicFilter, String topicName) {
+    if (topicName.startsWith("$")
+        && (topicFilter.startsWith("+") || topicFilter.startsWith("#"))) {
+      return false;
+    }
+
+    int filterStart = 0;
+    int topicStart = 0;
+    while (true) {
+      int filterEnd = levelEnd(topicFilter, filterStart);
+      int filterLength = filterEnd - filterStart;
+      boolean singleLevel = filterLength == 1 && topicFilter.charAt(filterStart) == '+';
+      if (filterLength == 1 && topicFilter.charAt(filterStart) == '#') {
+        return true;
+      }
+      if (topicStart > topicName.length()) {
+        return false;
+      }
+
+      int topicEnd = levelEnd(topicName, topicStart);
+      if (!singleLevel && (filterLength != topicEnd - topicStart
+          || !topicFilter.regionMatches(filterStart, topicName, topicStart, filterLength))) {
+        return false;
+      }
+
+      filterStart = filterEnd + 1;
+      topicStart = topicEnd + 1;
+      if (filterStart > topicFilter.length()) {
+        return topicStart > topicName.length();
+      }
+    }
+  }
+
+  private static int levelEnd(String value, int start) {
+    int end = value.indexOf('/', start);
+    return end < 0 ? value.length() : end;
+  }
+
+  @FunctionalInterface
+  private interface Authorization {
+
+    Decision authorize(MQTTCoolHook hook) throws HookException;
+  }
+
+  private static final class SessionDecisions {
+
+    final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    void put(Key key, Entry entry, long now, int maxEntries) {
+      if (entries.size() >= maxEntries) {
+        entries.values().removeIf(e -> !e.isValid(now));
+        if (entries.size() >= maxEntries) {
+          return;
+        }
+      }
+      entries.put(key, entry);
+    }
+  }
+
+  private static final class Key {
+
+    final boolean subscription;
+
+    final String clientId;
+
+    final String brokerAddress;
+
+    final String topic;
+
+    Key(boolean subscription, String clientId, String brokerAddress, String topic) {
+      this.subscription = subscription;
+      this.clientId = clientId;
+      this.brokerAddress = brokerAddress;
+      this.topic = topic;
+    }
+
+    boolean isFor(String clientId, String brokerAddress) {
+      return this.clientId.equals(clientId) && this.brokerAddress.equals(brokerAddress);
+    }
+
+    boolean isRevokedBy(String topicFilter) {
+      return subscription ? topic.equals(topicFilter) : matches(topicFilter, topic);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return subscription == other.subscription && clientId.equals(other.clientId)
+          && brokerAddress.equals(other.brokerAddress) && topic.equals(other.topic);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Boolean.hashCode(subscription);
+      result = 31 * result + clientId.hashCode();
+      result = 31 * result + brokerAddress.hashCode();
+      return 31 * result + topic.hashCode();
+    }
+  }
+
+  private static final class Entry {
+
+    final Decision decision;
+
+    final long timestamp;
+
+    final long validityNanos;
+
+    Entry(Decision decision, long timestamp) {
+      this.decision = decision;
+      this.timestamp = timestamp;
+      this.validityNanos = decision.getValidity(TimeUnit.NANOSECONDS);
+    }
+
+    boolean isValid(long now) {
+      return validityNanos == Long.MAX_VALUE || now - timestamp < validityNanos;
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Helper class to reuse the authorization decision taken for a {@code QoS > 0} message when the
+ * same message is re-sent with the <i>duplicate</i> flag set, so that the Hook can skip any further
+ * validation.
+ *
+ * <p>Messages are identified by the session, the topic name and a 64-bit fingerprint of the QoS
+ * level, the retained flag and the Application Message. Decisions are kept for a fixed time window,
+ * in a direct-mapped table of fixed capacity: when two messages map to the same slot, the older
+ * decision is simply forgotten, so that the memory footprint does not depend on the number of
+ * in-flight messages. As the fingerprint is not collision resistant, a decision is reused only if
+ * the message is fully identical to the decided one, whose Application Message is kept for this
+ * purpose.
+ *
+ * <p>The Hook is expected to invoke the methods of this class from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canPublish(String, String, String, MqttMessage)} as follows:
+ *
+ * <pre>
+ * Boolean decision = cache.getDecision(sessionId, message);
+ * if (decision != null) {
+ *   return decision;
+ * }
+ * boolean authorized = ... // Full validation
+ * cache.putDecision(sessionId, message, authorized);
+ * return authorized;
+ * </pre>
+ *
+ * <p>This class is thread safe.
+ */
+public class DuplicatePublishCache {
+
+  private final AtomicReferenceArray<Entry> table;
+
+  private final int mask;
+
+  private final long windowNanos;
+
+  private final LongSupplier clock;
+
+  private final LongAdder reusedDecisions = new LongAdder();
+
+  private final LongAdder repeatedMessages = new LongAdder();
+
+  /**
+   * Creates a {@code DuplicatePublishCache} with the specified capacity and time window.
+   *
+   * @param capacity the maximum number of decisions kept, rounded up to the next power of two
+   * @param window the time after which a decision is forgotten
+   * @param unit the time unit of {@code window}
+   * @throws IllegalArgumentException if {@code capacity} is not a positive integer, or it exceeds
+   *         {@code 2^30}
+   */
+  public DuplicatePublishCache(int capacity, long window, TimeUnit unit) {
+    this(capacity, window, unit, System::nanoTime);
+  }
+
+  DuplicatePublishCache(int capacity, long window, TimeUnit unit, LongSupplier clock) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity");
+    }
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.table = new AtomicReferenceArray<>(Math.max(size, 1));
+    this.mask = table.length() - 1;
+    this.windowNanos = unit.toNanos(window);
+    this.clock = clock;
+  }
+
+  /**
+   * Gets the decision previously taken for the specified message, if the latter is a duplicate.
+   *
+   * <p>Messages without the <i>duplicate</i> flag set are never served from the cache, but are
+   * still accounted as repeated if the same message has been recently decided.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param message the message being requested to be published
+   * @return the decision previously taken, or {@code null} if the message has to be fully
+   *         validated
+   */
+  public Boolean getDecision(String sessionId, MqttMessage message) {
+    if (message.getQos() == QoS.AT_MOST_ONCE) {
+      return null;
+    }
+
+    long fingerprint = fingerprint(sessionId, message);
+    Entry entry = table.get(index(fingerprint));
+    if (entry == null || !entry.matches(fingerprint, sessionId, message)
+        || clock.getAsLong() - entry.timestamp > windowNanos) {
+      return null;
+    }
+
+    repeatedMessages.increment();
+    if (!message.isDuplicate()) {
+      return null;
+    }
+
+    reusedDecisions.increment();
+    return entry.decision;
+  }
+
+  /**
+   * Stores the decision taken for the specified message.
+   *
+   * <p>{@link QoS#AT_MOST_ONCE} messages, which are never re-sent, are ignored.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param message the message being requested to be published
+   * @param decision the authorization decision
+   */
+  public void putDecision(String sessionId, MqttMessage message, boolean decision) {
+    if (message.getQos() == QoS.AT_MOST_ONCE) {
+      return;
+    }
+
+    long fingerprint = fingerprint(sessionId, message);
+    table.set(index(fingerprint), new Entry(fingerprint, sessionId, message, decision,
+        clock.getAsLong()));
+  }
+
+  /**
+   * Gets the number of decisions reused for duplicate messages so far.
+   *
+   * @return the number of reused decisions
+   */
+  public long getReusedDecisions() {
+    return reusedDecisions.sum();
+  }
+
+  /**
+   * Gets the number of messages found identical to a recently decided one, whether flagged as
+   * duplicate or not.
+   *
+   * @return the number of repeated messages
+   */
+  public long getRepeatedMessages() {
+    return repeatedMessages.sum();
+  }
+
+  /**
+   * Gets the number of slots of this cache.
+   *
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return table.length();
+  }
+
+  private int index(long fingerprint) {
+    return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+  }
+
+  private static long fingerprint(String sessionId, MqttMessage message) {
+    long hash = Hashing.update(Hashing.hash(sessionId, 0),
+        message.getTopicName().getBytes(StandardCharsets.UTF_8));
+    hash = Hashing.update(hash, new byte[] {(byte) message.getQos().getValue(),
+        (byte) (message.isRetained() ? 1 : 0)});
+    byte[] applicationMessage = message.getApplicationMessage();
+    if (applicationMessage != null) {
+      hash = Hashing.update(hash, applicationMessage);
+    }
+    return Hashing.mix(hash);
+  }
+
+  private static final class Entry {
+
+    final long fingerprint;
+
+    final String sessionId;
+
+    final String topicName;
+
+    final QoS qos;
+
+    final boolean retained;
+
+    final byte[] applicationMessage;
+
+    final boolean decision;
+
+    final long timestamp;
+
+    Entry(long fingerprint, String sessionId, MqttMessage message, boolean decision,
+        long timestamp) {
+
+      this.fingerprint = fingerprint;
+      this.sessionId = sessionId;
+      this.topicName = message.getTopicName();
+      this.qos = message.getQos();
+      this.retained = message.isRetained();
+      byte[] source = message.getApplicationMessage();
+      this.applicationMessage = source != null ? source.clone() : null;
+      this.decision = decision;
+      this.timestamp = timestamp;
+    }
+
+    boolean matches(long fingerprint, String sessionId, MqttMessage message) {
+      // The payload is controlled by the client: never trust the fingerprint alone.
+      return this.fingerprint == fingerprint && this.sessionId.equals(sessionId)
+          && this.topicName.equals(message.getTopicName()) && qos == message.getQos()
+          && retained == message.isRetained()
+          && Arrays.equals(applicationMessage, message.getApplicationMessage());
+    }
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Skeletal implementation of an {@code MQTTCoolHook} which forwards all calls to a delegate Hook,
+ * meant as a base class for decorators which add behavior around an existing Hook.
+ *
+ * <p>All methods forward to the delegate, therefore subclasses must override only those methods
+ * for which a specific behavior is really needed.
+ *
+ * <p>The only exceptions are {@link MQTTCoolHook#authorizePublish(String, String, String,
+ * MqttMessage) authorizePublish} and {@link MQTTCoolHook#authorizeSubscribe(String, String, String,
+ * MqttSubscription) authorizeSubscribe}, which keep their default implementation, so that the
+ * decisions always go through the {@code canPublish} and {@code canSubscribe} methods of the
+ * decorator and the validity hints of the delegate are dropped: a reused decision would otherwise
+ * bypass the behavior added by the decorator. For the same reason, the batch authorization and
+ * notification methods keep their default implementation too, and batches reach the delegate one
+ * item at a time.
+ */
+public class ForwardingCoolHook implements MQTTCoolHook {
+
+  private final MQTTCoolHook delegate;
+
+  /**
+   * Creates a {@code ForwardingCoolHook} which forwards all calls to the specified Hook.
+   *
+   * @param delegate the Hook to forward calls to
+   */
+  public ForwardingCoolHook(MQTTCoolHook delegate) {
+    this.delegate = Objects.requireNonNull(delegate, "delegate");
+  }
+
+  /**
+   * Gets the Hook to which calls are forwarded.
+   *
+   * @return the delegate Hook
+   */
+  protected MQTTCoolHook delegate() {
+    return delegate;
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public void init(File configDir) throws HookException {
+    delegate.init(configDir);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    return delegate.resolveAlias(connectionAlias);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    return delegate.canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    delegate.onSessionClose(sessionId);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    return delegate.canConnect(sessionId, clientId, brokerAddress, connectOptions);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    delegate.onDisconnection(sessionId, clientId, brokerAddress);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    return delegate.canPublish(sessionId, clientId, brokerAddress, message);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    return delegate.canSubscribe(sessionId, clientId, brokerAddress, subscription);
+  }
+
+  /**
+   * This implementation forwards to the delegate.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    delegate.onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * The <i>gradient</i> {@link LimitAlgorithm}, which compares the current latency to its long-term
+ * average.
+ */
+final class GradientLimit implements LimitAlgorithm {
+
+  /**
+   * The weight of each sample in the long-term latency average.
+   */
+  private static final double LONG_RTT_ALPHA = 1.0 / 600;
+
+  /**
+   * How much the current latency may exceed the long-term one before the limit shrinks.
+   */
+  private static final double TOLERANCE = 1.5;
+
+  /**
+   * The weight of each new estimate in the limit.
+   */
+  private static final double SMOOTHING = 0.2;
+
+  private final int maxLimit;
+
+  private double limit;
+
+  private double longRttNanos;
+
+  GradientLimit(int initialLimit, int maxLimit) {
+    if (initialLimit <= 0) {
+      throw new IllegalArgumentException("Invalid initial limit");
+    }
+    if (maxLimit < initialLimit) {
+      throw new IllegalArgumentException("Invalid max limit");
+    }
+    this.limit = initialLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  @Override
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  @Override
+  public int onSample(long rttNanos, int inFlight, boolean dropped) {
+    if (rttNanos <= 0) {
+      return getLimit();
+    }
+    if (longRttNanos == 0) {
+      longRttNanos = rttNanos;
+    } else {
+      longRttNanos += LONG_RTT_ALPHA * (rttNanos - longRttNanos);
+      if (longRttNanos / rttNanos > 2) {
+        // The latency has dropped for good: converge faster to the new level.
+        longRttNanos *= 0.95;
+      }
+    }
+
+    if (!dropped && inFlight * 2 < limit) {
+      // Only adjust when the limit is actually being used.
+      return getLimit();
+    }
+
+    double gradient = dropped ? 0.5
+        : Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+    double estimate = limit * gradient + Math.sqrt(limit);
+    limit = Math.max(1, Math.min(maxLimit, limit * (1 - SMOOTHING) + estimate * SMOOTHING));
+    return getLimit();
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Non-cryptographic hashing functions shared by the utility classes.
+ */
+final class Hashing {
+
+  private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  private Hashing() {}
+
+  /**
+   * Computes a 64-bit FNV-1a hash of the specified string, starting from the provided seed and
+   * finalized through the <i>SplitMix64</i> mixing function.
+   */
+  static long hash(String value, long seed) {
+    return mix(update(FNV_OFFSET_BASIS ^ seed, value.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Computes a 64-bit FNV-1a hash of the specified bytes, finalized through the <i>SplitMix64</i>
+   * mixing function.
+   */
+  static long hash(byte[] value) {
+    return mix(update(FNV_OFFSET_BASIS, value));
+  }
+
+  /**
+   * Feeds the specified bytes into a running FNV-1a hash.
+   */
+  static long update(long hash, byte[] value) {
+    long h = hash;
+    for (byte b : value) {
+      h ^= b & 0xFF;
+      h *= FNV_PRIME;
+    }
+    return h;
+  }
+
+  /**
+   * The <i>SplitMix64</i> finalizer, which spreads the entropy of the input over all the bits.
+   */
+  static long mix(long value) {
+    long h = value;
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+}
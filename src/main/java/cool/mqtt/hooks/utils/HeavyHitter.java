@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * A key which accounts for a large share of the traffic, as reported by a
+ * {@link HeavyHitterTracker}.
+ *
+ * <p>The reported figures are estimations, which may exceed the actual values but never fall
+ * short of them.
+ */
+public final class HeavyHitter {
+
+  private final String key;
+
+  private final long messages;
+
+  private final long bytes;
+
+  HeavyHitter(String key, long messages, long bytes) {
+    this.key = key;
+    this.messages = messages;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Gets the key, for example a topic name or a client identifier.
+   *
+   * @return the key
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * Gets the estimated number of messages within the sliding window.
+   *
+   * @return the estimated number of messages
+   */
+  public long getMessages() {
+    return messages;
+  }
+
+  /**
+   * Gets the estimated number of payload bytes within the sliding window.
+   *
+   * @return the estimated number of bytes
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "HeavyHitter [key=" + key + ", messages=" + messages + ", bytes=" + bytes + "]";
+  }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Streaming summary of the keys (for example, topic names or client identifiers) which account for
+ * most of the traffic over a sliding window, within a fixed amount of memory.
+ *
+ * <p>The window is split into {@value #SLICES} slices, each one holding:
+ * <ul>
+ * <li>a <i>Count-Min Sketch</i> of the messages and bytes per key, which provides the
+ * estimations;</li>
+ * <li>a <i>Space-Saving</i> summary of the most frequent keys, which provides the candidates for
+ * the top-k query: every key accounting for more than {@code epsilon} of the traffic of the slice
+ * is guaranteed to be a candidate.</li>
+ * </ul>
+ * The oldest slice is recycled as time goes by, so the window slides with the granularity of one
+ * slice. Estimations never fall short of the actual values, and exceed them by at most
+ * {@code epsilon} times the total traffic of the window, with a probability of about 98%.
+ *
+ * <p>This class is thread safe. Sketch updates are lock-free, whereas the top-k summary of each
+ * slice is guarded by a short critical section.
+ */
+public final class HeavyHitterTracker {
+
+  /**
+   * The number of slices the window is split into.
+   */
+  public static final int SLICES = 6;
+
+  private static final int DEPTH = 4;
+
+  private static final long SEED = 0x5DEECE66DL;
+
+  private final int k;
+
+  private final int width;
+
+  private final long sliceNanos;
+
+  private final LongSupplier clock;
+
+  private final Slice[] slices = new Slice[SLICES];
+
+  /**
+   * Creates a {@code HeavyHitterTracker}.
+   *
+   * @param k the number of heavy hitters to track
+   * @param epsilon the maximum overestimation, as a fraction of the total traffic of the window;
+   *        memory usage is inversely proportional to it
+   * @param window the duration of the sliding window
+   * @param unit the time unit of {@code window}
+   * @throws IllegalArgumentException if {@code k} is not a positive integer, {@code epsilon} is not
+   *         in the (0, 1) range, or {@code window} is not positive
+   */
+  public HeavyHitterTracker(int k, double epsilon, long window, TimeUnit unit) {
+    this(k, epsilon, window, unit, System::nanoTime);
+  }
+
+  HeavyHitterTracker(int k, double epsilon, long window, TimeUnit unit, LongSupplier clock) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("Invalid k");
+    }
+    if (!(epsilon > 0 && epsilon < 1)) {
+      throw new IllegalArgumentException("Invalid epsilon");
+    }
+    if (window <= 0) {
+      throw new IllegalArgumentException("Invalid window");
+    }
+    this.k = k;
+    this.width = (int) Math.ceil(Math.E / epsilon);
+    this.sliceNanos = Math.max(1, unit.toNanos(window) / SLICES);
+    this.clock = clock;
+    for (int i = 0; i < SLICES; i++) {
+      slices[i] = new Slice(width, Math.max(2 * k, (int) Math.ceil(1 / epsilon)));
+    }
+  }
+
+  /**
+   * Records a message.
+   *
+   * @param key the key the message is accounted to
+   * @param bytes the size of the message payload
+   */
+  public void add(String key, long bytes) {
+    long epoch = clock.getAsLong() / sliceNanos;
+    Slice slice = slices[(int) Math.floorMod(epoch, (long) SLICES)];
+    if (slice.epoch != epoch) {
+      slice.recycle(epoch);
+    }
+
+    long hash = Hashing.hash(key, SEED);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int row = 0; row < DEPTH; row++) {
+      int index = row * width + Math.floorMod(h1 + row * h2, width);
+      slice.messages.incrementAndGet(index);
+      slice.bytes.addAndGet(index, bytes);
+    }
+    slice.totals.incrementAndGet(0);
+    slice.totals.addAndGet(1, bytes);
+    synchronized (slice) {
+      slice.summary.add(key, 1);
+    }
+  }
+
+  /**
+   * Estimates the traffic of the specified key within the sliding window.
+   *
+   * @param key the key
+   * @return the estimation
+   */
+  public HeavyHitter estimate(String key) {
+    long hash = Hashing.hash(key, SEED);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    long minEpoch = clock.getAsLong() / sliceNanos - SLICES;
+    long messages = Long.MAX_VALUE;
+    long bytes = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = row * width + Math.floorMod(h1 + row * h2, width);
+      long rowMessages = 0;
+      long rowBytes = 0;
+      for (Slice slice : slices) {
+        if (slice.epoch > minEpoch) {
+          rowMessages += slice.messages.get(index);
+          rowBytes += slice.bytes.get(index);
+        }
+      }
+      messages = Math.min(messages, rowMessages);
+      bytes = Math.min(bytes, rowBytes);
+    }
+    return new HeavyHitter(key, messages, bytes);
+  }
+
+  /**
+   * Gets the keys which account for most of the messages within the sliding window.
+   *
+   * @return up to {@code k} heavy hitters, sorted by decreasing number of messages
+   */
+  public List<HeavyHitter> getTopK() {
+    long minEpoch = clock.getAsLong() / sliceNanos - SLICES;
+    Set<String> candidates = new HashSet<>();
+    for (Slice slice : slices) {
+      if (slice.epoch > minEpoch) {
+        String[] keys;
+        synchronized (slice) {
+          keys = slice.summary.keys();
+        }
+        for (String key : keys) {
+          candidates.add(key);
+        }
+      }
+    }
+
+    List<HeavyHitter> result = new ArrayList<>(candidates.size());
+    for (String key : candidates) {
+      result.add(estimate(key));
+    }
+    result.sort(Comparator.comparingLong(HeavyHitter::getMessages).reversed()
+        .thenComparing(HeavyHitter::getKey));
+    return result.size() > k ? new ArrayList<>(result.subList(0, k)) : result;
+  }
+
+  /**
+   * Gets the total number of messages within the sliding window.
+   *
+   * @return the total number of messages
+   */
+  public long getTotalMessages() {
+    return total(0);
+  }
+
+  /**
+   * Gets the total number of payload bytes within the sliding window.
+   *
+   * @return the total number of bytes
+   */
+  public long getTotalBytes() {
+    return total(1);
+  }
+
+  private long total(int index) {
+    long minEpoch = clock.getAsLong() / sliceNanos - SLICES;
+    long total = 0;
+    for (Slice slice : slices) {
+      if (slice.epoch > minEpoch) {
+        total += slice.totals.get(index);
+      }
+    }
+    return total;
+  }
+
+  private static final class Slice {
+
+    final AtomicLongArray messages;
+
+    final AtomicLongArray bytes;
+
+    /**
+     * The total messages (at index 0) and bytes (at index 1) of the slice.
+     */
+    final AtomicLongArray totals = new AtomicLongArray(2);
+
+    final SpaceSaving summary;
+
+    volatile long epoch = Long.MIN_VALUE;
+
+    Slice(int width, int candidates) {
+      this.messages = new AtomicLongArray(DEPTH * width);
+      this.bytes = new AtomicLongArray(DEPTH * width);
+      this.summary = new SpaceSaving(candidates);
+    }
+
+    synchronized void recycle(long newEpoch) {
+      if (epoch >= newEpoch) {
+        return;
+      }
+      // Updates racing with the recycling may be lost or leak into the new slice.
+      for (int i = 0; i < messages.length(); i++) {
+        messages.set(i, 0);
+        bytes.set(i, 0);
+      }
+      totals.set(0, 0);
+      totals.set(1, 0);
+      summary.clear();
+      epoch = newEpoch;
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * The management surface of a {@link MonitoredCoolHook}, which exposes the active resources and
+ * the tuning knobs registered by the Hook.
+ *
+ * <p>Tuning knobs are registered by the Hook, typically from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#init(java.io.File)}, for example:
+ *
+ * <pre>
+ * management
+ *     .addLimit("maxConnectionsPerUser", quotaTracker::getMaxConnectionsPerUser,
+ *         value -&gt; quotaTracker.setMaxConnectionsPerUser((int) value))
+ *     .addCache("jwtTokens", jwtVerifier::setMaxCachedTokens)
+ *     .addUserInvalidator(user -&gt; aclCache.remove(user));
+ * </pre>
+ *
+ * <p>This class is thread safe.
+ */
+public class HookManagement implements HookManagementMBean {
+
+  private final Collection<CallbackStats> callbackStats;
+
+  private final QuotaTracker resources;
+
+  private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+  private final Map<String, IntConsumer> caches = new ConcurrentHashMap<>();
+
+  private final List<Consumer<String>> userInvalidators = new CopyOnWriteArrayList<>();
+
+  HookManagement(Collection<CallbackStats> callbackStats, QuotaTracker resources) {
+    this.callbackStats = callbackStats;
+    this.resources = resources;
+  }
+
+  /**
+   * Registers a limit which can be changed at runtime.
+   *
+   * @param name the name of the limit
+   * @param getter the function which returns the current value
+   * @param setter the function which applies a new value
+   * @return a reference to this object
+   */
+  public HookManagement addLimit(String name, LongSupplier getter, LongConsumer setter) {
+    limits.put(name, new Limit(Objects.requireNonNull(getter, "getter"),
+        Objects.requireNonNull(setter, "setter")));
+    return this;
+  }
+
+  /**
+   * Registers a cache which can be resized at runtime.
+   *
+   * @param name the name of the cache
+   * @param resizer the function which applies a new maximum size
+   * @return a reference to this object
+   */
+  public HookManagement addCache(String name, IntConsumer resizer) {
+    caches.put(name, Objects.requireNonNull(resizer, "resizer"));
+    return this;
+  }
+
+  /**
+   * Registers a function which discards the entries related to a user.
+   *
+   * @param invalidator the function which receives the username to invalidate
+   * @return a reference to this object
+   */
+  public HookManagement addUserInvalidator(Consumer<String> invalidator) {
+    userInvalidators.add(Objects.requireNonNull(invalidator, "invalidator"));
+    return this;
+  }
+
+  @Override
+  public long getActiveSessions() {
+    return resources.getSessionCount();
+  }
+
+  @Override
+  public long getActiveConnections() {
+    return resources.getTotalUsage().getConnections();
+  }
+
+  @Override
+  public long getActiveSubscriptions() {
+    return resources.getTotalUsage().getSubscriptions();
+  }
+
+  @Override
+  public String[] getLimitNames() {
+    return limits.keySet().stream().sorted().toArray(String[]::new);
+  }
+
+  @Override
+  public String[] getCacheNames() {
+    return caches.keySet().stream().sorted().toArray(String[]::new);
+  }
+
+  @Override
+  public long getLimit(String name) {
+    return limit(name).getter.getAsLong();
+  }
+
+  @Override
+  public void setLimit(String name, long value) {
+    limit(name).setter.accept(value);
+  }
+
+  @Override
+  public void resizeCache(String name, int maxSize) {
+    IntConsumer resizer = caches.get(name);
+    if (resizer == null) {
+      throw new IllegalArgumentException("Unknown cache: " + name);
+    }
+    resizer.accept(maxSize);
+  }
+
+  @Override
+  public void invalidateUser(String user) {
+    for (Consumer<String> invalidator : userInvalidators) {
+      invalidator.accept(user);
+    }
+  }
+
+  @Override
+  public void resetStatistics() {
+    for (CallbackStats stats : callbackStats) {
+      stats.reset();
+    }
+  }
+
+  private Limit limit(String name) {
+    Limit limit = limits.get(name);
+    if (limit == null) {
+      throw new IllegalArgumentException("Unknown limit: " + name);
+    }
+    return limit;
+  }
+
+  private static final class Limit {
+
+    final LongSupplier getter;
+
+    final LongConsumer setter;
+
+    Limit(LongSupplier getter, LongConsumer setter) {
+      this.getter = getter;
+      this.setter = setter;
+    }
+  }
+
+}
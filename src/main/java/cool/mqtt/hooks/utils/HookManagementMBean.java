@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * Management interface of a Hook, as exposed through JMX by a {@link MonitoredCoolHook}.
+ */
+public interface HookManagementMBean {
+
+  /**
+   * Gets the number of sessions currently open.
+   *
+   * @return the number of active sessions
+   */
+  long getActiveSessions();
+
+  /**
+   * Gets the number of MQTT broker connections currently authorized.
+   *
+   * @return the number of active connections
+   */
+  long getActiveConnections();
+
+  /**
+   * Gets the number of subscriptions currently authorized.
+   *
+   * @return the number of active subscriptions
+   */
+  long getActiveSubscriptions();
+
+  /**
+   * Gets the names of the limits which can be changed at runtime.
+   *
+   * @return the names of the registered limits
+   */
+  String[] getLimitNames();
+
+  /**
+   * Gets the names of the caches which can be resized at runtime.
+   *
+   * @return the names of the registered caches
+   */
+  String[] getCacheNames();
+
+  /**
+   * Gets the current value of the specified limit.
+   *
+   * @param name the name of the limit
+   * @return the current value
+   * @throws IllegalArgumentException if no limit has been registered with the specified name
+   */
+  long getLimit(String name);
+
+  /**
+   * Changes the value of the specified limit.
+   *
+   * @param name the name of the limit
+   * @param value the new value
+   * @throws IllegalArgumentException if no limit has been registered with the specified name
+   */
+  void setLimit(String name, long value);
+
+  /**
+   * Changes the maximum size of the specified cache.
+   *
+   * @param name the name of the cache
+   * @param maxSize the new maximum size
+   * @throws IllegalArgumentException if no cache has been registered with the specified name
+   */
+  void resizeCache(String name, int maxSize);
+
+  /**
+   * Discards all the entries related to the specified user from the registered caches.
+   *
+   * @param user the username
+   */
+  void invalidateUser(String user);
+
+  /**
+   * Resets the statistics of all the callbacks.
+   */
+  void resetStatistics();
+
+}
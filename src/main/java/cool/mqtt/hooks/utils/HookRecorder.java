@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.utils.RecordedCall.RecordedMessage;
+import cool.mqtt.hooks.utils.RecordedCall.RecordedOptions;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A Hook decorator which records the arguments, the timing and the outcome of every call (except
+ * {@code init}) to the delegate Hook, in a compact binary format which can be fed back into any
+ * Hook through a {@link HookReplayer}, to benchmark it against the recorded traffic.
+ *
+ * <p>Sensitive fields are never written in clear, but replaced by a keyed hash
+ * ({@code HmacSHA256}, truncated to 64 bits), whose key is randomly generated for each recording
+ * and never written: the same value is therefore always replaced by the same hash within a
+ * recording, but the hash can not be reversed. The following fields are hashed:
+ * <ul>
+ * <li>the passwords supplied to {@code canOpenSession} and {@code canConnect};</li>
+ * <li>the values of the client context supplied to {@code canOpenSession}, of which only the
+ * entries with a string value are recorded;</li>
+ * <li>the Application Messages, of which only the length and the hash of the first
+ * {@value #HASHED_PAYLOAD_PREFIX} bytes are recorded;</li>
+ * <li>the usernames and the client principals, if requested.</li>
+ * </ul>
+ *
+ * <p>Hashing only a bounded prefix keeps the cost of recording a publish constant, whatever the
+ * size of the payload: a single HMAC-SHA256 over at most {@value #HASHED_PAYLOAD_PREFIX} bytes,
+ * besides the copy of the payload which {@link MqttMessage#getApplicationMessage()} may make.
+ * Payloads which share their length and their prefix are therefore replayed with the same bytes.
+ *
+ * <p>When a call completes, the calling thread only hashes its sensitive fields and queues it, and
+ * a dedicated writer thread encodes the queued calls into a buffered stream, so that the delegate
+ * is never slowed down by the I/O of the recording. If the queue is full, because the stream does
+ * not keep up, the call is dropped from the recording and counted (see
+ * {@link #getDroppedCalls()}). If writing fails, the recording stops, but calls keep being
+ * forwarded to the delegate.
+ */
+public class HookRecorder extends ForwardingCoolHook implements Closeable {
+
+  /**
+   * The default maximum number of calls waiting to be written.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1 << 14;
+
+  /**
+   * The number of leading bytes of the Application Messages which are hashed.
+   */
+  public static final int HASHED_PAYLOAD_PREFIX = 256;
+
+  private static final RecordedCall END_OF_RECORDING = new RecordedCall();
+
+  private final RecordedCall.Encoder encoder;
+
+  private final DataOutputStream out;
+
+  private final boolean hashIdentities;
+
+  private final ThreadLocal<Mac> macs;
+
+  private final long startNanos = System.nanoTime();
+
+  private final LongAdder recordedCalls = new LongAdder();
+
+  private final LongAdder droppedCalls = new LongAdder();
+
+  private final BlockingQueue<RecordedCall> queue;
+
+  private final Thread writer;
+
+  private volatile boolean closed;
+
+  private volatile IOException failure;
+
+  /**
+   * Creates a {@code HookRecorder} which records the calls to the specified Hook on the provided
+   * stream, with a queue of {@link #DEFAULT_QUEUE_CAPACITY} calls.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param stream the stream to write the recording to, which is closed by {@link #close()}
+   * @param hashIdentities whether the usernames and the client principals must be hashed too
+   * @throws IOException if the header of the recording can not be written
+   */
+  public HookRecorder(MQTTCoolHook delegate, OutputStream stream, boolean hashIdentities)
+      throws IOException {
+
+    this(delegate, stream, hashIdentities, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a {@code HookRecorder} which records the calls to the specified Hook on the provided
+   * stream.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param stream the stream to write the recording to, which is closed by {@link #close()}
+   * @param hashIdentities whether the usernames and the client principals must be hashed too
+   * @param queueCapacity the maximum number of calls waiting to be written
+   * @throws IOException if the header of the recording can not be written
+   * @throws IllegalArgumentException if {@code queueCapacity} is not a positive integer
+   */
+  public HookRecorder(MQTTCoolHook delegate, OutputStream stream, boolean hashIdentities,
+      int queueCapacity) throws IOException {
+
+    super(delegate);
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Invalid queue capacity");
+    }
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    this.encoder = new RecordedCall.Encoder(out);
+    this.hashIdentities = hashIdentities;
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    SecretKeySpec keySpec = new SecretKeySpec(key, "HmacSHA256");
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(keySpec);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    out.writeInt(RecordedCall.MAGIC);
+    out.writeByte(RecordedCall.VERSION);
+
+    this.writer = new Thread(this::write, "mqtt-cool-hook-recorder");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    RecordedCall call = start(RecordedCall.RESOLVE_ALIAS);
+    call.target = connectionAlias;
+    try {
+      MqttBrokerConfig config = delegate().resolveAlias(connectionAlias);
+      call.outcome = config != null ? RecordedCall.RESOLVED : RecordedCall.NOT_RESOLVED;
+      return config;
+    } catch (HookException | RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    RecordedCall call = start(RecordedCall.CAN_OPEN_SESSION);
+    call.sessionId = sessionId;
+    call.user = hashIdentities ? hash(user) : user;
+    call.password = hash(password);
+    call.clientPrincipal = hashIdentities ? hash(clientPrincipal) : clientPrincipal;
+    call.clientContext = hashContext(clientContext);
+    try {
+      boolean authorized =
+          delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+      call.outcome = RecordedCall.decision(authorized);
+      return authorized;
+    } catch (HookException | RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    RecordedCall call = start(RecordedCall.ON_SESSION_CLOSE);
+    call.sessionId = sessionId;
+    call.outcome = RecordedCall.NOTIFIED;
+    try {
+      delegate().onSessionClose(sessionId);
+    } catch (RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    RecordedCall call = start(RecordedCall.CAN_CONNECT, sessionId, clientId, brokerAddress);
+    RecordedOptions options = new RecordedOptions();
+    if (connectOptions != null) {
+      String username = connectOptions.getUsername();
+      options.username = hashIdentities ? hash(username) : username;
+      options.password = hash(connectOptions.getPassword());
+      options.connectionTimeout = connectOptions.getConnectionTimeout();
+      options.keepAlive = connectOptions.getKeepAlive();
+      options.cleanSession = connectOptions.isCleanSession();
+      MqttMessage willMessage = connectOptions.getWillMessage();
+      options.willMessage = willMessage != null ? recordMessage(willMessage) : null;
+    }
+    call.options = options;
+    try {
+      boolean authorized =
+          delegate().canConnect(sessionId, clientId, brokerAddress, connectOptions);
+      call.outcome = RecordedCall.decision(authorized);
+      return authorized;
+    } catch (HookException | RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    RecordedCall call = start(RecordedCall.ON_DISCONNECTION, sessionId, clientId, brokerAddress);
+    call.outcome = RecordedCall.NOTIFIED;
+    try {
+      delegate().onDisconnection(sessionId, clientId, brokerAddress);
+    } catch (RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    RecordedCall call = start(RecordedCall.CAN_PUBLISH, sessionId, clientId, brokerAddress);
+    RecordedMessage recorded = recordMessage(message);
+    call.target = recorded.topicName;
+    call.qos = recorded.qos;
+    call.retained = recorded.retained;
+    call.duplicate = recorded.duplicate;
+    call.payloadLength = recorded.payloadLength;
+    call.payloadHash = recorded.payloadHash;
+    try {
+      boolean authorized = delegate().canPublish(sessionId, clientId, brokerAddress, message);
+      call.outcome = RecordedCall.decision(authorized);
+      return authorized;
+    } catch (HookException | RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    RecordedCall call = start(RecordedCall.CAN_SUBSCRIBE, sessionId, clientId, brokerAddress);
+    call.target = subscription.getTopicFilter();
+    call.qos = subscription.getQos();
+    try {
+      boolean authorized =
+          delegate().canSubscribe(sessionId, clientId, brokerAddress, subscription);
+      call.outcome = RecordedCall.decision(authorized);
+      return authorized;
+    } catch (HookException | RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the call.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    RecordedCall call = start(RecordedCall.ON_UNSUBSCRIBE, sessionId, clientId, brokerAddress);
+    call.target = topicFilter;
+    call.outcome = RecordedCall.NOTIFIED;
+    try {
+      delegate().onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+    } catch (RuntimeException e) {
+      failed(call, e);
+      throw e;
+    } finally {
+      record(call);
+    }
+  }
+
+  /**
+   * Gets the number of calls written to the recording so far, not including the ones still
+   * queued.
+   *
+   * @return the number of recorded calls
+   */
+  public long getRecordedCalls() {
+    return recordedCalls.sum();
+  }
+
+  /**
+   * Gets the number of calls dropped from the recording so far, because the queue of the calls
+   * waiting to be written was full.
+   *
+   * @return the number of dropped calls
+   */
+  public long getDroppedCalls() {
+    return droppedCalls.sum();
+  }
+
+  /**
+   * Gets the error which stopped the recording, if any.
+   *
+   * @return the error, or {@code null} if the recording is still going on
+   */
+  public IOException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Stops the recording, waits for the queued calls to be written, then flushes and closes the
+   * stream.
+   *
+   * @throws IOException if the stream can not be flushed or closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        queue.put(END_OF_RECORDING);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    while (writer.isAlive()) {
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (failure == null) {
+      failure = new IOException("Recording closed");
+    }
+    out.close();
+  }
+
+  private RecordedCall start(byte callback) {
+    RecordedCall call = new RecordedCall();
+    call.callback = callback;
+    call.arrivalNanos = System.nanoTime() - startNanos;
+    return call;
+  }
+
+  private RecordedCall start(byte callback, String sessionId, String clientId,
+      String brokerAddress) {
+
+    RecordedCall call = start(callback);
+    call.sessionId = sessionId;
+    call.clientId = clientId;
+    call.brokerAddress = brokerAddress;
+    return call;
+  }
+
+  private static void failed(RecordedCall call, Exception e) {
+    if (e instanceof HookException) {
+      call.outcome = RecordedCall.HOOK_EXCEPTION;
+      call.errorCode = ((HookException) e).getCode();
+    } else {
+      call.outcome = RecordedCall.RUNTIME_EXCEPTION;
+    }
+  }
+
+  private void record(RecordedCall call) {
+    call.durationNanos = System.nanoTime() - startNanos - call.arrivalNanos;
+    if (closed || failure != null) {
+      return;
+    }
+    if (!queue.offer(call)) {
+      droppedCalls.increment();
+    }
+  }
+
+  /**
+   * Writes the queued calls, until the end of the recording; run by the writer thread, which is the
+   * only one to touch the encoder and the stream before {@link #close()}.
+   */
+  private void write() {
+    long previousArrivalNanos = 0;
+    for (;;) {
+      RecordedCall call;
+      try {
+        call = queue.take();
+      } catch (InterruptedException e) {
+        // Only close() stops the writer.
+        continue;
+      }
+      if (call == END_OF_RECORDING) {
+        return;
+      }
+      if (failure != null) {
+        // Keep draining the queue, so that close() is never blocked.
+        continue;
+      }
+      try {
+        call.write(encoder, previousArrivalNanos);
+        previousArrivalNanos = call.arrivalNanos;
+        recordedCalls.increment();
+      } catch (IOException | RuntimeException e) {
+        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+      }
+    }
+  }
+
+  private RecordedMessage recordMessage(MqttMessage message) {
+    byte[] payload = message.getApplicationMessage();
+    long payloadHash = 0;
+    if (payload != null) {
+      Mac mac = macs.get();
+      mac.update(payload, 0, Math.min(payload.length, HASHED_PAYLOAD_PREFIX));
+      payloadHash = ByteBuffer.wrap(mac.doFinal()).getLong();
+    }
+    return new RecordedMessage(message.getTopicName(), message.getQos(), message.isRetained(),
+        message.isDuplicate(), payload != null ? payload.length : -1, payloadHash);
+  }
+
+  private Map<String, String> hashContext(Map<?, ?> clientContext) {
+    if (clientContext == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> hashed = new LinkedHashMap<>();
+    for (Map.Entry<?, ?> entry : clientContext.entrySet()) {
+      if (entry.getKey() instanceof String && entry.getValue() instanceof String) {
+        hashed.put((String) entry.getKey(), hash((String) entry.getValue()));
+      }
+    }
+    return hashed;
+  }
+
+  private String hash(String value) {
+    if (value == null) {
+      return null;
+    }
+    byte[] digest = macs.get().doFinal(value.getBytes(StandardCharsets.UTF_8));
+    return String.format("#%016x", ByteBuffer.wrap(digest).getLong());
+  }
+
+}
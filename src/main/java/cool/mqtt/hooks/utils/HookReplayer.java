@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recording made by a {@link HookRecorder} against any Hook, either at the original pace
+ * or faster, and reports the throughput and the latency of the Hook along with the calls whose
+ * outcome differs from the recorded one.
+ *
+ * <p>Calls are dispatched in arrival order to a {@link SessionOrderedExecutor}, so that the calls
+ * of the same session (or for the same connection alias) are replayed in the recorded order,
+ * whereas the others are replayed concurrently, as they were originally. The Hook must have been
+ * initialized by the caller, since {@code init} is not recorded.
+ *
+ * <p>Hashed fields are replayed as hashes: a Hook which checks the credentials will therefore
+ * refuse the recorded sessions, unless it is set up to accept the hashes.
+ */
+public final class HookReplayer {
+
+  private static final int QUEUE_CAPACITY = 1 << 12;
+
+  private final List<RecordedCall> calls;
+
+  private HookReplayer(List<RecordedCall> calls) {
+    this.calls = calls;
+  }
+
+  /**
+   * Reads a recording, which is entirely loaded in memory.
+   *
+   * @param stream the stream to read the recording from, which is not closed by this method
+   * @return a {@code HookReplayer} of the recording
+   * @throws IOException if an I/O error occurs or the recording is malformed
+   */
+  public static HookReplayer read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+    if (in.readInt() != RecordedCall.MAGIC) {
+      throw new IOException("Not a Hook recording");
+    }
+    int version = in.readUnsignedByte();
+    if (version != RecordedCall.VERSION) {
+      throw new IOException("Unsupported recording version " + version);
+    }
+
+    RecordedCall.Decoder decoder = new RecordedCall.Decoder(in);
+    List<RecordedCall> calls = new ArrayList<>();
+    long previousArrivalNanos = 0;
+    for (;;) {
+      int callback = in.read();
+      if (callback < 0) {
+        break;
+      }
+      try {
+        RecordedCall call = RecordedCall.read(decoder, (byte) callback, previousArrivalNanos);
+        previousArrivalNanos = call.arrivalNanos;
+        calls.add(call);
+      } catch (EOFException e) {
+        // The recording has been truncated, for example by a crash: keep the complete calls.
+        break;
+      }
+    }
+
+    // Calls are recorded on completion: restore the arrival order.
+    calls.sort(Comparator.comparingLong(call -> call.arrivalNanos));
+    return new HookReplayer(Collections.unmodifiableList(calls));
+  }
+
+  /**
+   * Gets the number of recorded calls.
+   *
+   * @return the number of calls
+   */
+  public int getCalls() {
+    return calls.size();
+  }
+
+  /**
+   * Gets the time between the arrival of the first and of the last recorded calls.
+   *
+   * @param unit the time unit of the returned value
+   * @return the recorded time span
+   */
+  public long getRecordedSpan(TimeUnit unit) {
+    if (calls.isEmpty()) {
+      return 0;
+    }
+    long span = calls.get(calls.size() - 1).arrivalNanos - calls.get(0).arrivalNanos;
+    return unit.convert(span, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Replays the recording against the specified Hook.
+   *
+   * @param hook the Hook to replay the recording against
+   * @param threads the number of threads which invoke the Hook concurrently
+   * @param speedup the factor by which the recorded pace is accelerated: {@code 1} replays the
+   *        calls at the original pace, whereas {@code Double.POSITIVE_INFINITY} replays them as
+   *        fast as the Hook allows
+   * @return the report of the replay
+   * @throws InterruptedException if the current thread is interrupted while pacing the calls
+   * @throws IllegalArgumentException if {@code threads} is not a positive integer, or
+   *         {@code speedup} is not positive
+   */
+  public ReplayReport replay(MQTTCoolHook hook, int threads, double speedup)
+      throws InterruptedException {
+
+    if (!(speedup > 0)) {
+      throw new IllegalArgumentException("Invalid speedup");
+    }
+
+    LatencyHistogram latencies = new LatencyHistogram();
+    LatencyHistogram recordedLatencies = new LatencyHistogram();
+    LongAdder mismatches = new LongAdder();
+    LongAdder errors = new LongAdder();
+    long firstArrivalNanos = calls.isEmpty() ? 0 : calls.get(0).arrivalNanos;
+
+    long start = System.nanoTime();
+    try (SessionOrderedExecutor executor = new SessionOrderedExecutor(threads, QUEUE_CAPACITY)) {
+      for (RecordedCall call : calls) {
+        recordedLatencies.record(call.durationNanos);
+        if (!Double.isInfinite(speedup)) {
+          long due = start + (long) ((call.arrivalNanos - firstArrivalNanos) / speedup);
+          long delay;
+          while ((delay = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+            if (Thread.interrupted()) {
+              throw new InterruptedException();
+            }
+          }
+        }
+
+        Runnable task = () -> {
+          RecordedCall.Invocation invocation = call.prepare();
+          long callStart = System.nanoTime();
+          byte outcome;
+          int errorCode = 0;
+          try {
+            outcome = invocation.invoke(hook);
+          } catch (HookException e) {
+            outcome = RecordedCall.HOOK_EXCEPTION;
+            errorCode = e.getCode();
+          } catch (RuntimeException e) {
+            outcome = RecordedCall.RUNTIME_EXCEPTION;
+            errors.increment();
+          }
+          latencies.record(System.nanoTime() - callStart);
+          if (outcome != call.outcome || errorCode != call.errorCode) {
+            mismatches.increment();
+          }
+        };
+        String key = call.orderingKey() != null ? call.orderingKey() : "";
+        while (!tryExecute(executor, key, task)) {
+          // The Hook does not keep up: wait for the workers to catch up.
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+      }
+    }
+    return new ReplayReport(calls.size(), System.nanoTime() - start, latencies,
+        recordedLatencies, mismatches.sum(), errors.sum());
+  }
+
+  private static boolean tryExecute(SessionOrderedExecutor executor, String key, Runnable task) {
+    try {
+      executor.execute(key, task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser, which maps objects to {@code Map}, arrays to {@code List}, strings to
+ * {@code String}, integral numbers to {@code Long}, other numbers to {@code Double}, booleans to
+ * {@code Boolean} and {@code null} to {@code null}. Maps and lists are unmodifiable.
+ *
+ * <p>As the parsed text may come from untrusted clients, both its length and the nesting depth of
+ * objects and arrays are bounded, so that parsing can neither exhaust the stack nor take an
+ * unbounded time.
+ */
+final class Json {
+
+  private final String text;
+
+  private final int maxDepth;
+
+  private int position;
+
+  private int depth;
+
+  private Json(String text, int maxDepth) {
+    this.text = text;
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Parses the specified text, which must contain exactly one JSON value.
+   *
+   * @throws ParseException if the text is not valid JSON, it is longer than {@code maxLength}, or
+   *         objects and arrays are nested deeper than {@code maxDepth}
+   */
+  static Object parse(String text, int maxLength, int maxDepth) throws ParseException {
+    if (text.length() > maxLength) {
+      throw new ParseException("JSON text too long", maxLength);
+    }
+    Json json = new Json(text, maxDepth);
+    Object value = json.readValue();
+    json.skipWhitespace();
+    if (json.position != text.length()) {
+      throw json.error();
+    }
+    return value;
+  }
+
+  private Object readValue() throws ParseException {
+    skipWhitespace();
+    if (position >= text.length()) {
+      throw error();
+    }
+
+    char c = text.charAt(position);
+    switch (c) {
+      case '{':
+        return readObject();
+
+      case '[':
+        return readArray();
+
+      case '"':
+        return readString();
+
+      case 't':
+        return readLiteral("true", Boolean.TRUE);
+
+      case 'f':
+        return readLiteral("false", Boolean.FALSE);
+
+      case 'n':
+        return readLiteral("null", null);
+
+      default:
+        return readNumber();
+    }
+  }
+
+  private Map<String, Object> readObject() throws ParseException {
+    enter();
+    Map<String, Object> object = new LinkedHashMap<>();
+    position++;
+    skipWhitespace();
+    if (peek() == '}') {
+      position++;
+      depth--;
+      return Collections.unmodifiableMap(object);
+    }
+
+    for (;;) {
+      skipWhitespace();
+      if (peek() != '"') {
+        throw error();
+      }
+      String name = readString();
+      skipWhitespace();
+      expect(':');
+      object.put(name, readValue());
+      skipWhitespace();
+      char c = next();
+      if (c == '}') {
+        depth--;
+        return Collections.unmodifiableMap(object);
+      }
+      if (c != ',') {
+        throw error();
+      }
+    }
+  }
+
+  private List<Object> readArray() throws ParseException {
+    enter();
+    List<Object> array = new ArrayList<>();
+    position++;
+    skipWhitespace();
+    if (peek() == ']') {
+      position++;
+      depth--;
+      return Collections.unmodifiableList(array);
+    }
+
+    for (;;) {
+      array.add(readValue());
+      skipWhitespace();
+      char c = next();
+      if (c == ']') {
+        depth--;
+        return Collections.unmodifiableList(array);
+      }
+      if (c != ',') {
+        throw error();
+      }
+    }
+  }
+
+  private void enter() throws ParseException {
+    if (++depth > maxDepth) {
+      throw new ParseException("JSON nesting too deep", position);
+    }
+  }
+
+  private String readString() throws ParseException {
+    position++;
+    StringBuilder builder = null;
+    int start = position;
+    for (;;) {
+      char c = next();
+      if (c == '"') {
+        if (builder == null) {
+          return text.substring(start, position - 1);
+        }
+        return builder.toString();
+      }
+
+      if (c == '\\') {
+        if (builder == null) {
+          builder = new StringBuilder(text.substring(start, position - 1));
+        }
+        builder.append(readEscape());
+      } else if (c < 0x20) {
+        throw error();
+      } else if (builder != null) {
+        builder.append(c);
+      }
+    }
+  }
+
+  private char readEscape() throws ParseException {
+    char c = next();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+
+      case 'b':
+        return '\b';
+
+      case 'f':
+        return '\f';
+
+      case 'n':
+        return '\n';
+
+      case 'r':
+        return '\r';
+
+      case 't':
+        return '\t';
+
+      case 'u':
+        if (position + 4 > text.length()) {
+          throw error();
+        }
+        try {
+          char unicode = (char) Integer.parseInt(text.substring(position, position + 4), 16);
+          position += 4;
+          return unicode;
+        } catch (NumberFormatException e) {
+          throw error();
+        }
+
+      default:
+        throw error();
+    }
+  }
+
+  private Object readNumber() throws ParseException {
+    int start = position;
+    boolean integral = true;
+    while (position < text.length()) {
+      char c = text.charAt(position);
+      if (c == '.' || c == 'e' || c == 'E') {
+        integral = false;
+      } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+        break;
+      }
+      position++;
+    }
+
+    String number = text.substring(start, position);
+    try {
+      if (integral) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error();
+    }
+  }
+
+  private Object readLiteral(String literal, Object value) throws ParseException {
+    if (!text.startsWith(literal, position)) {
+      throw error();
+    }
+    position += literal.length();
+    return value;
+  }
+
+  private void skipWhitespace() {
+    while (position < text.length()) {
+      char c = text.charAt(position);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  private void expect(char expected) throws ParseException {
+    if (next() != expected) {
+      throw error();
+    }
+  }
+
+  private char peek() throws ParseException {
+    if (position >= text.length()) {
+      throw error();
+    }
+    return text.charAt(position);
+  }
+
+  private char next() throws ParseException {
+    char c = peek();
+    position++;
+    return c;
+  }
+
+  private ParseException error() {
+    return new ParseException("Invalid JSON at position " + position, position);
+  }
+
+}
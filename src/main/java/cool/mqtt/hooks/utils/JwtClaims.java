@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable set of claims carried by a JSON Web Token verified through a {@link JwtVerifier}.
+ */
+public final class JwtClaims {
+
+  private final Map<String, Object> claims;
+
+  JwtClaims(Map<String, Object> claims) {
+    this.claims = Collections.unmodifiableMap(claims);
+  }
+
+  /**
+   * Gets the {@code sub} (subject) claim.
+   *
+   * @return the subject, or {@code null} if not present
+   */
+  public String getSubject() {
+    return getString("sub");
+  }
+
+  /**
+   * Gets the {@code iss} (issuer) claim.
+   *
+   * @return the issuer, or {@code null} if not present
+   */
+  public String getIssuer() {
+    return getString("iss");
+  }
+
+  /**
+   * Gets the {@code exp} (expiration time) claim.
+   *
+   * @return the expiration time expressed in seconds since the epoch, or {@code null} if not
+   *         present
+   */
+  public Long getExpiration() {
+    return getLong("exp");
+  }
+
+  /**
+   * Gets the {@code nbf} (not before) claim.
+   *
+   * @return the time before which the token must not be accepted, expressed in seconds since the
+   *         epoch, or {@code null} if not present
+   */
+  public Long getNotBefore() {
+    return getLong("nbf");
+  }
+
+  /**
+   * Gets the value of the specified claim.
+   *
+   * @param name the name of the claim
+   * @return the value, as mapped by the JSON parser ({@code Map}, {@code List}, {@code String},
+   *         {@code Long}, {@code Double} or {@code Boolean}), or {@code null} if not present
+   */
+  public Object get(String name) {
+    return claims.get(name);
+  }
+
+  /**
+   * Gets the value of the specified string claim.
+   *
+   * @param name the name of the claim
+   * @return the value, or {@code null} if not present or not a string
+   */
+  public String getString(String name) {
+    Object value = claims.get(name);
+    return value instanceof String ? (String) value : null;
+  }
+
+  /**
+   * Gets the value of the specified numeric claim.
+   *
+   * @param name the name of the claim
+   * @return the value, or {@code null} if not present or not an integral number
+   */
+  public Long getLong(String name) {
+    Object value = claims.get(name);
+    return value instanceof Long ? (Long) value : null;
+  }
+
+  /**
+   * Gets the values of the specified claim, which can be either an array of strings or a single
+   * string containing space-separated values (as for the {@code scope} claim).
+   *
+   * @param name the name of the claim
+   * @return the list of values, empty if the claim is not present
+   */
+  public List<String> getStringList(String name) {
+    Object value = claims.get(name);
+    List<String> values = new ArrayList<>();
+    if (value instanceof List) {
+      for (Object element : (List<?>) value) {
+        if (element instanceof String) {
+          values.add((String) element);
+        }
+      }
+    } else if (value instanceof String) {
+      for (String element : ((String) value).split(" ")) {
+        if (!element.isEmpty()) {
+          values.add(element);
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Compiles the topic filters carried by the specified claims into a {@code TopicPermissions}
+   * instance.
+   *
+   * @param publishClaim the name of the claim listing the topic filters allowed for publishing
+   * @param subscribeClaim the name of the claim listing the topic filters allowed for subscribing
+   * @return the compiled permissions
+   * @throws IllegalArgumentException if any of the listed values is not a valid topic filter
+   * @see #getStringList(String)
+   */
+  public TopicPermissions toTopicPermissions(String publishClaim, String subscribeClaim) {
+    TopicPermissions.Builder builder = new TopicPermissions.Builder();
+    for (String topicFilter : getStringList(publishClaim)) {
+      builder.allowPublish(topicFilter);
+    }
+    for (String topicFilter : getStringList(subscribeClaim)) {
+      builder.allowSubscribe(topicFilter);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Gets all the claims.
+   *
+   * @return the unmodifiable map of the claims, keyed by name
+   */
+  public Map<String, Object> asMap() {
+    return claims;
+  }
+
+  @Override
+  public String toString() {
+    return "JwtClaims " + claims;
+  }
+
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Helper class to verify JSON Web Tokens (for example, supplied by clients as the {@code password}
+ * argument of {@link cool.mqtt.hooks.MQTTCoolHook#canOpenSession(String, String, String,
+ * java.util.Map, String)}) locally, without contacting the identity provider.
+ *
+ * <p>Tokens must be signed according to one of the {@code HS256}, {@code RS256} or {@code ES256}
+ * algorithms, with a key previously registered on this verifier, possibly through
+ * {@link #loadKeys(File)} from {@link cool.mqtt.hooks.MQTTCoolHook#init(File)}. The {@code kid}
+ * header, if present, selects the key; otherwise, all the keys suitable for the algorithm are
+ * tried. The {@code exp} and {@code nbf} claims are enforced.
+ *
+ * <p>Verified tokens are cached, keyed by their SHA-256 digest, until they expire, so that
+ * presenting the same token again costs a digest computation and a lookup only. Tokens without an
+ * {@code exp} claim are verified every time.
+ *
+ * <p>As tokens are supplied by clients not yet authenticated, the payload is decoded only after the
+ * signature has been verified, and both the length of a token and the nesting depth of its JSON
+ * content are bounded: tokens exceeding the limits are rejected.
+ *
+ * <p>This class is thread safe.
+ */
+public class JwtVerifier {
+
+  /**
+   * The maximum length of a token, in characters.
+   */
+  static final int MAX_TOKEN_LENGTH = 16 * 1024;
+
+  /**
+   * The maximum length of the encoded header of a token, in characters.
+   */
+  static final int MAX_HEADER_LENGTH = 1024;
+
+  /**
+   * The maximum nesting depth of the objects and arrays of the header and of the payload.
+   */
+  static final int MAX_JSON_DEPTH = 16;
+
+  private static final ThreadLocal<MessageDigest> SHA_256 =
+      ThreadLocal.withInitial(() -> newInstance(() -> MessageDigest.getInstance("SHA-256")));
+
+  private static final ThreadLocal<Mac> HMAC_SHA_256 =
+      ThreadLocal.withInitial(() -> newInstance(() -> Mac.getInstance("HmacSHA256")));
+
+  private static final ThreadLocal<Signature> SHA_256_WITH_RSA =
+      ThreadLocal.withInitial(() -> newInstance(() -> Signature.getInstance("SHA256withRSA")));
+
+  private static final ThreadLocal<Signature> SHA_256_WITH_ECDSA =
+      ThreadLocal.withInitial(() -> newInstance(() -> Signature.getInstance("SHA256withECDSA")));
+
+  private final ConcurrentMap<String, SecretKeySpec> hmacKeys = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, RSAPublicKey> rsaKeys = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, ECPublicKey> ecKeys = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<ByteBuffer, CachedClaims> cache = new ConcurrentHashMap<>();
+
+  private volatile int maxCachedTokens;
+
+  private final long leewaySeconds;
+
+  private final LongSupplier clock;
+
+  private final LongAdder cacheHits = new LongAdder();
+
+  private final LongAdder verifiedTokens = new LongAdder();
+
+  private final LongAdder rejectedTokens = new LongAdder();
+
+  /**
+   * Creates a {@code JwtVerifier} without any registered key.
+   *
+   * @param maxCachedTokens the maximum number of verified tokens kept in the cache
+   * @param leeway the clock skew tolerated while checking the {@code exp} and {@code nbf} claims
+   * @param unit the time unit of {@code leeway}
+   */
+  public JwtVerifier(int maxCachedTokens, long leeway, TimeUnit unit) {
+    this(maxCachedTokens, leeway, unit, System::currentTimeMillis);
+  }
+
+  JwtVerifier(int maxCachedTokens, long leeway, TimeUnit unit, LongSupplier clock) {
+    this.maxCachedTokens = maxCachedTokens;
+    this.leewaySeconds = unit.toSeconds(leeway);
+    this.clock = clock;
+  }
+
+  /**
+   * Registers a secret key for the {@code HS256} algorithm.
+   *
+   * @param keyId the key identifier, as referenced by the {@code kid} header
+   * @param secret the shared secret
+   * @return a reference to this object
+   */
+  public JwtVerifier addHmacKey(String keyId, byte[] secret) {
+    hmacKeys.put(keyId, new SecretKeySpec(secret.clone(), "HmacSHA256"));
+    return this;
+  }
+
+  /**
+   * Registers a public key for the {@code RS256} (RSA keys) or {@code ES256} (EC keys on the P-256
+   * curve) algorithm.
+   *
+   * @param keyId the key identifier, as referenced by the {@code kid} header
+   * @param key the public key
+   * @return a reference to this object
+   * @throws IllegalArgumentException if the key is neither an RSA nor an EC public key
+   */
+  public JwtVerifier addPublicKey(String keyId, PublicKey key) {
+    if (key instanceof RSAPublicKey) {
+      rsaKeys.put(keyId, (RSAPublicKey) key);
+    } else if (key instanceof ECPublicKey) {
+      ecKeys.put(keyId, (ECPublicKey) key);
+    } else {
+      throw new IllegalArgumentException("Unsupported key type: " + key.getAlgorithm());
+    }
+    return this;
+  }
+
+  /**
+   * Registers all the keys stored in the specified directory, each one identified by the name of
+   * its file without the extension:
+   * <ul>
+   * <li>{@code <kid>.pem} files must contain an RSA or EC public key, in the PEM encoded X.509
+   * {@code SubjectPublicKeyInfo} format (that is, enclosed between the
+   * {@code -----BEGIN PUBLIC KEY-----} and {@code -----END PUBLIC KEY-----} lines);</li>
+   * <li>{@code <kid>.secret} files must contain a Base64 encoded {@code HS256} secret.</li>
+   * </ul>
+   * Other files are ignored.
+   *
+   * @param directory the directory containing the key files
+   * @return a reference to this object
+   * @throws IOException if the directory or any of the key files can not be read or parsed
+   */
+  public JwtVerifier loadKeys(File directory) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list directory " + directory);
+    }
+
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(".pem")) {
+        addPublicKey(name.substring(0, name.length() - 4), readPublicKey(file));
+      } else if (name.endsWith(".secret")) {
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+        try {
+          addHmacKey(name.substring(0, name.length() - 7),
+              Base64.getMimeDecoder().decode(content.trim()));
+        } catch (IllegalArgumentException e) {
+          throw new IOException("Invalid secret in " + file, e);
+        }
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Verifies the specified token.
+   *
+   * @param token the compact serialization of the JSON Web Token
+   * @return the claims carried by the token, or {@code null} if the token is malformed, its
+   *         signature is invalid, or it is expired or not yet valid
+   */
+  public JwtClaims verify(String token) {
+    if (token == null || token.isEmpty() || token.length() > MAX_TOKEN_LENGTH) {
+      rejectedTokens.increment();
+      return null;
+    }
+
+    long now = TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong());
+    ByteBuffer digest = ByteBuffer.wrap(SHA_256.get().digest(
+        token.getBytes(StandardCharsets.US_ASCII)));
+    CachedClaims cached = cache.get(digest);
+    if (cached != null) {
+      if (now <= cached.expiration + leewaySeconds) {
+        cacheHits.increment();
+        return cached.claims;
+      }
+      cache.remove(digest, cached);
+    }
+
+    JwtClaims claims = doVerify(token, now);
+    if (claims == null) {
+      rejectedTokens.increment();
+      return null;
+    }
+
+    verifiedTokens.increment();
+    Long expiration = claims.getExpiration();
+    if (expiration != null && maxCachedTokens > 0) {
+      if (cache.size() >= maxCachedTokens) {
+        evict(now);
+      }
+      cache.put(digest, new CachedClaims(claims, expiration));
+    }
+    return claims;
+  }
+
+  /**
+   * Discards all the cached tokens, for example after a key rotation.
+   */
+  public void invalidateCache() {
+    cache.clear();
+  }
+
+  /**
+   * Changes the maximum number of verified tokens kept in the cache, for example through
+   * {@link HookManagement#resizeCache(String, int)}.
+   *
+   * <p>If the cache currently holds more tokens, it is emptied.
+   *
+   * @param maxCachedTokens the new maximum number of cached tokens; {@code 0} disables the cache
+   * @throws IllegalArgumentException if {@code maxCachedTokens} is negative
+   */
+  public void setMaxCachedTokens(int maxCachedTokens) {
+    if (maxCachedTokens < 0) {
+      throw new IllegalArgumentException("Invalid maxCachedTokens");
+    }
+    this.maxCachedTokens = maxCachedTokens;
+    if (cache.size() > maxCachedTokens) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Gets the number of tokens currently cached.
+   *
+   * @return the number of cached tokens
+   */
+  public int getCachedTokens() {
+    return cache.size();
+  }
+
+  /**
+   * Gets the number of tokens served from the cache so far.
+   *
+   * @return the number of cache hits
+   */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Gets the number of tokens whose signature has been successfully verified so far.
+   *
+   * @return the number of verified tokens
+   */
+  public long getVerifiedTokens() {
+    return verifiedTokens.sum();
+  }
+
+  /**
+   * Gets the number of tokens rejected so far.
+   *
+   * @return the number of rejected tokens
+   */
+  public long getRejectedTokens() {
+    return rejectedTokens.sum();
+  }
+
+  private JwtClaims doVerify(String token, long now) {
+    int firstDot = token.indexOf('.');
+    int secondDot = token.indexOf('.', firstDot + 1);
+    if (firstDot <= 0 || firstDot > MAX_HEADER_LENGTH || secondDot <= firstDot + 1
+        || token.indexOf('.', secondDot + 1) >= 0) {
+      return null;
+    }
+
+    Map<String, Object> header;
+    byte[] signature;
+    try {
+      header = decodeObject(token.substring(0, firstDot));
+      signature = Base64.getUrlDecoder().decode(token.substring(secondDot + 1));
+    } catch (IllegalArgumentException | ParseException e) {
+      return null;
+    }
+    if (header == null) {
+      return null;
+    }
+
+    Object alg = header.get("alg");
+    Object kid = header.get("kid");
+    byte[] signingInput = token.substring(0, secondDot).getBytes(StandardCharsets.US_ASCII);
+    boolean verified;
+    try {
+      if ("HS256".equals(alg)) {
+        verified = verifyHmac(select(hmacKeys, kid), signingInput, signature);
+      } else if ("RS256".equals(alg)) {
+        verified = verifySignature(SHA_256_WITH_RSA.get(), select(rsaKeys, kid), signingInput,
+            signature);
+      } else if ("ES256".equals(alg)) {
+        verified = signature.length == 64 && verifySignature(SHA_256_WITH_ECDSA.get(),
+            select(ecKeys, kid), signingInput, toDer(signature));
+      } else {
+        // Including "none".
+        verified = false;
+      }
+    } catch (GeneralSecurityException e) {
+      verified = false;
+    }
+    if (!verified) {
+      return null;
+    }
+
+    // Only now that the token is known to come from a trusted issuer.
+    Map<String, Object> payload;
+    try {
+      payload = decodeObject(token.substring(firstDot + 1, secondDot));
+    } catch (IllegalArgumentException | ParseException e) {
+      return null;
+    }
+    if (payload == null) {
+      return null;
+    }
+
+    JwtClaims claims = new JwtClaims(payload);
+    Long expiration;
+    Long notBefore;
+    try {
+      expiration = (Long) payload.get("exp");
+      notBefore = (Long) payload.get("nbf");
+    } catch (ClassCastException e) {
+      return null;
+    }
+    if (expiration != null && now > expiration + leewaySeconds) {
+      return null;
+    }
+    if (notBefore != null && now < notBefore - leewaySeconds) {
+      return null;
+    }
+    return claims;
+  }
+
+  private static boolean verifyHmac(Collection<SecretKeySpec> keys, byte[] signingInput,
+      byte[] signature) throws InvalidKeyException {
+
+    Mac mac = HMAC_SHA_256.get();
+    for (SecretKeySpec key : keys) {
+      mac.init(key);
+      if (MessageDigest.isEqual(mac.doFinal(signingInput), signature)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean verifySignature(Signature verifier,
+      Collection<? extends PublicKey> keys, byte[] signingInput, byte[] signature)
+      throws GeneralSecurityException {
+
+    for (PublicKey key : keys) {
+      verifier.initVerify(key);
+      verifier.update(signingInput);
+      if (verifier.verify(signature)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static <K> Collection<K> select(Map<String, K> keys, Object kid) {
+    if (kid == null) {
+      return keys.values();
+    }
+    K key = keys.get(kid);
+    return key != null ? Collections.singletonList(key) : Collections.emptyList();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> decodeObject(String part) throws ParseException {
+    Object value = Json.parse(new String(Base64.getUrlDecoder().decode(part),
+        StandardCharsets.UTF_8), MAX_TOKEN_LENGTH, MAX_JSON_DEPTH);
+    return value instanceof Map ? (Map<String, Object>) value : null;
+  }
+
+  /**
+   * Converts an {@code ES256} signature from the JWS format (the concatenation of the 32-byte
+   * {@code R} and {@code S} values) to the DER format expected by the JCA.
+   */
+  private static byte[] toDer(byte[] signature) {
+    byte[] r = toDerInteger(signature, 0);
+    byte[] s = toDerInteger(signature, 32);
+    ByteBuffer der = ByteBuffer.allocate(6 + r.length + s.length);
+    der.put((byte) 0x30).put((byte) (4 + r.length + s.length));
+    der.put((byte) 0x02).put((byte) r.length).put(r);
+    der.put((byte) 0x02).put((byte) s.length).put(s);
+    return der.array();
+  }
+
+  private static byte[] toDerInteger(byte[] signature, int offset) {
+    int start = offset;
+    while (start < offset + 31 && signature[start] == 0) {
+      start++;
+    }
+    boolean padding = (signature[start] & 0x80) != 0;
+    byte[] integer = new byte[offset + 32 - start + (padding ? 1 : 0)];
+    System.arraycopy(signature, start, integer, padding ? 1 : 0, offset + 32 - start);
+    return integer;
+  }
+
+  private static PublicKey readPublicKey(File file) throws IOException {
+    String pem = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+    int begin = pem.indexOf("-----BEGIN PUBLIC KEY-----");
+    int end = pem.indexOf("-----END PUBLIC KEY-----");
+    if (begin < 0 || end < begin) {
+      throw new IOException("Invalid PEM file " + file);
+    }
+
+    X509EncodedKeySpec spec;
+    try {
+      spec = new X509EncodedKeySpec(Base64.getMimeDecoder().decode(
+          pem.substring(begin + "-----BEGIN PUBLIC KEY-----".length(), end)));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid PEM file " + file, e);
+    }
+
+    List<GeneralSecurityException> failures = new ArrayList<>();
+    for (String algorithm : new String[] {"RSA", "EC"}) {
+      try {
+        return KeyFactory.getInstance(algorithm).generatePublic(spec);
+      } catch (GeneralSecurityException e) {
+        failures.add(e);
+      }
+    }
+    throw new IOException("Unsupported public key in " + file, failures.get(0));
+  }
+
+  private void evict(long now) {
+    cache.values().removeIf(cached -> now > cached.expiration + leewaySeconds);
+    if (cache.size() >= maxCachedTokens) {
+      // Still full of valid tokens: start over rather than tracking the access order.
+      cache.clear();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Factory<T> {
+
+    T newInstance() throws NoSuchAlgorithmException;
+  }
+
+  private static <T> T newInstance(Factory<T> factory) {
+    try {
+      return factory.newInstance();
+    } catch (NoSuchAlgorithmException e) {
+      // Available on every standard Java platform.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class CachedClaims {
+
+    final JwtClaims claims;
+
+    final long expiration;
+
+    CachedClaims(JwtClaims claims, long expiration) {
+      this.claims = claims;
+      this.expiration = expiration;
+    }
+  }
+
+}
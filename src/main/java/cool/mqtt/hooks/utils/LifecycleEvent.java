@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MQTTCoolHook;
+
+/**
+ * An immutable snapshot of a lifecycle notification received by a Hook.
+ *
+ * @see AsyncNotificationHook
+ */
+public final class LifecycleEvent {
+
+  /**
+   * The kind of lifecycle notification.
+   */
+  public enum Type {
+
+    /**
+     * A session has been closed, as notified by {@link MQTTCoolHook#onSessionClose(String)}.
+     */
+    SESSION_CLOSE,
+
+    /**
+     * A client has been disconnected from an MQTT broker, as notified by
+     * {@link MQTTCoolHook#onDisconnection(String, String, String)}.
+     */
+    DISCONNECTION,
+
+    /**
+     * A client has been unsubscribed from a topic filter, as notified by
+     * {@link MQTTCoolHook#onUnsubscribe(String, String, String, String)}.
+     */
+    UNSUBSCRIBE
+  }
+
+  private final Type type;
+
+  private final String sessionId;
+
+  private final String clientId;
+
+  private final String brokerAddress;
+
+  private final String topicFilter;
+
+  private final long timestamp;
+
+  private LifecycleEvent(Type type, String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    this.type = type;
+    this.sessionId = sessionId;
+    this.clientId = clientId;
+    this.brokerAddress = brokerAddress;
+    this.topicFilter = topicFilter;
+    this.timestamp = System.currentTimeMillis();
+  }
+
+  /**
+   * Creates an event for a session closing.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @return a new {@code LifecycleEvent} instance
+   */
+  public static LifecycleEvent sessionClose(String sessionId) {
+    return new LifecycleEvent(Type.SESSION_CLOSE, sessionId, null, null, null);
+  }
+
+  /**
+   * Creates an event for a disconnection.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker disconnected from
+   * @return a new {@code LifecycleEvent} instance
+   */
+  public static LifecycleEvent disconnection(String sessionId, String clientId,
+      String brokerAddress) {
+
+    return new LifecycleEvent(Type.DISCONNECTION, sessionId, clientId, brokerAddress, null);
+  }
+
+  /**
+   * Creates an event for an unsubscription.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param topicFilter the topic filter unsubscribed from
+   * @return a new {@code LifecycleEvent} instance
+   */
+  public static LifecycleEvent unsubscribe(String sessionId, String clientId,
+      String brokerAddress, String topicFilter) {
+
+    return new LifecycleEvent(Type.UNSUBSCRIBE, sessionId, clientId, brokerAddress, topicFilter);
+  }
+
+  /**
+   * Gets the kind of this event.
+   *
+   * @return the kind of this event
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Gets the unique identifier of the client session.
+   *
+   * @return the session identifier
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Gets the client identifier.
+   *
+   * @return the client identifier, or {@code null} for {@link Type#SESSION_CLOSE} events
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * Gets the address of the MQTT broker.
+   *
+   * @return the address of the MQTT broker, or {@code null} for {@link Type#SESSION_CLOSE} events
+   */
+  public String getBrokerAddress() {
+    return brokerAddress;
+  }
+
+  /**
+   * Gets the topic filter unsubscribed from.
+   *
+   * @return the topic filter, or {@code null} for events other than {@link Type#UNSUBSCRIBE}
+   */
+  public String getTopicFilter() {
+    return topicFilter;
+  }
+
+  /**
+   * Gets the time at which the notification has been received.
+   *
+   * @return the time of the notification, expressed in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Delivers this event to the specified Hook, by invoking the corresponding notification method.
+   *
+   * @param hook the target Hook
+   */
+  public void dispatchTo(MQTTCoolHook hook) {
+    switch (type) {
+      case SESSION_CLOSE:
+        hook.onSessionClose(sessionId);
+        break;
+
+      case DISCONNECTION:
+        hook.onDisconnection(sessionId, clientId, brokerAddress);
+        break;
+
+      case UNSUBSCRIBE:
+        hook.onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+        break;
+
+      default:
+        throw new IllegalStateException("Unexpected type: " + type);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LifecycleEvent [type=" + type + ", sessionId=" + sessionId + ", clientId=" + clientId
+        + ", brokerAddress=" + brokerAddress + ", topicFilter=" + topicFilter + "]";
+  }
+
+}
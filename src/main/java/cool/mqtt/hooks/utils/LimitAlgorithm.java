@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * Algorithm used by an {@link AdaptiveLimiter} to infer the concurrency limit of a backend from the
+ * observed latency.
+ *
+ * <p>Implementations are stateful and are not required to be thread safe, as every instance is
+ * owned by a single {@code AdaptiveLimiter}, which serializes the calls. Therefore, a new instance
+ * must be provided for each limiter.
+ */
+public interface LimitAlgorithm {
+
+  /**
+   * Gets the current concurrency limit.
+   *
+   * @return the current limit, always a positive integer
+   */
+  int getLimit();
+
+  /**
+   * Updates the limit with a new sample.
+   *
+   * @param rttNanos the duration of the completed call
+   * @param inFlight the number of calls in flight when the call started, including the call itself
+   * @param dropped whether the call failed, which is taken as a sign of overload
+   * @return the updated limit
+   */
+  int onSample(long rttNanos, int inFlight, boolean dropped);
+
+  /**
+   * Returns a new instance of the <i>Vegas</i> algorithm, which estimates the queue built up in
+   * the backend from the ratio between the minimum and the current latency, and grows the limit
+   * while the queue is small, shrinking it otherwise.
+   *
+   * @param initialLimit the initial limit
+   * @param maxLimit the maximum limit
+   * @return a new <i>Vegas</i> algorithm
+   * @throws IllegalArgumentException if {@code initialLimit} is not a positive integer, or
+   *         {@code maxLimit} is less than {@code initialLimit}
+   */
+  static LimitAlgorithm vegas(int initialLimit, int maxLimit) {
+    return new VegasLimit(initialLimit, maxLimit);
+  }
+
+  /**
+   * Returns a new instance of the <i>gradient</i> algorithm, which scales the limit by the ratio
+   * between the long-term and the current latency, so that the limit shrinks as soon as the latency
+   * rises above its usual level.
+   *
+   * @param initialLimit the initial limit
+   * @param maxLimit the maximum limit
+   * @return a new <i>gradient</i> algorithm
+   * @throws IllegalArgumentException if {@code initialLimit} is not a positive integer, or
+   *         {@code maxLimit} is less than {@code initialLimit}
+   */
+  static LimitAlgorithm gradient(int initialLimit, int maxLimit) {
+    return new GradientLimit(initialLimit, maxLimit);
+  }
+
+}
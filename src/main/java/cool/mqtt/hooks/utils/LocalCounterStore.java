@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory implementation of {@link CounterStore}, whose counters are visible only to the current
+ * MQTT&#46;Cool node.
+ *
+ * <p>Counters whose value drops to {@code 0} are removed, so that the memory footprint only depends
+ * on the number of non-zero counters.
+ */
+public class LocalCounterStore implements CounterStore {
+
+  private final ConcurrentMap<String, Long> counters = new ConcurrentHashMap<>();
+
+  @Override
+  public long get(String key) {
+    Long value = counters.get(key);
+    return value != null ? value : 0;
+  }
+
+  @Override
+  public long addAndGet(String key, long delta) {
+    Long value = counters.compute(key, (k, current) -> {
+      long updated = (current != null ? current : 0) + delta;
+      return updated != 0 ? updated : null;
+    });
+    return value != null ? value : 0;
+  }
+
+  @Override
+  public boolean tryAcquire(String key, long limit) {
+    boolean[] acquired = new boolean[1];
+    counters.compute(key, (k, current) -> {
+      long value = current != null ? current : 0;
+      if (value >= limit) {
+        return current;
+      }
+      acquired[0] = true;
+      return value + 1 != 0 ? value + 1 : null;
+    });
+    return acquired[0];
+  }
+
+  /**
+   * Gets the number of non-zero counters currently held by this store.
+   *
+   * @return the number of non-zero counters
+   */
+  public int size() {
+    return counters.size();
+  }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * An {@code MQTTCoolHook} decorator which collects live statistics about every callback and
+ * exposes them, together with a {@link HookManagement} surface, as JMX MBeans.
+ *
+ * <p>For every callback, the number of invocations, denials and errors, the rate of invocations
+ * over the last minute and the latency percentiles are tracked. The active sessions, connections
+ * and subscriptions authorized by the delegate are tracked as well, through a {@link QuotaTracker}
+ * without limits: each one is accounted once, even if authorized more than once, and is released
+ * when it ends, along with all the resources it holds (for example, the subscriptions of a
+ * connection are released upon its disconnection). Connections and subscriptions of sessions not
+ * authorized through this Hook are not tracked.
+ *
+ * <p>The MBeans are registered with the platform MBeanServer upon
+ * {@link #init(File) initialization}, under the following names:
+ *
+ * <ul>
+ * <li><code>cool.mqtt.hooks:type=HookManagement,name=&lt;name&gt;</code></li>
+ * <li><code>cool.mqtt.hooks:type=HookCallback,hook=&lt;name&gt;,name=&lt;callback&gt;</code></li>
+ * </ul>
+ *
+ * <p>This class is thread safe.
+ */
+public class MonitoredCoolHook extends ForwardingCoolHook {
+
+  /**
+   * The JMX domain under which the MBeans are registered.
+   */
+  public static final String JMX_DOMAIN = "cool.mqtt.hooks";
+
+  private final String name;
+
+  private final CallbackStats resolveAliasStats = new CallbackStats("resolveAlias");
+
+  private final CallbackStats canOpenSessionStats = new CallbackStats("canOpenSession");
+
+  private final CallbackStats onSessionCloseStats = new CallbackStats("onSessionClose");
+
+  private final CallbackStats canConnectStats = new CallbackStats("canConnect");
+
+  private final CallbackStats onDisconnectionStats = new CallbackStats("onDisconnection");
+
+  private final CallbackStats canPublishStats = new CallbackStats("canPublish");
+
+  private final CallbackStats canSubscribeStats = new CallbackStats("canSubscribe");
+
+  private final CallbackStats onUnsubscribeStats = new CallbackStats("onUnsubscribe");
+
+  private final Map<String, CallbackStats> stats;
+
+  private final HookManagement management;
+
+  private final List<ObjectName> registeredNames = new ArrayList<>();
+
+  private final QuotaTracker resources =
+      new QuotaTracker(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  /**
+   * Creates a {@code MonitoredCoolHook} which collects statistics about the specified Hook.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param name the name which identifies the Hook in the JMX object names
+   * @throws IllegalArgumentException if the specified {@code name} is either {@code null} or empty
+   */
+  public MonitoredCoolHook(MQTTCoolHook delegate, String name) {
+    super(delegate);
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Invalid name");
+    }
+    this.name = name;
+
+    Map<String, CallbackStats> map = new LinkedHashMap<>();
+    for (CallbackStats callback : new CallbackStats[] {resolveAliasStats, canOpenSessionStats,
+        onSessionCloseStats, canConnectStats, onDisconnectionStats, canPublishStats,
+        canSubscribeStats, onUnsubscribeStats}) {
+      map.put(callback.getName(), callback);
+    }
+    this.stats = Collections.unmodifiableMap(map);
+    this.management = new HookManagement(stats.values(), resources);
+  }
+
+  /**
+   * Gets the management surface of this Hook, through which tuning knobs can be registered.
+   *
+   * @return the {@code HookManagement} instance
+   */
+  public HookManagement getManagement() {
+    return management;
+  }
+
+  /**
+   * Gets the statistics collected for the specified callback.
+   *
+   * @param callback the name of the callback, as declared by {@code MQTTCoolHook} (for example,
+   *        {@code "canPublish"})
+   * @return the {@code CallbackStats} instance, or {@code null} if no such callback exists
+   */
+  public CallbackStats getStats(String callback) {
+    return stats.get(callback);
+  }
+
+  /**
+   * Registers the MBeans with the platform MBeanServer, replacing any MBean previously registered
+   * under the same names.
+   *
+   * @throws JMException if the registration fails
+   */
+  public synchronized void register() throws JMException {
+    unregister();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    String quotedName = ObjectName.quote(name);
+    register(server, new ObjectName(JMX_DOMAIN + ":type=HookManagement,name=" + quotedName),
+        management);
+    for (CallbackStats callback : stats.values()) {
+      register(server, new ObjectName(JMX_DOMAIN + ":type=HookCallback,hook=" + quotedName
+          + ",name=" + callback.getName()), callback);
+    }
+  }
+
+  /**
+   * Unregisters the MBeans previously registered by {@link #register()}.
+   */
+  public synchronized void unregister() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName objectName : registeredNames) {
+      try {
+        server.unregisterMBean(objectName);
+      } catch (JMException e) {
+        // Already unregistered by someone else.
+      }
+    }
+    registeredNames.clear();
+  }
+
+  /**
+   * This implementation registers the MBeans and then forwards to the delegate.
+   *
+   * @throws HookException if the MBeans can't be registered, or if the delegate fails
+   */
+  @Override
+  public void init(File configDir) throws HookException {
+    try {
+      register();
+    } catch (JMException e) {
+      throw new HookException(0, "Unable to register the MBeans: " + e.getMessage());
+    }
+    delegate().init(configDir);
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    long start = System.nanoTime();
+    MqttBrokerConfig config = null;
+    boolean failed = true;
+    try {
+      config = delegate().resolveAlias(connectionAlias);
+      failed = false;
+      return config;
+    } finally {
+      resolveAliasStats.record(System.nanoTime() - start, !failed && config == null, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    long start = System.nanoTime();
+    boolean authorized = false;
+    boolean failed = true;
+    try {
+      authorized =
+          delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+      failed = false;
+      if (authorized) {
+        resources.sessionOpened(sessionId, user);
+      }
+      return authorized;
+    } finally {
+      canOpenSessionStats.record(System.nanoTime() - start, !failed && !authorized, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    resources.sessionClosed(sessionId);
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      delegate().onSessionClose(sessionId);
+      failed = false;
+    } finally {
+      onSessionCloseStats.record(System.nanoTime() - start, false, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    long start = System.nanoTime();
+    boolean authorized = false;
+    boolean failed = true;
+    try {
+      authorized = delegate().canConnect(sessionId, clientId, brokerAddress, connectOptions);
+      failed = false;
+      if (authorized) {
+        resources.tryConnect(sessionId, clientId, brokerAddress);
+      }
+      return authorized;
+    } finally {
+      canConnectStats.record(System.nanoTime() - start, !failed && !authorized, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    resources.disconnected(sessionId, clientId, brokerAddress);
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      delegate().onDisconnection(sessionId, clientId, brokerAddress);
+      failed = false;
+    } finally {
+      onDisconnectionStats.record(System.nanoTime() - start, false, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    long start = System.nanoTime();
+    boolean authorized = false;
+    boolean failed = true;
+    try {
+      authorized = delegate().canPublish(sessionId, clientId, brokerAddress, message);
+      failed = false;
+      return authorized;
+    } finally {
+      canPublishStats.record(System.nanoTime() - start, !failed && !authorized, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    long start = System.nanoTime();
+    boolean authorized = false;
+    boolean failed = true;
+    try {
+      authorized = delegate().canSubscribe(sessionId, clientId, brokerAddress, subscription);
+      failed = false;
+      if (authorized && subscription != null && subscription.getTopicFilter() != null) {
+        resources.trySubscribe(sessionId, clientId, brokerAddress, subscription.getTopicFilter());
+      }
+      return authorized;
+    } finally {
+      canSubscribeStats.record(System.nanoTime() - start, !failed && !authorized, failed);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and records the outcome.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    if (topicFilter != null) {
+      resources.unsubscribed(sessionId, clientId, brokerAddress, topicFilter);
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      delegate().onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+      failed = false;
+    } finally {
+      onUnsubscribeStats.record(System.nanoTime() - start, false, failed);
+    }
+  }
+
+  private void register(MBeanServer server, ObjectName objectName, Object mbean)
+      throws JMException {
+
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+    server.registerMBean(mbean, objectName);
+    registeredNames.add(objectName);
+  }
+
+}
@@ -252,44 +252,28 @@ public class MqttBrokerConfigBuilder {
    * <li>the truststore path (through {@link #truststorePath(Path)})</li>
    * <li>the keystore path (through {@link #keystorePath(Path)})</li>
    * </ul>
+   *
+   * <p>The returned instance is immutable, as it is not affected by any further change made on this
+   * builder, and can therefore be safely cached and shared across threads. To this purpose, the
+   * passwords and the Application Message of the <i>Will Message</i> are copied, both when building
+   * the instance and when returned by its getters.
    * 
    * @return an {@code MqttBrokerConfig} instance
    */
   public MqttBrokerConfig build() {
+    final String address = this.address;
+    final String username = this.username;
+    final String password = this.password;
+    final Integer keepAlive = this.keepAlive;
+    final Integer connectionTimeout = this.connectionTimeout;
+    final String clientIdPrefix = this.clientIdPrefix;
+    final MqttMessage willMessage = buildWillMessage();
+    final SecurityParams securityParams = buildSecurityParams();
+
     return new MqttBrokerConfig() {
 
       @Override
       public MqttMessage getWillMessage() {
-        MqttMessage willMessage = null;
-        if (willTopic != null) {
-          return new MqttMessage() {
-
-            @Override
-            public boolean isRetained() {
-              return willRetain;
-            }
-
-            @Override
-            public boolean isDuplicate() {
-              return false;
-            }
-
-            @Override
-            public String getTopicName() {
-              return willTopic;
-            }
-
-            @Override
-            public QoS getQos() {
-              return willQos;
-            }
-
-            @Override
-            public byte[] getApplicationMessage() {
-              return willApplicationMessage;
-            }
-          };
-        }
         return willMessage;
       }
 
@@ -325,44 +309,103 @@ public class MqttBrokerConfigBuilder {
 
       @Override
       public SecurityParams getSecurityParams() {
-        if ((securityProtocol != null && securityProtocol.length() != 0) || truststorePath != null
-            || keystorePath != null) {
-          return new SecurityParams() {
-
-            @Override
-            public String getSecurityProtocol() {
-              return securityProtocol;
-            }
-
-            @Override
-            public Path getTruststorePath() {
-              return truststorePath;
-            }
-
-            @Override
-            public char[] getTruststorePassword() {
-              return truststorePassword;
-            }
-
-            @Override
-            public Path getKeystorePath() {
-              return keystorePath;
-            }
-
-            @Override
-            public char[] getKeystorePassword() {
-              return keystorePassword;
-            }
-
-            @Override
-            public char[] getPrivateKeyPassword() {
-              return privateKeyPassword;
-            }
-          };
-        }
-        return null;
+        return securityParams;
+      }
+    };
+  }
+
+  private MqttMessage buildWillMessage() {
+    if (willTopic == null) {
+      return null;
+    }
+
+    final String topic = willTopic;
+    final byte[] applicationMessage = copyOf(willApplicationMessage);
+    final QoS qos = willQos;
+    final boolean retain = willRetain;
+
+    return new MqttMessage() {
+
+      @Override
+      public boolean isRetained() {
+        return retain;
+      }
+
+      @Override
+      public boolean isDuplicate() {
+        return false;
+      }
+
+      @Override
+      public String getTopicName() {
+        return topic;
+      }
+
+      @Override
+      public QoS getQos() {
+        return qos;
+      }
+
+      @Override
+      public byte[] getApplicationMessage() {
+        return copyOf(applicationMessage);
       }
     };
   }
 
+  private SecurityParams buildSecurityParams() {
+    if ((securityProtocol == null || securityProtocol.length() == 0) && truststorePath == null
+        && keystorePath == null) {
+      return null;
+    }
+
+    final String protocol = securityProtocol;
+    final Path truststore = truststorePath;
+    final char[] truststorePwd = copyOf(truststorePassword);
+    final Path keystore = keystorePath;
+    final char[] keystorePwd = copyOf(keystorePassword);
+    final char[] privateKeyPwd = copyOf(privateKeyPassword);
+
+    return new SecurityParams() {
+
+      @Override
+      public String getSecurityProtocol() {
+        return protocol;
+      }
+
+      @Override
+      public Path getTruststorePath() {
+        return truststore;
+      }
+
+      @Override
+      public char[] getTruststorePassword() {
+        return copyOf(truststorePwd);
+      }
+
+      @Override
+      public Path getKeystorePath() {
+        return keystore;
+      }
+
+      @Override
+      public char[] getKeystorePassword() {
+        return copyOf(keystorePwd);
+      }
+
+      @Override
+      public char[] getPrivateKeyPassword() {
+        return copyOf(privateKeyPwd);
+      }
+    };
+  }
+
+  private static byte[] copyOf(byte[] array) {
+    return array != null ? array.clone() : null;
+  }
+
+  private static char[] copyOf(char[] array) {
+    return array != null ? array.clone() : null;
+  }
+
 }
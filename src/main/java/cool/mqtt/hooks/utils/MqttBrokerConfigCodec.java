@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SecurityParams;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * A compact binary serializer for {@link MqttBrokerConfig} instances, including the
+ * <i>Will Message</i> and the {@link SecurityParams}.
+ *
+ * <p>Passwords are never written in clear: they are encrypted with {@code AES/GCM} through the key
+ * supplied to {@link #MqttBrokerConfigCodec(SecretKey)}. A codec created without a key can only
+ * serialize configurations which carry no password at all (see {@link #canEncode}).
+ *
+ * <p>Instances are thread safe.
+ */
+public final class MqttBrokerConfigCodec {
+
+  private static final int VERSION = 1;
+
+  /**
+   * The maximum length of any length-prefixed field, which is also the maximum length of the
+   * Application Message of a <i>Will Message</i> allowed by the MQTT protocol.
+   */
+  private static final int MAX_LENGTH = 0xFFFF;
+
+  private static final String CIPHER = "AES/GCM/NoPadding";
+
+  private static final int IV_LENGTH = 12;
+
+  private static final int TAG_BITS = 128;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final SecretKey key;
+
+  /**
+   * Creates an {@code MqttBrokerConfigCodec} which can only serialize configurations without
+   * passwords.
+   */
+  public MqttBrokerConfigCodec() {
+    this.key = null;
+  }
+
+  /**
+   * Creates an {@code MqttBrokerConfigCodec} which encrypts the passwords with the specified key.
+   *
+   * @param key the {@code AES} key used to encrypt and decrypt the passwords
+   * @throws IllegalArgumentException if {@code key} is not an {@code AES} key
+   */
+  public MqttBrokerConfigCodec(SecretKey key) {
+    if (key == null || !"AES".equalsIgnoreCase(key.getAlgorithm())) {
+      throw new IllegalArgumentException("Invalid key");
+    }
+    this.key = key;
+  }
+
+  /**
+   * Tells whether the specified configuration can be serialized by this codec, that is whether its
+   * <i>Will Message</i>, if any, does not exceed the maximum length allowed by the MQTT protocol,
+   * and it carries no password or this codec has an encryption key.
+   *
+   * @param config the configuration to check
+   * @return {@code true} if {@link #write} accepts the configuration
+   */
+  public boolean canEncode(MqttBrokerConfig config) {
+    MqttMessage will = config.getWillMessage();
+    if (will != null && will.getApplicationMessage() != null
+        && will.getApplicationMessage().length > MAX_LENGTH) {
+      return false;
+    }
+    if (key != null) {
+      return true;
+    }
+    SecurityParams security = config.getSecurityParams();
+    return config.getPassword() == null && (security == null
+        || security.getTruststorePassword() == null && security.getKeystorePassword() == null
+        && security.getPrivateKeyPassword() == null);
+  }
+
+  /**
+   * Writes the specified configuration.
+   *
+   * @param config the configuration to write
+   * @param out the output to write to
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if the configuration can not be serialized by this codec
+   * @see #canEncode(MqttBrokerConfig)
+   */
+  public void write(MqttBrokerConfig config, DataOutput out) throws IOException {
+    if (!canEncode(config)) {
+      throw new IllegalArgumentException("Unable to encode the configuration");
+    }
+
+    out.writeByte(VERSION);
+    writeString(out, config.getAddress());
+    writeString(out, config.getUsername());
+    writeSecret(out, config.getPassword() != null ? config.getPassword().toCharArray() : null);
+    writeInteger(out, config.getKeepAlive());
+    writeInteger(out, config.getConnectionTimeout());
+    writeString(out, config.getClientIdPrefix());
+
+    MqttMessage will = config.getWillMessage();
+    out.writeBoolean(will != null);
+    if (will != null) {
+      writeString(out, will.getTopicName());
+      byte[] applicationMessage = will.getApplicationMessage();
+      out.writeInt(applicationMessage != null ? applicationMessage.length : -1);
+      if (applicationMessage != null) {
+        out.write(applicationMessage);
+      }
+      out.writeByte(will.getQos().getValue());
+      out.writeBoolean(will.isRetained());
+    }
+
+    SecurityParams security = config.getSecurityParams();
+    out.writeBoolean(security != null);
+    if (security != null) {
+      writeString(out, security.getSecurityProtocol());
+      writePath(out, security.getTruststorePath());
+      writeSecret(out, security.getTruststorePassword());
+      writePath(out, security.getKeystorePath());
+      writeSecret(out, security.getKeystorePassword());
+      writeSecret(out, security.getPrivateKeyPassword());
+    }
+  }
+
+  /**
+   * Reads a configuration previously written by {@link #write}.
+   *
+   * @param in the input to read from
+   * @return the configuration, immutable
+   * @throws IOException if an I/O error occurs, the data is malformed, or the passwords can not be
+   *         decrypted with the key of this codec
+   */
+  public MqttBrokerConfig read(DataInput in) throws IOException {
+    try {
+      return doRead(in);
+    } catch (RuntimeException e) {
+      // For example, an invalid path: the data is untrusted and must never fail otherwise.
+      throw new IOException("Malformed configuration", e);
+    }
+  }
+
+  private MqttBrokerConfig doRead(DataInput in) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported version " + version);
+    }
+
+    MqttBrokerConfigBuilder builder = new MqttBrokerConfigBuilder(readString(in));
+    builder.username(readString(in));
+    char[] password = readSecret(in);
+    if (password != null) {
+      builder.password(new String(password));
+    }
+    Integer keepAlive = readInteger(in);
+    if (keepAlive != null) {
+      builder.keepAlive(keepAlive);
+    }
+    Integer connectionTimeout = readInteger(in);
+    if (connectionTimeout != null) {
+      builder.connectionTimeout(connectionTimeout);
+    }
+    builder.clientIdPrefix(readString(in));
+
+    if (in.readBoolean()) {
+      String topic = readString(in);
+      int length = in.readInt();
+      byte[] applicationMessage = null;
+      if (length != -1) {
+        applicationMessage = new byte[checkLength(length)];
+        in.readFully(applicationMessage);
+      }
+      QoS qos = toQos(in.readUnsignedByte());
+      boolean retain = in.readBoolean();
+      try {
+        builder.willMessage(topic, applicationMessage, qos, retain);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid Will Message", e);
+      }
+    }
+
+    if (in.readBoolean()) {
+      builder.securityProtocol(readString(in));
+      builder.truststorePath(readPath(in));
+      builder.truststorePassword(readSecret(in));
+      builder.keystorePath(readPath(in));
+      builder.keystorePassword(readSecret(in));
+      builder.privateKeyPassword(readSecret(in));
+    }
+    return builder.build();
+  }
+
+  private void writeSecret(DataOutput out, char[] secret) throws IOException {
+    if (secret == null) {
+      out.writeBoolean(false);
+      return;
+    }
+
+    ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(secret));
+    byte[] plain = new byte[encoded.remaining()];
+    encoded.get(plain);
+    byte[] iv = new byte[IV_LENGTH];
+    RANDOM.nextBytes(iv);
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+      byte[] encrypted = cipher.doFinal(plain);
+      out.writeBoolean(true);
+      out.write(iv);
+      out.writeInt(encrypted.length);
+      out.write(encrypted);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to encrypt a password", e);
+    } finally {
+      Arrays.fill(plain, (byte) 0);
+      if (encoded.hasArray()) {
+        Arrays.fill(encoded.array(), (byte) 0);
+      }
+    }
+  }
+
+  private char[] readSecret(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+
+    byte[] iv = new byte[IV_LENGTH];
+    in.readFully(iv);
+    byte[] encrypted = new byte[readLength(in)];
+    in.readFully(encrypted);
+    if (key == null) {
+      throw new IOException("Unable to decrypt a password without a key");
+    }
+
+    byte[] plain = null;
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+      plain = cipher.doFinal(encrypted);
+      CharBuffer decoded = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(plain));
+      char[] secret = new char[decoded.remaining()];
+      decoded.get(secret);
+      Arrays.fill(decoded.array(), '\0');
+      return secret;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to decrypt a password", e);
+    } finally {
+      if (plain != null) {
+        Arrays.fill(plain, (byte) 0);
+      }
+    }
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeInteger(DataOutput out, Integer value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeInt(value);
+    }
+  }
+
+  private static Integer readInteger(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readInt() : null;
+  }
+
+  private static void writePath(DataOutput out, Path value) throws IOException {
+    writeString(out, value != null ? value.toString() : null);
+  }
+
+  private static Path readPath(DataInput in) throws IOException {
+    String value = readString(in);
+    return value != null ? Paths.get(value) : null;
+  }
+
+  private static int readLength(DataInput in) throws IOException {
+    return checkLength(in.readInt());
+  }
+
+  private static int checkLength(int length) throws IOException {
+    if (length < 0 || length > MAX_LENGTH) {
+      throw new IOException("Invalid length " + length);
+    }
+    return length;
+  }
+
+  private static QoS toQos(int value) throws IOException {
+    for (QoS qos : QoS.values()) {
+      if (qos.getValue() == value) {
+        return qos;
+      }
+    }
+    throw new IOException("Invalid QoS " + value);
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link CounterStore} which fronts a (typically remote) backing store with a local cache, so
+ * that counter operations performed by Hook callbacks do not require a round trip each.
+ *
+ * <p>Updates are accumulated locally and pushed to the backing store in batches upon each
+ * {@link #flush()}, which is expected to be invoked periodically (see
+ * {@link #scheduleFlush(ScheduledExecutorService, long, TimeUnit)}). Reads return the last value
+ * fetched from the backing store, refreshed at most once per staleness interval, plus the local
+ * updates not yet acknowledged by the backing store.
+ *
+ * <p>As a consequence, limits enforced through {@link #tryAcquire(String, long)} are approximate:
+ * they can be exceeded by the updates performed by the other nodes within the staleness interval
+ * plus the flush period, and a refresh racing with a flush may briefly serve a value which misses
+ * the flushed updates. Moreover, as {@code tryAcquire} increments the counter before rolling the
+ * increment back, concurrent acquisitions close to the limit may be spuriously denied.
+ *
+ * <p>Failures of the backing store never surface from {@link #get(String)} and
+ * {@link #addAndGet(String, long)} once a counter has been fetched for the first time: the last
+ * known value keeps being used, and pending updates are retried upon the next flush. Before that,
+ * they do surface, and the failed update is discarded.
+ */
+public class NearCacheCounterStore implements CounterStore {
+
+  private final CounterStore backend;
+
+  private final long maxStalenessNanos;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a {@code NearCacheCounterStore} on top of the specified backing store.
+   *
+   * @param backend the backing store shared among the MQTT&#46;Cool nodes
+   * @param maxStaleness the maximum age of the values fetched from the backing store
+   * @param unit the time unit of {@code maxStaleness}
+   */
+  public NearCacheCounterStore(CounterStore backend, long maxStaleness, TimeUnit unit) {
+    this.backend = backend;
+    this.maxStalenessNanos = unit.toNanos(maxStaleness);
+  }
+
+  @Override
+  public long get(String key) throws IOException {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = entries.computeIfAbsent(key, k -> new Entry());
+    }
+    return read(key, entry);
+  }
+
+  @Override
+  public long addAndGet(String key, long delta) throws IOException {
+    Entry fetched = entries.computeIfAbsent(key, k -> new Entry());
+    if (!fetched.isFetched()) {
+      // Fetch before updating, so that an update which fails is not flushed later.
+      read(key, fetched);
+    }
+
+    Entry entry = entries.compute(key, (k, current) -> {
+      Entry updated = current != null ? current : fetched;
+      updated.pending.addAndGet(delta);
+      return updated;
+    });
+    try {
+      return read(key, entry);
+    } catch (IOException | RuntimeException e) {
+      // The entry has been replaced by a new one in the meantime, which could not be fetched.
+      entry.pending.addAndGet(-delta);
+      throw e;
+    }
+  }
+
+  /**
+   * Pushes the local updates accumulated so far to the backing store, in a single batch, and
+   * refreshes the cached values of the updated counters.
+   *
+   * <p>Counters which are no longer in use are also evicted from the cache.
+   *
+   * @throws IOException if the backing store can not be reached; in this case, the updates are kept
+   *         and will be pushed again upon the next flush
+   */
+  public void flush() throws IOException {
+    Map<String, Long> batch = new HashMap<>();
+    Map<String, Entry> flushed = new HashMap<>();
+    for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+      Entry entry = mapEntry.getValue();
+      long delta = entry.pending.get();
+      if (delta != 0) {
+        // Move the delta to the in-flight amount before resetting, so that it is never missed by
+        // concurrent reads (at worst, it is temporarily counted twice).
+        entry.inFlight.addAndGet(delta);
+        entry.pending.addAndGet(-delta);
+        batch.put(mapEntry.getKey(), delta);
+        flushed.put(mapEntry.getKey(), entry);
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      Map<String, Long> values;
+      try {
+        values = backend.addAll(batch);
+      } catch (IOException | RuntimeException e) {
+        for (Map.Entry<String, Entry> mapEntry : flushed.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          long delta = batch.get(mapEntry.getKey());
+          entry.pending.addAndGet(delta);
+          entry.inFlight.addAndGet(-delta);
+        }
+        throw e;
+      }
+
+      long now = System.nanoTime();
+      for (Map.Entry<String, Entry> mapEntry : flushed.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        Long value = values.get(mapEntry.getKey());
+        if (value != null) {
+          entry.update(value, now);
+        }
+        entry.inFlight.addAndGet(-batch.get(mapEntry.getKey()));
+      }
+    }
+
+    evictIdleEntries();
+  }
+
+  /**
+   * Schedules a periodic {@link #flush()} on the specified executor.
+   *
+   * <p>Failed flushes are silently retried upon the next period.
+   *
+   * @param executor the executor which will perform the flushes
+   * @param period the period between successive flushes
+   * @param unit the time unit of {@code period}
+   * @return the {@code ScheduledFuture} which can be used to cancel the periodic flushes
+   */
+  public ScheduledFuture<?> scheduleFlush(ScheduledExecutorService executor, long period,
+      TimeUnit unit) {
+
+    return executor.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+      } catch (IOException | RuntimeException e) {
+        // Pending updates have been kept, try again upon the next period.
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * Gets the number of counters currently held by the cache.
+   *
+   * @return the number of cached counters
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private long read(String key, Entry entry) throws IOException {
+    long now = System.nanoTime();
+    if (!entry.isFetched()) {
+      // Nothing to fall back to, let failures propagate.
+      entry.update(backend.get(key), now);
+    } else if (now - entry.fetchedAt >= maxStalenessNanos && entry.refreshing.compareAndSet(false,
+        true)) {
+      try {
+        entry.update(backend.get(key), now);
+      } catch (IOException | RuntimeException e) {
+        // Keep using the last known value.
+      } finally {
+        entry.refreshing.set(false);
+      }
+    }
+    return entry.global + entry.inFlight.get() + entry.pending.get();
+  }
+
+  private void evictIdleEntries() {
+    long now = System.nanoTime();
+    for (String key : entries.keySet()) {
+      entries.computeIfPresent(key, (k, entry) -> entry.isIdle(now, maxStalenessNanos) ? null
+          : entry);
+    }
+  }
+
+  private static final class Entry {
+
+    final AtomicLong pending = new AtomicLong();
+
+    final AtomicLong inFlight = new AtomicLong();
+
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    volatile long global;
+
+    volatile long fetchedAt;
+
+    volatile boolean fetched;
+
+    boolean isFetched() {
+      return fetched;
+    }
+
+    void update(long value, long now) {
+      global = value;
+      fetchedAt = now;
+      fetched = true;
+    }
+
+    boolean isIdle(long now, long maxStalenessNanos) {
+      return pending.get() == 0 && inFlight.get() == 0
+          && (!fetched || now - fetchedAt >= maxStalenessNanos);
+    }
+  }
+
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An off-heap store of per-session state, keyed by session identifier, meant for Hooks tracking
+ * millions of concurrent sessions without burdening the garbage collector.
+ *
+ * <p>Each session is stored as a fixed-layout record, which holds the user, a fixed number of
+ * {@code long} counters (for example, quota usages) and 32 flag bits. Records live in direct
+ * {@code ByteBuffer} instances allocated once upon construction, so that the heap usage does not
+ * depend on the number of sessions, and lookups do not allocate at all.
+ *
+ * <p>The table is split into independently locked segments, each one being an open addressing
+ * hash table with linear probing. Removed records are freed at once by shifting back the
+ * following records of the probe sequence, so that no tombstone is ever left behind. A typical
+ * usage is:
+ *
+ * <pre>
+ * canOpenSession:  store.put(sessionId, user)
+ * canConnect:      store.tryAdd(sessionId, CONNECTIONS, 1, maxConnections)
+ * onDisconnection: store.add(sessionId, CONNECTIONS, -1)
+ * onSessionClose:  store.remove(sessionId)
+ * </pre>
+ *
+ * <p>The off-heap memory amounts to {@code 2 * maxSessions} records (up to twice as many, as
+ * segments are sized to powers of two) of
+ * {@code 24 + 2 * (maxSessionIdLength + maxUserLength) + 8 * counters} bytes each (rounded up to
+ * a multiple of 8), see {@link #getOffHeapBytes()}.
+ *
+ * <p>This class is thread safe.
+ */
+public class OffHeapSessionStore {
+
+  private static final int SEGMENTS = 64;
+
+  private static final int MIN_SEGMENT_CAPACITY = 16;
+
+  private static final int STATE_OFFSET = 0;
+
+  private static final int FLAGS_OFFSET = 4;
+
+  private static final int HASH_OFFSET = 8;
+
+  private static final int KEY_LENGTH_OFFSET = 16;
+
+  private static final int USER_LENGTH_OFFSET = 18;
+
+  private static final int KEY_OFFSET = 24;
+
+  private static final int FREE = 0;
+
+  private static final int USED = 1;
+
+  private final int maxSessionIdLength;
+
+  private final int maxUserLength;
+
+  private final int counters;
+
+  private final int userOffset;
+
+  private final int countersOffset;
+
+  private final int recordSize;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * Creates an {@code OffHeapSessionStore}.
+   *
+   * @param maxSessions the number of sessions the store is sized for
+   * @param maxSessionIdLength the maximum length of a session identifier
+   * @param maxUserLength the maximum length of a username
+   * @param counters the number of counters of each session
+   * @throws IllegalArgumentException if any of the parameters is negative, {@code maxSessions} is
+   *         zero, or a segment would exceed the maximum size of a {@code ByteBuffer}
+   */
+  public OffHeapSessionStore(int maxSessions, int maxSessionIdLength, int maxUserLength,
+      int counters) {
+
+    if (maxSessions <= 0) {
+      throw new IllegalArgumentException("Invalid maxSessions");
+    }
+    if (maxSessionIdLength < 0 || maxUserLength < 0 || counters < 0) {
+      throw new IllegalArgumentException("Invalid record layout");
+    }
+    this.maxSessionIdLength = maxSessionIdLength;
+    this.maxUserLength = maxUserLength;
+    this.counters = counters;
+    this.userOffset = KEY_OFFSET + 2 * maxSessionIdLength;
+    this.countersOffset = (userOffset + 2 * maxUserLength + 7) & ~7;
+    this.recordSize = countersOffset + 8 * counters;
+
+    // Keep the average load factor at 50%, so that probe sequences stay short and unevenly loaded
+    // segments do not fill up before the expected number of sessions is reached.
+    int perSegment = (int) Math.min(1 << 30, 2L * maxSessions / SEGMENTS + 1);
+    int capacity = Math.max(MIN_SEGMENT_CAPACITY, Integer.highestOneBit(perSegment - 1) << 1);
+    if ((long) capacity * recordSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid maxSessions");
+    }
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(capacity, recordSize);
+    }
+  }
+
+  /**
+   * Stores a new session, replacing any previous record of the same session. Counters and flags
+   * are reset.
+   *
+   * @param sessionId the session identifier
+   * @param user the username, or {@code null} for the anonymous user
+   * @return {@code true} if the session has been stored, {@code false} if the store is full
+   * @throws IllegalArgumentException if {@code sessionId} or {@code user} exceed the maximum
+   *         lengths
+   */
+  public boolean put(String sessionId, String user) {
+    if (sessionId.length() > maxSessionIdLength) {
+      throw new IllegalArgumentException("Invalid sessionId");
+    }
+    if (user != null && user.length() > maxUserLength) {
+      throw new IllegalArgumentException("Invalid user");
+    }
+
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      if (offset < 0) {
+        if (segment.size >= segment.maxSize) {
+          return false;
+        }
+        offset = segment.freeSlot(hash, recordSize);
+        segment.size++;
+      }
+
+      ByteBuffer buffer = segment.buffer;
+      buffer.putInt(offset + STATE_OFFSET, USED);
+      buffer.putInt(offset + FLAGS_OFFSET, 0);
+      buffer.putLong(offset + HASH_OFFSET, hash);
+      buffer.putShort(offset + KEY_LENGTH_OFFSET, (short) sessionId.length());
+      for (int i = 0; i < sessionId.length(); i++) {
+        buffer.putChar(offset + KEY_OFFSET + 2 * i, sessionId.charAt(i));
+      }
+      buffer.putShort(offset + USER_LENGTH_OFFSET, (short) (user != null ? user.length() : -1));
+      if (user != null) {
+        for (int i = 0; i < user.length(); i++) {
+          buffer.putChar(offset + userOffset + 2 * i, user.charAt(i));
+        }
+      }
+      for (int i = 0; i < counters; i++) {
+        buffer.putLong(offset + countersOffset + 8 * i, 0);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Removes a session, freeing its record at once.
+   *
+   * @param sessionId the session identifier
+   * @return {@code true} if the session was stored
+   */
+  public boolean remove(String sessionId) {
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      if (offset < 0) {
+        return false;
+      }
+      segment.delete(offset / recordSize, recordSize);
+      segment.size--;
+      return true;
+    }
+  }
+
+  /**
+   * Tells whether a session is stored.
+   *
+   * @param sessionId the session identifier
+   * @return {@code true} if the session is stored
+   */
+  public boolean contains(String sessionId) {
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      return segment.find(this, sessionId, hash) >= 0;
+    }
+  }
+
+  /**
+   * Gets the user of a session.
+   *
+   * @param sessionId the session identifier
+   * @return the username, or {@code null} if the session is not stored or is anonymous
+   */
+  public String getUser(String sessionId) {
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      if (offset < 0) {
+        return null;
+      }
+      ByteBuffer buffer = segment.buffer;
+      int length = buffer.getShort(offset + USER_LENGTH_OFFSET);
+      if (length < 0) {
+        return null;
+      }
+      char[] user = new char[length];
+      for (int i = 0; i < length; i++) {
+        user[i] = buffer.getChar(offset + userOffset + 2 * i);
+      }
+      return new String(user);
+    }
+  }
+
+  /**
+   * Gets a counter of a session.
+   *
+   * @param sessionId the session identifier
+   * @param counter the index of the counter
+   * @return the value of the counter, or {@code 0} if the session is not stored
+   * @throws IndexOutOfBoundsException if {@code counter} is out of range
+   */
+  public long get(String sessionId, int counter) {
+    checkCounter(counter);
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      return offset >= 0 ? segment.buffer.getLong(offset + countersOffset + 8 * counter) : 0;
+    }
+  }
+
+  /**
+   * Adds a delta to a counter of a session.
+   *
+   * @param sessionId the session identifier
+   * @param counter the index of the counter
+   * @param delta the value to add
+   * @return {@code true} if the session is stored
+   * @throws IndexOutOfBoundsException if {@code counter} is out of range
+   */
+  public boolean add(String sessionId, int counter, long delta) {
+    return tryAdd(sessionId, counter, delta, Long.MAX_VALUE);
+  }
+
+  /**
+   * Adds a delta to a counter of a session, unless the result would exceed the specified limit.
+   *
+   * @param sessionId the session identifier
+   * @param counter the index of the counter
+   * @param delta the value to add
+   * @param limit the maximum value of the counter
+   * @return {@code true} if the session is stored and the delta has been added
+   * @throws IndexOutOfBoundsException if {@code counter} is out of range
+   */
+  public boolean tryAdd(String sessionId, int counter, long delta, long limit) {
+    checkCounter(counter);
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      if (offset < 0) {
+        return false;
+      }
+      int position = offset + countersOffset + 8 * counter;
+      long value = segment.buffer.getLong(position) + delta;
+      if (value > limit) {
+        return false;
+      }
+      segment.buffer.putLong(position, value);
+      return true;
+    }
+  }
+
+  /**
+   * Gets the flags of a session.
+   *
+   * @param sessionId the session identifier
+   * @return the flags, or {@code 0} if the session is not stored
+   */
+  public int getFlags(String sessionId) {
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      return offset >= 0 ? segment.buffer.getInt(offset + FLAGS_OFFSET) : 0;
+    }
+  }
+
+  /**
+   * Sets or clears the specified flags of a session.
+   *
+   * @param sessionId the session identifier
+   * @param mask the flags to change
+   * @param value {@code true} to set the flags, {@code false} to clear them
+   * @return {@code true} if the session is stored
+   */
+  public boolean setFlags(String sessionId, int mask, boolean value) {
+    long hash = hash(sessionId);
+    Segment segment = segment(hash);
+    synchronized (segment) {
+      int offset = segment.find(this, sessionId, hash);
+      if (offset < 0) {
+        return false;
+      }
+      int flags = segment.buffer.getInt(offset + FLAGS_OFFSET);
+      segment.buffer.putInt(offset + FLAGS_OFFSET, value ? flags | mask : flags & ~mask);
+      return true;
+    }
+  }
+
+  /**
+   * Gets the number of stored sessions.
+   *
+   * @return the number of stored sessions
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Gets the amount of off-heap memory reserved by this store.
+   *
+   * @return the number of bytes
+   */
+  public long getOffHeapBytes() {
+    return (long) SEGMENTS * segments[0].buffer.capacity();
+  }
+
+  private boolean matches(ByteBuffer buffer, int offset, String sessionId) {
+    if (buffer.getShort(offset + KEY_LENGTH_OFFSET) != sessionId.length()) {
+      return false;
+    }
+    for (int i = 0; i < sessionId.length(); i++) {
+      if (buffer.getChar(offset + KEY_OFFSET + 2 * i) != sessionId.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void checkCounter(int counter) {
+    if (counter < 0 || counter >= counters) {
+      throw new IndexOutOfBoundsException("Invalid counter " + counter);
+    }
+  }
+
+  private Segment segment(long hash) {
+    return segments[(int) (hash >>> 58) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Computes a 64-bit FNV-1a hash of the characters of the session identifier, without allocating.
+   */
+  private static long hash(String sessionId) {
+    long h = 0xCBF29CE484222325L;
+    for (int i = 0; i < sessionId.length(); i++) {
+      h ^= sessionId.charAt(i);
+      h *= 0x100000001B3L;
+    }
+    return Hashing.mix(h);
+  }
+
+  /**
+   * A linear probing hash table held in a direct buffer. Guarded by itself.
+   */
+  private static final class Segment {
+
+    final ByteBuffer buffer;
+
+    final int mask;
+
+    final int maxSize;
+
+    int size;
+
+    Segment(int capacity, int recordSize) {
+      this.buffer = ByteBuffer.allocateDirect(capacity * recordSize);
+      this.mask = capacity - 1;
+      // Never fill the table completely, so that probe sequences always terminate.
+      this.maxSize = capacity - capacity / 8;
+    }
+
+    /**
+     * Returns the offset of the record of the specified session, or {@code -1} if not found.
+     */
+    int find(OffHeapSessionStore store, String sessionId, long hash) {
+      int recordSize = store.recordSize;
+      for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+        int offset = slot * recordSize;
+        if (buffer.getInt(offset + STATE_OFFSET) == FREE) {
+          return -1;
+        }
+        if (buffer.getLong(offset + HASH_OFFSET) == hash
+            && store.matches(buffer, offset, sessionId)) {
+          return offset;
+        }
+      }
+    }
+
+    /**
+     * Returns the offset of the first free record of the probe sequence of the specified hash.
+     */
+    int freeSlot(long hash, int recordSize) {
+      for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+        int offset = slot * recordSize;
+        if (buffer.getInt(offset + STATE_OFFSET) == FREE) {
+          return offset;
+        }
+      }
+    }
+
+    /**
+     * Frees the specified slot, shifting back the following records of the probe sequence.
+     */
+    void delete(int slot, int recordSize) {
+      int hole = slot;
+      for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+        int offset = next * recordSize;
+        if (buffer.getInt(offset + STATE_OFFSET) == FREE) {
+          break;
+        }
+        int home = (int) buffer.getLong(offset + HASH_OFFSET) & mask;
+        // Move the record only if the hole lies on its probe sequence, i.e. between home and next.
+        boolean movable = hole <= next ? home <= hole || home > next : home <= hole && home > next;
+        if (movable) {
+          copy(next * recordSize, hole * recordSize, recordSize);
+          hole = next;
+        }
+      }
+      buffer.putInt(hole * recordSize + STATE_OFFSET, FREE);
+    }
+
+    private void copy(int from, int to, int recordSize) {
+      for (int i = 0; i < recordSize; i += 8) {
+        buffer.putLong(to + i, buffer.getLong(from + i));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttMessage;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Hook decorator which feeds every {@code canPublish} request into streaming summaries of the
+ * heaviest topics and client identifiers, so that the load can be analyzed without logging every
+ * message.
+ *
+ * <p>Three {@link HeavyHitterTracker} instances are maintained over the same sliding window:
+ * <ul>
+ * <li>the topics, by topic name;</li>
+ * <li>the clients, by client identifier (or by session identifier, for clients sharing the
+ * connection);</li>
+ * <li>the traffic classes, by QoS level and retained flag (for example, {@code "QoS 1 retained"}),
+ * which are tracked exactly as they are never more than six.</li>
+ * </ul>
+ * All requests are accounted, regardless of the authorization decision taken by the delegate Hook.
+ * The summaries can be queried at any time, for example to drive throttling decisions.
+ */
+public class PublishAnalyticsHook extends ForwardingCoolHook {
+
+  private static final String[] TRAFFIC_CLASSES =
+      {"QoS 0", "QoS 0 retained", "QoS 1", "QoS 1 retained", "QoS 2", "QoS 2 retained"};
+
+  private final HeavyHitterTracker topics;
+
+  private final HeavyHitterTracker clients;
+
+  private final HeavyHitterTracker trafficClasses;
+
+  /**
+   * Creates a {@code PublishAnalyticsHook}.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param k the number of heavy topics and clients to track
+   * @param epsilon the maximum overestimation, as a fraction of the total traffic of the window
+   * @param window the duration of the sliding window
+   * @param unit the time unit of {@code window}
+   * @throws IllegalArgumentException if any of the parameters is invalid, as detailed by
+   *         {@link HeavyHitterTracker#HeavyHitterTracker(int, double, long, TimeUnit)}
+   */
+  public PublishAnalyticsHook(MQTTCoolHook delegate, int k, double epsilon, long window,
+      TimeUnit unit) {
+
+    super(delegate);
+    this.topics = new HeavyHitterTracker(k, epsilon, window, unit);
+    this.clients = new HeavyHitterTracker(k, epsilon, window, unit);
+    this.trafficClasses =
+        new HeavyHitterTracker(TRAFFIC_CLASSES.length, 0.01, window, unit);
+  }
+
+  /**
+   * Records the request and then forwards to the delegate.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    byte[] payload = message.getApplicationMessage();
+    int bytes = payload != null ? payload.length : 0;
+    topics.add(message.getTopicName(), bytes);
+    clients.add(clientId == null || clientId.isEmpty() ? sessionId : clientId, bytes);
+    int trafficClass = message.getQos().getValue() * 2 + (message.isRetained() ? 1 : 0);
+    trafficClasses.add(TRAFFIC_CLASSES[trafficClass], bytes);
+    return delegate().canPublish(sessionId, clientId, brokerAddress, message);
+  }
+
+  /**
+   * Gets the topics which account for most of the messages within the sliding window.
+   *
+   * @return the heaviest topics, sorted by decreasing number of messages
+   */
+  public List<HeavyHitter> getTopTopics() {
+    return topics.getTopK();
+  }
+
+  /**
+   * Gets the clients which account for most of the messages within the sliding window.
+   *
+   * @return the heaviest clients, sorted by decreasing number of messages
+   */
+  public List<HeavyHitter> getTopClients() {
+    return clients.getTopK();
+  }
+
+  /**
+   * Gets the traffic within the sliding window, broken down by QoS level and retained flag.
+   *
+   * @return the traffic classes, sorted by decreasing number of messages
+   */
+  public List<HeavyHitter> getTrafficClasses() {
+    return trafficClasses.getTopK();
+  }
+
+  /**
+   * Gets the tracker of the topics, for example to estimate the traffic of a given topic.
+   *
+   * @return the topics tracker
+   */
+  public HeavyHitterTracker getTopics() {
+    return topics;
+  }
+
+  /**
+   * Gets the tracker of the clients, for example to estimate the traffic of a given client.
+   *
+   * @return the clients tracker
+   */
+  public HeavyHitterTracker getClients() {
+    return clients;
+  }
+
+}
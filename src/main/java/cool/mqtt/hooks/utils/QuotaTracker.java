@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Helper class to cap the number of MQTT broker connections and active topic filters held by each
+ * user, while tracking the same resources on each MQTT broker.
+ *
+ * <p>The Hook is expected to invoke the methods of this class from the corresponding callbacks:
+ * <ul>
+ * <li>{@link #sessionOpened(String, String)} from {@code canOpenSession}, once the session has
+ * been authorized;</li>
+ * <li>{@link #tryConnect(String, String, String)} from {@code canConnect}, as the last check
+ * before authorizing the connection;</li>
+ * <li>{@link #trySubscribe(String, String, String, String)} from {@code canSubscribe}, as the last
+ * check before authorizing the subscription;</li>
+ * <li>{@link #unsubscribed(String, String, String, String)} from {@code onUnsubscribe};</li>
+ * <li>{@link #disconnected(String, String, String)} from {@code onDisconnection};</li>
+ * <li>{@link #sessionClosed(String)} from {@code onSessionClose}.</li>
+ * </ul>
+ *
+ * <p>As all the resources are tracked per session, closing a session or a connection releases all
+ * the resources still held by it, even if the corresponding notifications have never been
+ * received. Resources are released exactly once, even when notifications are duplicated or
+ * concurrent with authorizations.
+ *
+ * <p>Sessions not registered through {@link #sessionOpened(String, String)} are not subject to
+ * quotas. Sessions opened without a username share the quotas of the anonymous user, identified
+ * by the empty string.
+ *
+ * <p>This class is thread safe and lock free.
+ */
+public class QuotaTracker {
+
+  private final ConcurrentMap<String, SessionState> sessions = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, QuotaUsage> users = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, QuotaUsage> brokers = new ConcurrentHashMap<>();
+
+  private volatile int maxConnectionsPerUser;
+
+  private volatile int maxSubscriptionsPerUser;
+
+  /**
+   * Creates a {@code QuotaTracker} with the specified limits.
+   *
+   * @param maxConnectionsPerUser the maximum number of MQTT broker connections a user can hold
+   * @param maxSubscriptionsPerUser the maximum number of active topic filters a user can hold
+   */
+  public QuotaTracker(int maxConnectionsPerUser, int maxSubscriptionsPerUser) {
+    this.maxConnectionsPerUser = maxConnectionsPerUser;
+    this.maxSubscriptionsPerUser = maxSubscriptionsPerUser;
+  }
+
+  /**
+   * Changes the maximum number of MQTT broker connections a user can hold.
+   *
+   * <p>Lowering the limit does not affect connections already authorized.
+   *
+   * @param maxConnectionsPerUser the new limit
+   */
+  public void setMaxConnectionsPerUser(int maxConnectionsPerUser) {
+    this.maxConnectionsPerUser = maxConnectionsPerUser;
+  }
+
+  /**
+   * Changes the maximum number of active topic filters a user can hold.
+   *
+   * <p>Lowering the limit does not affect subscriptions already authorized.
+   *
+   * @param maxSubscriptionsPerUser the new limit
+   */
+  public void setMaxSubscriptionsPerUser(int maxSubscriptionsPerUser) {
+    this.maxSubscriptionsPerUser = maxSubscriptionsPerUser;
+  }
+
+  /**
+   * Gets the maximum number of MQTT broker connections a user can hold.
+   *
+   * @return the current limit
+   */
+  public int getMaxConnectionsPerUser() {
+    return maxConnectionsPerUser;
+  }
+
+  /**
+   * Gets the maximum number of active topic filters a user can hold.
+   *
+   * @return the current limit
+   */
+  public int getMaxSubscriptionsPerUser() {
+    return maxSubscriptionsPerUser;
+  }
+
+  /**
+   * Registers a session opened by the specified user.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param user the username, or {@code null} for an anonymous session
+   */
+  public void sessionOpened(String sessionId, String user) {
+    String userKey = user != null ? user : "";
+    QuotaUsage usage = users.compute(userKey, (key, current) -> {
+      QuotaUsage updated = current != null ? current : new QuotaUsage();
+      updated.sessions().incrementAndGet();
+      return updated;
+    });
+
+    SessionState previous = sessions.put(sessionId, new SessionState(userKey, usage));
+    if (previous != null) {
+      close(previous);
+    }
+  }
+
+  /**
+   * Releases the specified session, along with all the connections and topic filters still held by
+   * it.
+   *
+   * @param sessionId the unique identifier of the client session
+   */
+  public void sessionClosed(String sessionId) {
+    SessionState session = sessions.remove(sessionId);
+    if (session != null) {
+      close(session);
+    }
+  }
+
+  /**
+   * Tries to account for a new connection to the specified MQTT broker.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker
+   * @return {@code true} if the connection does not exceed the quota of the user
+   */
+  public boolean tryConnect(String sessionId, String clientId, String brokerAddress) {
+    SessionState session = sessions.get(sessionId);
+    if (session == null) {
+      return true;
+    }
+
+    String key = connectionKey(clientId, brokerAddress);
+    if (session.connections.containsKey(key)) {
+      return true;
+    }
+
+    if (!QuotaUsage.tryIncrement(session.usage.connections(), maxConnectionsPerUser)) {
+      return false;
+    }
+
+    ConnectionState connection = new ConnectionState(broker(brokerAddress));
+    if (session.connections.putIfAbsent(key, connection) != null) {
+      // Concurrently accounted by another invocation.
+      QuotaUsage.decrement(session.usage.connections(), 1);
+      return true;
+    }
+    connection.broker.connections().incrementAndGet();
+
+    if (session.closed && session.connections.remove(key, connection)) {
+      // The session has been closed in the meantime.
+      release(session, connection);
+    }
+    return true;
+  }
+
+  /**
+   * Releases the connection to the specified MQTT broker, along with all the topic filters still
+   * held by it.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker
+   */
+  public void disconnected(String sessionId, String clientId, String brokerAddress) {
+    SessionState session = sessions.get(sessionId);
+    if (session == null) {
+      return;
+    }
+
+    ConnectionState connection = session.connections.remove(connectionKey(clientId,
+        brokerAddress));
+    if (connection != null) {
+      release(session, connection);
+    }
+  }
+
+  /**
+   * Tries to account for a new topic filter on the connection to the specified MQTT broker.
+   *
+   * <p>Subscribing again to an already active topic filter does not count twice.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker
+   * @param topicFilter the topic filter
+   * @return {@code true} if the topic filter does not exceed the quota of the user
+   */
+  public boolean trySubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    SessionState session = sessions.get(sessionId);
+    if (session == null) {
+      return true;
+    }
+
+    ConnectionState connection = session.connections.get(connectionKey(clientId, brokerAddress));
+    if (connection == null || connection.filters.contains(topicFilter)) {
+      return true;
+    }
+
+    if (!QuotaUsage.tryIncrement(session.usage.subscriptions(), maxSubscriptionsPerUser)) {
+      return false;
+    }
+
+    if (!connection.filters.add(topicFilter)) {
+      // Concurrently accounted by another invocation.
+      QuotaUsage.decrement(session.usage.subscriptions(), 1);
+      return true;
+    }
+    connection.broker.subscriptions().incrementAndGet();
+
+    if (connection.released && connection.filters.remove(topicFilter)) {
+      // The connection has been released in the meantime.
+      QuotaUsage.decrement(session.usage.subscriptions(), 1);
+      QuotaUsage.decrement(connection.broker.subscriptions(), 1);
+    }
+    return true;
+  }
+
+  /**
+   * Releases the specified topic filter.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param clientId the client identifier
+   * @param brokerAddress the address of the MQTT broker
+   * @param topicFilter the topic filter
+   */
+  public void unsubscribed(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    SessionState session = sessions.get(sessionId);
+    if (session == null) {
+      return;
+    }
+
+    ConnectionState connection = session.connections.get(connectionKey(clientId, brokerAddress));
+    if (connection != null && connection.filters.remove(topicFilter)) {
+      QuotaUsage.decrement(session.usage.subscriptions(), 1);
+      QuotaUsage.decrement(connection.broker.subscriptions(), 1);
+    }
+  }
+
+  /**
+   * Gets the resources currently held by the specified user.
+   *
+   * @param user the username, or {@code null} for the anonymous user
+   * @return a snapshot of the resources held by the user
+   */
+  public QuotaUsage getUserUsage(String user) {
+    QuotaUsage usage = users.get(user != null ? user : "");
+    return usage != null ? usage.snapshot() : new QuotaUsage();
+  }
+
+  /**
+   * Gets the resources currently held on the specified MQTT broker.
+   *
+   * <p>Note that the returned snapshot does not account for sessions, which are not bound to any
+   * MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   * @return a snapshot of the resources held on the MQTT broker
+   */
+  public QuotaUsage getBrokerUsage(String brokerAddress) {
+    QuotaUsage usage = brokers.get(brokerAddress);
+    return usage != null ? usage.snapshot() : new QuotaUsage();
+  }
+
+  /**
+   * Gets the resources currently held by all the users.
+   *
+   * @return a snapshot of the resources held by all the users
+   */
+  public QuotaUsage getTotalUsage() {
+    QuotaUsage total = new QuotaUsage();
+    total.sessions().set(sessions.size());
+    for (QuotaUsage usage : brokers.values()) {
+      total.connections().addAndGet(usage.getConnections());
+      total.subscriptions().addAndGet(usage.getSubscriptions());
+    }
+    return total;
+  }
+
+  /**
+   * Gets the number of sessions currently tracked.
+   *
+   * @return the number of tracked sessions
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  private QuotaUsage broker(String brokerAddress) {
+    QuotaUsage usage = brokers.get(brokerAddress);
+    if (usage == null) {
+      usage = brokers.computeIfAbsent(brokerAddress, address -> new QuotaUsage());
+    }
+    return usage;
+  }
+
+  private void close(SessionState session) {
+    session.closed = true;
+    for (String key : session.connections.keySet()) {
+      ConnectionState connection = session.connections.remove(key);
+      if (connection != null) {
+        release(session, connection);
+      }
+    }
+
+    users.computeIfPresent(session.user, (key, usage) -> {
+      QuotaUsage.decrement(usage.sessions(), 1);
+      return usage.isEmpty() ? null : usage;
+    });
+  }
+
+  private static void release(SessionState session, ConnectionState connection) {
+    connection.released = true;
+    for (String topicFilter : connection.filters) {
+      if (connection.filters.remove(topicFilter)) {
+        QuotaUsage.decrement(session.usage.subscriptions(), 1);
+        QuotaUsage.decrement(connection.broker.subscriptions(), 1);
+      }
+    }
+    QuotaUsage.decrement(session.usage.connections(), 1);
+    QuotaUsage.decrement(connection.broker.connections(), 1);
+  }
+
+  private static String connectionKey(String clientId, String brokerAddress) {
+    return brokerAddress + '\n' + clientId;
+  }
+
+  private static final class SessionState {
+
+    final String user;
+
+    final QuotaUsage usage;
+
+    final ConcurrentMap<String, ConnectionState> connections = new ConcurrentHashMap<>();
+
+    volatile boolean closed;
+
+    SessionState(String user, QuotaUsage usage) {
+      this.user = user;
+      this.usage = usage;
+    }
+  }
+
+  private static final class ConnectionState {
+
+    final QuotaUsage broker;
+
+    final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+    volatile boolean released;
+
+    ConnectionState(QuotaUsage broker) {
+      this.broker = broker;
+    }
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The resources held by a user or on an MQTT broker, as tracked by a {@link QuotaTracker}.
+ *
+ * <p>Instances returned by the {@code QuotaTracker} query methods are snapshots, which are not
+ * affected by further updates.
+ */
+public final class QuotaUsage {
+
+  private final AtomicInteger sessions = new AtomicInteger();
+
+  private final AtomicInteger connections = new AtomicInteger();
+
+  private final AtomicInteger subscriptions = new AtomicInteger();
+
+  QuotaUsage() {}
+
+  /**
+   * Gets the number of open sessions.
+   *
+   * @return the number of open sessions
+   */
+  public int getSessions() {
+    return sessions.get();
+  }
+
+  /**
+   * Gets the number of connections to MQTT brokers.
+   *
+   * @return the number of connections
+   */
+  public int getConnections() {
+    return connections.get();
+  }
+
+  /**
+   * Gets the number of active topic filters.
+   *
+   * @return the number of active topic filters
+   */
+  public int getSubscriptions() {
+    return subscriptions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "QuotaUsage [sessions=" + sessions + ", connections=" + connections + ", subscriptions="
+        + subscriptions + "]";
+  }
+
+  AtomicInteger sessions() {
+    return sessions;
+  }
+
+  AtomicInteger connections() {
+    return connections;
+  }
+
+  AtomicInteger subscriptions() {
+    return subscriptions;
+  }
+
+  QuotaUsage snapshot() {
+    QuotaUsage snapshot = new QuotaUsage();
+    snapshot.sessions.set(sessions.get());
+    snapshot.connections.set(connections.get());
+    snapshot.subscriptions.set(subscriptions.get());
+    return snapshot;
+  }
+
+  boolean isEmpty() {
+    return sessions.get() == 0 && connections.get() == 0 && subscriptions.get() == 0;
+  }
+
+  /**
+   * Increments the specified counter, unless this would make it exceed the given limit.
+   */
+  static boolean tryIncrement(AtomicInteger counter, int limit) {
+    for (;;) {
+      int current = counter.get();
+      if (current >= limit) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Subtracts the specified amount from the counter, never going below zero.
+   */
+  static void decrement(AtomicInteger counter, int amount) {
+    counter.getAndUpdate(current -> current > amount ? current - amount : 0);
+  }
+
+}
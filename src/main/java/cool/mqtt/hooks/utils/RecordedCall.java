@@ -0,0 +1,690 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.QoS;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A callback recorded by a {@link HookRecorder}, along with its binary encoding.
+ *
+ * <p>Each record is made of the callback type, the arrival time (as a zig-zag encoded delta from
+ * the previous record), the duration, the outcome and the arguments of the callback. Integers are
+ * variable-length encoded, and strings are interned into a table shared by the whole recording, so
+ * that repeated session identifiers, client identifiers and topics take one or two bytes.
+ */
+final class RecordedCall {
+
+  static final int MAGIC = 0x4D514352;
+
+  static final int VERSION = 1;
+
+  static final byte RESOLVE_ALIAS = 0;
+
+  static final byte CAN_OPEN_SESSION = 1;
+
+  static final byte ON_SESSION_CLOSE = 2;
+
+  static final byte CAN_CONNECT = 3;
+
+  static final byte ON_DISCONNECTION = 4;
+
+  static final byte CAN_PUBLISH = 5;
+
+  static final byte CAN_SUBSCRIBE = 6;
+
+  static final byte ON_UNSUBSCRIBE = 7;
+
+  static final byte DENIED = 0;
+
+  static final byte ALLOWED = 1;
+
+  static final byte NOTIFIED = 2;
+
+  static final byte NOT_RESOLVED = 3;
+
+  static final byte RESOLVED = 4;
+
+  static final byte HOOK_EXCEPTION = 5;
+
+  static final byte RUNTIME_EXCEPTION = 6;
+
+  private static final String[] CALLBACK_NAMES = {"resolveAlias", "canOpenSession",
+      "onSessionClose", "canConnect", "onDisconnection", "canPublish", "canSubscribe",
+      "onUnsubscribe"};
+
+  byte callback;
+
+  long arrivalNanos;
+
+  long durationNanos;
+
+  byte outcome;
+
+  int errorCode;
+
+  String sessionId;
+
+  String clientId;
+
+  String brokerAddress;
+
+  /**
+   * The connection alias, topic name or topic filter, depending on the callback.
+   */
+  String target;
+
+  String user;
+
+  String password;
+
+  String clientPrincipal;
+
+  Map<String, String> clientContext;
+
+  QoS qos;
+
+  boolean retained;
+
+  boolean duplicate;
+
+  int payloadLength = -1;
+
+  long payloadHash;
+
+  RecordedOptions options;
+
+  static String callbackName(byte callback) {
+    return CALLBACK_NAMES[callback];
+  }
+
+  /**
+   * Gets the key which orders the replay of this call with respect to the other calls.
+   */
+  String orderingKey() {
+    return callback == RESOLVE_ALIAS ? target : sessionId;
+  }
+
+  /**
+   * Prepares the invocation of the recorded callback, generating the replayed Application Messages
+   * upfront, so that the time taken to generate them is not accounted to the Hook.
+   *
+   * @return the invocation, which can be run against any Hook
+   */
+  Invocation prepare() {
+    switch (callback) {
+      case RESOLVE_ALIAS:
+        return hook -> hook.resolveAlias(target) != null ? RESOLVED : NOT_RESOLVED;
+
+      case CAN_OPEN_SESSION:
+        return hook -> decision(hook.canOpenSession(sessionId, user, password, clientContext,
+            clientPrincipal));
+
+      case ON_SESSION_CLOSE:
+        return hook -> {
+          hook.onSessionClose(sessionId);
+          return NOTIFIED;
+        };
+
+      case CAN_CONNECT:
+        RecordedOptions generatedOptions = options.generate();
+        return hook -> decision(hook.canConnect(sessionId, clientId, brokerAddress,
+            generatedOptions));
+
+      case ON_DISCONNECTION:
+        return hook -> {
+          hook.onDisconnection(sessionId, clientId, brokerAddress);
+          return NOTIFIED;
+        };
+
+      case CAN_PUBLISH:
+        RecordedMessage message =
+            new RecordedMessage(target, qos, retained, duplicate, payloadLength, payloadHash)
+                .generate();
+        return hook -> decision(hook.canPublish(sessionId, clientId, brokerAddress, message));
+
+      case CAN_SUBSCRIBE:
+        RecordedSubscription subscription = new RecordedSubscription(target, qos);
+        return hook -> decision(hook.canSubscribe(sessionId, clientId, brokerAddress,
+            subscription));
+
+      case ON_UNSUBSCRIBE:
+        return hook -> {
+          hook.onUnsubscribe(sessionId, clientId, brokerAddress, target);
+          return NOTIFIED;
+        };
+
+      default:
+        throw new IllegalStateException("Unexpected callback: " + callback);
+    }
+  }
+
+  static byte decision(boolean authorized) {
+    return authorized ? ALLOWED : DENIED;
+  }
+
+  void write(Encoder out, long previousArrivalNanos) throws IOException {
+    out.out.writeByte(callback);
+    out.writeVarLong(zigZag(arrivalNanos - previousArrivalNanos));
+    out.writeVarLong(durationNanos);
+    out.out.writeByte(outcome);
+    if (outcome == HOOK_EXCEPTION) {
+      out.writeVarLong(errorCode);
+    }
+
+    switch (callback) {
+      case RESOLVE_ALIAS:
+        out.writeString(target);
+        break;
+
+      case CAN_OPEN_SESSION:
+        out.writeString(sessionId);
+        out.writeString(user);
+        out.writeString(password);
+        out.writeString(clientPrincipal);
+        out.writeVarLong(clientContext.size());
+        for (Map.Entry<String, String> entry : clientContext.entrySet()) {
+          out.writeString(entry.getKey());
+          out.writeString(entry.getValue());
+        }
+        break;
+
+      case ON_SESSION_CLOSE:
+        out.writeString(sessionId);
+        break;
+
+      case CAN_CONNECT:
+        writeConnection(out);
+        out.writeString(options.username);
+        out.writeString(options.password);
+        out.writeVarLong(options.connectionTimeout);
+        out.writeVarLong(options.keepAlive);
+        out.out.writeBoolean(options.cleanSession);
+        out.out.writeBoolean(options.willMessage != null);
+        if (options.willMessage != null) {
+          options.willMessage.write(out);
+        }
+        break;
+
+      case ON_DISCONNECTION:
+        writeConnection(out);
+        break;
+
+      case CAN_PUBLISH:
+        writeConnection(out);
+        new RecordedMessage(target, qos, retained, duplicate, payloadLength, payloadHash)
+            .write(out);
+        break;
+
+      case CAN_SUBSCRIBE:
+        writeConnection(out);
+        out.writeString(target);
+        out.out.writeByte(qos.getValue());
+        break;
+
+      case ON_UNSUBSCRIBE:
+        writeConnection(out);
+        out.writeString(target);
+        break;
+
+      default:
+        throw new IllegalStateException("Unexpected callback: " + callback);
+    }
+  }
+
+  static RecordedCall read(Decoder in, byte callback, long previousArrivalNanos)
+      throws IOException {
+
+    RecordedCall call = new RecordedCall();
+    if (callback < RESOLVE_ALIAS || callback > ON_UNSUBSCRIBE) {
+      throw new IOException("Invalid callback " + callback);
+    }
+    call.callback = callback;
+    call.arrivalNanos = previousArrivalNanos + unZigZag(in.readVarLong());
+    call.durationNanos = in.readVarLong();
+    call.outcome = in.in.readByte();
+    if (call.outcome == HOOK_EXCEPTION) {
+      call.errorCode = (int) in.readVarLong();
+    }
+
+    switch (callback) {
+      case RESOLVE_ALIAS:
+        call.target = in.readString();
+        break;
+
+      case CAN_OPEN_SESSION:
+        call.sessionId = in.readString();
+        call.user = in.readString();
+        call.password = in.readString();
+        call.clientPrincipal = in.readString();
+        int entries = (int) in.readVarLong();
+        Map<String, String> context = new LinkedHashMap<>();
+        for (int i = 0; i < entries; i++) {
+          context.put(in.readString(), in.readString());
+        }
+        call.clientContext = Collections.unmodifiableMap(context);
+        break;
+
+      case ON_SESSION_CLOSE:
+        call.sessionId = in.readString();
+        break;
+
+      case CAN_CONNECT:
+        call.readConnection(in);
+        RecordedOptions options = new RecordedOptions();
+        options.username = in.readString();
+        options.password = in.readString();
+        options.connectionTimeout = (int) in.readVarLong();
+        options.keepAlive = (int) in.readVarLong();
+        options.cleanSession = in.in.readBoolean();
+        options.willMessage = in.in.readBoolean() ? RecordedMessage.read(in) : null;
+        call.options = options;
+        break;
+
+      case ON_DISCONNECTION:
+        call.readConnection(in);
+        break;
+
+      case CAN_PUBLISH:
+        call.readConnection(in);
+        RecordedMessage message = RecordedMessage.read(in);
+        call.target = message.topicName;
+        call.qos = message.qos;
+        call.retained = message.retained;
+        call.duplicate = message.duplicate;
+        call.payloadLength = message.payloadLength;
+        call.payloadHash = message.payloadHash;
+        break;
+
+      case CAN_SUBSCRIBE:
+        call.readConnection(in);
+        call.target = in.readString();
+        call.qos = toQos(in.in.readByte());
+        break;
+
+      case ON_UNSUBSCRIBE:
+        call.readConnection(in);
+        call.target = in.readString();
+        break;
+
+      default:
+        throw new IllegalStateException("Unexpected callback: " + callback);
+    }
+    return call;
+  }
+
+  private void writeConnection(Encoder out) throws IOException {
+    out.writeString(sessionId);
+    out.writeString(clientId);
+    out.writeString(brokerAddress);
+  }
+
+  private void readConnection(Decoder in) throws IOException {
+    sessionId = in.readString();
+    clientId = in.readString();
+    brokerAddress = in.readString();
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static QoS toQos(int value) throws IOException {
+    for (QoS qos : QoS.values()) {
+      if (qos.getValue() == value) {
+        return qos;
+      }
+    }
+    throw new IOException("Invalid QoS " + value);
+  }
+
+  /**
+   * A recorded callback, ready to be invoked.
+   */
+  @FunctionalInterface
+  interface Invocation {
+
+    /**
+     * Invokes the recorded callback on the specified Hook.
+     *
+     * @return the outcome of the invocation
+     */
+    byte invoke(MQTTCoolHook hook) throws HookException;
+  }
+
+  /**
+   * Writes the variable-length integers and the interned strings of a recording.
+   *
+   * <p>A string is written as a variable-length tag: {@code 0} for {@code null}, {@code 1} for a
+   * string which follows inline, {@code 2} for a string which follows and enters the table, and
+   * {@code 3 + i} for the {@code i}-th string of the table. Once the table is full, new strings are
+   * written inline, which bounds the memory taken by both the recorder and the replayer.
+   */
+  static final class Encoder {
+
+    static final int MAX_INTERNED_STRINGS = 1 << 16;
+
+    final DataOutput out;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    Encoder(DataOutput out) {
+      this.out = out;
+    }
+
+    void writeVarLong(long value) throws IOException {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+        out.writeByte((int) (remaining & 0x7F) | 0x80);
+        remaining >>>= 7;
+      }
+      out.writeByte((int) remaining);
+    }
+
+    void writeString(String value) throws IOException {
+      if (value == null) {
+        writeVarLong(0);
+        return;
+      }
+
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeVarLong(3 + index);
+      } else if (strings.size() < MAX_INTERNED_STRINGS) {
+        strings.put(value, strings.size());
+        writeVarLong(2);
+        out.writeUTF(value);
+      } else {
+        writeVarLong(1);
+        out.writeUTF(value);
+      }
+    }
+  }
+
+  /**
+   * Reads what has been written by an {@link Encoder}.
+   */
+  static final class Decoder {
+
+    final DataInput in;
+
+    private final List<String> strings = new ArrayList<>();
+
+    Decoder(DataInput in) {
+      this.in = in;
+    }
+
+    long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed variable-length integer");
+    }
+
+    String readString() throws IOException {
+      long tag = readVarLong();
+      if (tag == 0) {
+        return null;
+      }
+      if (tag == 1) {
+        return in.readUTF();
+      }
+      if (tag == 2) {
+        if (strings.size() >= Encoder.MAX_INTERNED_STRINGS) {
+          throw new IOException("Too many interned strings");
+        }
+        String value = in.readUTF();
+        strings.add(value);
+        return value;
+      }
+      if (tag - 3 >= strings.size()) {
+        throw new IOException("Invalid string reference " + (tag - 3));
+      }
+      return strings.get((int) (tag - 3));
+    }
+  }
+
+  /**
+   * The recorded connection options, whose password, if any, is hashed.
+   */
+  static final class RecordedOptions implements MqttConnectOptions {
+
+    String username;
+
+    String password;
+
+    int connectionTimeout;
+
+    int keepAlive;
+
+    boolean cleanSession;
+
+    RecordedMessage willMessage;
+
+    /**
+     * Gets a copy of these options, whose will message, if any, carries its replayed Application
+     * Message.
+     */
+    RecordedOptions generate() {
+      RecordedOptions generated = new RecordedOptions();
+      generated.username = username;
+      generated.password = password;
+      generated.connectionTimeout = connectionTimeout;
+      generated.keepAlive = keepAlive;
+      generated.cleanSession = cleanSession;
+      generated.willMessage = willMessage != null ? willMessage.generate() : null;
+      return generated;
+    }
+
+    @Override
+    public String getUsername() {
+      return username;
+    }
+
+    @Override
+    public String getPassword() {
+      return password;
+    }
+
+    @Override
+    public int getConnectionTimeout() {
+      return connectionTimeout;
+    }
+
+    @Override
+    public int getKeepAlive() {
+      return keepAlive;
+    }
+
+    @Override
+    public MqttMessage getWillMessage() {
+      return willMessage;
+    }
+
+    @Override
+    public boolean isCleanSession() {
+      return cleanSession;
+    }
+  }
+
+  /**
+   * A recorded message, whose Application Message is only known by its length and keyed hash.
+   *
+   * <p>The replayed Application Message is a pseudo-random sequence of the recorded length, derived
+   * from the hash, so that messages with the same Application Message are replayed with the same
+   * bytes. It is only available from the copy returned by {@link #generate()}, which builds it
+   * once.
+   */
+  static final class RecordedMessage implements MqttMessage {
+
+    final String topicName;
+
+    final QoS qos;
+
+    final boolean retained;
+
+    final boolean duplicate;
+
+    final int payloadLength;
+
+    final long payloadHash;
+
+    private final byte[] payload;
+
+    RecordedMessage(String topicName, QoS qos, boolean retained, boolean duplicate,
+        int payloadLength, long payloadHash) {
+
+      this(topicName, qos, retained, duplicate, payloadLength, payloadHash, null);
+    }
+
+    private RecordedMessage(String topicName, QoS qos, boolean retained, boolean duplicate,
+        int payloadLength, long payloadHash, byte[] payload) {
+
+      this.topicName = topicName;
+      this.qos = qos;
+      this.retained = retained;
+      this.duplicate = duplicate;
+      this.payloadLength = payloadLength;
+      this.payloadHash = payloadHash;
+      this.payload = payload;
+    }
+
+    /**
+     * Gets a copy of this message which carries its replayed Application Message.
+     */
+    RecordedMessage generate() {
+      return new RecordedMessage(topicName, qos, retained, duplicate, payloadLength, payloadHash,
+          generatePayload());
+    }
+
+    @Override
+    public String getTopicName() {
+      return topicName;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the replayed Application Message, or {@code null} if it has not been generated
+     */
+    @Override
+    public byte[] getApplicationMessage() {
+      return payload;
+    }
+
+    private byte[] generatePayload() {
+      if (payloadLength < 0) {
+        return null;
+      }
+      byte[] payload = new byte[payloadLength];
+      long state = payloadHash;
+      long word = 0;
+      for (int i = 0; i < payloadLength; i++) {
+        if ((i & 7) == 0) {
+          state += 0x9E3779B97F4A7C15L;
+          word = Hashing.mix(state);
+        }
+        payload[i] = (byte) (word >>> ((i & 7) << 3));
+      }
+      return payload;
+    }
+
+    @Override
+    public QoS getQos() {
+      return qos;
+    }
+
+    @Override
+    public boolean isRetained() {
+      return retained;
+    }
+
+    @Override
+    public boolean isDuplicate() {
+      return duplicate;
+    }
+
+    void write(Encoder out) throws IOException {
+      out.writeString(topicName);
+      out.out.writeByte(qos.getValue() | (retained ? 0x10 : 0) | (duplicate ? 0x20 : 0));
+      out.writeVarLong(payloadLength + 1L);
+      if (payloadLength >= 0) {
+        out.out.writeLong(payloadHash);
+      }
+    }
+
+    static RecordedMessage read(Decoder in) throws IOException {
+      String topicName = in.readString();
+      int flags = in.in.readUnsignedByte();
+      long length = in.readVarLong() - 1;
+      if (length > Integer.MAX_VALUE - 8) {
+        throw new IOException("Invalid length " + length);
+      }
+      long hash = length >= 0 ? in.in.readLong() : 0;
+      return new RecordedMessage(topicName, toQos(flags & 0x0F), (flags & 0x10) != 0,
+          (flags & 0x20) != 0, (int) length, hash);
+    }
+  }
+
+  /**
+   * A recorded subscription.
+   */
+  static final class RecordedSubscription implements MqttSubscription {
+
+    private final String topicFilter;
+
+    private final QoS qos;
+
+    RecordedSubscription(String topicFilter, QoS qos) {
+      this.topicFilter = topicFilter;
+      this.qos = qos;
+    }
+
+    @Override
+    public String getTopicFilter() {
+      return topicFilter;
+    }
+
+    @Override
+    public QoS getQos() {
+      return qos;
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of the replay of a recording through a {@link HookReplayer}.
+ *
+ * <p>Latencies are measured around each single call to the Hook, excluding the time spent waiting
+ * for a worker thread, and are reported along with the ones of the original calls, so that the two
+ * Hooks can be compared directly.
+ */
+public final class ReplayReport {
+
+  private final long calls;
+
+  private final long elapsedNanos;
+
+  private final LatencyHistogram latencies;
+
+  private final LatencyHistogram recordedLatencies;
+
+  private final long mismatches;
+
+  private final long errors;
+
+  ReplayReport(long calls, long elapsedNanos, LatencyHistogram latencies,
+      LatencyHistogram recordedLatencies, long mismatches, long errors) {
+
+    this.calls = calls;
+    this.elapsedNanos = elapsedNanos;
+    this.latencies = latencies;
+    this.recordedLatencies = recordedLatencies;
+    this.mismatches = mismatches;
+    this.errors = errors;
+  }
+
+  /**
+   * Gets the number of replayed calls.
+   *
+   * @return the number of calls
+   */
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * Gets the time taken by the whole replay.
+   *
+   * @param unit the time unit of the returned value
+   * @return the elapsed time
+   */
+  public long getElapsed(TimeUnit unit) {
+    return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the number of calls completed per second.
+   *
+   * @return the throughput of the replay
+   */
+  public double getThroughput() {
+    return elapsedNanos > 0 ? calls * 1e9 / elapsedNanos : 0;
+  }
+
+  /**
+   * Gets the approximated latency below which the specified fraction of the replayed calls
+   * completed.
+   *
+   * @param fraction the fraction, between {@code 0} and {@code 1} (for example, {@code 0.99})
+   * @param unit the time unit of the returned value
+   * @return the latency percentile
+   */
+  public long getLatency(double fraction, TimeUnit unit) {
+    return unit.convert(latencies.percentile(fraction), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the approximated latency below which the specified fraction of the recorded calls
+   * completed.
+   *
+   * @param fraction the fraction, between {@code 0} and {@code 1} (for example, {@code 0.99})
+   * @param unit the time unit of the returned value
+   * @return the latency percentile
+   */
+  public long getRecordedLatency(double fraction, TimeUnit unit) {
+    return unit.convert(recordedLatencies.percentile(fraction), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the number of calls whose outcome differs from the recorded one, for example a message
+   * refused by the replayed Hook but authorized in the recording.
+   *
+   * @return the number of calls with a different outcome
+   */
+  public long getMismatches() {
+    return mismatches;
+  }
+
+  /**
+   * Gets the number of calls which threw an unchecked exception.
+   *
+   * @return the number of calls which threw an unchecked exception
+   */
+  public long getErrors() {
+    return errors;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ReplayReport [calls=%d, elapsed=%dms, throughput=%.1f/s, "
+        + "p50=%dus, p99=%dus, recordedP50=%dus, recordedP99=%dus, mismatches=%d, errors=%d]",
+        calls, getElapsed(TimeUnit.MILLISECONDS), getThroughput(),
+        getLatency(0.5, TimeUnit.MICROSECONDS), getLatency(0.99, TimeUnit.MICROSECONDS),
+        getRecordedLatency(0.5, TimeUnit.MICROSECONDS),
+        getRecordedLatency(0.99, TimeUnit.MICROSECONDS), mismatches, errors);
+  }
+
+}
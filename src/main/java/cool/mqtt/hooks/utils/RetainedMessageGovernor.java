@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helper class to cap the number of retained messages, and the bytes they take, which each user
+ * can leave on the MQTT brokers, as well as the totals held by each MQTT broker.
+ *
+ * <p>The Hook is expected to invoke {@link #tryPublish(String, String, MqttMessage)} from
+ * {@code canPublish}, as the last check before authorizing the message, and to refuse the message
+ * if the method returns {@code false}.
+ *
+ * <p>Retained messages are tracked in an index keyed by MQTT broker and topic name, which records
+ * the user who published the last retained message on each topic, along with the size of its
+ * Application Message: that user is charged for the topic, until either another user replaces the
+ * message, or an empty retained message clears the topic. The index holds at most
+ * {@code maxIndexedTopics} topics overall: once it is full, retained messages to topics not indexed
+ * yet are refused, so that the quotas are never underestimated.
+ *
+ * <p>Messages which are not retained are never refused and take no lock. Retained messages to the
+ * same MQTT broker are serialized.
+ *
+ * <p>Sessions opened without a username share the quotas of the anonymous user, identified by the
+ * empty string.
+ */
+public class RetainedMessageGovernor {
+
+  private final ConcurrentMap<String, BrokerIndex> brokers = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Usage> users = new ConcurrentHashMap<>();
+
+  private final AtomicInteger indexedTopics = new AtomicInteger();
+
+  private final LongAdder refusedPublishes = new LongAdder();
+
+  private final int maxTopicsPerUser;
+
+  private final long maxBytesPerUser;
+
+  private final int maxTopicsPerBroker;
+
+  private final long maxBytesPerBroker;
+
+  private final int maxIndexedTopics;
+
+  /**
+   * Creates a {@code RetainedMessageGovernor} with the specified quotas.
+   *
+   * @param maxTopicsPerUser the maximum number of topics on which a user can hold a retained
+   *        message, over all the MQTT brokers
+   * @param maxBytesPerUser the maximum total size of the Application Messages of the retained
+   *        messages held by a user, over all the MQTT brokers
+   * @param maxTopicsPerBroker the maximum number of topics holding a retained message on each MQTT
+   *        broker
+   * @param maxBytesPerBroker the maximum total size of the Application Messages of the retained
+   *        messages held by each MQTT broker
+   * @param maxIndexedTopics the maximum number of topics kept in the index, which bounds its memory
+   *        footprint
+   * @throws IllegalArgumentException if any of the arguments is negative, or
+   *         {@code maxIndexedTopics} is not positive
+   */
+  public RetainedMessageGovernor(int maxTopicsPerUser, long maxBytesPerUser,
+      int maxTopicsPerBroker, long maxBytesPerBroker, int maxIndexedTopics) {
+
+    if (maxTopicsPerUser < 0 || maxBytesPerUser < 0 || maxTopicsPerBroker < 0
+        || maxBytesPerBroker < 0) {
+      throw new IllegalArgumentException("Invalid quotas");
+    }
+    if (maxIndexedTopics <= 0) {
+      throw new IllegalArgumentException("Invalid maximum number of indexed topics");
+    }
+    this.maxTopicsPerUser = maxTopicsPerUser;
+    this.maxBytesPerUser = maxBytesPerUser;
+    this.maxTopicsPerBroker = maxTopicsPerBroker;
+    this.maxBytesPerBroker = maxBytesPerBroker;
+    this.maxIndexedTopics = maxIndexedTopics;
+  }
+
+  /**
+   * Checks whether the specified message can be published without exceeding the quotas and, if it
+   * is the case, charges it to the user.
+   *
+   * <p>Messages which are not retained are always allowed. An empty retained message, which clears
+   * the retained message of its topic, is always allowed too and releases the topic.
+   *
+   * @param user the username of the publishing session, or {@code null} for an anonymous session
+   * @param brokerAddress the address of the MQTT broker connected to
+   * @param message the message being requested to be published
+   * @return {@code true} if the message can be published
+   */
+  public boolean tryPublish(String user, String brokerAddress, MqttMessage message) {
+    if (!message.isRetained()) {
+      return true;
+    }
+
+    byte[] applicationMessage = message.getApplicationMessage();
+    int size = applicationMessage != null ? applicationMessage.length : 0;
+    BrokerIndex broker = brokers.computeIfAbsent(brokerAddress, address -> new BrokerIndex());
+    boolean allowed = size == 0 ? broker.clear(message.getTopicName())
+        : broker.retain(user, message.getTopicName(), size);
+    if (!allowed) {
+      refusedPublishes.increment();
+    }
+    return allowed;
+  }
+
+  /**
+   * Forgets all the retained messages tracked for the specified MQTT broker, for example because
+   * its retained store has been wiped, and releases the quotas they took.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   */
+  public void clearBroker(String brokerAddress) {
+    BrokerIndex broker = brokers.get(brokerAddress);
+    if (broker != null) {
+      broker.clearAll();
+    }
+  }
+
+  /**
+   * Gets the number of topics on which the specified user holds a retained message.
+   *
+   * @param user the username, or {@code null} for the anonymous user
+   * @return the number of topics
+   */
+  public int getUserTopics(String user) {
+    Usage usage = users.get(userKey(user));
+    return usage != null ? usage.topics() : 0;
+  }
+
+  /**
+   * Gets the total size of the Application Messages of the retained messages held by the specified
+   * user.
+   *
+   * @param user the username, or {@code null} for the anonymous user
+   * @return the total size in bytes
+   */
+  public long getUserBytes(String user) {
+    Usage usage = users.get(userKey(user));
+    return usage != null ? usage.bytes() : 0;
+  }
+
+  /**
+   * Gets the number of topics holding a retained message on the specified MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   * @return the number of topics
+   */
+  public int getBrokerTopics(String brokerAddress) {
+    BrokerIndex broker = brokers.get(brokerAddress);
+    return broker != null ? broker.usage.topics() : 0;
+  }
+
+  /**
+   * Gets the total size of the Application Messages of the retained messages held by the specified
+   * MQTT broker.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   * @return the total size in bytes
+   */
+  public long getBrokerBytes(String brokerAddress) {
+    BrokerIndex broker = brokers.get(brokerAddress);
+    return broker != null ? broker.usage.bytes() : 0;
+  }
+
+  /**
+   * Gets the number of topics currently kept in the index.
+   *
+   * @return the number of indexed topics
+   */
+  public int getIndexedTopics() {
+    return indexedTopics.get();
+  }
+
+  /**
+   * Gets the number of retained messages refused so far.
+   *
+   * @return the number of refused messages
+   */
+  public long getRefusedPublishes() {
+    return refusedPublishes.sum();
+  }
+
+  private static String userKey(String user) {
+    return user != null ? user : "";
+  }
+
+  /**
+   * The number of topics and bytes charged to a user or to an MQTT broker, guarded by its own
+   * monitor.
+   */
+  private static final class Usage {
+
+    private int topics;
+
+    private long bytes;
+
+    synchronized int topics() {
+      return topics;
+    }
+
+    synchronized long bytes() {
+      return bytes;
+    }
+
+    synchronized boolean tryAdd(int topicsDelta, long bytesDelta, int maxTopics, long maxBytes) {
+      if ((topicsDelta > 0 && topics + topicsDelta > maxTopics)
+          || (bytesDelta > 0 && bytes + bytesDelta > maxBytes)) {
+        return false;
+      }
+      topics += topicsDelta;
+      bytes += bytesDelta;
+      return true;
+    }
+
+    synchronized void subtract(int topicsDelta, long bytesDelta) {
+      topics -= topicsDelta;
+      bytes -= bytesDelta;
+    }
+  }
+
+  private static final class Retained {
+
+    final String userKey;
+
+    final int size;
+
+    Retained(String userKey, int size) {
+      this.userKey = userKey;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The retained messages tracked for an MQTT broker, whose monitor serializes the updates; the
+   * monitors of the users are always acquired while holding it.
+   */
+  private final class BrokerIndex {
+
+    final Map<String, Retained> topics = new HashMap<>();
+
+    final Usage usage = new Usage();
+
+    synchronized boolean retain(String user, String topic, int size) {
+      String userKey = userKey(user);
+      Retained previous = topics.get(topic);
+      if (previous == null && !tryIndex()) {
+        return false;
+      }
+
+      int topicsDelta = previous == null ? 1 : 0;
+      long bytesDelta = previous == null ? size : size - previous.size;
+      if (!usage.tryAdd(topicsDelta, bytesDelta, maxTopicsPerBroker, maxBytesPerBroker)) {
+        unindex(previous);
+        return false;
+      }
+
+      Usage owner = users.computeIfAbsent(userKey, key -> new Usage());
+      boolean sameOwner = previous != null && previous.userKey.equals(userKey);
+      boolean charged = sameOwner
+          ? owner.tryAdd(0, bytesDelta, maxTopicsPerUser, maxBytesPerUser)
+          : owner.tryAdd(1, size, maxTopicsPerUser, maxBytesPerUser);
+      if (!charged) {
+        usage.subtract(topicsDelta, bytesDelta);
+        unindex(previous);
+        return false;
+      }
+
+      if (previous != null && !sameOwner) {
+        users.get(previous.userKey).subtract(1, previous.size);
+      }
+      topics.put(topic, new Retained(userKey, size));
+      return true;
+    }
+
+    synchronized boolean clear(String topic) {
+      Retained previous = topics.remove(topic);
+      if (previous != null) {
+        release(previous);
+      }
+      return true;
+    }
+
+    synchronized void clearAll() {
+      for (Retained retained : topics.values()) {
+        release(retained);
+      }
+      topics.clear();
+    }
+
+    private void release(Retained retained) {
+      usage.subtract(1, retained.size);
+      users.get(retained.userKey).subtract(1, retained.size);
+      indexedTopics.decrementAndGet();
+    }
+
+    private boolean tryIndex() {
+      return QuotaUsage.tryIncrement(indexedTopics, maxIndexedTopics);
+    }
+
+    private void unindex(Retained previous) {
+      if (previous == null) {
+        indexedTopics.decrementAndGet();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper class to limit the number of sessions concurrently opened by the same user, possibly
+ * across several MQTT&#46;Cool nodes sharing the same {@link CounterStore}.
+ *
+ * <p>The Hook is expected to invoke {@link #tryOpen(String, String)} from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canOpenSession(String, String, String, java.util.Map,
+ * String)}, and {@link #close(String)} from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#onSessionClose(String)}.
+ *
+ * <p>Sessions whose release fails because the store can not be reached are not forgotten: the
+ * release is retried before the next session of the same user is accounted.
+ */
+public class SessionCountLimiter {
+
+  private static final String KEY_PREFIX = "sessions:";
+
+  private final CounterStore store;
+
+  private final int maxSessionsPerUser;
+
+  private final ConcurrentMap<String, String> sessionKeys = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, AtomicLong> pendingReleases = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a {@code SessionCountLimiter} backed by the specified store.
+   *
+   * @param store the store holding the session counts
+   * @param maxSessionsPerUser the maximum number of sessions a user can open concurrently
+   */
+  public SessionCountLimiter(CounterStore store, int maxSessionsPerUser) {
+    this.store = store;
+    this.maxSessionsPerUser = maxSessionsPerUser;
+  }
+
+  /**
+   * Tries to account for a new session opened by the specified user.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param user the username of the user opening the session; {@code null} is accounted as an
+   *        anonymous user, which shares the limit with all other anonymous sessions
+   * @return {@code true} if the session can be opened without exceeding the limit
+   * @throws IOException if the store can not be reached
+   */
+  public boolean tryOpen(String sessionId, String user) throws IOException {
+    String key = KEY_PREFIX + (user != null ? user : "");
+    retryPendingReleases(key);
+    if (!store.tryAcquire(key, maxSessionsPerUser)) {
+      return false;
+    }
+
+    String previous = sessionKeys.put(sessionId, key);
+    if (previous != null) {
+      // The same session has been authorized twice: do not count it again.
+      release(previous);
+    }
+    return true;
+  }
+
+  /**
+   * Releases the session previously accounted through {@link #tryOpen(String, String)}.
+   *
+   * <p>Unknown sessions are ignored, so that the method can be safely invoked also for sessions
+   * which have been refused.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @throws IOException if the store can not be reached
+   */
+  public void close(String sessionId) throws IOException {
+    String key = sessionKeys.remove(sessionId);
+    if (key != null) {
+      release(key);
+    }
+  }
+
+  private void release(String key) throws IOException {
+    boolean released = false;
+    try {
+      store.release(key);
+      released = true;
+    } finally {
+      if (!released) {
+        pendingReleases.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+      }
+    }
+  }
+
+  private void retryPendingReleases(String key) throws IOException {
+    AtomicLong pending = pendingReleases.get(key);
+    if (pending == null) {
+      return;
+    }
+    for (long count = pending.get(); count > 0; count = pending.get()) {
+      if (pending.compareAndSet(count, count - 1)) {
+        // On failure, the release is accounted as pending again.
+        release(key);
+      }
+    }
+    pendingReleases.computeIfPresent(key, (k, current) -> current.get() == 0 ? null : current);
+  }
+
+  /**
+   * Gets the number of sessions concurrently opened by the specified user.
+   *
+   * @param user the username
+   * @return the number of open sessions
+   * @throws IOException if the store can not be reached
+   */
+  public long getSessionCount(String user) throws IOException {
+    return store.get(KEY_PREFIX + (user != null ? user : ""));
+  }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An executor which runs the tasks related to the same session in submission order, and the tasks
+ * related to different sessions in parallel, so that the Hook logic offloaded from the
+ * MQTT&#46;Cool server threads (for example, the bookkeeping of {@code canSubscribe} and the
+ * matching {@code onUnsubscribe}) needs no per-session locking.
+ *
+ * <p>Tasks are partitioned into stripes by session identifier, each one with its own bounded queue
+ * and worker thread. Queues are lock-free ring buffers, which many threads can submit to
+ * concurrently, and an idle worker is parked until a task is submitted to its stripe. A task
+ * submitted to a full queue is rejected at once, rather than blocking the submitting thread.
+ *
+ * <p>A task which throws an exception or an error does not affect the tasks which follow it, nor
+ * stops the worker thread of its stripe. A task may also close the executor, in which case the
+ * tasks already queued are still run, in order, by the worker threads before they stop.
+ */
+public class SessionOrderedExecutor implements Closeable {
+
+  private final Stripe[] stripes;
+
+  private final LongAdder completedTasks = new LongAdder();
+
+  private final LongAdder failedTasks = new LongAdder();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a {@code SessionOrderedExecutor} with the specified number of stripes.
+   *
+   * @param stripes the number of stripes, and therefore of worker threads; typically, the number of
+   *        available cores
+   * @param queueCapacity the capacity of the queue of each stripe, rounded up to the next power of
+   *        two
+   * @throws IllegalArgumentException if {@code stripes} or {@code queueCapacity} are not positive
+   *         integers, or {@code queueCapacity} exceeds {@code 2^30}
+   */
+  public SessionOrderedExecutor(int stripes, int queueCapacity) {
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("Invalid stripes");
+    }
+    if (queueCapacity <= 0 || queueCapacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid queue capacity");
+    }
+
+    int capacity = Integer.highestOneBit(queueCapacity - 1) << 1;
+    this.stripes = new Stripe[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Stripe(Math.max(capacity, 1), "mqtt-cool-hook-worker-" + i);
+    }
+  }
+
+  /**
+   * Submits a task related to the specified session, to be run after all the tasks previously
+   * submitted for the same session.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param task the task
+   * @throws RejectedExecutionException if the queue of the stripe of the session is full, or this
+   *         executor has been closed
+   */
+  public void execute(String sessionId, Runnable task) {
+    Stripe stripe = stripe(sessionId);
+    // Announced before checking the closed flag, so that the worker does not stop while the task
+    // is being queued.
+    stripe.submitters.incrementAndGet();
+    try {
+      if (closed) {
+        throw new RejectedExecutionException("Executor closed");
+      }
+      if (!stripe.offer(task)) {
+        throw new RejectedExecutionException("Queue full");
+      }
+      stripe.signal();
+    } finally {
+      stripe.submitters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Submits a task related to the specified session, to be run after all the tasks previously
+   * submitted for the same session, and returns a future completed with its result.
+   *
+   * @param <T> the type of the result of the task
+   * @param sessionId the unique identifier of the client session
+   * @param task the task
+   * @return the future result of the task
+   * @throws RejectedExecutionException if the queue of the stripe of the session is full, or this
+   *         executor has been closed
+   */
+  public <T> CompletableFuture<T> submit(String sessionId, Callable<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    execute(sessionId, () -> {
+      try {
+        future.complete(task.call());
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+        if (t instanceof Error) {
+          throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Gets the number of tasks waiting to be run.
+   *
+   * @return the number of queued tasks
+   */
+  public int getQueuedTasks() {
+    int queued = 0;
+    for (Stripe stripe : stripes) {
+      queued += stripe.size();
+    }
+    return queued;
+  }
+
+  /**
+   * Gets the number of tasks run so far, including the failed ones.
+   *
+   * @return the number of completed tasks
+   */
+  public long getCompletedTasks() {
+    return completedTasks.sum();
+  }
+
+  /**
+   * Gets the number of tasks which have thrown an exception so far.
+   *
+   * @return the number of failed tasks
+   */
+  public long getFailedTasks() {
+    return failedTasks.sum();
+  }
+
+  /**
+   * Stops the worker threads, after all the queued tasks have been run.
+   *
+   * <p>Tasks submitted afterwards are rejected. If invoked by a task, returns at once, without
+   * waiting for the worker threads, which stop as soon as their queues have been run.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    for (Stripe stripe : stripes) {
+      LockSupport.unpark(stripe.thread);
+    }
+    for (Stripe stripe : stripes) {
+      if (Thread.currentThread() == stripe.thread) {
+        return;
+      }
+    }
+
+    boolean interrupted = false;
+    for (Stripe stripe : stripes) {
+      while (stripe.thread.isAlive()) {
+        try {
+          stripe.thread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Stripe stripe(String sessionId) {
+    int h = sessionId.hashCode();
+    h ^= h >>> 16;
+    return stripes[(h & 0x7FFFFFFF) % stripes.length];
+  }
+
+  private void run(Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable t) {
+      failedTasks.increment();
+    } finally {
+      completedTasks.increment();
+    }
+  }
+
+  /**
+   * A stripe, whose queue is a bounded multi-producer single-consumer ring buffer, in which each
+   * slot carries a sequence number telling whether it is free for the producer at a given position
+   * or filled for the consumer.
+   */
+  private final class Stripe implements Runnable {
+
+    final AtomicReferenceArray<Runnable> tasks;
+
+    final AtomicLongArray sequences;
+
+    final int mask;
+
+    final AtomicLong tail = new AtomicLong();
+
+    // Only written by the consumer, that is the worker thread.
+    volatile long head;
+
+    // The number of threads in the middle of a submission to this stripe.
+    final AtomicInteger submitters = new AtomicInteger();
+
+    volatile boolean parked;
+
+    final Thread thread;
+
+    Stripe(int capacity, String name) {
+      this.tasks = new AtomicReferenceArray<>(capacity);
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        sequences.set(i, i);
+      }
+      this.mask = capacity - 1;
+      this.thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    boolean offer(Runnable task) {
+      long position = tail.get();
+      for (;;) {
+        int index = (int) position & mask;
+        long difference = sequences.get(index) - position;
+        if (difference == 0) {
+          if (tail.compareAndSet(position, position + 1)) {
+            tasks.lazySet(index, task);
+            // A volatile write, ordered before the read of the parked flag in signal().
+            sequences.set(index, position + 1);
+            return true;
+          }
+          position = tail.get();
+        } else if (difference < 0) {
+          return false;
+        } else {
+          position = tail.get();
+        }
+      }
+    }
+
+    Runnable poll() {
+      long position = head;
+      int index = (int) position & mask;
+      if (sequences.get(index) != position + 1) {
+        return null;
+      }
+      Runnable task = tasks.get(index);
+      tasks.lazySet(index, null);
+      sequences.lazySet(index, position + mask + 1);
+      head = position + 1;
+      return task;
+    }
+
+    int size() {
+      return (int) Math.max(tail.get() - head, 0);
+    }
+
+    void signal() {
+      if (parked) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run() {
+      for (;;) {
+        Runnable task = poll();
+        if (task != null) {
+          SessionOrderedExecutor.this.run(task);
+          continue;
+        }
+        if (closed) {
+          // Stop only when no submission accepted before closing can still be queued.
+          if (submitters.get() == 0 && size() == 0) {
+            return;
+          }
+          Thread.yield();
+          continue;
+        }
+
+        parked = true;
+        // Check again, as a task may have been submitted before the flag was visible.
+        if (size() == 0 && !closed) {
+          LockSupport.park(this);
+        }
+        parked = false;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the {@link TopicPermissions} attached to each session, so that the effective
+ * permissions of a user are resolved (for example, by expanding roles and ACL entries) only once
+ * per session.
+ *
+ * <p>The Hook is expected to:
+ * <ul>
+ * <li>compile the permissions of the user and {@link #attach(String, TopicPermissions)} them from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canOpenSession(String, String, String, java.util.Map,
+ * String)};</li>
+ * <li>check them through {@link #canPublish(String, String)} and
+ * {@link #canSubscribe(String, String)} from the corresponding callbacks;</li>
+ * <li>{@link #detach(String)} them from {@link cool.mqtt.hooks.MQTTCoolHook#onSessionClose(String)}.
+ * </li>
+ * </ul>
+ *
+ * <p>Sessions without attached permissions are denied everything.
+ *
+ * <p>This class is thread safe.
+ */
+public class SessionPermissions {
+
+  private final ConcurrentMap<String, TopicPermissions> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Attaches the specified permissions to a session, replacing the ones attached previously.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param permissions the compiled permissions of the user owning the session
+   */
+  public void attach(String sessionId, TopicPermissions permissions) {
+    sessions.put(sessionId, permissions);
+  }
+
+  /**
+   * Drops the permissions attached to the specified session.
+   *
+   * @param sessionId the unique identifier of the client session
+   */
+  public void detach(String sessionId) {
+    sessions.remove(sessionId);
+  }
+
+  /**
+   * Gets the permissions attached to the specified session.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @return the attached permissions, or {@link TopicPermissions#NONE} if no permissions are
+   *         attached
+   */
+  public TopicPermissions get(String sessionId) {
+    TopicPermissions permissions = sessions.get(sessionId);
+    return permissions != null ? permissions : TopicPermissions.NONE;
+  }
+
+  /**
+   * Checks whether the specified session is allowed to publish to the given topic.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param topicName the topic name
+   * @return {@code true} if publishing is allowed
+   * @see TopicPermissions#canPublish(String)
+   */
+  public boolean canPublish(String sessionId, String topicName) {
+    return get(sessionId).canPublish(topicName);
+  }
+
+  /**
+   * Checks whether the specified session is allowed to subscribe to the given topic filter.
+   *
+   * @param sessionId the unique identifier of the client session
+   * @param topicFilter the topic filter
+   * @return {@code true} if subscribing is allowed
+   * @see TopicPermissions#canSubscribe(String)
+   */
+  public boolean canSubscribe(String sessionId, String topicFilter) {
+    return get(sessionId).canSubscribe(topicFilter);
+  }
+
+  /**
+   * Gets the number of sessions with attached permissions.
+   *
+   * @return the number of sessions
+   */
+  public int size() {
+    return sessions.size();
+  }
+
+}
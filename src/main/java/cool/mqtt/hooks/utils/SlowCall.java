@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Hook invocation which took longer than the configured threshold, as recorded by a
+ * {@link SlowCallDetector}.
+ *
+ * <p>Only the routing arguments of the invocation are retained: the application message of a
+ * published message is never stored, and only its size is reported.
+ */
+public final class SlowCall {
+
+  private final String callback;
+
+  private final String threadName;
+
+  private final long startTime;
+
+  private final long durationNanos;
+
+  private final String sessionId;
+
+  private final String clientId;
+
+  private final String brokerAddress;
+
+  private final String topic;
+
+  private final int payloadSize;
+
+  private final StackTraceElement[] stackTrace;
+
+  SlowCall(String callback, String threadName, long startTime, long durationNanos,
+      String sessionId, String clientId, String brokerAddress, String topic, int payloadSize,
+      StackTraceElement[] stackTrace) {
+
+    this.callback = callback;
+    this.threadName = threadName;
+    this.startTime = startTime;
+    this.durationNanos = durationNanos;
+    this.sessionId = sessionId;
+    this.clientId = clientId;
+    this.brokerAddress = brokerAddress;
+    this.topic = topic;
+    this.payloadSize = payloadSize;
+    this.stackTrace = stackTrace;
+  }
+
+  /**
+   * Gets the name of the invoked callback.
+   *
+   * @return the name of the callback, as declared by {@link cool.mqtt.hooks.MQTTCoolHook}
+   */
+  public String getCallback() {
+    return callback;
+  }
+
+  /**
+   * Gets the name of the thread which performed the invocation.
+   *
+   * @return the thread name
+   */
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * Gets the time at which the invocation started.
+   *
+   * @return the start time, expressed in milliseconds since the epoch
+   */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  /**
+   * Gets the duration of the invocation.
+   *
+   * @param unit the time unit of the returned value
+   * @return the duration of the invocation
+   */
+  public long getDuration(TimeUnit unit) {
+    return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the session identifier passed to the callback.
+   *
+   * @return the session identifier, or {@code null} if not applicable
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Gets the client identifier passed to the callback.
+   *
+   * @return the client identifier, or {@code null} if not applicable
+   */
+  public String getClientId() {
+    return clientId;
+  }
+
+  /**
+   * Gets the MQTT broker address (or the connection alias, for {@code resolveAlias}) passed to the
+   * callback.
+   *
+   * @return the MQTT broker address, or {@code null} if not applicable
+   */
+  public String getBrokerAddress() {
+    return brokerAddress;
+  }
+
+  /**
+   * Gets the topic name or topic filter passed to the callback.
+   *
+   * @return the topic name or filter, or {@code null} if not applicable
+   */
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * Gets the size of the application message passed to {@code canPublish}.
+   *
+   * @return the size of the application message in bytes, or {@code -1} if not applicable
+   */
+  public int getPayloadSize() {
+    return payloadSize;
+  }
+
+  /**
+   * Gets the stack trace sampled while the invocation was exceeding the threshold.
+   *
+   * @return the sampled stack trace, or an empty array if the invocation completed before it
+   *         could be sampled
+   */
+  public StackTraceElement[] getStackTrace() {
+    return stackTrace.clone();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder()
+        .append(callback)
+        .append(" took ").append(TimeUnit.NANOSECONDS.toMillis(durationNanos)).append(" ms")
+        .append(" [thread=").append(threadName)
+        .append(", sessionId=").append(sessionId)
+        .append(", clientId=").append(clientId)
+        .append(", brokerAddress=").append(brokerAddress)
+        .append(", topic=").append(topic);
+    if (payloadSize >= 0) {
+      builder.append(", payload=<").append(payloadSize).append(" bytes>");
+    }
+    builder.append(']');
+    for (StackTraceElement element : stackTrace) {
+      builder.append("\n\tat ").append(element);
+    }
+    return builder.toString();
+  }
+
+  static StackTraceElement[] trim(StackTraceElement[] stackTrace, int maxDepth) {
+    return stackTrace.length > maxDepth ? Arrays.copyOf(stackTrace, maxDepth) : stackTrace;
+  }
+
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Hook decorator which detects the invocations taking longer than a per-callback threshold, in
+ * order to spot lock contention and I/O stalls inside the Hook code.
+ *
+ * <p>Every in-flight invocation is tracked without allocating on the calling thread, except for
+ * the copy of the payload which {@link MqttMessage#getApplicationMessage()} may make when
+ * {@code canPublish} reads its length. A watchdog thread periodically scans the in-flight
+ * invocations and, as soon as one exceeds its threshold, samples the stack of the invoking thread:
+ * each invocation is sampled at most once, and the sampled stack is truncated to
+ * {@value #MAX_STACK_DEPTH} frames, so as to bound the overhead.
+ *
+ * <p>The slowest invocations are kept, along with their arguments and sampled stacks, and can be
+ * retrieved through {@link #getSlowCalls()}. Application messages are never retained.
+ */
+public class SlowCallDetector extends ForwardingCoolHook implements Closeable {
+
+  /**
+   * The maximum number of frames kept for each sampled stack.
+   */
+  public static final int MAX_STACK_DEPTH = 64;
+
+  private static final String[] CALLBACKS = {"resolveAlias", "canOpenSession", "onSessionClose",
+      "canConnect", "onDisconnection", "canPublish", "canSubscribe", "onUnsubscribe"};
+
+  private static final int RESOLVE_ALIAS = 0;
+
+  private static final int CAN_OPEN_SESSION = 1;
+
+  private static final int ON_SESSION_CLOSE = 2;
+
+  private static final int CAN_CONNECT = 3;
+
+  private static final int ON_DISCONNECTION = 4;
+
+  private static final int CAN_PUBLISH = 5;
+
+  private static final int CAN_SUBSCRIBE = 6;
+
+  private static final int ON_UNSUBSCRIBE = 7;
+
+  private static final long MIN_SCAN_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final long MAX_SCAN_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final StackTraceElement[] NO_STACK = new StackTraceElement[0];
+
+  private static final Comparator<SlowCall> BY_DURATION =
+      Comparator.comparingLong(call -> call.getDuration(TimeUnit.NANOSECONDS));
+
+  private final AtomicLongArray thresholds = new AtomicLongArray(CALLBACKS.length);
+
+  private final int maxSlowCalls;
+
+  private final PriorityQueue<SlowCall> slowest;
+
+  private final LongAdder slowCallCount = new LongAdder();
+
+  private final List<InFlight> inFlights = new CopyOnWriteArrayList<>();
+
+  private final ThreadLocal<InFlight> currentInFlight = ThreadLocal.withInitial(() -> {
+    InFlight inFlight = new InFlight(Thread.currentThread());
+    inFlights.add(inFlight);
+    return inFlight;
+  });
+
+  private final Thread watchdog;
+
+  private volatile long scanPeriodNanos;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a {@code SlowCallDetector} which applies the same threshold to all the callbacks.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param threshold the duration above which an invocation is considered slow
+   * @param unit the time unit of {@code threshold}
+   * @param maxSlowCalls the number of slowest invocations to keep
+   * @throws IllegalArgumentException if {@code threshold} or {@code maxSlowCalls} are not positive
+   */
+  public SlowCallDetector(MQTTCoolHook delegate, long threshold, TimeUnit unit,
+      int maxSlowCalls) {
+
+    super(delegate);
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Invalid threshold");
+    }
+    if (maxSlowCalls <= 0) {
+      throw new IllegalArgumentException("Invalid maxSlowCalls");
+    }
+
+    this.maxSlowCalls = maxSlowCalls;
+    this.slowest = new PriorityQueue<>(maxSlowCalls, BY_DURATION);
+    for (int i = 0; i < CALLBACKS.length; i++) {
+      thresholds.set(i, unit.toNanos(threshold));
+    }
+    updateScanPeriod();
+
+    this.watchdog = new Thread(this::watch, "mqtt-cool-hook-watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  /**
+   * Sets the threshold for the specified callback.
+   *
+   * @param callback the name of the callback, as declared by {@code MQTTCoolHook} (for example,
+   *        {@code "canPublish"})
+   * @param threshold the duration above which an invocation is considered slow
+   * @param unit the time unit of {@code threshold}
+   * @return a reference to this object
+   * @throws IllegalArgumentException if {@code callback} is unknown or {@code threshold} is not
+   *         positive
+   */
+  public SlowCallDetector threshold(String callback, long threshold, TimeUnit unit) {
+    int index = Arrays.asList(CALLBACKS).indexOf(callback);
+    if (index < 0) {
+      throw new IllegalArgumentException("Invalid callback");
+    }
+    if (threshold <= 0) {
+      throw new IllegalArgumentException("Invalid threshold");
+    }
+    thresholds.set(index, unit.toNanos(threshold));
+    updateScanPeriod();
+    return this;
+  }
+
+  /**
+   * Gets the slowest invocations detected so far.
+   *
+   * @return the list of the slowest invocations, sorted by decreasing duration
+   */
+  public List<SlowCall> getSlowCalls() {
+    List<SlowCall> calls;
+    synchronized (slowest) {
+      calls = new ArrayList<>(slowest);
+    }
+    calls.sort(BY_DURATION.reversed());
+    return calls;
+  }
+
+  /**
+   * Gets the number of slow invocations detected so far, including the ones no longer kept.
+   *
+   * @return the number of slow invocations
+   */
+  public long getSlowCallCount() {
+    return slowCallCount.sum();
+  }
+
+  /**
+   * Discards the slow invocations kept so far.
+   */
+  public void clear() {
+    synchronized (slowest) {
+      slowest.clear();
+    }
+  }
+
+  /**
+   * Stops the watchdog thread. Slow invocations are still detected afterwards, but their stacks are
+   * no longer sampled.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    watchdog.interrupt();
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    InFlight call = enter(RESOLVE_ALIAS, null, null, connectionAlias, null, -1);
+    try {
+      return delegate().resolveAlias(connectionAlias);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    InFlight call = enter(CAN_OPEN_SESSION, sessionId, null, null, null, -1);
+    try {
+      return delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    InFlight call = enter(ON_SESSION_CLOSE, sessionId, null, null, null, -1);
+    try {
+      delegate().onSessionClose(sessionId);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    InFlight call = enter(CAN_CONNECT, sessionId, clientId, brokerAddress, null, -1);
+    try {
+      return delegate().canConnect(sessionId, clientId, brokerAddress, connectOptions);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    InFlight call = enter(ON_DISCONNECTION, sessionId, clientId, brokerAddress, null, -1);
+    try {
+      delegate().onDisconnection(sessionId, clientId, brokerAddress);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    byte[] payload = message != null ? message.getApplicationMessage() : null;
+    InFlight call = enter(CAN_PUBLISH, sessionId, clientId, brokerAddress,
+        message != null ? message.getTopicName() : null, payload != null ? payload.length : 0);
+    try {
+      return delegate().canPublish(sessionId, clientId, brokerAddress, message);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    InFlight call = enter(CAN_SUBSCRIBE, sessionId, clientId, brokerAddress,
+        subscription != null ? subscription.getTopicFilter() : null, -1);
+    try {
+      return delegate().canSubscribe(sessionId, clientId, brokerAddress, subscription);
+    } finally {
+      exit(call);
+    }
+  }
+
+  /**
+   * This implementation forwards to the delegate and tracks the invocation.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    InFlight call =
+        enter(ON_UNSUBSCRIBE, sessionId, clientId, brokerAddress, topicFilter, -1);
+    try {
+      delegate().onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+    } finally {
+      exit(call);
+    }
+  }
+
+  private InFlight enter(int callback, String sessionId, String clientId, String brokerAddress,
+      String topic, int payloadSize) {
+
+    InFlight call = currentInFlight.get();
+    call.callback = callback;
+    call.sessionId = sessionId;
+    call.clientId = clientId;
+    call.brokerAddress = brokerAddress;
+    call.topic = topic;
+    call.payloadSize = payloadSize;
+    call.startNanos = System.nanoTime();
+    // Publish the arguments to the watchdog: an odd generation means in flight.
+    call.generation++;
+    return call;
+  }
+
+  private void exit(InFlight call) {
+    long duration = System.nanoTime() - call.startNanos;
+    long generation = call.generation;
+    call.generation = generation + 1;
+
+    if (duration >= thresholds.get(call.callback)) {
+      Sample sample = call.sample;
+      StackTraceElement[] stackTrace =
+          sample != null && sample.generation == generation ? sample.stackTrace : NO_STACK;
+      long startTime = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(duration);
+      record(new SlowCall(CALLBACKS[call.callback], call.thread.getName(), startTime, duration,
+          call.sessionId, call.clientId, call.brokerAddress, call.topic, call.payloadSize,
+          stackTrace));
+    }
+    call.sessionId = null;
+    call.clientId = null;
+    call.brokerAddress = null;
+    call.topic = null;
+  }
+
+  private void record(SlowCall call) {
+    slowCallCount.increment();
+    synchronized (slowest) {
+      if (slowest.size() < maxSlowCalls) {
+        slowest.add(call);
+      } else if (BY_DURATION.compare(call, slowest.peek()) > 0) {
+        slowest.poll();
+        slowest.add(call);
+      }
+    }
+  }
+
+  private void updateScanPeriod() {
+    long min = Long.MAX_VALUE;
+    for (int i = 0; i < CALLBACKS.length; i++) {
+      min = Math.min(min, thresholds.get(i));
+    }
+    // Scan twice per threshold, so that a slow invocation is sampled while still in progress.
+    scanPeriodNanos = Math.max(MIN_SCAN_PERIOD_NANOS, Math.min(MAX_SCAN_PERIOD_NANOS, min / 2));
+  }
+
+  private void watch() {
+    while (!closed) {
+      LockSupport.parkNanos(scanPeriodNanos);
+      if (Thread.interrupted()) {
+        continue;
+      }
+      scan();
+    }
+  }
+
+  private void scan() {
+    long now = System.nanoTime();
+    boolean deadThreads = false;
+    for (InFlight call : inFlights) {
+      long generation = call.generation;
+      if ((generation & 1) == 0) {
+        deadThreads |= !call.thread.isAlive();
+        continue;
+      }
+
+      Sample sample = call.sample;
+      if (sample != null && sample.generation == generation) {
+        continue;
+      }
+      long threshold = thresholds.get(call.callback);
+      if (now - call.startNanos < threshold) {
+        continue;
+      }
+
+      StackTraceElement[] stackTrace = call.thread.getStackTrace();
+      // Discard the sample if the invocation completed in the meantime.
+      if (call.generation == generation) {
+        call.sample = new Sample(generation, SlowCall.trim(stackTrace, MAX_STACK_DEPTH));
+      }
+    }
+    if (deadThreads) {
+      inFlights.removeIf(call -> !call.thread.isAlive());
+    }
+  }
+
+  private static final class Sample {
+
+    final long generation;
+
+    final StackTraceElement[] stackTrace;
+
+    Sample(long generation, StackTraceElement[] stackTrace) {
+      this.generation = generation;
+      this.stackTrace = stackTrace;
+    }
+  }
+
+  /**
+   * The invocation state of a thread, written only by the owning thread and read by the watchdog.
+   */
+  private static final class InFlight {
+
+    final Thread thread;
+
+    int callback;
+
+    String sessionId;
+
+    String clientId;
+
+    String brokerAddress;
+
+    String topic;
+
+    int payloadSize;
+
+    long startNanos;
+
+    volatile long generation;
+
+    volatile Sample sample;
+
+    InFlight(Thread thread) {
+      this.thread = thread;
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The <i>Space-Saving</i> summary, which tracks the most frequent keys of a stream within a fixed
+ * number of counters.
+ *
+ * <p>Counters are kept in a min-heap, so that the least frequent key can be replaced in
+ * logarithmic time. Not thread safe.
+ */
+final class SpaceSaving {
+
+  private final String[] keys;
+
+  private final long[] counts;
+
+  private final Map<String, Integer> positions;
+
+  private int size;
+
+  SpaceSaving(int capacity) {
+    this.keys = new String[capacity];
+    this.counts = new long[capacity];
+    this.positions = new HashMap<>(capacity * 2);
+  }
+
+  void add(String key, long weight) {
+    Integer position = positions.get(key);
+    if (position != null) {
+      counts[position] += weight;
+      siftDown(position);
+      return;
+    }
+
+    if (size < keys.length) {
+      keys[size] = key;
+      counts[size] = weight;
+      positions.put(key, size);
+      siftUp(size++);
+      return;
+    }
+
+    // Replace the least frequent key, which inherits its count as overestimation.
+    positions.remove(keys[0]);
+    keys[0] = key;
+    counts[0] += weight;
+    positions.put(key, 0);
+    siftDown(0);
+  }
+
+  String[] keys() {
+    return Arrays.copyOf(keys, size);
+  }
+
+  void clear() {
+    Arrays.fill(keys, null);
+    Arrays.fill(counts, 0);
+    positions.clear();
+    size = 0;
+  }
+
+  private void siftUp(int index) {
+    int i = index;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (counts[parent] <= counts[i]) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int index) {
+    int i = index;
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < size && counts[left] < counts[smallest]) {
+        smallest = left;
+      }
+      if (right < size && counts[right] < counts[smallest]) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      swap(i, smallest);
+      i = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    String key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long count = counts[i];
+    counts[i] = counts[j];
+    counts[j] = count;
+    positions.put(keys[i], i);
+    positions.put(keys[j], j);
+  }
+
+}
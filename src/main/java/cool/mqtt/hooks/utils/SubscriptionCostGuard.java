@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.QoS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Hook decorator which prevents a single user from pulling too much traffic through
+ * MQTT&#46;Cool by means of wide wildcard subscriptions, such as {@code #}.
+ *
+ * <p>The topic names of the published messages are fed into a {@link TopicRateModel}, which
+ * estimates the message rate each topic filter would attract. Subscriptions authorized by the
+ * delegate Hook are then charged to the budget of the user who opened the session, as follows:
+ * <ul>
+ * <li>subscriptions which keep the user within the <i>rate budget</i> are accepted;</li>
+ * <li>subscriptions which keep the user within the <i>QoS 0 rate budget</i> are accepted only if
+ * requested at {@link QoS#AT_MOST_ONCE} level, the cheapest to deliver;</li>
+ * <li>all other subscriptions are refused.</li>
+ * </ul>
+ * The estimated rate of a subscription is charged when it is accepted and refunded upon
+ * unsubscription, disconnection or session closing.
+ *
+ * <p>Note that the model only learns from the messages published through MQTT&#46;Cool: if the
+ * MQTT brokers are fed by other publishers as well, the model should rather be fed directly.
+ */
+public class SubscriptionCostGuard extends ForwardingCoolHook {
+
+  private final TopicRateModel model;
+
+  private final ConcurrentMap<String, SessionState> sessions = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, UserBudget> users = new ConcurrentHashMap<>();
+
+  private final LongAdder refusedSubscriptions = new LongAdder();
+
+  private volatile double maxRatePerUser;
+
+  private volatile double maxQos0RatePerUser;
+
+  /**
+   * Creates a {@code SubscriptionCostGuard}.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param model the model used to estimate the rate of the topic filters
+   * @param maxRatePerUser the rate budget of each user, in messages per second
+   * @param maxQos0RatePerUser the rate budget of each user for subscriptions at QoS 0, in messages
+   *        per second
+   * @throws IllegalArgumentException if {@code maxRatePerUser} is negative or
+   *         {@code maxQos0RatePerUser} is less than {@code maxRatePerUser}
+   */
+  public SubscriptionCostGuard(MQTTCoolHook delegate, TopicRateModel model,
+      double maxRatePerUser, double maxQos0RatePerUser) {
+
+    super(delegate);
+    this.model = model;
+    setBudgets(maxRatePerUser, maxQos0RatePerUser);
+  }
+
+  /**
+   * Changes the budgets, without affecting the subscriptions already accepted.
+   *
+   * @param maxRatePerUser the rate budget of each user, in messages per second
+   * @param maxQos0RatePerUser the rate budget of each user for subscriptions at QoS 0, in messages
+   *        per second
+   * @throws IllegalArgumentException if {@code maxRatePerUser} is negative or
+   *         {@code maxQos0RatePerUser} is less than {@code maxRatePerUser}
+   */
+  public void setBudgets(double maxRatePerUser, double maxQos0RatePerUser) {
+    if (!(maxRatePerUser >= 0)) {
+      throw new IllegalArgumentException("Invalid maxRatePerUser");
+    }
+    if (!(maxQos0RatePerUser >= maxRatePerUser)) {
+      throw new IllegalArgumentException("Invalid maxQos0RatePerUser");
+    }
+    this.maxRatePerUser = maxRatePerUser;
+    this.maxQos0RatePerUser = maxQos0RatePerUser;
+  }
+
+  /**
+   * Gets the rate currently charged to the specified user.
+   *
+   * @param user the username, or {@code null} for the anonymous user
+   * @return the sum of the estimated rates of the subscriptions of the user, in messages per
+   *         second
+   */
+  public double getUserRate(String user) {
+    UserBudget budget = users.get(user != null ? user : "");
+    if (budget == null) {
+      return 0;
+    }
+    synchronized (budget) {
+      return budget.rate;
+    }
+  }
+
+  /**
+   * Gets the number of subscriptions refused so far because of the budget.
+   *
+   * @return the number of refused subscriptions
+   */
+  public long getRefusedSubscriptions() {
+    return refusedSubscriptions.sum();
+  }
+
+  /**
+   * Gets the model used to estimate the rate of the topic filters.
+   *
+   * @return the {@code TopicRateModel} instance
+   */
+  public TopicRateModel getModel() {
+    return model;
+  }
+
+  /**
+   * This implementation forwards to the delegate and, if the session is authorized, starts
+   * tracking the budget of the user.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    if (!delegate().canOpenSession(sessionId, user, password, clientContext, clientPrincipal)) {
+      return false;
+    }
+
+    String userKey = user != null ? user : "";
+    UserBudget budget = users.compute(userKey, (key, current) -> {
+      UserBudget updated = current != null ? current : new UserBudget();
+      updated.sessions++;
+      return updated;
+    });
+    SessionState previous = sessions.put(sessionId, new SessionState(userKey, budget));
+    if (previous != null) {
+      close(previous);
+    }
+    return true;
+  }
+
+  /**
+   * This implementation refunds the subscriptions of the session and then forwards to the
+   * delegate.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    SessionState session = sessions.remove(sessionId);
+    if (session != null) {
+      close(session);
+    }
+    delegate().onSessionClose(sessionId);
+  }
+
+  /**
+   * This implementation refunds the subscriptions of the connection and then forwards to the
+   * delegate.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    SessionState session = sessions.get(sessionId);
+    if (session != null) {
+      String prefix = subscriptionKey(clientId, brokerAddress, "");
+      for (String key : session.subscriptions.keySet()) {
+        if (key.startsWith(prefix)) {
+          refund(session, key);
+        }
+      }
+    }
+    delegate().onDisconnection(sessionId, clientId, brokerAddress);
+  }
+
+  /**
+   * This implementation feeds the topic name into the model and then forwards to the delegate.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    model.record(message.getTopicName());
+    return delegate().canPublish(sessionId, clientId, brokerAddress, message);
+  }
+
+  /**
+   * This implementation forwards to the delegate and, if the subscription is authorized, charges
+   * its estimated rate to the budget of the user.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    if (!delegate().canSubscribe(sessionId, clientId, brokerAddress, subscription)) {
+      return false;
+    }
+
+    SessionState session = sessions.get(sessionId);
+    if (session == null) {
+      return true;
+    }
+    String key = subscriptionKey(clientId, brokerAddress, subscription.getTopicFilter());
+    if (session.subscriptions.containsKey(key)) {
+      return true;
+    }
+
+    double rate = model.estimateRate(subscription.getTopicFilter());
+    if (!tryCharge(session.budget, rate, subscription.getQos())) {
+      refusedSubscriptions.increment();
+      return false;
+    }
+    if (session.subscriptions.putIfAbsent(key, rate) != null) {
+      // Concurrently charged by another invocation.
+      release(session.budget, rate);
+      return true;
+    }
+    if (session.closed) {
+      // The session has been closed in the meantime.
+      refund(session, key);
+    }
+    return true;
+  }
+
+  /**
+   * This implementation refunds the subscription and then forwards to the delegate.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    SessionState session = sessions.get(sessionId);
+    if (session != null) {
+      refund(session, subscriptionKey(clientId, brokerAddress, topicFilter));
+    }
+    delegate().onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+  }
+
+  private boolean tryCharge(UserBudget budget, double rate, QoS qos) {
+    double limit = qos == QoS.AT_MOST_ONCE ? maxQos0RatePerUser : maxRatePerUser;
+    synchronized (budget) {
+      if (budget.rate + rate > limit) {
+        return false;
+      }
+      budget.rate += rate;
+      return true;
+    }
+  }
+
+  private void close(SessionState session) {
+    session.closed = true;
+    for (String key : session.subscriptions.keySet()) {
+      refund(session, key);
+    }
+    users.computeIfPresent(session.user, (key, budget) -> --budget.sessions > 0 ? budget : null);
+  }
+
+  private static void refund(SessionState session, String key) {
+    Double rate = session.subscriptions.remove(key);
+    if (rate != null) {
+      release(session.budget, rate);
+    }
+  }
+
+  private static void release(UserBudget budget, double rate) {
+    synchronized (budget) {
+      // Never go below zero because of rounding errors.
+      budget.rate = Math.max(0, budget.rate - rate);
+    }
+  }
+
+  private static String subscriptionKey(String clientId, String brokerAddress,
+      String topicFilter) {
+
+    return clientId + '\u0000' + brokerAddress + '\u0000' + topicFilter;
+  }
+
+  private static final class SessionState {
+
+    final String user;
+
+    final UserBudget budget;
+
+    final ConcurrentMap<String, Double> subscriptions = new ConcurrentHashMap<>();
+
+    volatile boolean closed;
+
+    SessionState(String user, UserBudget budget) {
+      this.user = user;
+      this.budget = budget;
+    }
+  }
+
+  /**
+   * The budget usage of a user, shared by all the sessions of the user. Guarded by itself.
+   */
+  private static final class UserBudget {
+
+    int sessions;
+
+    double rate;
+  }
+
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Hook which routes each call to the Hook of the tenant owning the target MQTT broker, so that
+ * every tenant can have its own policies and a slow tenant can not starve the other ones.
+ *
+ * <p>Calls are routed as follows:
+ * <ul>
+ * <li>{@code resolveAlias} is routed according to the aliases registered through
+ * {@link #mapAlias(String, String)}; the address of the resolved MQTT broker is then bound to the
+ * same tenant, unless already bound to another one;</li>
+ * <li>{@code canConnect}, {@code onDisconnection}, {@code canPublish}, {@code canSubscribe} and
+ * {@code onUnsubscribe} are routed according to the broker address, as registered through
+ * {@link #mapBroker(String, String)} or learned by {@code resolveAlias};</li>
+ * <li>{@code canOpenSession} is routed to the default Hook, whereas {@code onSessionClose} is
+ * delivered to the default Hook and to all the tenant Hooks which have authorized a connection
+ * for the session;</li>
+ * <li>{@code init} is delivered to the default Hook and to all the tenant Hooks.</li>
+ * </ul>
+ * Calls which can not be bound to any tenant are routed to the default Hook.
+ *
+ * <p>As the MQTT&#46;Cool server identifies the target MQTT broker only by its address, each MQTT
+ * broker is owned by a single tenant: an address is bound to the first tenant which either is
+ * explicitly mapped to it or resolves an alias to it, and all the calls targeting that address,
+ * along with their statistics, are attributed to that tenant. MQTT brokers shared among tenants
+ * should therefore be explicitly mapped through {@link #mapBroker(String, String)} to the tenant
+ * in charge of their policies.
+ *
+ * <p>Each tenant is given a concurrency budget, that is the maximum number of calls executed at
+ * the same time by its Hook, and a bounded number of calls allowed to wait for the budget. Further
+ * calls are rejected at once, by throwing a {@link cool.mqtt.hooks.ThrottleException} provided by
+ * a {@link ThrottlePolicy} (by default, with the {@link #TENANT_BUSY_ERROR_CODE} code), so that a
+ * slow tenant can only hold a bounded number of MQTT&#46;Cool server threads, and the rejected
+ * clients are told when the tenant is expected to have drained its backlog. Lifecycle
+ * notifications, which can not be rejected, are never subject to the budget.
+ */
+public class TenantRoutingHook implements MQTTCoolHook {
+
+  /**
+   * The default error code of the {@code ThrottleException} thrown when a call is rejected because
+   * the concurrency budget of the tenant is exhausted.
+   */
+  public static final int TENANT_BUSY_ERROR_CODE = 503;
+
+  private final MQTTCoolHook defaultHook;
+
+  private final ThrottlePolicy throttlePolicy;
+
+  private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Tenant> brokerTenants = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Tenant> aliasTenants = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Set<Tenant>> sessionTenants = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a {@code TenantRoutingHook} which routes the calls not bound to any tenant to the
+   * specified Hook.
+   *
+   * @param defaultHook the default Hook
+   */
+  public TenantRoutingHook(MQTTCoolHook defaultHook) {
+    this(defaultHook,
+        new ThrottlePolicy(TENANT_BUSY_ERROR_CODE, 100, 10_000, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Creates a {@code TenantRoutingHook} which routes the calls not bound to any tenant to the
+   * specified Hook, and rejects the calls exceeding the budget of a tenant according to the
+   * specified policy.
+   *
+   * @param defaultHook the default Hook
+   * @param throttlePolicy the policy providing the exceptions thrown for the rejected calls
+   */
+  public TenantRoutingHook(MQTTCoolHook defaultHook, ThrottlePolicy throttlePolicy) {
+    this.defaultHook = Objects.requireNonNull(defaultHook, "defaultHook");
+    this.throttlePolicy = Objects.requireNonNull(throttlePolicy, "throttlePolicy");
+  }
+
+  /**
+   * Registers a tenant.
+   *
+   * @param tenantId the unique identifier of the tenant
+   * @param hook the Hook implementing the policies of the tenant
+   * @param maxConcurrentCalls the maximum number of calls executed at the same time by the tenant
+   *        Hook
+   * @param maxWaitingCalls the maximum number of calls allowed to wait for the concurrency budget
+   * @param maxWait the maximum time a call can wait for the concurrency budget
+   * @param unit the time unit of {@code maxWait}
+   * @return a reference to this object
+   * @throws IllegalArgumentException if {@code maxConcurrentCalls} is not a positive integer, or
+   *         {@code maxWaitingCalls} is negative
+   */
+  public TenantRoutingHook addTenant(String tenantId, MQTTCoolHook hook, int maxConcurrentCalls,
+      int maxWaitingCalls, long maxWait, TimeUnit unit) {
+
+    if (maxConcurrentCalls <= 0) {
+      throw new IllegalArgumentException("Invalid max concurrent calls");
+    }
+    if (maxWaitingCalls < 0) {
+      throw new IllegalArgumentException("Invalid max waiting calls");
+    }
+    tenants.put(tenantId, new Tenant(Objects.requireNonNull(hook, "hook"), maxConcurrentCalls,
+        maxWaitingCalls, unit.toNanos(maxWait), throttlePolicy));
+    return this;
+  }
+
+  /**
+   * Binds an MQTT broker to a registered tenant, replacing any previous binding.
+   *
+   * @param brokerAddress the address of the MQTT broker
+   * @param tenantId the unique identifier of the tenant
+   * @return a reference to this object
+   * @throws IllegalArgumentException if the tenant is not registered
+   */
+  public TenantRoutingHook mapBroker(String brokerAddress, String tenantId) {
+    brokerTenants.put(brokerAddress, tenant(tenantId));
+    return this;
+  }
+
+  /**
+   * Binds a connection alias to a registered tenant.
+   *
+   * @param alias the connection alias
+   * @param tenantId the unique identifier of the tenant
+   * @return a reference to this object
+   * @throws IllegalArgumentException if the tenant is not registered
+   */
+  public TenantRoutingHook mapAlias(String alias, String tenantId) {
+    aliasTenants.put(alias, tenant(tenantId));
+    return this;
+  }
+
+  /**
+   * Gets the statistics of the specified tenant.
+   *
+   * @param tenantId the unique identifier of the tenant
+   * @return the live statistics of the tenant, or {@code null} if the tenant is not registered
+   */
+  public TenantStats getStats(String tenantId) {
+    Tenant tenant = tenants.get(tenantId);
+    return tenant != null ? tenant.stats : null;
+  }
+
+  /**
+   * Initializes the default Hook and all the tenant Hooks.
+   */
+  @Override
+  public void init(File configDir) throws HookException {
+    defaultHook.init(configDir);
+    for (Tenant tenant : tenants.values()) {
+      tenant.hook.init(configDir);
+    }
+  }
+
+  /**
+   * Routes the call to the Hook of the tenant bound to the alias, and binds the address of the
+   * resolved MQTT broker to the same tenant.
+   */
+  @Override
+  public MqttBrokerConfig resolveAlias(String connectionAlias) throws HookException {
+    Tenant tenant = aliasTenants.get(connectionAlias);
+    if (tenant == null) {
+      return defaultHook.resolveAlias(connectionAlias);
+    }
+
+    MqttBrokerConfig config = tenant.call(hook -> hook.resolveAlias(connectionAlias));
+    if (config != null && config.getAddress() != null) {
+      // Single ownership: an address already bound to another tenant stays with it.
+      brokerTenants.putIfAbsent(config.getAddress(), tenant);
+    }
+    return config;
+  }
+
+  /**
+   * Routes the call to the default Hook.
+   */
+  @Override
+  public boolean canOpenSession(String sessionId, String user, String password,
+      @SuppressWarnings("rawtypes") Map clientContext, String clientPrincipal)
+      throws HookException {
+
+    return defaultHook.canOpenSession(sessionId, user, password, clientContext, clientPrincipal);
+  }
+
+  /**
+   * Delivers the notification to the default Hook and to all the tenant Hooks which have authorized
+   * a connection for the session.
+   */
+  @Override
+  public void onSessionClose(String sessionId) {
+    defaultHook.onSessionClose(sessionId);
+    Set<Tenant> involved = sessionTenants.remove(sessionId);
+    if (involved != null) {
+      for (Tenant tenant : involved) {
+        tenant.notify(hook -> hook.onSessionClose(sessionId));
+      }
+    }
+  }
+
+  /**
+   * Routes the call to the Hook of the tenant bound to the broker address.
+   */
+  @Override
+  public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+      MqttConnectOptions connectOptions) throws HookException {
+
+    Tenant tenant = brokerTenants.get(brokerAddress);
+    if (tenant == null) {
+      return defaultHook.canConnect(sessionId, clientId, brokerAddress, connectOptions);
+    }
+
+    boolean authorized = tenant.call(
+        hook -> hook.canConnect(sessionId, clientId, brokerAddress, connectOptions));
+    if (authorized) {
+      sessionTenants.computeIfAbsent(sessionId, id -> ConcurrentHashMap.newKeySet()).add(tenant);
+    }
+    return authorized;
+  }
+
+  /**
+   * Routes the notification to the Hook of the tenant bound to the broker address.
+   */
+  @Override
+  public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+    Tenant tenant = brokerTenants.get(brokerAddress);
+    if (tenant == null) {
+      defaultHook.onDisconnection(sessionId, clientId, brokerAddress);
+      return;
+    }
+    tenant.notify(hook -> hook.onDisconnection(sessionId, clientId, brokerAddress));
+  }
+
+  /**
+   * Routes the call to the Hook of the tenant bound to the broker address.
+   */
+  @Override
+  public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+      MqttMessage message) throws HookException {
+
+    Tenant tenant = brokerTenants.get(brokerAddress);
+    if (tenant == null) {
+      return defaultHook.canPublish(sessionId, clientId, brokerAddress, message);
+    }
+    return tenant.call(hook -> hook.canPublish(sessionId, clientId, brokerAddress, message));
+  }
+
+  /**
+   * Routes the call to the Hook of the tenant bound to the broker address.
+   */
+  @Override
+  public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+      MqttSubscription subscription) throws HookException {
+
+    Tenant tenant = brokerTenants.get(brokerAddress);
+    if (tenant == null) {
+      return defaultHook.canSubscribe(sessionId, clientId, brokerAddress, subscription);
+    }
+    return tenant.call(
+        hook -> hook.canSubscribe(sessionId, clientId, brokerAddress, subscription));
+  }
+
+  /**
+   * Routes the notification to the Hook of the tenant bound to the broker address.
+   */
+  @Override
+  public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+      String topicFilter) {
+
+    Tenant tenant = brokerTenants.get(brokerAddress);
+    if (tenant == null) {
+      defaultHook.onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter);
+      return;
+    }
+    tenant.notify(hook -> hook.onUnsubscribe(sessionId, clientId, brokerAddress, topicFilter));
+  }
+
+  private Tenant tenant(String tenantId) {
+    Tenant tenant = tenants.get(tenantId);
+    if (tenant == null) {
+      throw new IllegalArgumentException("Unknown tenant: " + tenantId);
+    }
+    return tenant;
+  }
+
+  @FunctionalInterface
+  private interface HookCall<T> {
+
+    T call(MQTTCoolHook hook) throws HookException;
+  }
+
+  @FunctionalInterface
+  private interface HookNotification {
+
+    void notify(MQTTCoolHook hook);
+  }
+
+  private static final class Tenant {
+
+    final MQTTCoolHook hook;
+
+    final Semaphore budget;
+
+    final int maxWaitingCalls;
+
+    final long maxWaitNanos;
+
+    final int maxConcurrentCalls;
+
+    final ThrottlePolicy throttlePolicy;
+
+    final TenantStats stats = new TenantStats();
+
+    Tenant(MQTTCoolHook hook, int maxConcurrentCalls, int maxWaitingCalls, long maxWaitNanos,
+        ThrottlePolicy throttlePolicy) {
+
+      this.hook = hook;
+      this.budget = new Semaphore(maxConcurrentCalls);
+      this.maxConcurrentCalls = maxConcurrentCalls;
+      this.maxWaitingCalls = maxWaitingCalls;
+      this.maxWaitNanos = maxWaitNanos;
+      this.throttlePolicy = throttlePolicy;
+    }
+
+    <T> T call(HookCall<T> call) throws HookException {
+      acquire();
+      try {
+        return execute(call);
+      } finally {
+        budget.release();
+      }
+    }
+
+    void notify(HookNotification notification) {
+      try {
+        execute(h -> {
+          notification.notify(h);
+          return null;
+        });
+      } catch (HookException e) {
+        // Never thrown by notifications.
+      }
+    }
+
+    private <T> T execute(HookCall<T> call) throws HookException {
+      stats.activeCalls().incrementAndGet();
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+        T result = call.call(hook);
+        failed = false;
+        return result;
+      } finally {
+        stats.activeCalls().decrementAndGet();
+        stats.recordCall(System.nanoTime() - start, failed);
+      }
+    }
+
+    private void acquire() throws HookException {
+      if (budget.tryAcquire()) {
+        return;
+      }
+
+      if (stats.waitingCalls().incrementAndGet() > maxWaitingCalls) {
+        stats.waitingCalls().decrementAndGet();
+        reject();
+      }
+
+      boolean acquired;
+      try {
+        acquired = budget.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        acquired = false;
+      } finally {
+        stats.waitingCalls().decrementAndGet();
+      }
+      if (!acquired) {
+        reject();
+      }
+    }
+
+    private void reject() throws HookException {
+      stats.recordRejection();
+      // The budget is replenished at the rate the tenant Hook completes its calls, and the
+      // rejected call has to wait for the ones already waiting.
+      long latencyNanos = stats.getAverageLatencyNanos();
+      double callsPerSecond = latencyNanos > 0
+          ? maxConcurrentCalls * (double) TimeUnit.SECONDS.toNanos(1) / latencyNanos : 0;
+      throw throttlePolicy.forRate(stats.getWaitingCalls() + 1, callsPerSecond,
+          "Service busy, try again later");
+    }
+  }
+
+}
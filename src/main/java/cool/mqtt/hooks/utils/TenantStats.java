@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live statistics of a tenant served by a {@link TenantRoutingHook}.
+ */
+public final class TenantStats {
+
+  private final LongAdder calls = new LongAdder();
+
+  private final LongAdder rejectedCalls = new LongAdder();
+
+  private final LongAdder failedCalls = new LongAdder();
+
+  private final LongAdder totalLatencyNanos = new LongAdder();
+
+  private final AtomicInteger activeCalls = new AtomicInteger();
+
+  private final AtomicInteger waitingCalls = new AtomicInteger();
+
+  TenantStats() {}
+
+  /**
+   * Gets the number of calls completed by the tenant Hook so far, including the failed ones.
+   *
+   * @return the number of completed calls
+   */
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  /**
+   * Gets the number of calls rejected so far, because the concurrency budget of the tenant was
+   * exhausted.
+   *
+   * @return the number of rejected calls
+   */
+  public long getRejectedCalls() {
+    return rejectedCalls.sum();
+  }
+
+  /**
+   * Gets the number of calls which have thrown an exception so far.
+   *
+   * @return the number of failed calls
+   */
+  public long getFailedCalls() {
+    return failedCalls.sum();
+  }
+
+  /**
+   * Gets the number of calls currently being executed by the tenant Hook.
+   *
+   * @return the number of active calls
+   */
+  public int getActiveCalls() {
+    return activeCalls.get();
+  }
+
+  /**
+   * Gets the number of calls currently waiting for the concurrency budget of the tenant.
+   *
+   * @return the number of waiting calls
+   */
+  public int getWaitingCalls() {
+    return waitingCalls.get();
+  }
+
+  /**
+   * Gets the average execution time of the calls completed so far.
+   *
+   * @return the average latency expressed in nanoseconds, or {@code 0} if no call has completed
+   */
+  public long getAverageLatencyNanos() {
+    long count = calls.sum();
+    return count != 0 ? totalLatencyNanos.sum() / count : 0;
+  }
+
+  @Override
+  public String toString() {
+    return "TenantStats [calls=" + getCalls() + ", rejectedCalls=" + getRejectedCalls()
+        + ", failedCalls=" + getFailedCalls() + ", activeCalls=" + getActiveCalls()
+        + ", waitingCalls=" + getWaitingCalls() + "]";
+  }
+
+  AtomicInteger activeCalls() {
+    return activeCalls;
+  }
+
+  AtomicInteger waitingCalls() {
+    return waitingCalls;
+  }
+
+  void recordRejection() {
+    rejectedCalls.increment();
+  }
+
+  void recordCall(long latencyNanos, boolean failed) {
+    calls.increment();
+    totalLatencyNanos.add(latencyNanos);
+    if (failed) {
+      failedCalls.increment();
+    }
+  }
+
+}
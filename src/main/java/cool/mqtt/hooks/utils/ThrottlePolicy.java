@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.ThrottleException;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Helper class to turn the state of a rate limiter or of an overloaded backend into a
+ * {@link ThrottleException}, with a retry-after hint proportionate to the overload.
+ *
+ * <p>Every hint is bounded by the minimum and maximum retry-after times of the policy, and is then
+ * spread by a random jitter over the upper half of its value (though never below the minimum), so
+ * that the clients throttled together do not all come back at the same time.
+ *
+ * <p>Instances are immutable and thread safe.
+ */
+public final class ThrottlePolicy {
+
+  private final int code;
+
+  private final long minRetryAfterNanos;
+
+  private final long maxRetryAfterNanos;
+
+  private final DoubleSupplier random;
+
+  /**
+   * Creates a {@code ThrottlePolicy} with the specified error code and retry-after bounds.
+   *
+   * @param code the error code of the thrown {@code ThrottleException}s
+   * @param minRetryAfter the minimum retry-after time
+   * @param maxRetryAfter the maximum retry-after time
+   * @param unit the time unit of {@code minRetryAfter} and {@code maxRetryAfter}
+   * @throws IllegalArgumentException if {@code minRetryAfter} is not positive, or it is greater
+   *         than {@code maxRetryAfter}
+   */
+  public ThrottlePolicy(int code, long minRetryAfter, long maxRetryAfter, TimeUnit unit) {
+    this(code, minRetryAfter, maxRetryAfter, unit, () -> ThreadLocalRandom.current().nextDouble());
+  }
+
+  ThrottlePolicy(int code, long minRetryAfter, long maxRetryAfter, TimeUnit unit,
+      DoubleSupplier random) {
+
+    if (minRetryAfter <= 0 || minRetryAfter > maxRetryAfter) {
+      throw new IllegalArgumentException("Invalid retry-after bounds");
+    }
+    this.code = code;
+    this.minRetryAfterNanos = unit.toNanos(minRetryAfter);
+    this.maxRetryAfterNanos = unit.toNanos(maxRetryAfter);
+    this.random = random;
+  }
+
+  /**
+   * Returns an exception for a call rejected by an {@link AdaptiveLimiter}, whose retry-after hint
+   * is the time the backend is expected to take to complete the calls currently in flight and
+   * queued, at the current latency and concurrency limit.
+   *
+   * @param limiter the limiter which rejected the call
+   * @param message the detail message to be forwarded to the client
+   * @return the exception to be thrown
+   */
+  public ThrottleException forLimiter(AdaptiveLimiter limiter, String message) {
+    double backlog = limiter.getInFlight() + limiter.getEstimatedQueue();
+    double rounds = backlog / Math.max(limiter.getLimit(), 1);
+    return throttle(message, limiter.getLatencyNanos() * Math.max(rounds, 1));
+  }
+
+  /**
+   * Returns an exception for a call rejected by a token bucket, or by any other limiter which
+   * replenishes its permits at a known rate, whose retry-after hint is the time needed to
+   * replenish the missing permits.
+   *
+   * @param missingPermits the number of permits which the call lacks
+   * @param permitsPerSecond the rate at which permits are replenished
+   * @param message the detail message to be forwarded to the client
+   * @return the exception to be thrown
+   */
+  public ThrottleException forRate(double missingPermits, double permitsPerSecond,
+      String message) {
+
+    if (permitsPerSecond <= 0) {
+      return throttle(message, maxRetryAfterNanos);
+    }
+    return throttle(message, missingPermits / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Returns an exception for a call rejected because of the utilization of a backend (for example,
+   * the fraction of busy workers or the fill ratio of a queue), whose retry-after hint grows as the
+   * expected queueing delay, that is as {@code utilization / (1 - utilization)} times the minimum
+   * retry-after time, up to the maximum one when the backend is saturated.
+   *
+   * @param utilization the utilization of the backend, where {@code 1} means saturated
+   * @param message the detail message to be forwarded to the client
+   * @return the exception to be thrown
+   */
+  public ThrottleException forUtilization(double utilization, String message) {
+    if (utilization >= 1) {
+      return throttle(message, maxRetryAfterNanos);
+    }
+    double load = Math.max(utilization, 0);
+    return throttle(message, minRetryAfterNanos * load / (1 - load));
+  }
+
+  private ThrottleException throttle(String message, double retryAfterNanos) {
+    double bounded = Math.min(Math.max(retryAfterNanos, minRetryAfterNanos), maxRetryAfterNanos);
+    double jittered = bounded * (0.5 + 0.5 * random.getAsDouble());
+    long retryAfter = Math.max((long) jittered, minRetryAfterNanos);
+    return new ThrottleException(code, message, TimeUnit.NANOSECONDS.toMillis(retryAfter),
+        TimeUnit.MILLISECONDS);
+  }
+
+}
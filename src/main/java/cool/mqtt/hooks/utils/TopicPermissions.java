@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable, compiled set of the topics a user is allowed to publish to and subscribe to.
+ *
+ * <p>Permissions are expressed as MQTT topic filters, possibly containing the {@code +} and
+ * {@code #} wildcards, and are compiled into two tries (one for publishing, one for subscribing),
+ * so that each check costs a walk proportional to the number of levels of the checked topic,
+ * regardless of the number of permissions, and without any allocation.
+ *
+ * <p>Checks follow the MQTT matching rules, including the one which prevents wildcards at the first
+ * level from matching topics starting with {@code $}.
+ *
+ * <p>Instances are built through a {@link Builder}, typically once per session from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canOpenSession(String, String, String, java.util.Map,
+ * String)}, and can be shared by all the sessions of the users having the same roles.
+ *
+ * @see SessionPermissions
+ */
+public final class TopicPermissions {
+
+  /**
+   * The permissions which allow nothing.
+   */
+  public static final TopicPermissions NONE = new Builder().build();
+
+  private final Node publishRoot;
+
+  private final Node subscribeRoot;
+
+  private TopicPermissions(Node publishRoot, Node subscribeRoot) {
+    this.publishRoot = publishRoot;
+    this.subscribeRoot = subscribeRoot;
+  }
+
+  /**
+   * Checks whether publishing to the specified topic is allowed.
+   *
+   * @param topicName the topic name, which must not contain wildcards
+   * @return {@code true} if publishing is allowed
+   */
+  public boolean canPublish(String topicName) {
+    return topicName != null && matches(publishRoot, topicName, 0);
+  }
+
+  /**
+   * Checks whether subscribing to the specified topic filter is allowed, that is whether every
+   * topic matched by the filter is also matched by at least one of the subscribe permissions.
+   *
+   * @param topicFilter the topic filter, which may contain wildcards
+   * @return {@code true} if subscribing is allowed
+   */
+  public boolean canSubscribe(String topicFilter) {
+    return topicFilter != null && covers(subscribeRoot, topicFilter, 0);
+  }
+
+  /**
+   * Checks whether the topic, starting from the level at the {@code start} index, is matched by any
+   * of the filters stored below the provided node.
+   */
+  private static boolean matches(Node node, String topic, int start) {
+    if (start > topic.length()) {
+      // All levels consumed ("a/#" matches "a" too).
+      return node.terminal || node.multiLevel;
+    }
+
+    boolean wildcardsAllowed = start != 0 || !topic.startsWith("$");
+    if (node.multiLevel && wildcardsAllowed) {
+      return true;
+    }
+
+    int end = levelEnd(topic, start);
+    Node child = node.find(topic, start, end);
+    if (child != null && matches(child, topic, end + 1)) {
+      return true;
+    }
+    return node.singleLevel != null && wildcardsAllowed && matches(node.singleLevel, topic,
+        end + 1);
+  }
+
+  /**
+   * Checks whether the filter, starting from the level at the {@code start} index, is covered by
+   * any of the filters stored below the provided node.
+   */
+  private static boolean covers(Node node, String filter, int start) {
+    if (start > filter.length()) {
+      return node.terminal || node.multiLevel;
+    }
+
+    boolean wildcardsAllowed = start != 0 || !filter.startsWith("$");
+    if (node.multiLevel && wildcardsAllowed) {
+      return true;
+    }
+
+    int end = levelEnd(filter, start);
+    if (end - start == 1) {
+      char level = filter.charAt(start);
+      if (level == '#') {
+        // Only covered by a multi-level wildcard, already checked.
+        return false;
+      }
+      if (level == '+') {
+        return node.singleLevel != null && covers(node.singleLevel, filter, end + 1);
+      }
+    }
+
+    Node child = node.find(filter, start, end);
+    if (child != null && covers(child, filter, end + 1)) {
+      return true;
+    }
+    return node.singleLevel != null && wildcardsAllowed && covers(node.singleLevel, filter,
+        end + 1);
+  }
+
+  private static int levelEnd(String topic, int start) {
+    int end = topic.indexOf('/', start);
+    return end >= 0 ? end : topic.length();
+  }
+
+  /**
+   * Builder of {@link TopicPermissions} instances.
+   */
+  public static class Builder {
+
+    private final MutableNode publishRoot = new MutableNode();
+
+    private final MutableNode subscribeRoot = new MutableNode();
+
+    /**
+     * Allows publishing to the topics matched by the specified topic filter.
+     *
+     * @param topicFilter the topic filter, which may contain wildcards
+     * @return a reference to this object
+     * @throws IllegalArgumentException if {@code topicFilter} is not a valid topic filter
+     */
+    public Builder allowPublish(String topicFilter) {
+      publishRoot.add(topicFilter);
+      return this;
+    }
+
+    /**
+     * Allows subscribing to the topic filters covered by the specified topic filter.
+     *
+     * @param topicFilter the topic filter, which may contain wildcards
+     * @return a reference to this object
+     * @throws IllegalArgumentException if {@code topicFilter} is not a valid topic filter
+     */
+    public Builder allowSubscribe(String topicFilter) {
+      subscribeRoot.add(topicFilter);
+      return this;
+    }
+
+    /**
+     * Allows both publishing and subscribing to the topics matched by the specified topic filter.
+     *
+     * @param topicFilter the topic filter, which may contain wildcards
+     * @return a reference to this object
+     * @throws IllegalArgumentException if {@code topicFilter} is not a valid topic filter
+     */
+    public Builder allow(String topicFilter) {
+      return allowPublish(topicFilter).allowSubscribe(topicFilter);
+    }
+
+    /**
+     * Returns a new {@code TopicPermissions} instance, compiled from all the permissions provided
+     * to this builder.
+     *
+     * @return a {@code TopicPermissions} instance
+     */
+    public TopicPermissions build() {
+      return new TopicPermissions(publishRoot.freeze(), subscribeRoot.freeze());
+    }
+  }
+
+  /**
+   * Immutable trie node, whose literal children are kept in a sorted array.
+   */
+  private static final class Node {
+
+    final String[] levels;
+
+    final Node[] children;
+
+    final Node singleLevel;
+
+    final boolean multiLevel;
+
+    final boolean terminal;
+
+    Node(String[] levels, Node[] children, Node singleLevel, boolean multiLevel,
+        boolean terminal) {
+
+      this.levels = levels;
+      this.children = children;
+      this.singleLevel = singleLevel;
+      this.multiLevel = multiLevel;
+      this.terminal = terminal;
+    }
+
+    /**
+     * Finds the child bound to the level delimited by {@code start} and {@code end}, without
+     * extracting it from the topic.
+     */
+    Node find(String topic, int start, int end) {
+      int low = 0;
+      int high = levels.length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int comparison = compare(levels[middle], topic, start, end);
+        if (comparison < 0) {
+          low = middle + 1;
+        } else if (comparison > 0) {
+          high = middle - 1;
+        } else {
+          return children[middle];
+        }
+      }
+      return null;
+    }
+
+    private static int compare(String level, String topic, int start, int end) {
+      int length = end - start;
+      int limit = Math.min(level.length(), length);
+      for (int i = 0; i < limit; i++) {
+        int difference = level.charAt(i) - topic.charAt(start + i);
+        if (difference != 0) {
+          return difference;
+        }
+      }
+      return level.length() - length;
+    }
+  }
+
+  private static final class MutableNode {
+
+    final Map<String, MutableNode> children = new TreeMap<>();
+
+    MutableNode singleLevel;
+
+    boolean multiLevel;
+
+    boolean terminal;
+
+    void add(String topicFilter) {
+      if (topicFilter == null || topicFilter.isEmpty()) {
+        throw new IllegalArgumentException("Invalid topic filter");
+      }
+
+      MutableNode node = this;
+      String[] levels = topicFilter.split("/", -1);
+      for (int i = 0; i < levels.length; i++) {
+        String level = levels[i];
+        if (level.equals("#")) {
+          if (i != levels.length - 1) {
+            throw new IllegalArgumentException("Invalid topic filter");
+          }
+          node.multiLevel = true;
+          return;
+        }
+        if (level.equals("+")) {
+          if (node.singleLevel == null) {
+            node.singleLevel = new MutableNode();
+          }
+          node = node.singleLevel;
+        } else if (level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+          throw new IllegalArgumentException("Invalid topic filter");
+        } else {
+          node = node.children.computeIfAbsent(level, l -> new MutableNode());
+        }
+      }
+      node.terminal = true;
+    }
+
+    Node freeze() {
+      String[] levels = new String[children.size()];
+      Node[] frozen = new Node[children.size()];
+      int i = 0;
+      for (Map.Entry<String, MutableNode> child : children.entrySet()) {
+        levels[i] = child.getKey();
+        frozen[i] = child.getValue().freeze();
+        i++;
+      }
+      return new Node(levels, frozen, singleLevel != null ? singleLevel.freeze() : null,
+          multiLevel, terminal);
+    }
+  }
+
+}
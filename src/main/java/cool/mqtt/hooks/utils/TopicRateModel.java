@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * A model of the topic tree learned from the published topic names, which estimates the message
+ * rate a topic filter would attract.
+ *
+ * <p>Each node of the tree counts the messages published to its subtree, broken down by the
+ * number of levels below the node, over fixed periods; the rates refer to the last completed
+ * period. Thanks to the breakdown, the rate of a topic filter is estimated in O(filter depth):
+ * <ul>
+ * <li>the leading literal levels of the filter are resolved exactly, by walking the tree;</li>
+ * <li>from the first wildcard on, the remaining levels are accounted by their number only, so
+ * that literal levels following a wildcard (as in {@code sensors/+/temperature}) are estimated as
+ * if they were wildcards as well.</li>
+ * </ul>
+ * Hence, estimations are exact for filters whose wildcards follow all the literal levels, and are
+ * conservative (never lower than the actual rate) otherwise.
+ *
+ * <p>The number of nodes is bounded: once the limit is reached, messages published to new topics
+ * are accounted to their deepest known ancestor, and filters reaching below it are estimated
+ * conservatively as well. As mandated by the MQTT specification, filters starting with a wildcard
+ * do not match topic names starting with {@code $}.
+ *
+ * <p>This class is thread safe.
+ */
+public class TopicRateModel {
+
+  /**
+   * The number of levels below a node tracked separately; deeper topics share the last slot.
+   */
+  private static final int MAX_DEPTH = 16;
+
+  private static final long[] NO_COUNTS = new long[MAX_DEPTH + 1];
+
+  private final long periodNanos;
+
+  private final int maxNodes;
+
+  private final LongSupplier clock;
+
+  private final AtomicInteger nodeCount = new AtomicInteger(2);
+
+  private final Node root = new Node();
+
+  private final Node dollarRoot = new Node();
+
+  /**
+   * Creates a {@code TopicRateModel}.
+   *
+   * @param period the period over which rates are measured
+   * @param unit the time unit of {@code period}
+   * @param maxNodes the maximum number of nodes of the tree
+   * @throws IllegalArgumentException if {@code period} or {@code maxNodes} are not positive
+   */
+  public TopicRateModel(long period, TimeUnit unit, int maxNodes) {
+    this(period, unit, maxNodes, System::nanoTime);
+  }
+
+  TopicRateModel(long period, TimeUnit unit, int maxNodes, LongSupplier clock) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("Invalid period");
+    }
+    if (maxNodes <= 0) {
+      throw new IllegalArgumentException("Invalid maxNodes");
+    }
+    this.periodNanos = unit.toNanos(period);
+    this.maxNodes = maxNodes;
+    this.clock = clock;
+  }
+
+  /**
+   * Records a message published to the specified topic.
+   *
+   * @param topicName the topic name
+   */
+  public void record(String topicName) {
+    long epoch = clock.getAsLong() / periodNanos;
+    int depth = levels(topicName);
+    Node node = topicName.startsWith("$") ? dollarRoot : root;
+    int start = 0;
+    for (int level = 0; ; level++) {
+      node.increment(epoch, Math.min(depth - level, MAX_DEPTH));
+      if (level == depth) {
+        return;
+      }
+
+      int end = topicName.indexOf('/', start);
+      String name = topicName.substring(start, end >= 0 ? end : topicName.length());
+      start = end + 1;
+      Node child = node.children.get(name);
+      if (child == null) {
+        if (nodeCount.incrementAndGet() > maxNodes) {
+          nodeCount.decrementAndGet();
+          node.overflow = true;
+          return;
+        }
+        Node created = new Node();
+        child = node.children.putIfAbsent(name, created);
+        if (child == null) {
+          child = created;
+        } else {
+          nodeCount.decrementAndGet();
+        }
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * Estimates the rate of the messages matching the specified topic filter.
+   *
+   * @param topicFilter the topic filter
+   * @return the estimated rate, in messages per second
+   */
+  public double estimateRate(String topicFilter) {
+    long epoch = clock.getAsLong() / periodNanos;
+    int depth = levels(topicFilter);
+    boolean multiLevel = topicFilter.equals("#") || topicFilter.endsWith("/#");
+    Node node = topicFilter.startsWith("$") ? dollarRoot : root;
+    int start = 0;
+    for (int level = 0; level < depth; level++) {
+      int end = topicFilter.indexOf('/', start);
+      String name = topicFilter.substring(start, end >= 0 ? end : topicFilter.length());
+      start = end + 1;
+
+      if (name.equals("#") || name.equals("+")) {
+        return toRate(wildcardCount(node.counts(epoch), depth - level, multiLevel));
+      }
+      Node child = node.children.get(name);
+      if (child == null) {
+        return node.overflow
+            ? toRate(wildcardCount(node.counts(epoch), depth - level, multiLevel)) : 0;
+      }
+      node = child;
+    }
+    return toRate(node.counts(epoch)[0]);
+  }
+
+  /**
+   * Gets the number of nodes of the tree.
+   *
+   * @return the number of nodes
+   */
+  public int getNodeCount() {
+    return nodeCount.get();
+  }
+
+  private double toRate(long count) {
+    return count / (periodNanos / 1e9);
+  }
+
+  /**
+   * Counts the messages published to the topics which are {@code remaining} levels below a node,
+   * or at least {@code remaining - 1} levels below, if the filter ends with a multi-level wildcard.
+   */
+  private static long wildcardCount(long[] counts, int remaining, boolean multiLevel) {
+    if (!multiLevel) {
+      return counts[Math.min(remaining, MAX_DEPTH)];
+    }
+    long count = 0;
+    for (int i = Math.min(remaining - 1, MAX_DEPTH); i <= MAX_DEPTH; i++) {
+      count += counts[i];
+    }
+    return count;
+  }
+
+  private static int levels(String topic) {
+    int levels = 1;
+    for (int i = 0; i < topic.length(); i++) {
+      if (topic.charAt(i) == '/') {
+        levels++;
+      }
+    }
+    return levels;
+  }
+
+  private static final class Node {
+
+    final ConcurrentMap<String, Node> children = new ConcurrentHashMap<>();
+
+    /**
+     * The messages of the current period, by number of levels below this node.
+     */
+    final AtomicLongArray current = new AtomicLongArray(MAX_DEPTH + 1);
+
+    /**
+     * The messages of the last completed period, by number of levels below this node.
+     */
+    volatile long[] previous = NO_COUNTS;
+
+    volatile long epoch;
+
+    volatile boolean overflow;
+
+    void increment(long now, int levelsBelow) {
+      if (epoch != now) {
+        rotate(now);
+      }
+      current.incrementAndGet(levelsBelow);
+    }
+
+    long[] counts(long now) {
+      long last = epoch;
+      if (last == now) {
+        return previous;
+      }
+      if (last == now - 1) {
+        // No message yet in the current period: the current counts are the last completed ones.
+        return snapshot();
+      }
+      return NO_COUNTS;
+    }
+
+    private synchronized void rotate(long now) {
+      if (epoch == now) {
+        return;
+      }
+      // Increments racing with the rotation may be accounted to the wrong period.
+      previous = epoch == now - 1 ? snapshot() : NO_COUNTS;
+      for (int i = 0; i <= MAX_DEPTH; i++) {
+        current.set(i, 0);
+      }
+      epoch = now;
+    }
+
+    private long[] snapshot() {
+      long[] counts = new long[MAX_DEPTH + 1];
+      for (int i = 0; i <= MAX_DEPTH; i++) {
+        counts[i] = current.get(i);
+      }
+      return counts;
+    }
+  }
+
+}
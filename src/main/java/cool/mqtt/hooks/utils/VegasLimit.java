@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+/**
+ * The <i>Vegas</i> {@link LimitAlgorithm}, adapted from the TCP Vegas congestion control.
+ */
+final class VegasLimit implements LimitAlgorithm {
+
+  /**
+   * The number of samples after which the minimum latency is probed again, so that it can follow a
+   * backend which has become permanently slower.
+   */
+  private static final int PROBE_INTERVAL = 1000;
+
+  private final int maxLimit;
+
+  private double limit;
+
+  private long minRttNanos;
+
+  private int samples;
+
+  VegasLimit(int initialLimit, int maxLimit) {
+    if (initialLimit <= 0) {
+      throw new IllegalArgumentException("Invalid initial limit");
+    }
+    if (maxLimit < initialLimit) {
+      throw new IllegalArgumentException("Invalid max limit");
+    }
+    this.limit = initialLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  @Override
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  @Override
+  public int onSample(long rttNanos, int inFlight, boolean dropped) {
+    if (rttNanos <= 0) {
+      return getLimit();
+    }
+    if (++samples >= PROBE_INTERVAL) {
+      samples = 0;
+      minRttNanos = 0;
+    }
+    if (minRttNanos == 0 || rttNanos < minRttNanos) {
+      minRttNanos = rttNanos;
+      return getLimit();
+    }
+
+    double log = Math.max(1, Math.log10(limit));
+    if (dropped) {
+      limit -= log;
+    } else if (inFlight * 2 >= limit) {
+      // Only adjust when the limit is actually being used.
+      double queue = Math.ceil(limit * (1 - (double) minRttNanos / rttNanos));
+      if (queue <= log) {
+        limit += 2 * log;
+      } else if (queue < 3 * log) {
+        limit += log;
+      } else if (queue > 6 * log) {
+        limit -= log;
+      }
+    }
+    limit = Math.max(1, Math.min(maxLimit, limit));
+    return getLimit();
+  }
+
+}
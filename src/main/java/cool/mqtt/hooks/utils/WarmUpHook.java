@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MQTTCoolHook;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A Hook decorator which warms up the delegate Hook during {@link #init(File)}, that is before the
+ * MQTT&#46;Cool server admits any traffic, so that the first client requests do not pay for cold
+ * caches, lazy class loading and interpreted code.
+ *
+ * <p>Once the delegate Hook has been initialized, the warm-up proceeds in three phases:
+ * <ol>
+ * <li>the {@link #task(String, Task) tasks} are run, for example to preload ACL indices and alias
+ * configurations;</li>
+ * <li>the caches are {@link #primeCache(String, Consumer) primed} from the hot-key snapshots
+ * persisted under the configuration directory, through {@link #saveHotKeys(File, Collection)};</li>
+ * <li>the {@link #syntheticCalls(SyntheticCalls) synthetic calls} are driven through the delegate
+ * Hook repeatedly, until the JIT compilation activity settles or the time budget expires.</li>
+ * </ol>
+ *
+ * <p>A failing task aborts the initialization, whereas failures while priming caches or while
+ * performing synthetic calls are tolerated, as the warm-up is only an optimization.
+ */
+public class WarmUpHook extends ForwardingCoolHook {
+
+  /**
+   * The synthetic calls performed on each warm-up iteration.
+   */
+  @FunctionalInterface
+  public interface SyntheticCalls {
+
+    /**
+     * Performs the synthetic calls against the specified Hook.
+     *
+     * <p>Implementations should leave no state behind, for example by closing any session they
+     * have opened.
+     *
+     * @param hook the Hook to warm up
+     * @param iteration the progressive number of the iteration, starting from {@code 0}
+     * @throws HookException if any of the synthetic calls fails
+     */
+    void perform(MQTTCoolHook hook, int iteration) throws HookException;
+  }
+
+  /**
+   * A mandatory warm-up task.
+   */
+  @FunctionalInterface
+  public interface Task {
+
+    /**
+     * Runs the task.
+     *
+     * @param configDir the directory passed to {@link MQTTCoolHook#init(File)}
+     * @throws Exception if the task can not complete successfully
+     */
+    void run(File configDir) throws Exception;
+  }
+
+  /**
+   * The interval after which the JIT compilation activity is sampled again.
+   */
+  private static final long SETTLE_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * The number of consecutive samples without any compilation activity after which the
+   * compilation is considered settled.
+   */
+  private static final int SETTLE_CHECKS = 3;
+
+  private final long budgetNanos;
+
+  private final LongSupplier compilationTime;
+
+  private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+  private final Map<String, Consumer<String>> primers = new LinkedHashMap<>();
+
+  private final List<SyntheticCalls> syntheticCalls = new ArrayList<>();
+
+  private volatile int iterations;
+
+  private volatile long primedKeys;
+
+  private volatile long elapsedNanos;
+
+  private volatile boolean settled;
+
+  /**
+   * Creates a {@code WarmUpHook} which warms up the specified Hook within the specified budget.
+   *
+   * @param delegate the Hook to forward calls to
+   * @param budget the maximum time spent performing synthetic calls
+   * @param unit the time unit of {@code budget}
+   * @throws IllegalArgumentException if {@code budget} is negative
+   */
+  public WarmUpHook(MQTTCoolHook delegate, long budget, TimeUnit unit) {
+    this(delegate, budget, unit, defaultCompilationTime());
+  }
+
+  WarmUpHook(MQTTCoolHook delegate, long budget, TimeUnit unit, LongSupplier compilationTime) {
+    super(delegate);
+    if (budget < 0) {
+      throw new IllegalArgumentException("Invalid budget");
+    }
+    this.budgetNanos = unit.toNanos(budget);
+    this.compilationTime = compilationTime;
+  }
+
+  /**
+   * Adds a task to run during the warm-up.
+   *
+   * @param name the name of the task, reported in case of failure
+   * @param task the task
+   * @return a reference to this object
+   */
+  public WarmUpHook task(String name, Task task) {
+    tasks.put(name, task);
+    return this;
+  }
+
+  /**
+   * Adds a cache to prime during the warm-up, from a snapshot of hot keys.
+   *
+   * <p>Each key read from the snapshot is passed to the specified primer, which is expected to
+   * load the corresponding entry into the cache. A missing snapshot is silently ignored.
+   *
+   * @param snapshotFileName the name of the snapshot file, relative to the configuration directory
+   * @param primer the function which loads a key into the cache
+   * @return a reference to this object
+   * @see #saveHotKeys(File, Collection)
+   */
+  public WarmUpHook primeCache(String snapshotFileName, Consumer<String> primer) {
+    primers.put(snapshotFileName, primer);
+    return this;
+  }
+
+  /**
+   * Adds synthetic calls to perform on each warm-up iteration.
+   *
+   * @param calls the synthetic calls
+   * @return a reference to this object
+   */
+  public WarmUpHook syntheticCalls(SyntheticCalls calls) {
+    syntheticCalls.add(calls);
+    return this;
+  }
+
+  /**
+   * Gets the number of iterations of synthetic calls performed by the last warm-up.
+   *
+   * @return the number of iterations
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Gets the number of keys loaded from the hot-key snapshots by the last warm-up.
+   *
+   * @return the number of primed keys
+   */
+  public long getPrimedKeys() {
+    return primedKeys;
+  }
+
+  /**
+   * Gets the time taken by the last warm-up.
+   *
+   * @param unit the time unit of the returned value
+   * @return the duration of the warm-up
+   */
+  public long getElapsed(TimeUnit unit) {
+    return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Tells whether the JIT compilation activity settled before the time budget expired during the
+   * last warm-up.
+   *
+   * @return {@code true} if the compilation settled
+   */
+  public boolean isSettled() {
+    return settled;
+  }
+
+  /**
+   * This implementation forwards to the delegate and then performs the warm-up.
+   *
+   * @throws HookException if the delegate fails, or if any of the warm-up tasks fails
+   */
+  @Override
+  public void init(File configDir) throws HookException {
+    delegate().init(configDir);
+
+    long start = System.nanoTime();
+    runTasks(configDir);
+    primeCaches(configDir);
+    performSyntheticCalls();
+    elapsedNanos = System.nanoTime() - start;
+  }
+
+  /**
+   * Saves a snapshot of hot keys, to be loaded by {@link #primeCache(String, Consumer)} upon the
+   * next warm-up.
+   *
+   * <p>The snapshot is written to a temporary file which then replaces the target one, so that a
+   * concurrent warm-up never reads a partial snapshot.
+   *
+   * @param file the snapshot file
+   * @param keys the hot keys, which must not contain line separators
+   * @throws IOException if the snapshot can not be written
+   */
+  public static void saveHotKeys(File file, Collection<String> keys) throws IOException {
+    Path target = file.toPath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    Files.write(temp, keys, StandardCharsets.UTF_8);
+    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void runTasks(File configDir) throws HookException {
+    for (Map.Entry<String, Task> task : tasks.entrySet()) {
+      try {
+        task.getValue().run(configDir);
+      } catch (Exception e) {
+        throw new HookException(0, "Warm-up task " + task.getKey() + " failed: " + e);
+      }
+    }
+  }
+
+  private void primeCaches(File configDir) {
+    long primed = 0;
+    for (Map.Entry<String, Consumer<String>> primer : primers.entrySet()) {
+      File snapshot = new File(configDir, primer.getKey());
+      if (!snapshot.isFile()) {
+        continue;
+      }
+
+      List<String> keys;
+      try {
+        keys = Files.readAllLines(snapshot.toPath(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        // An unreadable snapshot just means a colder start.
+        continue;
+      }
+      for (String key : keys) {
+        if (key.isEmpty()) {
+          continue;
+        }
+        try {
+          primer.getValue().accept(key);
+          primed++;
+        } catch (RuntimeException e) {
+          // Stale keys may no longer be loadable.
+        }
+      }
+    }
+    primedKeys = primed;
+  }
+
+  private void performSyntheticCalls() {
+    settled = false;
+    iterations = 0;
+    if (syntheticCalls.isEmpty()) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    long nextCheck = start + SETTLE_CHECK_NANOS;
+    long lastCompilationTime = compilationTime.getAsLong();
+    int quietChecks = 0;
+    int iteration = 0;
+    while (System.nanoTime() - start < budgetNanos) {
+      for (SyntheticCalls calls : syntheticCalls) {
+        try {
+          calls.perform(delegate(), iteration);
+        } catch (HookException | RuntimeException e) {
+          // Denials and failures exercise the code paths as well.
+        }
+      }
+      iteration++;
+
+      long now = System.nanoTime();
+      if (now >= nextCheck) {
+        nextCheck = now + SETTLE_CHECK_NANOS;
+        long currentCompilationTime = compilationTime.getAsLong();
+        quietChecks = currentCompilationTime == lastCompilationTime ? quietChecks + 1 : 0;
+        lastCompilationTime = currentCompilationTime;
+        if (quietChecks >= SETTLE_CHECKS) {
+          settled = true;
+          break;
+        }
+      }
+    }
+    iterations = iteration;
+  }
+
+  private static LongSupplier defaultCompilationTime() {
+    CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+    if (compilation == null || !compilation.isCompilationTimeMonitoringSupported()) {
+      // Can not tell when the compilation settles: spend the whole budget.
+      return System::nanoTime;
+    }
+    return compilation::getTotalCompilationTime;
+  }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helper class to validate the <i>Will Message</i> supplied by a client when connecting to an MQTT
+ * broker, and to share a canonical instance among all the identical <i>Will Messages</i>.
+ *
+ * <p>A <i>Will Message</i> is valid when its topic name is not empty and contains no wildcards,
+ * its QoS level does not exceed the configured maximum, its Application Message does not exceed
+ * the configured size, retained <i>Will Messages</i> are allowed if it is retained, and its topic
+ * is allowed for publishing by the {@link TopicPermissions} of the connecting user. The checks
+ * which do not depend on the permissions come first, and take constant time: an oversized message
+ * is therefore refused without even being read through.
+ *
+ * <p>As devices of the same model usually send byte-identical <i>Will Messages</i>, a Hook storing
+ * the <i>Will Message</i> of each connection can obtain, through {@link #intern(MqttMessage)}, a
+ * canonical copy shared with all the identical ones. Canonical instances are cached in a
+ * direct-mapped table of fixed capacity, keyed by a 64-bit fingerprint of the topic name, the QoS
+ * level, the retained flag and the Application Message, and reused only if the message is fully
+ * identical to the cached one. Invalid messages, whatever the permissions, are never cached.
+ *
+ * <p>The Hook is expected to invoke {@link #isAllowed(MqttMessage, TopicPermissions)} from
+ * {@link cool.mqtt.hooks.MQTTCoolHook#canConnect(String, String, String,
+ * cool.mqtt.hooks.MqttConnectOptions)} as follows:
+ *
+ * <pre>
+ * MqttMessage willMessage = connectOptions.getWillMessage();
+ * if (!willPolicy.isAllowed(willMessage, sessionPermissions.get(sessionId))) {
+ *   return false;
+ * }
+ * </pre>
+ *
+ * <p>This class is thread safe.
+ */
+public class WillMessagePolicy {
+
+  private final int maxPayloadSize;
+
+  private final QoS maxQos;
+
+  private final boolean retainAllowed;
+
+  private final AtomicReferenceArray<CanonicalMessage> table;
+
+  private final int mask;
+
+  private final LongAdder cacheHits = new LongAdder();
+
+  private final LongAdder cacheMisses = new LongAdder();
+
+  /**
+   * Creates a {@code WillMessagePolicy} with the specified constraints and cache capacity.
+   *
+   * @param maxPayloadSize the maximum size in bytes of the Application Message
+   * @param maxQos the maximum QoS level
+   * @param retainAllowed whether retained <i>Will Messages</i> are allowed
+   * @param capacity the maximum number of distinct <i>Will Messages</i> kept, rounded up to the
+   *        next power of two
+   * @throws IllegalArgumentException in the following cases:
+   *         <ul>
+   *         <li>the specified {@code maxQos} is {@code null}</li>
+   *         <li>the specified {@code maxPayloadSize} is negative</li>
+   *         <li>the specified {@code capacity} is not a positive integer, or it exceeds
+   *         {@code 2^30}</li>
+   *         </ul>
+   */
+  public WillMessagePolicy(int maxPayloadSize, QoS maxQos, boolean retainAllowed, int capacity) {
+    if (maxPayloadSize < 0) {
+      throw new IllegalArgumentException("Invalid maxPayloadSize");
+    }
+    if (maxQos == null) {
+      throw new IllegalArgumentException("Invalid QoS");
+    }
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Invalid capacity");
+    }
+    this.maxPayloadSize = maxPayloadSize;
+    this.maxQos = maxQos;
+    this.retainAllowed = retainAllowed;
+    int size = Integer.highestOneBit(capacity - 1) << 1;
+    this.table = new AtomicReferenceArray<>(Math.max(size, 1));
+    this.mask = table.length() - 1;
+  }
+
+  /**
+   * Checks whether the specified <i>Will Message</i> is allowed for the specified user.
+   *
+   * @param willMessage the <i>Will Message</i>, as returned by
+   *        {@link cool.mqtt.hooks.MqttConnectOptions#getWillMessage()}
+   * @param permissions the permissions of the connecting user, which the topic name is checked
+   *        against for publishing; {@code null} is taken as {@link TopicPermissions#NONE}
+   * @return {@code true} if the <i>Will Message</i> is allowed, or it is {@code null}
+   */
+  public boolean isAllowed(MqttMessage willMessage, TopicPermissions permissions) {
+    if (willMessage == null) {
+      return true;
+    }
+    return isValid(willMessage, willMessage.getApplicationMessage()) && permissions != null
+        && permissions.canPublish(willMessage.getTopicName());
+  }
+
+  /**
+   * Gets the canonical instance of the specified <i>Will Message</i>, that is an immutable copy
+   * shared with all the identical <i>Will Messages</i> recently interned.
+   *
+   * <p>The Application Message is stored once per canonical instance, and a copy of it is returned
+   * upon each invocation of {@link MqttMessage#getApplicationMessage()}. A <i>Will Message</i>
+   * which is not valid, whatever the permissions, is never cached: an unshared copy is returned
+   * instead.
+   *
+   * @param willMessage the <i>Will Message</i>
+   * @return the canonical instance, or {@code null} if {@code willMessage} is {@code null}
+   */
+  public MqttMessage intern(MqttMessage willMessage) {
+    if (willMessage == null) {
+      return null;
+    }
+    byte[] applicationMessage = willMessage.getApplicationMessage();
+    if (!isValid(willMessage, applicationMessage)) {
+      return new CanonicalMessage(0, willMessage, applicationMessage);
+    }
+
+    long fingerprint = fingerprint(willMessage, applicationMessage);
+    int index = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    CanonicalMessage canonical = table.get(index);
+    if (canonical != null && canonical.matches(fingerprint, willMessage, applicationMessage)) {
+      cacheHits.increment();
+      return canonical;
+    }
+
+    cacheMisses.increment();
+    canonical = new CanonicalMessage(fingerprint, willMessage, applicationMessage);
+    // A concurrent miss for the same message may overwrite the slot: both instances are equal.
+    table.set(index, canonical);
+    return canonical;
+  }
+
+  /**
+   * Gets the number of {@link #intern(MqttMessage)} invocations served from the cache so far.
+   *
+   * @return the number of cache hits
+   */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /**
+   * Gets the number of {@link #intern(MqttMessage)} invocations which cached a new canonical
+   * instance so far.
+   *
+   * @return the number of cache misses
+   */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  /**
+   * Gets the number of slots of the cache.
+   *
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return table.length();
+  }
+
+  /**
+   * Checks the constraints which do not depend on the permissions.
+   */
+  private boolean isValid(MqttMessage willMessage, byte[] applicationMessage) {
+    if (applicationMessage != null && applicationMessage.length > maxPayloadSize) {
+      return false;
+    }
+    String topicName = willMessage.getTopicName();
+    if (topicName == null || topicName.isEmpty() || topicName.indexOf('+') >= 0
+        || topicName.indexOf('#') >= 0) {
+      return false;
+    }
+    if (willMessage.getQos() == null || willMessage.getQos().getValue() > maxQos.getValue()) {
+      return false;
+    }
+    return !willMessage.isRetained() || retainAllowed;
+  }
+
+  private static long fingerprint(MqttMessage message, byte[] applicationMessage) {
+    String topicName = message.getTopicName();
+    long hash = topicName != null ? Hashing.hash(topicName, 0) : 0;
+    QoS qos = message.getQos();
+    hash = Hashing.update(hash, new byte[] {(byte) (qos != null ? qos.getValue() : -1),
+        (byte) (message.isRetained() ? 1 : 0)});
+    if (applicationMessage != null) {
+      hash = Hashing.update(hash, applicationMessage);
+    }
+    return Hashing.mix(hash);
+  }
+
+  private static final class CanonicalMessage implements MqttMessage {
+
+    private final long fingerprint;
+
+    private final String topicName;
+
+    private final byte[] applicationMessage;
+
+    private final QoS qos;
+
+    private final boolean retained;
+
+    CanonicalMessage(long fingerprint, MqttMessage message, byte[] applicationMessage) {
+      this.fingerprint = fingerprint;
+      this.topicName = message.getTopicName();
+      this.applicationMessage = applicationMessage != null ? applicationMessage.clone() : null;
+      this.qos = message.getQos();
+      this.retained = message.isRetained();
+    }
+
+    @Override
+    public String getTopicName() {
+      return topicName;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return a copy of the Application Message, as the stored one is shared
+     */
+    @Override
+    public byte[] getApplicationMessage() {
+      return applicationMessage != null ? applicationMessage.clone() : null;
+    }
+
+    @Override
+    public QoS getQos() {
+      return qos;
+    }
+
+    @Override
+    public boolean isRetained() {
+      return retained;
+    }
+
+    @Override
+    public boolean isDuplicate() {
+      return false;
+    }
+
+    boolean matches(long fingerprint, MqttMessage other, byte[] otherApplicationMessage) {
+      // The fingerprint is not collision resistant: never trust it alone.
+      return this.fingerprint == fingerprint && retained == other.isRetained()
+          && qos == other.getQos() && Objects.equals(topicName, other.getTopicName())
+          && Arrays.equals(applicationMessage, otherApplicationMessage);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("WillMessage [topic=%s, qos=%s, retained=%b, size=%d]", topicName, qos,
+          retained, applicationMessage != null ? applicationMessage.length : 0);
+    }
+  }
+
+}
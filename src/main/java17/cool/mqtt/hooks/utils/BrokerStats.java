@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttBrokerConfig;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The live statistics of an MQTT broker registered with a {@link BrokerPoolResolver}.
+ *
+ * <p>Instances are shared by all the pools the broker belongs to, and are updated concurrently
+ * through the {@link BrokerPoolResolver#connected(String)},
+ * {@link BrokerPoolResolver#disconnected(String)} and
+ * {@link BrokerPoolResolver#recordLatency(String, long)} methods.
+ */
+public final class BrokerStats {
+
+  /**
+   * The weight given to each new latency sample in the moving average.
+   */
+  private static final double LATENCY_ALPHA = 0.2;
+
+  // The Java 17 variant updates plain fields through VarHandles, instead of an AtomicInteger and a
+  // monitor, which keeps the statistics of every MQTT broker in a single object.
+  private static final VarHandle CONNECTIONS;
+
+  private static final VarHandle LATENCY_NANOS;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      CONNECTIONS = lookup.findVarHandle(BrokerStats.class, "connections", int.class);
+      LATENCY_NANOS = lookup.findVarHandle(BrokerStats.class, "latencyNanos", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final MqttBrokerConfig config;
+
+  private final int weight;
+
+  private volatile int connections;
+
+  private volatile long latencyNanos;
+
+  BrokerStats(MqttBrokerConfig config, int weight) {
+    this.config = config;
+    this.weight = weight;
+  }
+
+  /**
+   * Gets the address of the MQTT broker.
+   *
+   * @return the address of the MQTT broker
+   */
+  public String getAddress() {
+    return config.getAddress();
+  }
+
+  /**
+   * Gets the configuration supplied for the MQTT broker.
+   *
+   * @return the {@code MqttBrokerConfig} instance registered for the MQTT broker
+   */
+  public MqttBrokerConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * Gets the relative capacity of the MQTT broker.
+   *
+   * @return the weight of the MQTT broker, always a positive integer
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Gets the number of live connections currently held to the MQTT broker.
+   *
+   * @return the number of live connections
+   */
+  public int getConnections() {
+    return connections;
+  }
+
+  /**
+   * Gets the exponentially weighted moving average of the latency samples recorded so far.
+   *
+   * @return the average latency expressed in nanoseconds, or {@code 0} if no sample has been
+   *         recorded yet
+   */
+  public long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  void incrementConnections() {
+    CONNECTIONS.getAndAdd(this, 1);
+  }
+
+  void decrementConnections() {
+    // Never go below zero, even in case of unbalanced notifications.
+    int current;
+    do {
+      current = connections;
+      if (current == 0) {
+        return;
+      }
+    } while (!CONNECTIONS.weakCompareAndSet(this, current, current - 1));
+  }
+
+  boolean isLessLoadedThan(BrokerStats other) {
+    return (long) getConnections() * other.weight < (long) other.getConnections() * weight;
+  }
+
+  void recordLatency(long nanos) {
+    long current;
+    long next;
+    do {
+      current = latencyNanos;
+      next = current == 0 ? nanos : (long) (current + LATENCY_ALPHA * (nanos - current));
+    } while (!LATENCY_NANOS.weakCompareAndSet(this, current, next));
+  }
+
+}
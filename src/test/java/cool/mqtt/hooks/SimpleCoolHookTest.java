@@ -18,8 +18,15 @@ package cool.mqtt.hooks;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import cool.mqtt.hooks.utils.TestSubscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -66,4 +73,67 @@ public class SimpleCoolHookTest {
         is(true));
   }
 
+  @Test
+  public void shouldAuthorizeBatchesItemByItem() throws HookException {
+    SimpleCoolHook hook = new SimpleCoolHook() {
+
+      @Override
+      public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+          MqttSubscription subscription) {
+
+        return subscription != null;
+      }
+    };
+
+    List<MqttSubscription> subscriptions =
+        Arrays.asList(null, new TestSubscription("topic"), null, new TestSubscription("topic"));
+    BitSet expected = new BitSet();
+    expected.set(1);
+    expected.set(3);
+    assertThat(hook.canSubscribeBatch("sessionId", "clientId", "tcp://localhost:1883",
+        subscriptions), is(expected));
+
+    List<MqttMessage> messages = Arrays.asList(null, null);
+    expected.clear();
+    expected.set(0, 2);
+    assertThat(hook.canPublishBatch("sessionId", "clientId", "tcp://localhost:1883", messages),
+        is(expected));
+  }
+
+  @Test
+  public void shouldReturnTheItemsDecidedBeforeAFailure() throws HookException {
+    List<MqttSubscription> checked = new ArrayList<>();
+    SimpleCoolHook hook = new SimpleCoolHook() {
+
+      @Override
+      public boolean canSubscribe(String sessionId, String clientId, String brokerAddress,
+          MqttSubscription subscription) throws HookException {
+
+        checked.add(subscription);
+        if (subscription == null) {
+          throw new HookException(503, "Unavailable");
+        }
+        return true;
+      }
+    };
+
+    // The first two subscriptions have been checked, and possibly accounted, by the Hook.
+    MqttSubscription subscription = new TestSubscription("topic");
+    BitSet expected = new BitSet();
+    expected.set(0, 2);
+    assertThat(hook.canSubscribeBatch("sessionId", "clientId", "tcp://localhost:1883",
+        Arrays.asList(subscription, subscription, null, subscription)), is(expected));
+    assertThat(checked.size(), is(3));
+
+    // Nothing has been decided yet: the failure is propagated.
+    try {
+      hook.canSubscribeBatch("sessionId", "clientId", "tcp://localhost:1883",
+          Arrays.asList(null, subscription));
+      fail("Expected HookException");
+    } catch (HookException e) {
+      assertThat(e.getCode(), is(503));
+    }
+    assertThat(checked.size(), is(4));
+  }
+
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+import cool.mqtt.hooks.ThrottleException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyHookTest {
+
+  @Test
+  public void shouldGrowVegasLimitWhileLatencyIsSteady() {
+    LimitAlgorithm vegas = LimitAlgorithm.vegas(10, 100);
+    for (int i = 0; i < 20; i++) {
+      vegas.onSample(1_000_000, vegas.getLimit(), false);
+    }
+    assertThat(vegas.getLimit() > 10, is(true));
+    assertThat(vegas.getLimit() <= 100, is(true));
+  }
+
+  @Test
+  public void shouldShrinkVegasLimitWhenLatencyRises() {
+    LimitAlgorithm vegas = LimitAlgorithm.vegas(50, 100);
+    vegas.onSample(1_000_000, 50, false);
+    for (int i = 0; i < 20; i++) {
+      vegas.onSample(5_000_000, vegas.getLimit(), false);
+    }
+    assertThat(vegas.getLimit() < 50, is(true));
+  }
+
+  @Test
+  public void shouldNotGrowLimitWhenUnused() {
+    LimitAlgorithm vegas = LimitAlgorithm.vegas(10, 100);
+    LimitAlgorithm gradient = LimitAlgorithm.gradient(10, 100);
+    for (int i = 0; i < 20; i++) {
+      vegas.onSample(1_000_000, 1, false);
+      gradient.onSample(1_000_000, 1, false);
+    }
+    assertThat(vegas.getLimit(), is(10));
+    assertThat(gradient.getLimit(), is(10));
+  }
+
+  @Test
+  public void shouldShrinkGradientLimitWhenLatencyRisesOrCallsFail() {
+    LimitAlgorithm gradient = LimitAlgorithm.gradient(50, 100);
+    for (int i = 0; i < 20; i++) {
+      gradient.onSample(1_000_000, gradient.getLimit(), false);
+    }
+    int steady = gradient.getLimit();
+    assertThat(steady >= 50, is(true));
+
+    for (int i = 0; i < 20; i++) {
+      gradient.onSample(10_000_000, gradient.getLimit(), false);
+    }
+    int slow = gradient.getLimit();
+    assertThat(slow < steady, is(true));
+
+    gradient.onSample(1_000_000, 1, true);
+    assertThat(gradient.getLimit() < slow, is(true));
+  }
+
+  @Test
+  public void shouldRejectCallsBeyondTheLimit() throws Exception {
+    CountDownLatch entered = new CountDownLatch(2);
+    CountDownLatch release = new CountDownLatch(1);
+    SimpleCoolHook delegate = new SimpleCoolHook() {
+
+      @Override
+      public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+          MqttMessage message) {
+
+        entered.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return true;
+      }
+    };
+    AdaptiveConcurrencyHook hook =
+        new AdaptiveConcurrencyHook(delegate, () -> LimitAlgorithm.vegas(2, 2));
+    MqttMessage message = new TestMessage("a/b", "", QoS.AT_MOST_ONCE);
+
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        try {
+          hook.canPublish("s1", "c1", "tcp://broker", message);
+        } catch (HookException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      threads[i].start();
+    }
+    assertThat(entered.await(5, TimeUnit.SECONDS), is(true));
+
+    AdaptiveLimiter limiter = hook.getLimiter("canPublish");
+    assertThat(limiter.getInFlight(), is(2));
+    try {
+      hook.canPublish("s2", "c2", "tcp://broker", message);
+      fail("Expected HookException");
+    } catch (HookException e) {
+      assertThat(e.getCode(), is(AdaptiveConcurrencyHook.LIMIT_EXCEEDED_ERROR_CODE));
+      assertThat(e instanceof ThrottleException, is(true));
+      assertThat(((ThrottleException) e).getRetryAfter(TimeUnit.MILLISECONDS) >= 100, is(true));
+    }
+    // Other callbacks have their own limit.
+    assertThat(hook.canSubscribe("s2", "c2", "tcp://broker", null), is(true));
+
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(limiter.getInFlight(), is(0));
+    assertThat(limiter.getAccepted(), is(2L));
+    assertThat(limiter.getRejected(), is(1L));
+    assertThat(limiter.getLatencyNanos() > 0, is(true));
+    assertThat(hook.canPublish("s2", "c2", "tcp://broker", message), is(true));
+  }
+
+  @Test
+  public void shouldOnlyTakeOverloadFailuresAsDrops() {
+    List<Boolean> drops = Collections.synchronizedList(new ArrayList<>());
+    SimpleCoolHook delegate = new SimpleCoolHook() {
+
+      @Override
+      public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+          MqttMessage message) throws HookException {
+
+        switch (message.getTopicName()) {
+          case "throttled":
+            throw new ThrottleException(503, "Busy", 1, TimeUnit.SECONDS);
+          case "refused":
+            throw new HookException(403, "Forbidden");
+          case "timeout":
+            throw new HookException(503, "Timeout");
+          case "broken":
+            throw new IllegalStateException();
+          default:
+            return true;
+        }
+      }
+    };
+    AdaptiveConcurrencyHook hook = new AdaptiveConcurrencyHook(delegate, () ->
+        new LimitAlgorithm() {
+
+          @Override
+          public int getLimit() {
+            return 10;
+          }
+
+          @Override
+          public int onSample(long rttNanos, int inFlight, boolean dropped) {
+            drops.add(dropped);
+            return 10;
+          }
+        },
+        new ThrottlePolicy(AdaptiveConcurrencyHook.LIMIT_EXCEEDED_ERROR_CODE, 100, 10_000,
+            TimeUnit.MILLISECONDS),
+        e -> e.getCode() == 503);
+
+    for (String topic : new String[] {"allowed", "throttled", "refused", "timeout", "broken"}) {
+      try {
+        hook.canPublish("s1", "c1", "tcp://broker", new TestMessage(topic, "", QoS.AT_MOST_ONCE));
+      } catch (HookException | RuntimeException e) {
+        // Expected, except for the first topic.
+      }
+    }
+    assertThat(drops, is(Arrays.asList(false, false, false, true, true)));
+  }
+
+}
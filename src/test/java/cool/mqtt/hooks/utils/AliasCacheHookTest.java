@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AliasCacheHookTest {
+
+  private static class CountingHook extends SimpleCoolHook {
+
+    final AtomicInteger resolutions = new AtomicInteger();
+
+    @Override
+    public MqttBrokerConfig resolveAlias(String alias) {
+      resolutions.incrementAndGet();
+      if (alias.equals("unknown")) {
+        return null;
+      }
+      return new MqttBrokerConfigBuilder("tcp://" + alias + ":1883")
+          .username("user")
+          .password("pwd-" + alias)
+          .build();
+    }
+  }
+
+  private final AtomicLong clock = new AtomicLong(1_600_000_000_000L);
+
+  private Path directory;
+
+  private SecretKey key;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("alias-cache");
+    key = KeyGenerator.getInstance("AES").generateKey();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (File file : directory.toFile().listFiles()) {
+      file.delete();
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void shouldRoundTripFullConfig() throws IOException {
+    MqttBrokerConfig config = new MqttBrokerConfigBuilder("ssl://broker:8883")
+        .username("user")
+        .password("secret")
+        .keepAlive(30)
+        .clientIdPrefix("prefix")
+        .willMessage("will/topic", "bye".getBytes(StandardCharsets.UTF_8), QoS.EXACTLY_ONCE,
+            true)
+        .securityProtocol("TLSv1.2")
+        .truststorePath(Paths.get("/etc/truststore.jks"))
+        .truststorePassword("changeit".toCharArray())
+        .build();
+
+    MqttBrokerConfigCodec codec = new MqttBrokerConfigCodec(key);
+    byte[] bytes = encode(codec, config);
+    assertThat(new String(bytes, StandardCharsets.ISO_8859_1).contains("secret"), is(false));
+    assertThat(new String(bytes, StandardCharsets.ISO_8859_1).contains("changeit"), is(false));
+
+    MqttBrokerConfig decoded = codec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    assertThat(decoded.getAddress(), is("ssl://broker:8883"));
+    assertThat(decoded.getUsername(), is("user"));
+    assertThat(decoded.getPassword(), is("secret"));
+    assertThat(decoded.getKeepAlive(), is(30));
+    assertThat(decoded.getConnectionTimeout(), nullValue());
+    assertThat(decoded.getClientIdPrefix(), is("prefix"));
+    assertThat(decoded.getWillMessage().getTopicName(), is("will/topic"));
+    assertThat(new String(decoded.getWillMessage().getApplicationMessage(),
+        StandardCharsets.UTF_8), is("bye"));
+    assertThat(decoded.getWillMessage().getQos(), is(QoS.EXACTLY_ONCE));
+    assertThat(decoded.getWillMessage().isRetained(), is(true));
+    assertThat(decoded.getSecurityParams().getSecurityProtocol(), is("TLSv1.2"));
+    assertThat(decoded.getSecurityParams().getTruststorePath(),
+        is(Paths.get("/etc/truststore.jks")));
+    assertThat(new String(decoded.getSecurityParams().getTruststorePassword()), is("changeit"));
+    assertThat(decoded.getSecurityParams().getKeystorePath(), nullValue());
+  }
+
+  @Test
+  public void shouldRefusePasswordsWithoutKey() throws IOException {
+    MqttBrokerConfigCodec codec = new MqttBrokerConfigCodec();
+    MqttBrokerConfig plain = new MqttBrokerConfigBuilder("tcp://broker:1883").build();
+    MqttBrokerConfig secret =
+        new MqttBrokerConfigBuilder("tcp://broker:1883").password("secret").build();
+    assertThat(codec.canEncode(plain), is(true));
+    assertThat(codec.canEncode(secret), is(false));
+    encode(codec, plain);
+    try {
+      encode(codec, secret);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void shouldFailWithWrongKey() throws Exception {
+    MqttBrokerConfig config =
+        new MqttBrokerConfigBuilder("tcp://broker:1883").password("secret").build();
+    byte[] bytes = encode(new MqttBrokerConfigCodec(key), config);
+    MqttBrokerConfigCodec other =
+        new MqttBrokerConfigCodec(KeyGenerator.getInstance("AES").generateKey());
+    other.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  @Test
+  public void shouldRejectCorruptWillMessageLengths() throws IOException {
+    MqttBrokerConfigCodec codec = new MqttBrokerConfigCodec(key);
+    for (int length : new int[] {Integer.MAX_VALUE, 0x10000, -2}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(1);
+      out.writeBoolean(true);
+      out.writeUTF("tcp://broker:1883");
+      for (int i = 0; i < 5; i++) {
+        // Username, password, keep alive, connection timeout and ClientId prefix.
+        out.writeBoolean(false);
+      }
+      out.writeBoolean(true);
+      out.writeBoolean(true);
+      out.writeUTF("will/topic");
+      out.writeInt(length);
+      try {
+        codec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        fail("Expected IOException");
+      } catch (IOException e) {
+        assertThat(e.getMessage(), is("Invalid length " + length));
+      }
+    }
+  }
+
+  @Test
+  public void shouldNotEncodeOversizedWillMessages() {
+    MqttBrokerConfig config = new MqttBrokerConfigBuilder("tcp://broker:1883")
+        .willMessage("will/topic", new byte[0x10000], QoS.AT_MOST_ONCE, false)
+        .build();
+    assertThat(new MqttBrokerConfigCodec(key).canEncode(config), is(false));
+  }
+
+  @Test
+  public void shouldCacheAndRestoreAfterRestart() throws HookException, IOException {
+    CountingHook delegate = new CountingHook();
+    AliasCacheHook hook = new AliasCacheHook(delegate, new MqttBrokerConfigCodec(key), "aliases",
+        60, TimeUnit.SECONDS, clock::get);
+    hook.init(directory.toFile());
+    assertThat(hook.getRestoredAliases(), is(0));
+
+    hook.resolveAlias("broker1");
+    hook.resolveAlias("broker1");
+    hook.resolveAlias("broker2");
+    assertThat(hook.resolveAlias("unknown"), nullValue());
+    assertThat(delegate.resolutions.get(), is(3));
+    assertThat(hook.getCacheHits(), is(1L));
+    hook.saveSnapshot();
+
+    CountingHook restartedDelegate = new CountingHook();
+    AliasCacheHook restarted =
+        new AliasCacheHook(restartedDelegate, new MqttBrokerConfigCodec(key), "aliases",
+        60, TimeUnit.SECONDS, clock::get);
+    restarted.init(directory.toFile());
+    assertThat(restarted.getRestoredAliases(), is(2));
+    assertThat(restarted.resolveAlias("broker1").getPassword(), is("pwd-broker1"));
+    assertThat(restartedDelegate.resolutions.get(), is(0));
+
+    restarted.invalidate("broker1");
+    assertThat(restarted.resolveAlias("broker1"), not(nullValue()));
+    assertThat(restartedDelegate.resolutions.get(), is(1));
+  }
+
+  @Test
+  public void shouldRevalidateExpiredConfigurations() throws HookException, IOException {
+    CountingHook delegate = new CountingHook();
+    AliasCacheHook hook = new AliasCacheHook(delegate, new MqttBrokerConfigCodec(key), "aliases",
+        60, TimeUnit.SECONDS, clock::get);
+    hook.init(directory.toFile());
+
+    hook.resolveAlias("broker1");
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(59));
+    hook.resolveAlias("broker1");
+    assertThat(delegate.resolutions.get(), is(1));
+
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(1));
+    hook.resolveAlias("broker1");
+    hook.resolveAlias("broker1");
+    assertThat(delegate.resolutions.get(), is(2));
+    hook.saveSnapshot();
+
+    // Restored configurations keep their age.
+    CountingHook restartedDelegate = new CountingHook();
+    AliasCacheHook restarted = new AliasCacheHook(restartedDelegate,
+        new MqttBrokerConfigCodec(key), "aliases", 60, TimeUnit.SECONDS, clock::get);
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(30));
+    restarted.init(directory.toFile());
+    restarted.resolveAlias("broker1");
+    assertThat(restartedDelegate.resolutions.get(), is(0));
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(30));
+    restarted.resolveAlias("broker1");
+    assertThat(restartedDelegate.resolutions.get(), is(1));
+  }
+
+  @Test
+  public void shouldServeExpiredConfigurationsWhenRevalidationFails() throws HookException {
+    AtomicInteger failures = new AtomicInteger();
+    AliasCacheHook hook = new AliasCacheHook(new CountingHook() {
+
+      @Override
+      public MqttBrokerConfig resolveAlias(String alias) {
+        if (resolutions.get() > 0) {
+          failures.incrementAndGet();
+          throw new IllegalStateException("Backend down");
+        }
+        return super.resolveAlias(alias);
+      }
+    }, new MqttBrokerConfigCodec(key), "aliases", 60, TimeUnit.SECONDS, clock::get);
+
+    MqttBrokerConfig config = hook.resolveAlias("broker1");
+    clock.addAndGet(TimeUnit.MINUTES.toMillis(5));
+    assertThat(hook.resolveAlias("broker1"), is(config));
+    assertThat(hook.resolveAlias("broker1"), is(config));
+    assertThat(failures.get(), is(2));
+  }
+
+  @Test
+  public void shouldStartColdWithUnreadableSnapshot() throws HookException, IOException {
+    Files.write(directory.resolve("aliases"), "garbage".getBytes(StandardCharsets.UTF_8));
+    AliasCacheHook hook =
+        new AliasCacheHook(new CountingHook(), new MqttBrokerConfigCodec(key), "aliases",
+        60, TimeUnit.SECONDS, clock::get);
+    hook.init(directory.toFile());
+    assertThat(hook.getRestoredAliases(), is(0));
+  }
+
+  private static byte[] encode(MqttBrokerConfigCodec codec, MqttBrokerConfig config)
+      throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    codec.write(config, new DataOutputStream(bytes));
+    return bytes.toByteArray();
+  }
+
+}
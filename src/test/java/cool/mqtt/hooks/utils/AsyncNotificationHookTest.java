@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttConnectOptions;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncNotificationHookTest {
+
+  private static class RecordingHook extends SimpleCoolHook {
+
+    final List<String> notifications = Collections.synchronizedList(new ArrayList<>());
+
+    final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void onSessionClose(String sessionId) {
+      record("close " + sessionId);
+    }
+
+    @Override
+    public void onDisconnection(String sessionId, String clientId, String brokerAddress) {
+      record("disconnect " + sessionId + " " + clientId);
+    }
+
+    @Override
+    public void onUnsubscribe(String sessionId, String clientId, String brokerAddress,
+        String topicFilter) {
+
+      record("unsubscribe " + sessionId + " " + topicFilter);
+    }
+
+    private void record(String notification) {
+      notifications.add(notification);
+      threads.add(Thread.currentThread().getName());
+    }
+  }
+
+  private AsyncNotificationHook hook;
+
+  @After
+  public void tearDown() {
+    if (hook != null) {
+      hook.close();
+    }
+  }
+
+  @Test
+  public void shouldDeliverNotificationsInOrderOffTheCallingThread() {
+    RecordingHook delegate = new RecordingHook();
+    hook = new AsyncNotificationHook(delegate, 4, 100);
+
+    for (int i = 0; i < 10; i++) {
+      hook.onUnsubscribe("session", "client", "tcp://localhost:1883", "topic/" + i);
+    }
+    hook.onDisconnection("session", "client", "tcp://localhost:1883");
+    hook.onSessionClose("session");
+    hook.close();
+
+    assertThat(delegate.notifications.size(), is(12));
+    for (int i = 0; i < 10; i++) {
+      assertThat(delegate.notifications.get(i), is("unsubscribe session topic/" + i));
+    }
+    assertThat(delegate.notifications.get(10), is("disconnect session client"));
+    assertThat(delegate.notifications.get(11), is("close session"));
+    assertThat(delegate.threads.get(0), not(Thread.currentThread().getName()));
+    assertThat(hook.getProcessedEvents(), is(12L));
+  }
+
+  @Test
+  public void shouldForwardAuthorizationsSynchronously() throws HookException {
+    hook = new AsyncNotificationHook(new SimpleCoolHook() {
+
+      @Override
+      public boolean canConnect(String sessionId, String clientId, String brokerAddress,
+          MqttConnectOptions connectOptions) {
+        return false;
+      }
+    }, 1, 1);
+
+    assertThat(hook.canConnect("session", "client", "tcp://localhost:1883", null), is(false));
+    assertThat(hook.canSubscribe("session", "client", "tcp://localhost:1883", null), is(true));
+  }
+
+  @Test
+  public void shouldBlockNotifyingThreadsWhenQueueIsFull() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<LifecycleEvent> events = Collections.synchronizedList(new ArrayList<>());
+    hook = new AsyncNotificationHook(new SimpleCoolHook(), event -> {
+      events.add(event);
+      if (event.getSessionId().equals("blocker")) {
+        blocked.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, 1, 1);
+
+    hook.onSessionClose("blocker");
+    assertThat(blocked.await(10, TimeUnit.SECONDS), is(true));
+
+    hook.onSessionClose("queued");
+    Thread notifier = new Thread(() -> hook.onSessionClose("waiting"));
+    notifier.start();
+    while (hook.getBlockedEvents() == 0) {
+      Thread.sleep(1);
+    }
+    assertThat(notifier.isAlive(), is(true));
+
+    release.countDown();
+    notifier.join(TimeUnit.SECONDS.toMillis(10));
+    hook.close();
+    assertThat(events.size(), is(3));
+    assertThat(events.get(1).getSessionId(), is("queued"));
+    assertThat(events.get(2).getSessionId(), is("waiting"));
+  }
+
+  @Test
+  public void shouldConsumeNotificationsReceivedAfterClose() {
+    List<String> threads = Collections.synchronizedList(new ArrayList<>());
+    hook = new AsyncNotificationHook(new SimpleCoolHook(),
+        event -> threads.add(Thread.currentThread().getName()), 2, 10);
+    hook.close();
+
+    hook.onSessionClose("late");
+    assertThat(threads, is(Collections.singletonList(Thread.currentThread().getName())));
+  }
+
+  @Test(timeout = 10_000)
+  public void shouldCloseFromAConsumerWhoseQueueIsFull() throws InterruptedException {
+    CountDownLatch queued = new CountDownLatch(1);
+    CountDownLatch closed = new CountDownLatch(1);
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+    hook = new AsyncNotificationHook(new SimpleCoolHook(), event -> {
+      events.add(event.getSessionId());
+      if (event.getSessionId().equals("closer")) {
+        try {
+          queued.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        hook.close();
+        // Notified to its own closed stripe: consumed at once, as it can not wait for itself.
+        hook.onSessionClose("late");
+        closed.countDown();
+      }
+    }, 1, 2);
+
+    hook.onSessionClose("closer");
+    hook.onSessionClose("s1");
+    hook.onSessionClose("s2");
+    assertThat(hook.getQueuedEvents(), is(2));
+    queued.countDown();
+
+    assertThat(closed.await(5, TimeUnit.SECONDS), is(true));
+    while (hook.getProcessedEvents() < 4) {
+      Thread.sleep(1);
+    }
+    assertThat(events.subList(0, 1), is(Collections.singletonList("closer")));
+    assertThat(events.size(), is(4));
+  }
+
+  @Test
+  public void shouldSurviveFailingConsumers() {
+    hook = new AsyncNotificationHook(new SimpleCoolHook(), event -> {
+      if (event.getSessionId().equals("s1")) {
+        throw new IllegalStateException();
+      }
+      throw new StackOverflowError();
+    }, 1, 10);
+
+    hook.onSessionClose("s1");
+    hook.onSessionClose("s2");
+    hook.onSessionClose("s3");
+    hook.close();
+
+    assertThat(hook.getFailedEvents(), is(3L));
+    assertThat(hook.getProcessedEvents(), is(3L));
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.Disconnection;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BatchingNotificationHookTest {
+
+  private final List<String> batches = new CopyOnWriteArrayList<>();
+
+  private final SimpleCoolHook delegate = new SimpleCoolHook() {
+
+    @Override
+    public void onSessionsClosed(Collection<String> sessionIds) {
+      batches.add("closed " + sessionIds);
+    }
+
+    @Override
+    public void onDisconnections(Collection<Disconnection> disconnections) {
+      StringBuilder batch = new StringBuilder("disconnected [");
+      for (Disconnection disconnection : disconnections) {
+        batch.append(disconnection.getClientId());
+      }
+      batches.add(batch.append(']').toString());
+    }
+  };
+
+  @Test
+  public void shouldDeliverFullBatchesOnTheNotifyingThread() {
+    try (BatchingNotificationHook hook =
+        new BatchingNotificationHook(delegate, 3, 1, TimeUnit.HOURS)) {
+
+      hook.onDisconnection("s1", "a", "tcp://broker");
+      hook.onSessionClose("s1");
+      assertThat(batches.isEmpty(), is(true));
+      assertThat(hook.getPendingNotifications(), is(2));
+
+      hook.onDisconnection("s2", "b", "tcp://broker");
+      assertThat(batches, is(Arrays.asList("disconnected [ab]", "closed [s1]")));
+      assertThat(hook.getPendingNotifications(), is(0));
+      assertThat(hook.getDeliveredBatches(), is(2L));
+    }
+  }
+
+  @Test
+  public void shouldDeliverPendingNotificationsPeriodically() throws InterruptedException {
+    try (BatchingNotificationHook hook =
+        new BatchingNotificationHook(delegate, 100, 20, TimeUnit.MILLISECONDS)) {
+
+      hook.onSessionsClosed(Arrays.asList("s1", "s2"));
+      hook.onSessionClose("s3");
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (batches.isEmpty() && System.nanoTime() < deadline) {
+        Thread.sleep(5);
+      }
+      assertThat(batches, is(Arrays.asList("closed [s1, s2, s3]")));
+    }
+  }
+
+  @Test
+  public void shouldDeliverPendingNotificationsOnClose() {
+    BatchingNotificationHook hook = new BatchingNotificationHook(delegate, 100, 1, TimeUnit.HOURS);
+    hook.onDisconnection("s1", "a", "tcp://broker");
+    hook.close();
+    assertThat(batches, is(Arrays.asList("disconnected [a]")));
+
+    hook.onSessionClose("s1");
+    assertThat(batches, is(Arrays.asList("disconnected [a]", "closed [s1]")));
+  }
+
+  @Test
+  public void shouldCountFailedBatches() {
+    SimpleCoolHook failing = new SimpleCoolHook() {
+
+      @Override
+      public void onSessionClose(String sessionId) {
+        throw new IllegalStateException();
+      }
+    };
+    try (BatchingNotificationHook hook =
+        new BatchingNotificationHook(failing, 1, 1, TimeUnit.HOURS)) {
+
+      hook.onSessionClose("s1");
+      hook.onDisconnection("s1", "a", "tcp://broker");
+      assertThat(hook.getDeliveredBatches(), is(2L));
+      assertThat(hook.getFailedBatches(), is(1L));
+    }
+  }
+
+}
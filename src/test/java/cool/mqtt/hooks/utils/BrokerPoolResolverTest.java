@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.MqttBrokerConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BrokerPoolResolverTest {
+
+  private static final String BROKER_A = "tcp://broker-a:1883";
+
+  private static final String BROKER_B = "tcp://broker-b:1883";
+
+  private static final String BROKER_C = "tcp://broker-c:1883";
+
+  private BrokerPoolResolver resolver;
+
+  private MqttBrokerConfig configA;
+
+  private MqttBrokerConfig configB;
+
+  private MqttBrokerConfig configC;
+
+  @Before
+  public void setup() {
+    configA = new MqttBrokerConfigBuilder(BROKER_A).build();
+    configB = new MqttBrokerConfigBuilder(BROKER_B).build();
+    configC = new MqttBrokerConfigBuilder(BROKER_C).build();
+    resolver = new BrokerPoolResolver().addBroker(configA).addBroker(configB, 2).addBroker(configC);
+  }
+
+  @Test
+  public void shouldNotResolveUnknownAlias() {
+    assertThat(resolver.resolve("unknown"), nullValue());
+  }
+
+  @Test
+  public void shouldResolveToLeastConnectedBroker() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.leastConnections(), BROKER_A, BROKER_B);
+    resolver.connected(BROKER_A);
+
+    assertThat(resolver.resolve("cluster"), sameInstance(configB));
+
+    resolver.connected(BROKER_B);
+    resolver.connected(BROKER_B);
+    assertThat(resolver.resolve("cluster"), sameInstance(configA));
+
+    resolver.disconnected(BROKER_B);
+    resolver.disconnected(BROKER_B);
+    assertThat(resolver.resolve("cluster"), sameInstance(configB));
+  }
+
+  @Test
+  public void shouldNotTrackNegativeConnections() {
+    resolver.disconnected(BROKER_A);
+    resolver.disconnected("tcp://unknown:1883");
+    assertThat(resolver.getStats(BROKER_A).getConnections(), is(0));
+  }
+
+  @Test
+  public void shouldResolveAccordingToWeights() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.weighted(), BROKER_A, BROKER_B);
+    resolver.connected(BROKER_A);
+    resolver.connected(BROKER_B);
+
+    // Broker B has twice the capacity of broker A.
+    assertThat(resolver.resolve("cluster"), sameInstance(configB));
+    resolver.connected(BROKER_B);
+    assertThat(resolver.resolve("cluster"), sameInstance(configA));
+  }
+
+  @Test
+  public void shouldResolveToLowestLatencyBroker() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.lowestLatency(), BROKER_A, BROKER_B);
+    resolver.recordLatency(BROKER_A, 2_000_000);
+    resolver.recordLatency(BROKER_B, 1_000_000);
+
+    assertThat(resolver.resolve("cluster"), sameInstance(configB));
+  }
+
+  @Test
+  public void shouldNeverPickMostLoadedBrokerWithPowerOfTwoChoices() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.powerOfTwoChoices(), BROKER_A, BROKER_C);
+    resolver.connected(BROKER_A);
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(resolver.resolve("cluster"), sameInstance(configC));
+    }
+  }
+
+  @Test
+  public void shouldConsistentlyMapAffinityKeys() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.consistentHashing(), BROKER_A, BROKER_B,
+        BROKER_C);
+
+    Map<String, MqttBrokerConfig> assignments = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      assignments.put("client-" + i, resolver.resolve("cluster", "client-" + i));
+    }
+    for (Map.Entry<String, MqttBrokerConfig> entry : assignments.entrySet()) {
+      assertThat(resolver.resolve("cluster", entry.getKey()), sameInstance(entry.getValue()));
+    }
+
+    // Only the keys owned by the removed broker must be remapped.
+    resolver.addPool("cluster", BrokerSelectionStrategy.consistentHashing(), BROKER_A, BROKER_B);
+    for (Map.Entry<String, MqttBrokerConfig> entry : assignments.entrySet()) {
+      if (entry.getValue() != configC) {
+        assertThat(resolver.resolve("cluster", entry.getKey()), sameInstance(entry.getValue()));
+      } else {
+        assertThat(resolver.resolve("cluster", entry.getKey()), not(sameInstance(configC)));
+      }
+    }
+  }
+
+  @Test
+  public void shouldKeepPoolsBoundToReplacedBroker() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.leastConnections(), BROKER_A);
+    MqttBrokerConfig replaced = new MqttBrokerConfigBuilder(BROKER_A).keepAlive(10).build();
+    resolver.addBroker(replaced);
+
+    assertThat(resolver.resolve("cluster"), sameInstance(replaced));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldThrowIllegalArgumentExceptionForUnknownAddress() {
+    resolver.addPool("cluster", BrokerSelectionStrategy.leastConnections(), "tcp://unknown:1883");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldThrowIllegalArgumentExceptionForInvalidWeight() {
+    resolver.addBroker(configA, 0);
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.Decision;
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecisionCachingHookTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  private DecisionCachingHook hook;
+
+  @Before
+  public void setUp() throws HookException {
+    SimpleCoolHook delegate = new SimpleCoolHook() {
+
+      @Override
+      public Decision authorizePublish(String sessionId, String clientId, String brokerAddress,
+          MqttMessage message) {
+
+        calls.incrementAndGet();
+        String topic = message.getTopicName();
+        if (topic.startsWith("timed/")) {
+          return Decision.allow().validFor(60, TimeUnit.SECONDS);
+        }
+        if (topic.startsWith("sticky/")) {
+          return Decision.deny().untilUnsubscribe();
+        }
+        return Decision.allow();
+      }
+
+      @Override
+      public Decision authorizeSubscribe(String sessionId, String clientId, String brokerAddress,
+          MqttSubscription subscription) {
+
+        calls.incrementAndGet();
+        return Decision.allow().untilUnsubscribe();
+      }
+    };
+    hook = new DecisionCachingHook(delegate, 3, clock::get);
+    hook.canOpenSession("s1", "alice", null, null, null);
+  }
+
+  @Test
+  public void shouldReuseDecisionsWithinTheirValidity() throws HookException {
+    assertThat(publish("s1", "timed/a"), is(true));
+    assertThat(publish("s1", "timed/a"), is(true));
+    assertThat(calls.get(), is(1));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(60));
+    assertThat(publish("s1", "timed/a"), is(true));
+    assertThat(calls.get(), is(2));
+    assertThat(hook.getCacheHits(), is(1L));
+    assertThat(hook.getCacheMisses(), is(2L));
+  }
+
+  @Test
+  public void shouldNotReuseDecisionsWithoutHints() throws HookException {
+    assertThat(publish("s1", "plain"), is(true));
+    assertThat(publish("s1", "plain"), is(true));
+    assertThat(calls.get(), is(2));
+    assertThat(hook.getCachedDecisions(), is(0));
+  }
+
+  @Test
+  public void shouldNotCacheUnknownSessions() throws HookException {
+    publish("s2", "timed/a");
+    publish("s2", "timed/a");
+    assertThat(calls.get(), is(2));
+  }
+
+  @Test
+  public void shouldDropDecisionsOnMatchingUnsubscribe() throws HookException {
+    MqttSubscription subscription = new TestSubscription("sticky/#");
+    assertThat(publish("s1", "sticky/room1/temperature"), is(false));
+    assertThat(hook.canSubscribe("s1", "c1", "tcp://broker", subscription), is(true));
+    assertThat(publish("s1", "sticky/room1/temperature"), is(false));
+    assertThat(hook.canSubscribe("s1", "c1", "tcp://broker", subscription), is(true));
+    assertThat(calls.get(), is(2));
+
+    hook.onUnsubscribe("s1", "c1", "tcp://broker", "sticky/+/humidity");
+    assertThat(hook.getCachedDecisions(), is(2));
+    hook.onUnsubscribe("s1", "c2", "tcp://broker", "sticky/#");
+    assertThat(hook.getCachedDecisions(), is(2));
+    hook.onUnsubscribe("s1", "c1", "tcp://broker", "sticky/#");
+    assertThat(hook.getCachedDecisions(), is(0));
+  }
+
+  @Test
+  public void shouldDropDecisionsOnDisconnectionAndSessionClose() throws HookException {
+    publish("s1", "timed/a");
+    hook.onDisconnection("s1", "c1", "tcp://broker");
+    assertThat(hook.getCachedDecisions(), is(0));
+
+    publish("s1", "timed/a");
+    hook.onSessionClose("s1");
+    assertThat(hook.getCachedDecisions(), is(0));
+    publish("s1", "timed/a");
+    assertThat(hook.getCachedDecisions(), is(0));
+  }
+
+  @Test
+  public void shouldBoundDecisionsPerSession() throws HookException {
+    publish("s1", "timed/a");
+    publish("s1", "timed/b");
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    publish("s1", "timed/c");
+    publish("s1", "timed/d");
+    assertThat(hook.getCachedDecisions(), is(3));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    publish("s1", "timed/d");
+    assertThat(hook.getCachedDecisions(), is(2));
+    assertThat(calls.get(), is(5));
+  }
+
+  @Test
+  public void shouldMatchTopicFilters() {
+    assertThat(DecisionCachingHook.matches("a/b", "a/b"), is(true));
+    assertThat(DecisionCachingHook.matches("a/b", "a/bc"), is(false));
+    assertThat(DecisionCachingHook.matches("a/+", "a/b"), is(true));
+    assertThat(DecisionCachingHook.matches("a/+", "a"), is(false));
+    assertThat(DecisionCachingHook.matches("a/+", "a/"), is(true));
+    assertThat(DecisionCachingHook.matches("a/#", "a"), is(true));
+    assertThat(DecisionCachingHook.matches("a/#", "a/b/c"), is(true));
+    assertThat(DecisionCachingHook.matches("+/+", "a/b/c"), is(false));
+    assertThat(DecisionCachingHook.matches("#", "$SYS/load"), is(false));
+    assertThat(DecisionCachingHook.matches("$SYS/#", "$SYS/load"), is(true));
+  }
+
+  @Test
+  public void shouldDescribeHints() {
+    assertThat(Decision.of(true), is(Decision.allow()));
+    assertThat(Decision.allow().isCacheable(), is(false));
+    assertThat(Decision.deny().untilUnsubscribe().getValidity(TimeUnit.SECONDS),
+        is(Long.MAX_VALUE));
+    assertThat(Decision.allow().untilUnsubscribe().validFor(2, TimeUnit.SECONDS).toString(),
+        is("allow for 2000ms until unsubscribe"));
+  }
+
+  private boolean publish(String sessionId, String topic) throws HookException {
+    return hook.canPublish(sessionId, "c1", "tcp://broker",
+        new TestMessage(topic, "payload", QoS.AT_MOST_ONCE));
+  }
+
+}
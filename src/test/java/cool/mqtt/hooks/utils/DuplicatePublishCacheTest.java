@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.QoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DuplicatePublishCacheTest {
+
+  private AtomicLong clock;
+
+  private DuplicatePublishCache cache;
+
+  @Before
+  public void setup() {
+    clock = new AtomicLong();
+    cache = new DuplicatePublishCache(1024, 10, TimeUnit.SECONDS, clock::get);
+  }
+
+  @Test
+  public void shouldReuseDecisionForDuplicates() {
+    TestMessage message = new TestMessage("topic", "payload", QoS.AT_LEAST_ONCE);
+    cache.putDecision("session", message, false);
+
+    assertThat(cache.getDecision("session", message.asDuplicate()), is(false));
+    assertThat(cache.getReusedDecisions(), is(1L));
+  }
+
+  @Test
+  public void shouldNotReuseDecisionForNonDuplicates() {
+    TestMessage message = new TestMessage("topic", "payload", QoS.EXACTLY_ONCE);
+    cache.putDecision("session", message, true);
+
+    assertThat(cache.getDecision("session", message), nullValue());
+    assertThat(cache.getRepeatedMessages(), is(1L));
+    assertThat(cache.getReusedDecisions(), is(0L));
+  }
+
+  @Test
+  public void shouldNotReuseDecisionForDifferentMessages() {
+    cache.putDecision("session", new TestMessage("topic", "payload", QoS.AT_LEAST_ONCE), true);
+
+    assertThat(cache.getDecision("other",
+        new TestMessage("topic", "payload", QoS.AT_LEAST_ONCE).asDuplicate()), nullValue());
+    assertThat(cache.getDecision("session",
+        new TestMessage("other", "payload", QoS.AT_LEAST_ONCE).asDuplicate()), nullValue());
+    assertThat(cache.getDecision("session",
+        new TestMessage("topic", "other", QoS.AT_LEAST_ONCE).asDuplicate()), nullValue());
+    assertThat(cache.getDecision("session",
+        new TestMessage("topic", "payload", QoS.EXACTLY_ONCE).asDuplicate()), nullValue());
+  }
+
+  @Test
+  public void shouldCompareTheDecidedPayload() {
+    byte[] payload = "payload".getBytes(StandardCharsets.UTF_8);
+    cache.putDecision("session", new TestMessage("topic", payload, QoS.AT_LEAST_ONCE, false,
+        false), true);
+
+    // Later changes to the payload of the decided message do not affect the cached copy.
+    payload[0] = 'P';
+    assertThat(cache.getDecision("session",
+        new TestMessage("topic", "payload", QoS.AT_LEAST_ONCE).asDuplicate()), is(true));
+    assertThat(cache.getDecision("session", new TestMessage("topic", payload, QoS.AT_LEAST_ONCE,
+        false, true)), nullValue());
+  }
+
+  @Test
+  public void shouldForgetDecisionsAfterWindow() {
+    TestMessage message = new TestMessage("topic", "payload", QoS.AT_LEAST_ONCE);
+    cache.putDecision("session", message, true);
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(11));
+    assertThat(cache.getDecision("session", message.asDuplicate()), nullValue());
+  }
+
+  @Test
+  public void shouldIgnoreAtMostOnceMessages() {
+    TestMessage message = new TestMessage("topic", "payload", QoS.AT_MOST_ONCE);
+    cache.putDecision("session", message, true);
+
+    assertThat(cache.getDecision("session", message.asDuplicate()), nullValue());
+  }
+
+  @Test
+  public void shouldKeepFixedCapacity() {
+    assertThat(new DuplicatePublishCache(1000, 1, TimeUnit.SECONDS).getCapacity(), is(1024));
+
+    for (int i = 0; i < 100_000; i++) {
+      cache.putDecision("session", new TestMessage("topic/" + i, "payload", QoS.AT_LEAST_ONCE),
+          true);
+    }
+    assertThat(cache.getCapacity(), is(1024));
+    assertThat(cache.getDecision("session",
+        new TestMessage("topic/99999", "payload", QoS.AT_LEAST_ONCE).asDuplicate()), is(true));
+  }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class HashingTest {
+
+  private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+
+  @Test
+  public void shouldComputeReferenceValues() {
+    assertThat(Hashing.update(FNV_OFFSET_BASIS, new byte[0]), is(0xCBF29CE484222325L));
+    assertThat(Hashing.update(FNV_OFFSET_BASIS, bytes("a")), is(0xAF63DC4C8601EC8CL));
+    assertThat(Hashing.update(FNV_OFFSET_BASIS, bytes("foobar")), is(0x85944171F73967E8L));
+  }
+
+  @Test
+  public void shouldHashEveryLengthByteByByte() {
+    byte[] all = new byte[67];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = (byte) (i * 37 - 128);
+    }
+    for (int length = 0; length <= all.length; length++) {
+      byte[] value = new byte[length];
+      System.arraycopy(all, 0, value, 0, length);
+
+      long expected = FNV_OFFSET_BASIS;
+      for (byte b : value) {
+        expected ^= b & 0xFF;
+        expected *= 0x100000001B3L;
+      }
+      assertThat(Hashing.update(FNV_OFFSET_BASIS, value), is(expected));
+      assertThat(Hashing.hash(value), is(Hashing.mix(expected)));
+    }
+  }
+
+  @Test
+  public void shouldHashStringsAsUtf8() {
+    assertThat(Hashing.hash("caffè/topic", 42),
+        is(Hashing.mix(Hashing.update(FNV_OFFSET_BASIS ^ 42, bytes("caffè/topic")))));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class HeavyHitterTrackerTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  @Test
+  public void shouldFindHeavyHittersInLongTail() {
+    HeavyHitterTracker tracker =
+        new HeavyHitterTracker(3, 0.001, 60, TimeUnit.SECONDS, clock::get);
+    for (int i = 0; i < 10_000; i++) {
+      tracker.add("tail/" + i, 10);
+      if (i % 10 == 0) {
+        tracker.add("heavy/a", 100);
+      }
+      if (i % 20 == 0) {
+        tracker.add("heavy/b", 100);
+      }
+      if (i % 40 == 0) {
+        tracker.add("heavy/c", 100);
+      }
+    }
+
+    List<HeavyHitter> top = tracker.getTopK();
+    assertThat(top.size(), is(3));
+    assertThat(top.get(0).getKey(), is("heavy/a"));
+    assertThat(top.get(1).getKey(), is("heavy/b"));
+    assertThat(top.get(2).getKey(), is("heavy/c"));
+
+    HeavyHitter heavy = tracker.estimate("heavy/a");
+    long total = tracker.getTotalMessages();
+    assertThat(total, is(10_000L + 1000 + 500 + 250));
+    assertThat(heavy.getMessages() >= 1000, is(true));
+    assertThat(heavy.getMessages() <= 1000 + total / 1000, is(true));
+    assertThat(heavy.getBytes() >= 100_000, is(true));
+  }
+
+  @Test
+  public void shouldSlideTheWindow() {
+    HeavyHitterTracker tracker =
+        new HeavyHitterTracker(2, 0.01, 60, TimeUnit.SECONDS, clock::get);
+    tracker.add("old", 1);
+    tracker.add("old", 1);
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(30));
+    tracker.add("new", 1);
+    assertThat(tracker.estimate("old").getMessages(), is(2L));
+    assertThat(tracker.getTotalMessages(), is(3L));
+
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(31));
+    assertThat(tracker.estimate("old").getMessages(), is(0L));
+    assertThat(tracker.getTotalMessages(), is(1L));
+    assertThat(tracker.getTopK().size(), is(1));
+    assertThat(tracker.getTopK().get(0).getKey(), is("new"));
+  }
+
+  @Test
+  public void shouldBreakDownPublishTraffic() throws HookException {
+    PublishAnalyticsHook hook =
+        new PublishAnalyticsHook(new SimpleCoolHook(), 10, 0.01, 1, TimeUnit.MINUTES);
+    TestMessage message = new TestMessage("a", "12345", QoS.AT_MOST_ONCE);
+    hook.canPublish("s1", "c1", "tcp://broker", message);
+    hook.canPublish("s1", "c1", "tcp://broker", message);
+    hook.canPublish("s2", "", "tcp://broker",
+        new TestMessage("b", new byte[1], QoS.AT_LEAST_ONCE, true, false));
+
+    assertThat(hook.getTopTopics().get(0).getKey(), is("a"));
+    assertThat(hook.getTopTopics().get(0).getBytes(), is(10L));
+    assertThat(hook.getTopClients().get(0).getKey(), is("c1"));
+    assertThat(hook.getTopClients().get(1).getKey(), is("s2"));
+    assertThat(hook.getTrafficClasses().get(0).getKey(), is("QoS 0"));
+    assertThat(hook.getTrafficClasses().get(1).getKey(), is("QoS 1 retained"));
+  }
+
+}
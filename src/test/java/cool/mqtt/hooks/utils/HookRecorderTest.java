@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+import cool.mqtt.hooks.utils.RecordedCall.RecordedMessage;
+import cool.mqtt.hooks.utils.RecordedCall.RecordedSubscription;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HookRecorderTest {
+
+  private final Map<String, String> passwords = new ConcurrentHashMap<>();
+
+  private final Map<String, byte[]> payloads = new ConcurrentHashMap<>();
+
+  private final SimpleCoolHook hook = new SimpleCoolHook() {
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean canOpenSession(String sessionId, String user, String password,
+        Map clientContext, String clientPrincipal) throws HookException {
+
+      passwords.put(sessionId, password);
+      if ("mallory".equals(user)) {
+        throw new HookException(403, "Banned");
+      }
+      return true;
+    }
+
+    @Override
+    public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+        MqttMessage message) {
+
+      payloads.put(sessionId + "|" + message.getTopicName(), message.getApplicationMessage());
+      return !message.getTopicName().startsWith("forbidden/");
+    }
+  };
+
+  @Test
+  public void shouldReplayRecordedCallsWithTheSameOutcome() throws Exception {
+    HookReplayer replayer = HookReplayer.read(new ByteArrayInputStream(record(hook)));
+    assertThat(replayer.getCalls(), is(5));
+
+    ReplayReport report = replayer.replay(hook, 2, Double.POSITIVE_INFINITY);
+    assertThat(report.getCalls(), is(5L));
+    assertThat(report.getMismatches(), is(0L));
+    assertThat(report.getErrors(), is(0L));
+  }
+
+  @Test
+  public void shouldHidePasswordsAndPayloads() throws Exception {
+    byte[] recording = record(hook);
+    String text = new String(recording, StandardCharsets.ISO_8859_1);
+    assertThat(text.contains("secret"), is(false));
+    assertThat(text.contains("temperature"), is(false));
+    assertThat(text.contains("alice"), is(true));
+
+    passwords.clear();
+    payloads.clear();
+    HookReplayer.read(new ByteArrayInputStream(recording)).replay(hook, 1, 1e6);
+    assertThat(passwords.get("s1"), not(is("secret")));
+    assertThat(passwords.get("s1").startsWith("#"), is(true));
+
+    // Equal payloads are replayed as equal arrays of the same length.
+    byte[] first = payloads.get("s1|sensors/a");
+    byte[] second = payloads.get("s1|sensors/b");
+    assertThat(first.length, is("temperature=21".length()));
+    assertThat(Arrays.equals(first, second), is(true));
+    assertThat(Arrays.equals(first, payloads.get("s1|forbidden/c")), is(false));
+  }
+
+  @Test
+  public void shouldOnlyHashThePrefixOfLargePayloads() throws Exception {
+    byte[] large = new byte[HookRecorder.HASHED_PAYLOAD_PREFIX + 64];
+    byte[] otherTail = large.clone();
+    otherTail[otherTail.length - 1] = 1;
+    byte[] otherPrefix = large.clone();
+    otherPrefix[0] = 1;
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    try (HookRecorder recorder = new HookRecorder(hook, stream, false)) {
+      recorder.canPublish("s1", "c1", "tcp://broker:1883",
+          new TestMessage("large/a", large, QoS.AT_MOST_ONCE, false, false));
+      recorder.canPublish("s1", "c1", "tcp://broker:1883",
+          new TestMessage("large/b", otherTail, QoS.AT_MOST_ONCE, false, false));
+      recorder.canPublish("s1", "c1", "tcp://broker:1883",
+          new TestMessage("large/c", otherPrefix, QoS.AT_MOST_ONCE, false, false));
+    }
+    payloads.clear();
+    HookReplayer.read(new ByteArrayInputStream(stream.toByteArray())).replay(hook, 1, 1e6);
+
+    byte[] first = payloads.get("s1|large/a");
+    assertThat(first.length, is(large.length));
+    assertThat(Arrays.equals(first, payloads.get("s1|large/b")), is(true));
+    assertThat(Arrays.equals(first, payloads.get("s1|large/c")), is(false));
+  }
+
+  @Test
+  public void shouldHashIdentitiesWhenRequested() throws Exception {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    try (HookRecorder recorder = new HookRecorder(hook, stream, true)) {
+      recorder.canOpenSession("s1", "alice", "secret", null, "CN=alice");
+    }
+    String text = new String(stream.toByteArray(), StandardCharsets.ISO_8859_1);
+    assertThat(text.contains("alice"), is(false));
+    assertThat(text.contains("s1"), is(true));
+  }
+
+  @Test
+  public void shouldCountMismatches() throws Exception {
+    HookReplayer replayer = HookReplayer.read(new ByteArrayInputStream(record(hook)));
+
+    SimpleCoolHook permissive = new SimpleCoolHook() {};
+    ReplayReport report = replayer.replay(permissive, 2, Double.POSITIVE_INFINITY);
+    // The refused publish and the banned session are now authorized.
+    assertThat(report.getMismatches(), is(2L));
+    assertThat(report.getLatency(0.99, TimeUnit.NANOSECONDS) >= 0, is(true));
+  }
+
+  @Test
+  public void shouldRejectForeignStreams() {
+    try {
+      HookReplayer.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage(), is("Not a Hook recording"));
+    }
+  }
+
+  @Test
+  public void shouldKeepTheCompleteCallsOfATruncatedRecording() throws Exception {
+    byte[] recording = record(hook);
+    byte[] truncated = Arrays.copyOf(recording, recording.length - 3);
+    assertThat(HookReplayer.read(new ByteArrayInputStream(truncated)).getCalls(), is(4));
+  }
+
+  @Test(timeout = 5_000)
+  public void shouldDropCallsWhenTheQueueIsFull() throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    ByteArrayOutputStream recording = new ByteArrayOutputStream();
+    OutputStream stream = new OutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        writing.countDown();
+        try {
+          released.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        recording.write(b, off, len);
+      }
+    };
+
+    char[] topicFilter = new char[0xFFFF];
+    Arrays.fill(topicFilter, 'a');
+    HookRecorder recorder = new HookRecorder(hook, stream, false, 1);
+    // Too large to be buffered: the writer thread blocks on the stream.
+    recorder.canSubscribe("s1", "c1", "tcp://broker:1883",
+        new RecordedSubscription(new String(topicFilter), QoS.AT_MOST_ONCE));
+    assertThat(writing.await(1, TimeUnit.SECONDS), is(true));
+
+    recorder.onSessionClose("s1");
+    recorder.onSessionClose("s2");
+    recorder.onSessionClose("s3");
+    assertThat(recorder.getDroppedCalls(), is(2L));
+
+    released.countDown();
+    recorder.close();
+    assertThat(recorder.getRecordedCalls(), is(2L));
+    HookReplayer replayer = HookReplayer.read(new ByteArrayInputStream(recording.toByteArray()));
+    assertThat(replayer.getCalls(), is(2));
+  }
+
+  @Test
+  public void shouldGenerateReplayedPayloadsOnce() {
+    RecordedMessage message =
+        new RecordedMessage("sensors/a", QoS.AT_MOST_ONCE, false, false, 21, 42L).generate();
+    byte[] payload = message.getApplicationMessage();
+    assertThat(payload.length, is(21));
+    assertThat(message.getApplicationMessage() == payload, is(true));
+    assertThat(Arrays.equals(payload,
+        new RecordedMessage("sensors/b", QoS.AT_MOST_ONCE, false, false, 21, 42L).generate()
+            .getApplicationMessage()), is(true));
+  }
+
+  private static byte[] record(SimpleCoolHook hook) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    try (HookRecorder recorder = new HookRecorder(hook, stream, false)) {
+      try {
+        recorder.canOpenSession("s1", "alice", "secret", null, null);
+        recorder.canPublish("s1", "c1", "tcp://broker:1883",
+            new TestMessage("sensors/a", "temperature=21", QoS.AT_LEAST_ONCE));
+        recorder.canPublish("s1", "c1", "tcp://broker:1883",
+            new TestMessage("sensors/b", "temperature=21", QoS.AT_LEAST_ONCE));
+        recorder.canPublish("s1", "c1", "tcp://broker:1883",
+            new TestMessage("forbidden/c", "temperature=22", QoS.AT_LEAST_ONCE));
+      } catch (HookException e) {
+        fail();
+      }
+      try {
+        recorder.canOpenSession("s2", "mallory", "guess", null, null);
+        fail();
+      } catch (HookException e) {
+        assertThat(e.getCode(), is(403));
+      }
+      recorder.close();
+      assertThat(recorder.getRecordedCalls(), is(5L));
+      assertThat(recorder.getDroppedCalls(), is(0L));
+    }
+    return stream.toByteArray();
+  }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JwtVerifierTest {
+
+  private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(
+      StandardCharsets.US_ASCII);
+
+  private static final long NOW = 1_600_000_000L;
+
+  private AtomicLong clock;
+
+  private JwtVerifier verifier;
+
+  @Before
+  public void setup() {
+    clock = new AtomicLong(TimeUnit.SECONDS.toMillis(NOW));
+    verifier = new JwtVerifier(100, 0, TimeUnit.SECONDS, clock::get).addHmacKey("hmac", SECRET);
+  }
+
+  @Test
+  public void shouldVerifyHs256Token() throws Exception {
+    String token = hs256("{\"alg\":\"HS256\",\"kid\":\"hmac\"}",
+        "{\"sub\":\"user\",\"exp\":" + (NOW + 60) + ",\"pub\":[\"a/#\"],\"sub_topics\":\"b/+ c\"}");
+
+    JwtClaims claims = verifier.verify(token);
+    assertThat(claims, notNullValue());
+    assertThat(claims.getSubject(), is("user"));
+    assertThat(claims.getExpiration(), is(NOW + 60));
+    assertThat(claims.getStringList("sub_topics"), is(Arrays.asList("b/+", "c")));
+
+    TopicPermissions permissions = claims.toTopicPermissions("pub", "sub_topics");
+    assertThat(permissions.canPublish("a/b"), is(true));
+    assertThat(permissions.canSubscribe("b/x"), is(true));
+    assertThat(permissions.canSubscribe("a/b"), is(false));
+  }
+
+  @Test
+  public void shouldServeVerifiedTokensFromCacheUntilExpiration() throws Exception {
+    String token = hs256("{\"alg\":\"HS256\"}", "{\"exp\":" + (NOW + 60) + "}");
+
+    JwtClaims claims = verifier.verify(token);
+    assertThat(verifier.verify(token), sameInstance(claims));
+    assertThat(verifier.getCacheHits(), is(1L));
+    assertThat(verifier.getVerifiedTokens(), is(1L));
+
+    clock.addAndGet(TimeUnit.SECONDS.toMillis(61));
+    assertThat(verifier.verify(token), nullValue());
+    assertThat(verifier.getCachedTokens(), is(0));
+  }
+
+  @Test
+  public void shouldRejectInvalidTokens() throws Exception {
+    String token = hs256("{\"alg\":\"HS256\"}", "{\"exp\":" + (NOW + 60) + "}");
+    String tampered = token.substring(0, token.lastIndexOf('.')) + "."
+        + encode(new byte[32]);
+
+    assertThat(verifier.verify(tampered), nullValue());
+    assertThat(verifier.verify("not a token"), nullValue());
+    assertThat(verifier.verify(encode("{\"alg\":\"none\"}") + "."
+        + encode("{\"sub\":\"user\"}") + "."), nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\",\"kid\":\"other\"}", "{}")),
+        nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}", "{\"exp\":" + (NOW - 1) + "}")),
+        nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}", "{\"nbf\":" + (NOW + 10) + "}")),
+        nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}", "[1, 2]")), nullValue());
+    assertThat(verifier.getRejectedTokens(), is(7L));
+  }
+
+  @Test
+  public void shouldRejectDeeplyNestedTokens() throws Exception {
+    String nested = new String(new char[40_000]).replace('\0', '[');
+    assertThat(verifier.verify(encode("{\"alg\":\"HS256\"}") + "." + encode(nested) + "."
+        + encode(new byte[32])), nullValue());
+    assertThat(verifier.verify(encode(nested.substring(0, 700)) + "." + encode("{}") + "."
+        + encode(new byte[32])), nullValue());
+
+    // Even if properly signed.
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}",
+        nestedObject(JwtVerifier.MAX_JSON_DEPTH + 1))), nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}",
+        nestedObject(JwtVerifier.MAX_JSON_DEPTH))), notNullValue());
+  }
+
+  @Test
+  public void shouldRejectOversizedTokens() throws Exception {
+    String padding = new String(new char[JwtVerifier.MAX_TOKEN_LENGTH]).replace('\0', 'x');
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\"}", "{\"pad\":\"" + padding + "\"}")),
+        nullValue());
+    assertThat(verifier.verify(hs256("{\"alg\":\"HS256\",\"pad\":\"" + padding.substring(0, 1024)
+        + "\"}", "{}")), nullValue());
+    assertThat(verifier.getRejectedTokens(), is(2L));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldReturnUnmodifiableClaims() throws Exception {
+    JwtClaims claims = verifier.verify(hs256("{\"alg\":\"HS256\"}",
+        "{\"roles\":[\"admin\"],\"profile\":{\"name\":\"user\"}}"));
+    try {
+      ((List<Object>) claims.get("roles")).add("root");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    try {
+      ((Map<String, Object>) claims.get("profile")).put("name", "root");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void shouldVerifyRs256Token() throws Exception {
+    KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    verifier.addPublicKey("rsa", keyPair.getPublic());
+
+    String token = sign("SHA256withRSA", keyPair.getPrivate(), "{\"alg\":\"RS256\"}",
+        "{\"sub\":\"user\"}", false);
+    assertThat(verifier.verify(token).getSubject(), is("user"));
+
+    // The HMAC key must not be usable with a public key algorithm, and vice versa.
+    String confused = hs256("{\"alg\":\"RS256\"}", "{\"sub\":\"user\"}");
+    assertThat(verifier.verify(confused), nullValue());
+  }
+
+  @Test
+  public void shouldVerifyEs256Token() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    KeyPair keyPair = generator.generateKeyPair();
+    verifier.addPublicKey("ec", keyPair.getPublic());
+
+    for (int i = 0; i < 10; i++) {
+      String token = sign("SHA256withECDSA", keyPair.getPrivate(),
+          "{\"alg\":\"ES256\",\"kid\":\"ec\"}", "{\"sub\":\"user-" + i + "\"}", true);
+      assertThat(verifier.verify(token).getSubject(), is("user-" + i));
+    }
+  }
+
+  @Test
+  public void shouldLoadKeysFromDirectory() throws Exception {
+    KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+    Path directory = Files.createTempDirectory("jwt-keys");
+    try {
+      Files.write(directory.resolve("rsa.pem"), ("-----BEGIN PUBLIC KEY-----\n"
+          + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+          + "\n-----END PUBLIC KEY-----\n").getBytes(StandardCharsets.US_ASCII));
+      Files.write(directory.resolve("hmac.secret"),
+          Base64.getEncoder().encode(SECRET));
+
+      JwtVerifier loaded = new JwtVerifier(10, 0, TimeUnit.SECONDS, clock::get)
+          .loadKeys(directory.toFile());
+
+      assertThat(loaded.verify(sign("SHA256withRSA", keyPair.getPrivate(),
+          "{\"alg\":\"RS256\",\"kid\":\"rsa\"}", "{}", false)), notNullValue());
+      assertThat(loaded.verify(hs256("{\"alg\":\"HS256\",\"kid\":\"hmac\"}", "{}")),
+          notNullValue());
+    } finally {
+      for (File file : directory.toFile().listFiles()) {
+        file.delete();
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private static String hs256(String header, String payload) throws Exception {
+    String signingInput = encode(header) + "." + encode(payload);
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+    return signingInput + "." + encode(mac.doFinal(signingInput.getBytes(
+        StandardCharsets.US_ASCII)));
+  }
+
+  private static String sign(String algorithm, PrivateKey key, String header, String payload,
+      boolean rawEcdsa) throws Exception {
+
+    String signingInput = encode(header) + "." + encode(payload);
+    Signature signature = Signature.getInstance(algorithm);
+    signature.initSign(key);
+    signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+    byte[] signed = signature.sign();
+    return signingInput + "." + encode(rawEcdsa ? toRaw(signed) : signed);
+  }
+
+  /**
+   * Converts a DER encoded ECDSA signature to the JWS format.
+   */
+  private static byte[] toRaw(byte[] der) {
+    byte[] raw = new byte[64];
+    int offset = 2;
+    for (int i = 0; i < 2; i++) {
+      int length = der[offset + 1];
+      int start = offset + 2;
+      int copied = Math.min(length, 32);
+      System.arraycopy(der, start + length - copied, raw, i * 32 + 32 - copied, copied);
+      offset = start + length;
+    }
+    return raw;
+  }
+
+  private static String nestedObject(int depth) {
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      json.append("{\"a\":");
+    }
+    json.append('1');
+    for (int i = 0; i < depth; i++) {
+      json.append('}');
+    }
+    return json.toString();
+  }
+
+  private static String encode(String value) {
+    return encode(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String encode(byte[] value) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value);
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MonitoredCoolHookTest {
+
+  private static class DenyingHook extends SimpleCoolHook {
+
+    @Override
+    public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+        MqttMessage message) throws HookException {
+
+      if (message.getTopicName().startsWith("error")) {
+        throw new HookException(1, "Failure");
+      }
+      return !message.getTopicName().startsWith("denied");
+    }
+  }
+
+  private MonitoredCoolHook hook = new MonitoredCoolHook(new DenyingHook(), "test");
+
+  @After
+  public void tearDown() {
+    hook.unregister();
+  }
+
+  @Test
+  public void shouldCountCallsDenialsAndErrors() throws HookException {
+    hook.canPublish("s1", "c1", "tcp://broker", new TestMessage("allowed", "", QoS.AT_MOST_ONCE));
+    hook.canPublish("s1", "c1", "tcp://broker", new TestMessage("denied", "", QoS.AT_MOST_ONCE));
+    try {
+      hook.canPublish("s1", "c1", "tcp://broker", new TestMessage("error", "", QoS.AT_MOST_ONCE));
+    } catch (HookException e) {
+      // Expected.
+    }
+
+    CallbackStats stats = hook.getStats("canPublish");
+    assertThat(stats.getCalls(), is(3L));
+    assertThat(stats.getDenials(), is(1L));
+    assertThat(stats.getErrors(), is(1L));
+    assertThat(stats.getLatencyP99Micros() > 0, is(true));
+
+    hook.getManagement().resetStatistics();
+    assertThat(stats.getCalls(), is(0L));
+  }
+
+  @Test
+  public void shouldTrackActiveResources() throws HookException {
+    hook.canOpenSession("s1", "user", null, null, null);
+    hook.canConnect("s1", "c1", "tcp://broker", null);
+    hook.canSubscribe("s1", "c1", "tcp://broker", new TestSubscription("a/b"));
+    hook.canSubscribe("s1", "c1", "tcp://broker", new TestSubscription("a/c"));
+    hook.canSubscribe("s1", "c1", "tcp://broker", new TestSubscription("a/c"));
+
+    HookManagement management = hook.getManagement();
+    assertThat(management.getActiveSessions(), is(1L));
+    assertThat(management.getActiveConnections(), is(1L));
+    assertThat(management.getActiveSubscriptions(), is(2L));
+
+    hook.onUnsubscribe("s1", "c1", "tcp://broker", "a/b");
+    hook.onUnsubscribe("s1", "c1", "tcp://broker", "a/b");
+    assertThat(management.getActiveSubscriptions(), is(1L));
+    hook.onDisconnection("s1", "c1", "tcp://broker");
+    hook.onSessionClose("s1");
+    assertThat(management.getActiveSessions(), is(0L));
+    assertThat(management.getActiveConnections(), is(0L));
+    assertThat(management.getActiveSubscriptions(), is(0L));
+  }
+
+  @Test
+  public void shouldReleaseResourcesOfEndedConnectionsAndSessions() throws HookException {
+    hook.canOpenSession("s1", "user", null, null, null);
+    hook.canConnect("s1", "c1", "tcp://broker", null);
+    hook.canConnect("s1", "c2", "tcp://broker", null);
+    hook.canSubscribe("s1", "c1", "tcp://broker", new TestSubscription("a/b"));
+    hook.canSubscribe("s1", "c2", "tcp://broker", new TestSubscription("a/b"));
+    hook.canSubscribe("s1", "c2", "tcp://broker", new TestSubscription("a/c"));
+
+    HookManagement management = hook.getManagement();
+    hook.onDisconnection("s1", "c1", "tcp://broker");
+    assertThat(management.getActiveConnections(), is(1L));
+    assertThat(management.getActiveSubscriptions(), is(2L));
+
+    hook.onSessionClose("s1");
+    assertThat(management.getActiveSessions(), is(0L));
+    assertThat(management.getActiveConnections(), is(0L));
+    assertThat(management.getActiveSubscriptions(), is(0L));
+  }
+
+  @Test
+  public void shouldIgnoreUnauthorizedResources() throws HookException {
+    hook.onDisconnection("unknown", "c1", "tcp://broker");
+    hook.onSessionClose("unknown");
+    hook.canConnect("unknown", "c1", "tcp://broker", null);
+
+    HookManagement management = hook.getManagement();
+    assertThat(management.getActiveSessions(), is(0L));
+    assertThat(management.getActiveConnections(), is(0L));
+  }
+
+  @Test
+  public void shouldExposeMBeansAndTuningKnobs() throws Exception {
+    AtomicLong limit = new AtomicLong(10);
+    AtomicLong cacheSize = new AtomicLong();
+    StringBuilder invalidated = new StringBuilder();
+    hook.getManagement()
+        .addLimit("maxConnections", limit::get, limit::set)
+        .addCache("tokens", cacheSize::set)
+        .addUserInvalidator(invalidated::append);
+    hook.init(null);
+    // A second initialization replaces the previous registrations.
+    hook.init(null);
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName management = new ObjectName("cool.mqtt.hooks:type=HookManagement,name=\"test\"");
+    ObjectName callback =
+        new ObjectName("cool.mqtt.hooks:type=HookCallback,hook=\"test\",name=canConnect");
+    hook.canOpenSession("s1", "user", null, null, null);
+    hook.canConnect("s1", "c1", "tcp://broker", null);
+
+    assertThat(server.getAttribute(callback, "Calls"), is((Object) 1L));
+    assertThat(server.getAttribute(management, "ActiveConnections"), is((Object) 1L));
+
+    server.invoke(management, "setLimit", new Object[] {"maxConnections", 20L},
+        new String[] {String.class.getName(), long.class.getName()});
+    server.invoke(management, "resizeCache", new Object[] {"tokens", 500},
+        new String[] {String.class.getName(), int.class.getName()});
+    server.invoke(management, "invalidateUser", new Object[] {"alice"},
+        new String[] {String.class.getName()});
+    assertThat(limit.get(), is(20L));
+    assertThat(cacheSize.get(), is(500L));
+    assertThat(invalidated.toString(), is("alice"));
+
+    hook.unregister();
+    assertThat(server.isRegistered(management), is(false));
+    assertThat(server.isRegistered(callback), is(false));
+  }
+
+  @Test
+  public void shouldComputeTheRateOverTheLastMinute() {
+    AtomicLong nanos = new AtomicLong();
+    CallbackStats stats = new CallbackStats("canPublish", nanos::get);
+    for (int second = 1; second <= 61; second++) {
+      nanos.set(TimeUnit.SECONDS.toNanos(second));
+      stats.record(1000, false, false);
+    }
+
+    // The call of the current second does not replace the one of 60 seconds ago.
+    assertThat(stats.getCallsPerSecond(), is(1.0));
+    nanos.set(TimeUnit.SECONDS.toNanos(62));
+    assertThat(stats.getCallsPerSecond(), is(1.0));
+    nanos.set(TimeUnit.SECONDS.toNanos(92));
+    assertThat(stats.getCallsPerSecond(), is(0.5));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnknownLimit() {
+    hook.getManagement().setLimit("unknown", 1);
+  }
+
+}
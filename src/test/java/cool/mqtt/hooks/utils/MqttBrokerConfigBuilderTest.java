@@ -133,6 +133,33 @@ public class MqttBrokerConfigBuilderTest {
     assertThat(config.getSecurityParams(), nullValue());
   }
 
+  @Test
+  public void shouldNotBeAffectedByFurtherChanges() {
+    MqttBrokerConfig config = builder.username("username").keepAlive(10).build();
+    builder.username("other").keepAlive(20).willMessage("topic", null, QoS.AT_MOST_ONCE, false);
+
+    assertThat(config.getUsername(), is("username"));
+    assertThat(config.getKeepAlive(), is(10));
+    assertThat(config.getWillMessage(), nullValue());
+  }
+
+  @Test
+  public void shouldNotShareArrays() {
+    byte[] applicationMessage = {1, 2, 3};
+    char[] keystorePassword = "keystorepassword".toCharArray();
+    MqttBrokerConfig config = builder.willMessage("topic", applicationMessage, QoS.AT_MOST_ONCE,
+        false).keystorePath(Paths.get("/keystore.jks")).keystorePassword(keystorePassword).build();
+
+    applicationMessage[0] = 9;
+    keystorePassword[0] = 'X';
+    config.getWillMessage().getApplicationMessage()[1] = 9;
+    config.getSecurityParams().getKeystorePassword()[1] = 'X';
+
+    assertThat(config.getWillMessage().getApplicationMessage(), is(new byte[] {1, 2, 3}));
+    assertThat(config.getSecurityParams().getKeystorePassword(),
+        is("keystorepassword".toCharArray()));
+  }
+
   @Test
   public void shouldThrowIllegalArgumentExceptionForInvalidNullTopic() {
     thrown.expect(IllegalArgumentException.class);
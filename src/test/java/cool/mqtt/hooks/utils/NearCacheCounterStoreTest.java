@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NearCacheCounterStoreTest {
+
+  /**
+   * Loopback stand-in for a remote store, which counts the round trips and can be made unreachable.
+   */
+  private static class LoopbackStore extends LocalCounterStore {
+
+    final AtomicInteger roundTrips = new AtomicInteger();
+
+    volatile boolean unreachable;
+
+    @Override
+    public long get(String key) {
+      roundTrip();
+      return super.get(key);
+    }
+
+    @Override
+    public Map<String, Long> addAll(Map<String, Long> deltas) throws IOException {
+      if (unreachable) {
+        throw new IOException("Unreachable");
+      }
+      roundTrip();
+      // Apply the batch locally, without counting further round trips.
+      Map<String, Long> values = new HashMap<>();
+      for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+        values.put(delta.getKey(), super.addAndGet(delta.getKey(), delta.getValue()));
+      }
+      return values;
+    }
+
+    private void roundTrip() {
+      if (unreachable) {
+        throw new IllegalStateException("Unreachable");
+      }
+      roundTrips.incrementAndGet();
+    }
+  }
+
+  private LoopbackStore backend;
+
+  private NearCacheCounterStore node1;
+
+  private NearCacheCounterStore node2;
+
+  @Before
+  public void setup() {
+    backend = new LoopbackStore();
+    node1 = new NearCacheCounterStore(backend, 1, TimeUnit.HOURS);
+    node2 = new NearCacheCounterStore(backend, 1, TimeUnit.HOURS);
+  }
+
+  @Test
+  public void shouldBatchUpdates() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      node1.addAndGet("user", 1);
+    }
+    node1.addAndGet("user", -3);
+    node1.addAndGet("other", 2);
+
+    // Only the first read of each counter reaches the backing store.
+    assertThat(backend.roundTrips.get(), is(2));
+    assertThat(node1.get("user"), is(7L));
+    assertThat(backend.get("user"), is(0L));
+
+    node1.flush();
+    assertThat(backend.get("user"), is(7L));
+    assertThat(backend.get("other"), is(2L));
+    assertThat(node1.get("user"), is(7L));
+  }
+
+  @Test
+  public void shouldSeeOtherNodesUpdatesWithinStaleness() throws IOException {
+    NearCacheCounterStore fresh = new NearCacheCounterStore(backend, 0, TimeUnit.MILLISECONDS);
+    assertThat(fresh.get("user"), is(0L));
+    assertThat(node2.get("user"), is(0L));
+
+    node1.addAndGet("user", 2);
+    node1.flush();
+
+    assertThat(fresh.get("user"), is(2L));
+    // Still within the staleness interval.
+    assertThat(node2.get("user"), is(0L));
+  }
+
+  @Test
+  public void shouldEnforceLimitAcrossNodes() throws IOException {
+    NearCacheCounterStore fresh1 = new NearCacheCounterStore(backend, 0, TimeUnit.MILLISECONDS);
+    NearCacheCounterStore fresh2 = new NearCacheCounterStore(backend, 0, TimeUnit.MILLISECONDS);
+
+    assertThat(fresh1.tryAcquire("user", 3), is(true));
+    assertThat(fresh1.tryAcquire("user", 3), is(true));
+    fresh1.flush();
+
+    assertThat(fresh2.tryAcquire("user", 3), is(true));
+    assertThat(fresh2.tryAcquire("user", 3), is(false));
+
+    fresh1.release("user");
+    fresh1.flush();
+    assertThat(fresh2.tryAcquire("user", 3), is(true));
+  }
+
+  @Test
+  public void shouldKeepUpdatesOnFailedFlush() throws IOException {
+    node1.addAndGet("user", 5);
+    backend.unreachable = true;
+    try {
+      node1.flush();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertThat(node1.get("user"), is(5L));
+
+    backend.unreachable = false;
+    node1.flush();
+    assertThat(backend.get("user"), is(5L));
+    assertThat(node1.get("user"), is(5L));
+  }
+
+  @Test
+  public void shouldDiscardUpdatesWhichCanNotBeFetched() throws IOException {
+    SessionCountLimiter limiter = new SessionCountLimiter(node1, 1);
+    backend.unreachable = true;
+    try {
+      limiter.tryOpen("s1", "user");
+      fail("Expected failure");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), is("Unreachable"));
+    }
+
+    backend.unreachable = false;
+    node1.flush();
+    assertThat(backend.size(), is(0));
+    assertThat(limiter.tryOpen("s2", "user"), is(true));
+    node1.flush();
+    assertThat(limiter.getSessionCount("user"), is(1L));
+  }
+
+  @Test
+  public void shouldEvictIdleCounters() throws IOException {
+    NearCacheCounterStore store = new NearCacheCounterStore(backend, 0, TimeUnit.MILLISECONDS);
+    store.addAndGet("user", 1);
+    store.addAndGet("user", -1);
+    store.flush();
+
+    assertThat(store.size(), is(0));
+    assertThat(backend.size(), is(0));
+  }
+
+  @Test
+  public void shouldLimitSessionsPerUser() throws IOException {
+    SessionCountLimiter limiter = new SessionCountLimiter(new LocalCounterStore(), 2);
+    assertThat(limiter.tryOpen("s1", "user"), is(true));
+    assertThat(limiter.tryOpen("s2", "user"), is(true));
+    assertThat(limiter.tryOpen("s3", "user"), is(false));
+    assertThat(limiter.tryOpen("s4", "other"), is(true));
+
+    limiter.close("s3");
+    assertThat(limiter.getSessionCount("user"), is(2L));
+
+    limiter.close("s1");
+    assertThat(limiter.getSessionCount("user"), is(1L));
+    assertThat(limiter.tryOpen("s3", "user"), is(true));
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapSessionStoreTest {
+
+  private static final int CONNECTIONS = 0;
+
+  private static final int SUBSCRIPTIONS = 1;
+
+  @Test
+  public void shouldStoreSessionState() {
+    OffHeapSessionStore store = new OffHeapSessionStore(100, 32, 16, 2);
+    assertThat(store.put("S1", "alice"), is(true));
+    assertThat(store.put("S2", null), is(true));
+
+    assertThat(store.getUser("S1"), is("alice"));
+    assertThat(store.getUser("S2"), nullValue());
+    assertThat(store.contains("S3"), is(false));
+
+    assertThat(store.tryAdd("S1", CONNECTIONS, 1, 2), is(true));
+    assertThat(store.tryAdd("S1", CONNECTIONS, 1, 2), is(true));
+    assertThat(store.tryAdd("S1", CONNECTIONS, 1, 2), is(false));
+    assertThat(store.add("S1", SUBSCRIPTIONS, 5), is(true));
+    assertThat(store.get("S1", CONNECTIONS), is(2L));
+    assertThat(store.get("S1", SUBSCRIPTIONS), is(5L));
+    assertThat(store.add("S3", SUBSCRIPTIONS, 5), is(false));
+
+    store.setFlags("S1", 0b101, true);
+    store.setFlags("S1", 0b001, false);
+    assertThat(store.getFlags("S1"), is(0b100));
+
+    // Replacing a session resets its state.
+    store.put("S1", "bob");
+    assertThat(store.getUser("S1"), is("bob"));
+    assertThat(store.get("S1", CONNECTIONS), is(0L));
+    assertThat(store.getFlags("S1"), is(0));
+    assertThat(store.size(), is(2));
+
+    assertThat(store.remove("S1"), is(true));
+    assertThat(store.remove("S1"), is(false));
+    assertThat(store.contains("S1"), is(false));
+    assertThat(store.size(), is(1));
+  }
+
+  @Test
+  public void shouldMatchHashMapUnderRandomChurn() {
+    OffHeapSessionStore store = new OffHeapSessionStore(2000, 16, 16, 1);
+    Map<String, String> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 50_000; i++) {
+      String sessionId = "S" + random.nextInt(3000);
+      if (random.nextBoolean()) {
+        if (store.put(sessionId, "u" + i)) {
+          expected.put(sessionId, "u" + i);
+        }
+      } else {
+        assertThat(store.remove(sessionId), is(expected.remove(sessionId) != null));
+      }
+    }
+
+    assertThat(store.size(), is(expected.size()));
+    for (int i = 0; i < 3000; i++) {
+      String sessionId = "S" + i;
+      assertThat(store.getUser(sessionId), is(expected.get(sessionId)));
+    }
+  }
+
+  @Test
+  public void shouldRefuseWhenFull() {
+    OffHeapSessionStore store = new OffHeapSessionStore(1, 8, 8, 0);
+    int stored = 0;
+    while (store.put("S" + stored, null)) {
+      stored++;
+    }
+    assertThat(stored >= 1, is(true));
+    assertThat(store.size(), is(stored));
+    assertThat(store.remove("S0"), is(true));
+    assertThat(store.put("S0", null), is(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectTooLongSessionId() {
+    new OffHeapSessionStore(10, 4, 4, 0).put("S12345", null);
+  }
+
+}
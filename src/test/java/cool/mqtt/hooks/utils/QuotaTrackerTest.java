@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuotaTrackerTest {
+
+  private static final String BROKER = "tcp://localhost:1883";
+
+  private QuotaTracker tracker;
+
+  @Before
+  public void setup() {
+    tracker = new QuotaTracker(2, 3);
+    tracker.sessionOpened("s1", "user");
+    tracker.sessionOpened("s2", "user");
+  }
+
+  @Test
+  public void shouldLimitConnectionsPerUser() {
+    assertThat(tracker.tryConnect("s1", "c1", BROKER), is(true));
+    assertThat(tracker.tryConnect("s2", "c2", BROKER), is(true));
+    assertThat(tracker.tryConnect("s2", "c3", BROKER), is(false));
+
+    // The same connection is not counted twice.
+    assertThat(tracker.tryConnect("s1", "c1", BROKER), is(true));
+
+    tracker.disconnected("s1", "c1", BROKER);
+    assertThat(tracker.tryConnect("s2", "c3", BROKER), is(true));
+    assertThat(tracker.getUserUsage("user").getConnections(), is(2));
+    assertThat(tracker.getBrokerUsage(BROKER).getConnections(), is(2));
+  }
+
+  @Test
+  public void shouldLimitSubscriptionsPerUser() {
+    tracker.tryConnect("s1", "c1", BROKER);
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "a/#"), is(true));
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "b/#"), is(true));
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "c/#"), is(true));
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "a/#"), is(true));
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "d/#"), is(false));
+
+    tracker.unsubscribed("s1", "c1", BROKER, "a/#");
+    tracker.unsubscribed("s1", "c1", BROKER, "a/#");
+    assertThat(tracker.getUserUsage("user").getSubscriptions(), is(2));
+    assertThat(tracker.trySubscribe("s1", "c1", BROKER, "d/#"), is(true));
+    assertThat(tracker.getBrokerUsage(BROKER).getSubscriptions(), is(3));
+  }
+
+  @Test
+  public void shouldReleaseSubscriptionsOnDisconnection() {
+    tracker.tryConnect("s1", "c1", BROKER);
+    tracker.trySubscribe("s1", "c1", BROKER, "a/#");
+    tracker.trySubscribe("s1", "c1", BROKER, "b/#");
+
+    tracker.disconnected("s1", "c1", BROKER);
+    tracker.disconnected("s1", "c1", BROKER);
+
+    QuotaUsage usage = tracker.getUserUsage("user");
+    assertThat(usage.getConnections(), is(0));
+    assertThat(usage.getSubscriptions(), is(0));
+    assertThat(tracker.getBrokerUsage(BROKER).getSubscriptions(), is(0));
+  }
+
+  @Test
+  public void shouldReleaseEverythingOnSessionClose() {
+    tracker.tryConnect("s1", "c1", BROKER);
+    tracker.tryConnect("s1", "c2", "tcp://other:1883");
+    tracker.trySubscribe("s1", "c1", BROKER, "a/#");
+    tracker.trySubscribe("s1", "c2", "tcp://other:1883", "b/#");
+
+    tracker.sessionClosed("s1");
+    assertThat(tracker.getUserUsage("user").getSessions(), is(1));
+    assertThat(tracker.getUserUsage("user").getConnections(), is(0));
+    assertThat(tracker.getUserUsage("user").getSubscriptions(), is(0));
+    assertThat(tracker.getBrokerUsage(BROKER).getConnections(), is(0));
+
+    tracker.sessionClosed("s2");
+    assertThat(tracker.getUserUsage("user").getSessions(), is(0));
+    assertThat(tracker.getSessionCount(), is(0));
+  }
+
+  @Test
+  public void shouldNotTrackUnknownSessions() {
+    assertThat(tracker.tryConnect("unknown", "c1", BROKER), is(true));
+    assertThat(tracker.trySubscribe("unknown", "c1", BROKER, "a/#"), is(true));
+    tracker.sessionClosed("unknown");
+
+    assertThat(tracker.getBrokerUsage(BROKER).getConnections(), is(0));
+  }
+
+  @Test
+  public void shouldApplyChangedLimits() {
+    tracker.setMaxConnectionsPerUser(1);
+    assertThat(tracker.tryConnect("s1", "c1", BROKER), is(true));
+    assertThat(tracker.tryConnect("s1", "c2", BROKER), is(false));
+  }
+
+}
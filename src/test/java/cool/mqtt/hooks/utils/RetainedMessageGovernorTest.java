@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+
+import org.junit.Test;
+
+public class RetainedMessageGovernorTest {
+
+  private static final String BROKER = "tcp://broker";
+
+  private final RetainedMessageGovernor governor = new RetainedMessageGovernor(2, 100, 3, 150, 4);
+
+  @Test
+  public void shouldIgnoreMessagesNotRetained() {
+    for (int i = 0; i < 10; i++) {
+      assertThat(governor.tryPublish("alice", BROKER, message("t" + i, 1000, false)), is(true));
+    }
+    assertThat(governor.getIndexedTopics(), is(0));
+  }
+
+  @Test
+  public void shouldEnforceUserQuotas() {
+    assertThat(governor.tryPublish("alice", BROKER, message("a", 60, true)), is(true));
+    assertThat(governor.tryPublish("alice", BROKER, message("b", 50, true)), is(false));
+    assertThat(governor.tryPublish("alice", BROKER, message("b", 40, true)), is(true));
+    assertThat(governor.tryPublish("alice", BROKER, message("c", 1, true)), is(false));
+
+    // Replacing a retained message only charges the difference.
+    assertThat(governor.tryPublish("alice", BROKER, message("a", 10, true)), is(true));
+    assertThat(governor.getUserTopics("alice"), is(2));
+    assertThat(governor.getUserBytes("alice"), is(50L));
+    assertThat(governor.getRefusedPublishes(), is(2L));
+    assertThat(governor.getIndexedTopics(), is(2));
+  }
+
+  @Test
+  public void shouldReleaseClearedTopics() {
+    governor.tryPublish("alice", BROKER, message("a", 60, true));
+    governor.tryPublish("alice", BROKER, message("b", 40, true));
+    assertThat(governor.tryPublish(null, BROKER, message("a", 0, true)), is(true));
+    assertThat(governor.getUserTopics("alice"), is(1));
+    assertThat(governor.getUserBytes("alice"), is(40L));
+    assertThat(governor.getBrokerTopics(BROKER), is(1));
+    assertThat(governor.getIndexedTopics(), is(1));
+    assertThat(governor.tryPublish("alice", BROKER, message("c", 60, true)), is(true));
+  }
+
+  @Test
+  public void shouldChargeTheLastPublisher() {
+    governor.tryPublish("alice", BROKER, message("a", 60, true));
+    assertThat(governor.tryPublish("bob", BROKER, message("a", 70, true)), is(true));
+    assertThat(governor.getUserTopics("alice"), is(0));
+    assertThat(governor.getUserBytes("bob"), is(70L));
+    assertThat(governor.getBrokerBytes(BROKER), is(70L));
+  }
+
+  @Test
+  public void shouldEnforceBrokerQuotasAndIndexBound() {
+    assertThat(governor.tryPublish("alice", BROKER, message("a", 80, true)), is(true));
+    assertThat(governor.tryPublish("bob", BROKER, message("b", 80, true)), is(false));
+    assertThat(governor.tryPublish("bob", BROKER, message("b", 10, true)), is(true));
+    assertThat(governor.tryPublish("carol", BROKER, message("c", 10, true)), is(true));
+    assertThat(governor.tryPublish("carol", BROKER, message("d", 10, true)), is(false));
+    assertThat(governor.getBrokerTopics(BROKER), is(3));
+
+    assertThat(governor.tryPublish("carol", "tcp://other", message("d", 10, true)), is(true));
+    assertThat(governor.tryPublish("dave", "tcp://other", message("e", 10, true)), is(false));
+    assertThat(governor.getIndexedTopics(), is(4));
+
+    governor.clearBroker(BROKER);
+    assertThat(governor.getIndexedTopics(), is(1));
+    assertThat(governor.getUserBytes("carol"), is(10L));
+    assertThat(governor.tryPublish("dave", "tcp://other", message("e", 10, true)), is(true));
+  }
+
+  private static MqttMessage message(String topic, int size, boolean retained) {
+    return new TestMessage(topic, new byte[size], QoS.AT_LEAST_ONCE, retained, false);
+  }
+
+}
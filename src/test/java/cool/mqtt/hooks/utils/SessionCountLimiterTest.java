@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class SessionCountLimiterTest {
+
+  @Test
+  public void shouldLimitSessionsPerUser() throws IOException {
+    SessionCountLimiter limiter = new SessionCountLimiter(new LocalCounterStore(), 2);
+    assertThat(limiter.tryOpen("s1", "alice"), is(true));
+    assertThat(limiter.tryOpen("s2", "alice"), is(true));
+    assertThat(limiter.tryOpen("s3", "alice"), is(false));
+    assertThat(limiter.tryOpen("s4", "bob"), is(true));
+
+    limiter.close("s1");
+    limiter.close("s3");
+    assertThat(limiter.getSessionCount("alice"), is(1L));
+    assertThat(limiter.tryOpen("s5", "alice"), is(true));
+  }
+
+  @Test
+  public void shouldRetryFailedReleases() throws IOException {
+    FlakyStore store = new FlakyStore();
+    SessionCountLimiter limiter = new SessionCountLimiter(store, 1);
+    assertThat(limiter.tryOpen("s1", "alice"), is(true));
+
+    store.failing = true;
+    try {
+      limiter.close("s1");
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+    assertThat(limiter.getSessionCount("alice"), is(1L));
+
+    store.failing = false;
+    assertThat(limiter.tryOpen("s2", "alice"), is(true));
+    assertThat(limiter.getSessionCount("alice"), is(1L));
+  }
+
+  private static class FlakyStore extends LocalCounterStore {
+
+    volatile boolean failing;
+
+    @Override
+    public void release(String key) throws IOException {
+      if (failing) {
+        throw new IOException("Unreachable");
+      }
+      super.release(key);
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class SessionOrderedExecutorTest {
+
+  @Test
+  public void shouldRunTasksOfTheSameSessionInOrder() throws InterruptedException {
+    int sessions = 8;
+    int tasksPerSession = 10_000;
+    List<List<Integer>> runs = new ArrayList<>();
+    for (int i = 0; i < sessions; i++) {
+      runs.add(new ArrayList<>());
+    }
+
+    try (SessionOrderedExecutor executor = new SessionOrderedExecutor(4, 1 << 16)) {
+      Thread[] submitters = new Thread[sessions];
+      for (int i = 0; i < sessions; i++) {
+        String sessionId = "s" + i;
+        List<Integer> run = runs.get(i);
+        submitters[i] = new Thread(() -> {
+          for (int j = 0; j < tasksPerSession; j++) {
+            int sequence = j;
+            executor.execute(sessionId, () -> run.add(sequence));
+          }
+        });
+        submitters[i].start();
+      }
+      for (Thread submitter : submitters) {
+        submitter.join();
+      }
+    }
+
+    for (List<Integer> run : runs) {
+      assertThat(run.size(), is(tasksPerSession));
+      for (int j = 0; j < tasksPerSession; j++) {
+        assertThat(run.get(j), is(j));
+      }
+    }
+  }
+
+  @Test
+  public void shouldRejectTasksWhenTheQueueIsFull() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<String> run = Collections.synchronizedList(new ArrayList<>());
+
+    try (SessionOrderedExecutor executor = new SessionOrderedExecutor(1, 2)) {
+      executor.execute("s1", () -> {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+      executor.execute("s1", () -> run.add("a"));
+      executor.execute("s2", () -> run.add("b"));
+      try {
+        executor.execute("s1", () -> run.add("c"));
+        fail("Expected RejectedExecutionException");
+      } catch (RejectedExecutionException e) {
+        assertThat(e.getMessage(), is("Queue full"));
+      }
+      assertThat(executor.getQueuedTasks(), is(2));
+      release.countDown();
+    }
+    assertThat(run, is(Arrays.asList("a", "b")));
+  }
+
+  @Test
+  public void shouldCompleteFutures() throws InterruptedException, ExecutionException {
+    try (SessionOrderedExecutor executor = new SessionOrderedExecutor(2, 16)) {
+      assertThat(executor.submit("s1", () -> 42).get(), is(42));
+      try {
+        executor.submit("s1", () -> {
+          throw new IllegalArgumentException("boom");
+        }).get();
+        fail("Expected ExecutionException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause().getMessage(), is("boom"));
+      }
+      executor.execute("s1", () -> {
+        throw new IllegalStateException();
+      });
+    }
+  }
+
+  @Test
+  public void shouldSurviveErrors() throws InterruptedException, ExecutionException {
+    try (SessionOrderedExecutor executor = new SessionOrderedExecutor(1, 16)) {
+      try {
+        executor.submit("s1", () -> {
+          throw new AssertionError("boom");
+        }).get(1, TimeUnit.SECONDS);
+        fail("Expected ExecutionException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause() instanceof AssertionError, is(true));
+      } catch (TimeoutException e) {
+        fail("Future not completed");
+      }
+      executor.execute("s1", () -> {
+        throw new StackOverflowError();
+      });
+
+      // The worker thread is still alive.
+      assertThat(executor.submit("s1", () -> 42).get(), is(42));
+      assertThat(executor.getFailedTasks(), is(2L));
+    }
+  }
+
+  @Test(timeout = 5_000)
+  public void shouldCloseFromATask() throws InterruptedException {
+    SessionOrderedExecutor executor = new SessionOrderedExecutor(1, 16);
+    CountDownLatch queued = new CountDownLatch(1);
+    List<String> runs = Collections.synchronizedList(new ArrayList<>());
+    executor.execute("s1", () -> {
+      executor.execute("s1", () -> {
+        runs.add("queued");
+        queued.countDown();
+      });
+      executor.close();
+      try {
+        executor.execute("s1", () -> runs.add("rejected"));
+      } catch (RejectedExecutionException e) {
+        runs.add("closing");
+      }
+    });
+
+    // The task queued before closing still runs after the closing one, on the same worker.
+    assertThat(queued.await(1, TimeUnit.SECONDS), is(true));
+    assertThat(runs, is(Arrays.asList("closing", "queued")));
+  }
+
+  @Test(timeout = 5_000)
+  public void shouldCloseFromTasksOfDifferentStripes() throws InterruptedException {
+    SessionOrderedExecutor executor = new SessionOrderedExecutor(2, 16);
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch closed = new CountDownLatch(2);
+    Runnable closing = () -> {
+      started.countDown();
+      try {
+        started.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor.close();
+      closed.countDown();
+    };
+    // "a" and "b" fall into different stripes.
+    executor.execute("a", closing);
+    executor.execute("b", closing);
+
+    assertThat(closed.await(1, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void shouldCountTasksAndRejectAfterClose() {
+    SessionOrderedExecutor executor = new SessionOrderedExecutor(2, 16);
+    executor.execute("s1", () -> {
+      throw new IllegalStateException();
+    });
+    executor.execute("s2", () -> { });
+    executor.close();
+    assertThat(executor.getCompletedTasks(), is(2L));
+    assertThat(executor.getFailedTasks(), is(1L));
+
+    try {
+      executor.execute("s1", () -> { });
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      assertThat(e.getMessage(), is("Executor closed"));
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SlowCallDetectorTest {
+
+  private static class SleepingHook extends SimpleCoolHook {
+
+    @Override
+    public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+        MqttMessage message) throws HookException {
+
+      pause(Long.parseLong(message.getTopicName()));
+      return true;
+    }
+
+    @Override
+    public void onSessionClose(String sessionId) {
+      pause(30);
+    }
+
+    private static void pause(long millis) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private SlowCallDetector detector;
+
+  @After
+  public void tearDown() {
+    detector.close();
+  }
+
+  @Test
+  public void shouldRecordSlowCallsWithSampledStack() throws HookException {
+    detector = new SlowCallDetector(new SleepingHook(), 40, TimeUnit.MILLISECONDS, 10);
+    detector.canPublish("s1", "c1", "tcp://broker",
+        new TestMessage("0", "secret", QoS.AT_MOST_ONCE));
+    detector.canPublish("s1", "c1", "tcp://broker",
+        new TestMessage("200", "secret", QoS.AT_MOST_ONCE));
+
+    List<SlowCall> calls = detector.getSlowCalls();
+    assertThat(calls.size(), is(1));
+    SlowCall call = calls.get(0);
+    assertThat(call.getCallback(), is("canPublish"));
+    assertThat(call.getSessionId(), is("s1"));
+    assertThat(call.getClientId(), is("c1"));
+    assertThat(call.getBrokerAddress(), is("tcp://broker"));
+    assertThat(call.getTopic(), is("200"));
+    assertThat(call.getPayloadSize(), is(6));
+    assertThat(call.getDuration(TimeUnit.MILLISECONDS) >= 200, is(true));
+    assertThat(call.getStackTrace().length > 0, is(true));
+    assertThat(call.toString(), containsString("SleepingHook.pause"));
+    assertThat(call.toString(), not(containsString("secret")));
+  }
+
+  @Test
+  public void shouldApplyPerCallbackThresholds() throws HookException {
+    detector = new SlowCallDetector(new SleepingHook(), 1, TimeUnit.SECONDS, 10)
+        .threshold("onSessionClose", 10, TimeUnit.MILLISECONDS);
+    detector.canPublish("s1", "c1", "tcp://broker", new TestMessage("30", "", QoS.AT_MOST_ONCE));
+    detector.onSessionClose("s1");
+
+    List<SlowCall> calls = detector.getSlowCalls();
+    assertThat(calls.size(), is(1));
+    assertThat(calls.get(0).getCallback(), is("onSessionClose"));
+  }
+
+  @Test
+  public void shouldKeepTheSlowestCalls() throws HookException {
+    detector = new SlowCallDetector(new SleepingHook(), 1, TimeUnit.MILLISECONDS, 2);
+    for (String millis : new String[] {"20", "5", "40", "10", "30"}) {
+      detector.canPublish("s1", "c1", "tcp://broker",
+          new TestMessage(millis, "", QoS.AT_MOST_ONCE));
+    }
+
+    List<SlowCall> calls = detector.getSlowCalls();
+    assertThat(detector.getSlowCallCount(), is(5L));
+    assertThat(calls.size(), is(2));
+    assertThat(calls.get(0).getTopic(), is("40"));
+    assertThat(calls.get(1).getTopic(), is("30"));
+
+    detector.clear();
+    assertThat(detector.getSlowCalls().isEmpty(), is(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnknownCallback() {
+    detector = new SlowCallDetector(new SleepingHook(), 1, TimeUnit.SECONDS, 10);
+    detector.threshold("unknown", 1, TimeUnit.SECONDS);
+  }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.QoS;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscriptionCostGuardTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  private TopicRateModel model;
+
+  @Before
+  public void setUp() {
+    // One second periods, so that counts are rates.
+    model = new TopicRateModel(1, TimeUnit.SECONDS, 1000, clock::get);
+    for (int i = 0; i < 10; i++) {
+      model.record("sensors/room1/temperature");
+      model.record("sensors/room2/temperature");
+      model.record("sensors/room2/humidity");
+      model.record("sensors/room2/humidity/raw");
+      model.record("alerts");
+      model.record("$SYS/load");
+    }
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test
+  public void shouldEstimateFilterRates() {
+    assertThat(model.estimateRate("sensors/room1/temperature"), is(10.0));
+    assertThat(model.estimateRate("sensors/room3/temperature"), is(0.0));
+    assertThat(model.estimateRate("sensors/+/temperature"), is(30.0));
+    assertThat(model.estimateRate("sensors/room2/#"), is(30.0));
+    assertThat(model.estimateRate("sensors/+/+"), is(30.0));
+    assertThat(model.estimateRate("sensors/+/+/#"), is(40.0));
+    assertThat(model.estimateRate("+"), is(10.0));
+    assertThat(model.estimateRate("#"), is(50.0));
+    assertThat(model.estimateRate("$SYS/#"), is(10.0));
+  }
+
+  @Test
+  public void shouldForgetOldPeriods() {
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    model.record("alerts");
+    assertThat(model.estimateRate("alerts"), is(0.0));
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertThat(model.estimateRate("alerts"), is(1.0));
+    assertThat(model.estimateRate("#"), is(1.0));
+  }
+
+  @Test
+  public void shouldStayConservativeBeyondMaxNodes() {
+    TopicRateModel small = new TopicRateModel(1, TimeUnit.SECONDS, 3, clock::get);
+    small.record("devices/1/status");
+    small.record("devices/2/status");
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertThat(small.getNodeCount(), is(3));
+    assertThat(small.estimateRate("devices/2/status"), is(2.0));
+    assertThat(small.estimateRate("other"), is(0.0));
+  }
+
+  @Test
+  public void shouldChargeSubscriptionsToUserBudget() throws HookException {
+    SubscriptionCostGuard guard = new SubscriptionCostGuard(new SimpleCoolHook(), model, 25, 35);
+    guard.canOpenSession("s1", "alice", null, null, null);
+    guard.canOpenSession("s2", "alice", null, null, null);
+
+    assertThat(guard.canSubscribe("s1", "c1", "tcp://broker",
+        new TestSubscription("sensors/+/temperature", QoS.AT_LEAST_ONCE)), is(false));
+    assertThat(guard.canSubscribe("s1", "c1", "tcp://broker",
+        new TestSubscription("sensors/room2/#", QoS.AT_MOST_ONCE)), is(true));
+    assertThat(guard.getUserRate("alice"), is(30.0));
+    assertThat(guard.canSubscribe("s2", "c2", "tcp://broker",
+        new TestSubscription("alerts", QoS.AT_LEAST_ONCE)), is(false));
+    assertThat(guard.canSubscribe("s2", "c2", "tcp://broker",
+        new TestSubscription("alerts", QoS.AT_MOST_ONCE)), is(false));
+    assertThat(guard.getRefusedSubscriptions(), is(3L));
+
+    guard.onUnsubscribe("s1", "c1", "tcp://broker", "sensors/room2/#");
+    assertThat(guard.getUserRate("alice"), is(0.0));
+    assertThat(guard.canSubscribe("s2", "c2", "tcp://broker",
+        new TestSubscription("alerts", QoS.AT_LEAST_ONCE)), is(true));
+    assertThat(guard.canSubscribe("s2", "c2", "tcp://broker",
+        new TestSubscription("sensors/room1/temperature", QoS.EXACTLY_ONCE)), is(true));
+    assertThat(guard.getUserRate("alice"), is(20.0));
+
+    guard.onDisconnection("s2", "c2", "tcp://broker");
+    assertThat(guard.getUserRate("alice"), is(0.0));
+
+    guard.canSubscribe("s1", "c1", "tcp://broker",
+        new TestSubscription("alerts", QoS.AT_MOST_ONCE));
+    guard.onSessionClose("s1");
+    guard.onSessionClose("s2");
+    assertThat(guard.getUserRate("alice"), is(0.0));
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.MqttBrokerConfig;
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.SimpleCoolHook;
+import cool.mqtt.hooks.ThrottleException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TenantRoutingHookTest {
+
+  private static final String BROKER_A = "tcp://tenant-a:1883";
+
+  private static final String BROKER_B = "tcp://tenant-b:1883";
+
+  private static class TenantHook extends SimpleCoolHook {
+
+    final String name;
+
+    final List<String> closedSessions = Collections.synchronizedList(new ArrayList<>());
+
+    volatile CountDownLatch entered = new CountDownLatch(0);
+
+    volatile CountDownLatch release = new CountDownLatch(0);
+
+    TenantHook(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public MqttBrokerConfig resolveAlias(String alias) {
+      return new MqttBrokerConfigBuilder("tcp://" + name + "-" + alias + ":1883").build();
+    }
+
+    @Override
+    public boolean canPublish(String sessionId, String clientId, String brokerAddress,
+        MqttMessage message) {
+
+      entered.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return name.equals(message.getTopicName());
+    }
+
+    @Override
+    public void onSessionClose(String sessionId) {
+      closedSessions.add(sessionId);
+    }
+  }
+
+  private TenantHook defaultHook;
+
+  private TenantHook tenantA;
+
+  private TenantHook tenantB;
+
+  private TenantRoutingHook hook;
+
+  @Before
+  public void setup() {
+    defaultHook = new TenantHook("default");
+    tenantA = new TenantHook("a");
+    tenantB = new TenantHook("b");
+    hook = new TenantRoutingHook(defaultHook)
+        .addTenant("a", tenantA, 1, 0, 0, TimeUnit.MILLISECONDS)
+        .addTenant("b", tenantB, 1, 0, 0, TimeUnit.MILLISECONDS)
+        .mapBroker(BROKER_A, "a")
+        .mapBroker(BROKER_B, "b")
+        .mapAlias("alias-b", "b");
+  }
+
+  @Test
+  public void shouldRouteByBrokerAddress() throws HookException {
+    assertThat(hook.canPublish("s", "c", BROKER_A, new TestMessage("a", "", null)), is(true));
+    assertThat(hook.canPublish("s", "c", BROKER_B, new TestMessage("b", "", null)), is(true));
+    assertThat(hook.canPublish("s", "c", "tcp://other:1883",
+        new TestMessage("default", "", null)), is(true));
+    assertThat(hook.getStats("a").getCalls(), is(1L));
+    assertThat(hook.getStats("b").getCalls(), is(1L));
+    assertThat(hook.getStats("unknown"), nullValue());
+  }
+
+  @Test
+  public void shouldRouteByAliasAndLearnBrokerAddress() throws HookException {
+    MqttBrokerConfig config = hook.resolveAlias("alias-b");
+    assertThat(config.getAddress(), is("tcp://b-alias-b:1883"));
+    assertThat(hook.resolveAlias("other").getAddress(), is("tcp://default-other:1883"));
+
+    assertThat(hook.canPublish("s", "c", config.getAddress(), new TestMessage("b", "", null)),
+        is(true));
+  }
+
+  @Test
+  public void shouldKeepTheOwnerOfASharedBroker() throws HookException {
+    hook.mapBroker("tcp://b-alias-b:1883", "a");
+    MqttBrokerConfig config = hook.resolveAlias("alias-b");
+
+    hook.canPublish("s", "c", config.getAddress(), new TestMessage("b", "", null));
+    assertThat(hook.getStats("a").getCalls(), is(1L));
+    assertThat(hook.getStats("b").getCalls(), is(1L));
+  }
+
+  @Test
+  public void shouldDeliverSessionCloseToInvolvedTenants() throws HookException {
+    hook.canConnect("s", "c", BROKER_A, null);
+    hook.onSessionClose("s");
+
+    assertThat(defaultHook.closedSessions.size(), is(1));
+    assertThat(tenantA.closedSessions.size(), is(1));
+    assertThat(tenantB.closedSessions.size(), is(0));
+  }
+
+  @Test
+  public void shouldIsolateBusyTenant() throws Exception {
+    tenantA.entered = new CountDownLatch(1);
+    tenantA.release = new CountDownLatch(1);
+    Thread slowCall = new Thread(() -> {
+      try {
+        hook.canPublish("s1", "c", BROKER_A, new TestMessage("a", "", null));
+      } catch (HookException e) {
+        // Not expected.
+      }
+    });
+    slowCall.start();
+    assertThat(tenantA.entered.await(10, TimeUnit.SECONDS), is(true));
+
+    try {
+      hook.canPublish("s2", "c", BROKER_A, new TestMessage("a", "", null));
+      fail("Expected ThrottleException");
+    } catch (ThrottleException e) {
+      assertThat(e.getCode(), is(TenantRoutingHook.TENANT_BUSY_ERROR_CODE));
+      assertThat(e.getRetryAfter(TimeUnit.MILLISECONDS) >= 100, is(true));
+    }
+
+    // The other tenant is not affected.
+    assertThat(hook.canPublish("s3", "c", BROKER_B, new TestMessage("b", "", null)), is(true));
+
+    tenantA.release.countDown();
+    slowCall.join();
+    assertThat(hook.getStats("a").getRejectedCalls(), is(1L));
+    assertThat(hook.getStats("a").getActiveCalls(), is(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldThrowIllegalArgumentExceptionForUnknownTenant() {
+    hook.mapBroker(BROKER_A, "unknown");
+  }
+
+}
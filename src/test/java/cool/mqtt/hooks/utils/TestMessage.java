@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Simple {@link MqttMessage} implementation for tests.
+ */
+class TestMessage implements MqttMessage {
+
+  private final String topicName;
+
+  private final byte[] applicationMessage;
+
+  private final QoS qos;
+
+  private final boolean retained;
+
+  private final boolean duplicate;
+
+  TestMessage(String topicName, String applicationMessage, QoS qos) {
+    this(topicName, applicationMessage.getBytes(StandardCharsets.UTF_8), qos, false, false);
+  }
+
+  TestMessage(String topicName, byte[] applicationMessage, QoS qos, boolean retained,
+      boolean duplicate) {
+    this.topicName = topicName;
+    this.applicationMessage = applicationMessage;
+    this.qos = qos;
+    this.retained = retained;
+    this.duplicate = duplicate;
+  }
+
+  TestMessage asDuplicate() {
+    return new TestMessage(topicName, applicationMessage, qos, retained, true);
+  }
+
+  @Override
+  public String getTopicName() {
+    return topicName;
+  }
+
+  @Override
+  public byte[] getApplicationMessage() {
+    return applicationMessage;
+  }
+
+  @Override
+  public QoS getQos() {
+    return qos;
+  }
+
+  @Override
+  public boolean isRetained() {
+    return retained;
+  }
+
+  @Override
+  public boolean isDuplicate() {
+    return duplicate;
+  }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import cool.mqtt.hooks.MqttSubscription;
+import cool.mqtt.hooks.QoS;
+
+/**
+ * Simple {@link MqttSubscription} implementation for tests.
+ */
+public class TestSubscription implements MqttSubscription {
+
+  private final String topicFilter;
+
+  private final QoS qos;
+
+  public TestSubscription(String topicFilter) {
+    this(topicFilter, QoS.AT_MOST_ONCE);
+  }
+
+  public TestSubscription(String topicFilter, QoS qos) {
+    this.topicFilter = topicFilter;
+    this.qos = qos;
+  }
+
+  @Override
+  public String getTopicFilter() {
+    return topicFilter;
+  }
+
+  @Override
+  public QoS getQos() {
+    return qos;
+  }
+
+}
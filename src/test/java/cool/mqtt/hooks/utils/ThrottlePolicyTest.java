@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.ThrottleException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThrottlePolicyTest {
+
+  // Always pick the upper end of the jitter range.
+  private final ThrottlePolicy policy =
+      new ThrottlePolicy(429, 100, 10_000, TimeUnit.MILLISECONDS, () -> 1.0);
+
+  @Test
+  public void shouldWaitForMissingPermits() {
+    ThrottleException e = policy.forRate(5, 2, "Rate exceeded");
+    assertThat(e.getCode(), is(429));
+    assertThat(e.getMessage(), is("Rate exceeded"));
+    assertThat(e.getRetryAfter(TimeUnit.MILLISECONDS), is(2500L));
+    assertThat(policy.forRate(1, 0, "Rate exceeded").getRetryAfter(TimeUnit.SECONDS), is(10L));
+  }
+
+  @Test
+  public void shouldGrowWithUtilization() {
+    assertThat(retryAfter(policy.forUtilization(0.2, "Busy")), is(100L));
+    assertThat(retryAfter(policy.forUtilization(0.9, "Busy")), is(900L));
+    assertThat(retryAfter(policy.forUtilization(0.999, "Busy")), is(10_000L));
+    assertThat(retryAfter(policy.forUtilization(1.5, "Busy")), is(10_000L));
+  }
+
+  @Test
+  public void shouldSpreadRetriesOverTheUpperHalf() {
+    ThrottlePolicy lowest = new ThrottlePolicy(429, 100, 10_000, TimeUnit.MILLISECONDS, () -> 0.0);
+    assertThat(retryAfter(lowest.forRate(4, 1, "Rate exceeded")), is(2000L));
+    assertThat(retryAfter(lowest.forRate(0, 1, "Rate exceeded")), is(100L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectInvalidBounds() {
+    new ThrottlePolicy(429, 100, 10, TimeUnit.MILLISECONDS);
+  }
+
+  private static long retryAfter(ThrottleException e) {
+    return e.getRetryAfter(TimeUnit.MILLISECONDS);
+  }
+
+}
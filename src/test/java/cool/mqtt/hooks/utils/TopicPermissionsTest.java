@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.Test;
+
+public class TopicPermissionsTest {
+
+  @Test
+  public void shouldMatchLiteralTopics() {
+    TopicPermissions permissions = new TopicPermissions.Builder()
+        .allowPublish("sensors/kitchen/temperature")
+        .build();
+
+    assertThat(permissions.canPublish("sensors/kitchen/temperature"), is(true));
+    assertThat(permissions.canPublish("sensors/kitchen"), is(false));
+    assertThat(permissions.canPublish("sensors/kitchen/temperature/celsius"), is(false));
+    assertThat(permissions.canPublish("sensors/kitchen/temp"), is(false));
+    assertThat(permissions.canSubscribe("sensors/kitchen/temperature"), is(false));
+  }
+
+  @Test
+  public void shouldMatchWildcards() {
+    TopicPermissions permissions = new TopicPermissions.Builder()
+        .allowPublish("sensors/+/temperature")
+        .allowPublish("devices/#")
+        .build();
+
+    assertThat(permissions.canPublish("sensors/kitchen/temperature"), is(true));
+    assertThat(permissions.canPublish("sensors//temperature"), is(true));
+    assertThat(permissions.canPublish("sensors/kitchen/humidity"), is(false));
+    assertThat(permissions.canPublish("devices"), is(true));
+    assertThat(permissions.canPublish("devices/1/status"), is(true));
+    assertThat(permissions.canPublish("device"), is(false));
+  }
+
+  @Test
+  public void shouldNotMatchDollarTopicsWithLeadingWildcards() {
+    TopicPermissions permissions = new TopicPermissions.Builder().allow("#").build();
+
+    assertThat(permissions.canPublish("any/topic"), is(true));
+    assertThat(permissions.canPublish("$SYS/broker"), is(false));
+    assertThat(permissions.canSubscribe("$SYS/#"), is(false));
+
+    permissions = new TopicPermissions.Builder().allow("$SYS/#").build();
+    assertThat(permissions.canPublish("$SYS/broker"), is(true));
+  }
+
+  @Test
+  public void shouldCheckSubscriptionCoverage() {
+    TopicPermissions permissions = new TopicPermissions.Builder()
+        .allowSubscribe("sensors/+/temperature")
+        .allowSubscribe("devices/#")
+        .build();
+
+    assertThat(permissions.canSubscribe("sensors/kitchen/temperature"), is(true));
+    assertThat(permissions.canSubscribe("sensors/+/temperature"), is(true));
+    assertThat(permissions.canSubscribe("sensors/#"), is(false));
+    assertThat(permissions.canSubscribe("sensors/+/+"), is(false));
+    assertThat(permissions.canSubscribe("devices/+/status"), is(true));
+    assertThat(permissions.canSubscribe("devices/#"), is(true));
+    assertThat(permissions.canSubscribe("#"), is(false));
+    assertThat(permissions.canPublish("devices/1"), is(false));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldThrowIllegalArgumentExceptionForMisplacedMultiLevelWildcard() {
+    new TopicPermissions.Builder().allow("a/#/b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldThrowIllegalArgumentExceptionForPartialWildcard() {
+    new TopicPermissions.Builder().allow("a/b+");
+  }
+
+  @Test
+  public void shouldAttachPermissionsToSessions() {
+    SessionPermissions sessions = new SessionPermissions();
+    TopicPermissions permissions = new TopicPermissions.Builder().allow("a/#").build();
+    sessions.attach("session", permissions);
+
+    assertThat(sessions.get("session"), sameInstance(permissions));
+    assertThat(sessions.canPublish("session", "a/b"), is(true));
+    assertThat(sessions.canSubscribe("session", "a/+"), is(true));
+    assertThat(sessions.canPublish("other", "a/b"), is(false));
+
+    sessions.detach("session");
+    assertThat(sessions.canPublish("session", "a/b"), is(false));
+    assertThat(sessions.size(), is(0));
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TopicRateModelTest {
+
+  private final AtomicLong clock = new AtomicLong();
+
+  // One second periods, so that counts are rates.
+  private final TopicRateModel model = new TopicRateModel(1, TimeUnit.SECONDS, 1000, clock::get);
+
+  @Test
+  public void shouldNotMatchDollarTopicsWithLeadingWildcards() {
+    model.record("$SYS/broker/load");
+    model.record("sensors/a");
+    endPeriod();
+
+    assertThat(model.estimateRate("#"), is(1.0));
+    assertThat(model.estimateRate("+/broker/load"), is(0.0));
+    assertThat(model.estimateRate("+/+/+"), is(0.0));
+    assertThat(model.estimateRate("$SYS/#"), is(1.0));
+    assertThat(model.estimateRate("$SYS/+/load"), is(1.0));
+    assertThat(model.estimateRate("$SYS/broker/load"), is(1.0));
+  }
+
+  @Test
+  public void shouldMatchTheParentLevelWithMultiLevelWildcards() {
+    model.record("sensors");
+    model.record("sensors/a");
+    model.record("sensors/a/b");
+    endPeriod();
+
+    assertThat(model.estimateRate("sensors/#"), is(3.0));
+    assertThat(model.estimateRate("sensors/+"), is(1.0));
+    assertThat(model.estimateRate("sensors/a/#"), is(2.0));
+    assertThat(model.estimateRate("sensors/+/#"), is(2.0));
+    assertThat(model.estimateRate("sensors"), is(1.0));
+  }
+
+  @Test
+  public void shouldShareTheDeepestLevelsBeyondTheMaximumDepth() {
+    model.record(topic(17));
+    model.record(topic(20));
+    endPeriod();
+
+    assertThat(model.estimateRate("#"), is(2.0));
+    assertThat(model.estimateRate(topic(20)), is(1.0));
+    // Both topics are at least 16 levels below the root, hence either one may match.
+    assertThat(model.estimateRate(wildcards(17)), is(2.0));
+    assertThat(model.estimateRate(wildcards(20)), is(2.0));
+    assertThat(model.estimateRate(wildcards(15)), is(0.0));
+  }
+
+  @Test
+  public void shouldAccountNewTopicsToTheirAncestorOnOverflow() {
+    // The root nodes of the plain and of the $ topics, plus two nodes.
+    TopicRateModel small = new TopicRateModel(1, TimeUnit.SECONDS, 4, clock::get);
+    small.record("a/b");
+    small.record("a/c");
+    small.record("a/c/d");
+    assertThat(small.getNodeCount(), is(4));
+    endPeriod();
+
+    assertThat(small.estimateRate("a/b"), is(1.0));
+    // Unknown topics below an overflown node are estimated conservatively.
+    assertThat(small.estimateRate("a/c"), is(2.0));
+    assertThat(small.estimateRate("a/c/d"), is(1.0));
+    assertThat(small.estimateRate("a/#"), is(3.0));
+    // Unknown topics below a node which did not overflow are never published.
+    assertThat(small.estimateRate("x"), is(0.0));
+  }
+
+  @Test
+  public void shouldForgetRatesOfPastPeriods() {
+    model.record("sensors/a");
+    endPeriod();
+    assertThat(model.estimateRate("sensors/a"), is(1.0));
+    endPeriod();
+    assertThat(model.estimateRate("sensors/a"), is(0.0));
+  }
+
+  private void endPeriod() {
+    clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static String topic(int levels) {
+    StringBuilder topic = new StringBuilder("l0");
+    for (int i = 1; i < levels; i++) {
+      topic.append("/l").append(i);
+    }
+    return topic.toString();
+  }
+
+  private static String wildcards(int levels) {
+    StringBuilder filter = new StringBuilder("+");
+    for (int i = 1; i < levels; i++) {
+      filter.append("/+");
+    }
+    return filter.toString();
+  }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+
+import cool.mqtt.hooks.HookException;
+import cool.mqtt.hooks.SimpleCoolHook;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class WarmUpHookTest {
+
+  @Test
+  public void shouldRunTasksPrimeCachesAndStopWhenCompilationSettles() throws Exception {
+    List<String> events = new ArrayList<>();
+    SimpleCoolHook delegate = new SimpleCoolHook() {
+
+      @Override
+      public void init(File configDir) {
+        events.add("init");
+      }
+    };
+
+    Path directory = Files.createTempDirectory("warm-up");
+    try {
+      WarmUpHook.saveHotKeys(directory.resolve("aliases.txt").toFile(),
+          Arrays.asList("alias1", "alias2"));
+
+      // Compilation time never changes, so it settles at once.
+      WarmUpHook hook = new WarmUpHook(delegate, 10, TimeUnit.SECONDS, () -> 42)
+          .task("acl", configDir -> events.add("acl " + configDir.getName()))
+          .primeCache("aliases.txt", key -> events.add("prime " + key))
+          .primeCache("missing.txt", key -> events.add("prime " + key))
+          .syntheticCalls((target, iteration) -> target.canOpenSession("warm-up-" + iteration,
+              "user", null, null, null));
+      hook.init(directory.toFile());
+
+      assertThat(events, is(Arrays.asList("init", "acl " + directory.getFileName(),
+          "prime alias1", "prime alias2")));
+      assertThat(hook.getPrimedKeys(), is(2L));
+      assertThat(hook.isSettled(), is(true));
+      assertThat(hook.getIterations() > 0, is(true));
+      assertThat(hook.getElapsed(TimeUnit.SECONDS) < 10, is(true));
+    } finally {
+      for (File file : directory.toFile().listFiles()) {
+        file.delete();
+      }
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void shouldHonorTheBudget() throws HookException {
+    AtomicLong compilationTime = new AtomicLong();
+    WarmUpHook hook = new WarmUpHook(new SimpleCoolHook(), 300, TimeUnit.MILLISECONDS,
+        compilationTime::incrementAndGet)
+        .syntheticCalls((target, iteration) -> {
+          throw new HookException(1, "Denied");
+        });
+    hook.init(null);
+
+    assertThat(hook.isSettled(), is(false));
+    assertThat(hook.getIterations() > 0, is(true));
+    assertThat(hook.getElapsed(TimeUnit.MILLISECONDS) >= 300, is(true));
+  }
+
+  @Test
+  public void shouldAbortWhenTaskFails() {
+    WarmUpHook hook = new WarmUpHook(new SimpleCoolHook(), 0, TimeUnit.SECONDS)
+        .task("acl", configDir -> {
+          throw new IllegalStateException("ACL store unavailable");
+        });
+    try {
+      hook.init(null);
+      fail("Expected HookException");
+    } catch (HookException e) {
+      assertThat(e.getMessage(), containsString("ACL store unavailable"));
+    }
+  }
+
+}
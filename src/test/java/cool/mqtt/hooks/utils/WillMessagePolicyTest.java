@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cool.mqtt.hooks.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import cool.mqtt.hooks.MqttMessage;
+import cool.mqtt.hooks.QoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WillMessagePolicyTest {
+
+  private final TopicPermissions permissions =
+      new TopicPermissions.Builder().allowPublish("devices/+/status").build();
+
+  private final WillMessagePolicy policy =
+      new WillMessagePolicy(16, QoS.AT_LEAST_ONCE, false, 64);
+
+  @Test
+  public void shouldValidateWillMessages() {
+    assertThat(policy.isAllowed(null, permissions), is(true));
+    assertThat(policy.isAllowed(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE),
+        permissions), is(true));
+    assertThat(policy.isAllowed(will("devices/d1/other", "offline", QoS.AT_LEAST_ONCE),
+        permissions), is(false));
+    assertThat(policy.isAllowed(will("devices/+/status", "offline", QoS.AT_LEAST_ONCE),
+        permissions), is(false));
+    assertThat(policy.isAllowed(will("devices/d1/status", "offline", QoS.EXACTLY_ONCE),
+        permissions), is(false));
+    assertThat(policy.isAllowed(will("devices/d1/status", "offline, battery exhausted",
+        QoS.AT_LEAST_ONCE), permissions), is(false));
+    assertThat(policy.isAllowed(new TestMessage("devices/d1/status",
+        "offline".getBytes(StandardCharsets.UTF_8), QoS.AT_MOST_ONCE, true, false), permissions),
+        is(false));
+  }
+
+  @Test
+  public void shouldCheckThePermissionsOfEachUser() {
+    TopicPermissions other =
+        new TopicPermissions.Builder().allowPublish("devices/d2/status").build();
+    MqttMessage will = will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE);
+
+    assertThat(policy.isAllowed(will, permissions), is(true));
+    assertThat(policy.isAllowed(will, other), is(false));
+    assertThat(policy.isAllowed(will, TopicPermissions.NONE), is(false));
+    assertThat(policy.isAllowed(will, null), is(false));
+    assertThat(policy.isAllowed(will, permissions), is(true));
+  }
+
+  @Test
+  public void shouldInternIdenticalWillMessages() {
+    byte[] payload = "offline".getBytes(StandardCharsets.UTF_8);
+    MqttMessage first = policy.intern(new TestMessage("devices/d1/status", payload,
+        QoS.AT_LEAST_ONCE, false, false));
+    for (int i = 0; i < 9; i++) {
+      MqttMessage next = policy.intern(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE));
+      assertThat(next, is(sameInstance(first)));
+    }
+    assertThat(policy.getCacheMisses(), is(1L));
+    assertThat(policy.getCacheHits(), is(9L));
+    assertThat(first.getApplicationMessage(), is(not(sameInstance(payload))));
+
+    // Later changes to the original payload do not affect the canonical instance.
+    payload[0] = 'O';
+    assertThat(new String(first.getApplicationMessage(), StandardCharsets.UTF_8), is("offline"));
+    assertThat(policy.intern(null), is(nullValue()));
+
+    assertThat(policy.intern(will("devices/d1/status", "gone", QoS.AT_LEAST_ONCE)),
+        is(not(sameInstance(first))));
+    assertThat(policy.getCacheMisses(), is(2L));
+  }
+
+  @Test
+  public void shouldNotShareTheApplicationMessageOfCanonicalInstances() {
+    MqttMessage canonical =
+        policy.intern(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE));
+    canonical.getApplicationMessage()[0] = 'O';
+
+    assertThat(new String(canonical.getApplicationMessage(), StandardCharsets.UTF_8),
+        is("offline"));
+    assertThat(policy.intern(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE)),
+        is(sameInstance(canonical)));
+  }
+
+  @Test
+  public void shouldNotCacheInvalidWillMessages() {
+    WillMessagePolicy singleSlot = new WillMessagePolicy(16, QoS.AT_LEAST_ONCE, false, 1);
+    MqttMessage cached =
+        singleSlot.intern(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE));
+
+    AtomicInteger reads = new AtomicInteger();
+    byte[] oversized = new byte[1 << 20];
+    MqttMessage flood = new TestMessage("devices/d2/status", oversized, QoS.AT_LEAST_ONCE,
+        false, false) {
+
+      @Override
+      public byte[] getApplicationMessage() {
+        reads.incrementAndGet();
+        return super.getApplicationMessage();
+      }
+    };
+    for (int i = 0; i < 3; i++) {
+      assertThat(singleSlot.isAllowed(flood, permissions), is(false));
+    }
+    assertThat(reads.get(), is(3));
+
+    MqttMessage copy = singleSlot.intern(flood);
+    assertThat(copy.getApplicationMessage().length, is(oversized.length));
+    assertThat(singleSlot.intern(flood), is(not(sameInstance(copy))));
+
+    // The cached message has not been evicted.
+    assertThat(singleSlot.intern(will("devices/d1/status", "offline", QoS.AT_LEAST_ONCE)),
+        is(sameInstance(cached)));
+    assertThat(singleSlot.getCacheMisses(), is(1L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectInvalidCapacity() {
+    new WillMessagePolicy(16, QoS.AT_LEAST_ONCE, false, 0);
+  }
+
+  private static TestMessage will(String topicName, String applicationMessage, QoS qos) {
+    return new TestMessage(topicName, applicationMessage, qos);
+  }
+
+}